@@ -0,0 +1,420 @@
+package dev.metlhedd.paperts;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * AccessorCache class holding the getter and setter metadata of Java classes,
+ * shared by every runtime of the JVM.
+ * The metadata of a class is discovered once, the first time any module reads
+ * from it, and reused across runtimes and reloads.
+ * Getters of the configured hot types are compiled with LambdaMetafactory into
+ * direct calls, the others are invoked through cached MethodHandles.
+ * The cache backs the bulk accessors of the PaperTS global, e.g.
+ * PaperTS.read. Plain property access on a proxy, e.g. player.name, is left
+ * to the reflection handler of Javet: a proxy read is dominated by the call
+ * from the runtime into Java, so compiled getters do not make it measurably
+ * faster. The gain is in reading many objects in a single call, see the
+ * benchmark in AccessorCacheTest.
+ */
+public class AccessorCache {
+  /**
+   * The accessors of a single class.
+   */
+  static class ClassAccessors {
+    private final HashMap<String, Function<Object, Object>> getters = new HashMap<>();
+    private final HashMap<String, List<Setter>> setters = new HashMap<>();
+    /**
+     * The version of the hot types the accessors were discovered with.
+     */
+    private final int hotTypesVersion;
+
+    ClassAccessors(int hotTypesVersion) {
+      this.hotTypesVersion = hotTypesVersion;
+    }
+  }
+
+  /**
+   * An overload of a setter.
+   */
+  private static class Setter {
+    private final Class<?> parameterType;
+    private final BiConsumer<Object, Object> invoker;
+
+    Setter(Class<?> parameterType, BiConsumer<Object, Object> invoker) {
+      this.parameterType = parameterType;
+      this.invoker = invoker;
+    }
+  }
+
+  /**
+   * Orders the methods of a class, as getMethods() returns them in no
+   * particular order: the accessor picked for a property is the same on every
+   * run. For a property, getX() comes before isX(), and the overloads of a
+   * setter are sorted by parameter type.
+   */
+  private static final Comparator<Method> METHOD_ORDER = Comparator.comparing(Method::getName)
+      .thenComparing(method -> Arrays.toString(method.getParameterTypes()))
+      .thenComparing(method -> method.getDeclaringClass().getName());
+
+  /**
+   * The types whose getters are compiled into direct calls.
+   */
+  private static volatile List<Class<?>> hotTypes = List.of();
+  /**
+   * Incremented when the hot types change, so the classes discovered before
+   * are discovered again.
+   */
+  private static volatile int hotTypesVersion;
+
+  /**
+   * The accessors per class, computed on first use.
+   */
+  private static final ClassValue<ClassAccessors> accessors = new ClassValue<>() {
+    @Override
+    protected ClassAccessors computeValue(Class<?> type) {
+      return discover(type);
+    }
+  };
+
+  private AccessorCache() {
+  }
+
+  /**
+   * Sets the types whose getters are compiled into direct calls.
+   * Classes that cannot be found are reported and skipped.
+   *
+   * @param classNames The fully qualified names of the hot types.
+   * @param logger     The logger used to report unknown classes.
+   */
+  public static void setHotTypes(List<String> classNames, Logger logger) {
+    ArrayList<Class<?>> types = new ArrayList<>();
+
+    for (String className : classNames) {
+      try {
+        types.add(Class.forName(className));
+      } catch (ClassNotFoundException e) {
+        logger.warning("Hot type " + className + " was not found, it is ignored.");
+      }
+    }
+
+    hotTypes = List.copyOf(types);
+    hotTypesVersion++;
+  }
+
+  /**
+   * Gets the accessors of a class, discovering them again if the hot types
+   * changed since.
+   */
+  private static ClassAccessors accessorsOf(Class<?> type) {
+    ClassAccessors classAccessors = accessors.get(type);
+
+    if (classAccessors.hotTypesVersion != hotTypesVersion) {
+      accessors.remove(type);
+      classAccessors = accessors.get(type);
+    }
+
+    return classAccessors;
+  }
+
+  /**
+   * Reads a property of an object.
+   * Properties follow the same naming as the Javet proxies: "name" reads
+   * getName() or isName(), and the method name itself can be used too.
+   *
+   * @param target   The object to read from.
+   * @param property The name of the property.
+   * @return The value of the property.
+   * @throws IllegalArgumentException if the object has no such property.
+   */
+  public static Object get(Object target, String property) throws IllegalArgumentException {
+    Function<Object, Object> getter = accessorsOf(target.getClass()).getters.get(property);
+
+    if (getter == null) {
+      throw new IllegalArgumentException(
+          "No readable property '" + property + "' on " + target.getClass().getName() + ".");
+    }
+
+    return getter.apply(target);
+  }
+
+  /**
+   * Writes a property of an object, e.g. "health" calls setHealth(value).
+   * When the setter is overloaded, the overload is picked from the type of the
+   * value: one taking the value as it is first, then one taking a number the
+   * value converts to, e.g. setAmount(int) for a script number.
+   *
+   * @param target   The object to write to.
+   * @param property The name of the property.
+   * @param value    The value to write.
+   * @throws IllegalArgumentException if the object has no such property, or no
+   *                                  overload takes the value.
+   */
+  public static void set(Object target, String property, Object value) throws IllegalArgumentException {
+    List<Setter> setters = accessorsOf(target.getClass()).setters.get(property);
+
+    if (setters == null) {
+      throw new IllegalArgumentException(
+          "No writable property '" + property + "' on " + target.getClass().getName() + ".");
+    }
+
+    for (Setter setter : setters) {
+      if (accepts(setter.parameterType, value)) {
+        setter.invoker.accept(target, value);
+        return;
+      }
+    }
+
+    for (Setter setter : setters) {
+      Object converted = convertNumber(setter.parameterType, value);
+
+      if (converted != null) {
+        setter.invoker.accept(target, converted);
+        return;
+      }
+    }
+
+    throw new IllegalArgumentException("Property '" + property + "' on " + target.getClass().getName()
+        + " cannot be set to " + (value == null ? "null" : value.getClass().getSimpleName()) + ".");
+  }
+
+  private static boolean accepts(Class<?> parameterType, Object value) {
+    if (value == null) {
+      return !parameterType.isPrimitive();
+    }
+
+    return MethodType.methodType(parameterType).wrap().returnType().isInstance(value);
+  }
+
+  /**
+   * Converts a number to the numeric type a setter takes.
+   *
+   * @return The converted number, or null if the value is not a number or the
+   *         setter does not take one.
+   */
+  private static Object convertNumber(Class<?> parameterType, Object value) {
+    if (!(value instanceof Number number)) {
+      return null;
+    }
+
+    Class<?> wrapped = MethodType.methodType(parameterType).wrap().returnType();
+
+    if (wrapped == Integer.class) {
+      return number.intValue();
+    } else if (wrapped == Long.class) {
+      return number.longValue();
+    } else if (wrapped == Double.class) {
+      return number.doubleValue();
+    } else if (wrapped == Float.class) {
+      return number.floatValue();
+    } else if (wrapped == Short.class) {
+      return number.shortValue();
+    } else if (wrapped == Byte.class) {
+      return number.byteValue();
+    }
+
+    return null;
+  }
+
+  /**
+   * Discovers the getters and setters of a class.
+   *
+   * @param type The class to discover.
+   * @return The accessors of the class.
+   */
+  private static ClassAccessors discover(Class<?> type) {
+    ClassAccessors classAccessors = new ClassAccessors(hotTypesVersion);
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    Class<?> hotType = findHotType(type);
+    Method[] methods = type.getMethods();
+
+    Arrays.sort(methods, METHOD_ORDER);
+
+    for (Method method : methods) {
+      if (Modifier.isStatic(method.getModifiers()) || method.isBridge()) {
+        continue;
+      }
+
+      String property = propertyName(method);
+
+      if (property == null) {
+        continue;
+      }
+
+      // The implementation classes are usually not public, so the method is
+      // resolved on the public type declaring it
+      Method accessible = findAccessible(method);
+
+      if (accessible == null) {
+        continue;
+      }
+
+      try {
+        MethodHandle handle = lookup.unreflect(accessible);
+
+        if (method.getParameterCount() == 0) {
+          Function<Object, Object> getter = hotType != null && accessible.getDeclaringClass().isAssignableFrom(hotType)
+              ? compileGetter(lookup, handle)
+              : invokeGetter(handle);
+
+          classAccessors.getters.putIfAbsent(property, getter);
+          classAccessors.getters.putIfAbsent(method.getName(), getter);
+        } else {
+          MethodHandle generic = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+          List<Setter> overloads = classAccessors.setters.computeIfAbsent(property, key -> new ArrayList<>());
+          Class<?> parameterType = method.getParameterTypes()[0];
+
+          // The same overload may be declared by several public types
+          if (overloads.stream().noneMatch(overload -> overload.parameterType == parameterType)) {
+            overloads.add(new Setter(parameterType, (target, value) -> {
+              try {
+                generic.invokeExact(target, value);
+              } catch (RuntimeException e) {
+                throw e;
+              } catch (Throwable e) {
+                throw new RuntimeException(e);
+              }
+            }));
+          }
+        }
+      } catch (IllegalAccessException e) {
+        // Not accessible from here, the property is skipped
+      }
+    }
+
+    return classAccessors;
+  }
+
+  /**
+   * Gets the property name of a getter or setter, e.g. "name" for getName().
+   *
+   * @param method The method to inspect.
+   * @return The property name, or null if the method is not an accessor.
+   */
+  private static String propertyName(Method method) {
+    String name = method.getName();
+    String suffix;
+
+    if (method.getParameterCount() == 0 && method.getReturnType() != void.class) {
+      if (name.startsWith("get") && name.length() > 3) {
+        suffix = name.substring(3);
+      } else if (name.startsWith("is") && name.length() > 2
+          && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+        suffix = name.substring(2);
+      } else {
+        return null;
+      }
+    } else if (method.getParameterCount() == 1 && name.startsWith("set") && name.length() > 3) {
+      suffix = name.substring(3);
+    } else {
+      return null;
+    }
+
+    return suffix.substring(0, 1).toLowerCase(Locale.ROOT) + suffix.substring(1);
+  }
+
+  private static Class<?> findHotType(Class<?> type) {
+    for (Class<?> hotType : hotTypes) {
+      if (hotType.isAssignableFrom(type)) {
+        return hotType;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Finds the method on a public class or interface, so it can be called
+   * without opening the implementation class.
+   *
+   * @param method The method to find.
+   * @return The accessible method, or null if there is none.
+   */
+  private static Method findAccessible(Method method) {
+    if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+      return method;
+    }
+
+    for (Class<?> current = method.getDeclaringClass(); current != null; current = current.getSuperclass()) {
+      for (Class<?> iface : current.getInterfaces()) {
+        Method found = findOnInterface(iface, method);
+
+        if (found != null) {
+          return found;
+        }
+      }
+
+      Class<?> parent = current.getSuperclass();
+
+      if (parent != null && Modifier.isPublic(parent.getModifiers())) {
+        try {
+          return parent.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+          // Keep looking higher up
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private static Method findOnInterface(Class<?> iface, Method method) {
+    if (!Modifier.isPublic(iface.getModifiers())) {
+      return null;
+    }
+
+    try {
+      return iface.getMethod(method.getName(), method.getParameterTypes());
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Compiles a getter into a direct call through LambdaMetafactory.
+   * Falls back to a MethodHandle invocation if the getter cannot be compiled.
+   *
+   * @param lookup The lookup used to compile the getter.
+   * @param handle The handle of the getter.
+   * @return The getter.
+   */
+  @SuppressWarnings("unchecked")
+  private static Function<Object, Object> compileGetter(MethodHandles.Lookup lookup, MethodHandle handle) {
+    try {
+      CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+          MethodType.methodType(Object.class, Object.class), handle, handle.type().wrap());
+
+      return (Function<Object, Object>) site.getTarget().invokeExact();
+    } catch (Throwable e) {
+      return invokeGetter(handle);
+    }
+  }
+
+  private static Function<Object, Object> invokeGetter(MethodHandle handle) {
+    MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+
+    return target -> {
+      try {
+        return generic.invokeExact(target);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+}
@@ -0,0 +1,108 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * ActivationTriggers class holding the triggers that start a lazily activated
+ * module, as declared in the `activation` field of its package.json:
+ *
+ * <pre>
+ * "activation": {
+ *   "events": ["org.bukkit.event.player.PlayerJoinEvent"],
+ *   "commands": ["admin"],
+ *   "schedules": [3600],
+ *   "idleSeconds": 600
+ * }
+ * </pre>
+ */
+public class ActivationTriggers {
+  /**
+   * The fully qualified names of the event classes that start the module.
+   */
+  private List<String> events;
+  /**
+   * The names of the commands that start the module.
+   */
+  private List<String> commands;
+  /**
+   * The intervals, in seconds, at which the module is started.
+   */
+  private List<Long> schedules;
+  /**
+   * How long the module may stay idle before it is hibernated, in seconds, or 0
+   * to never hibernate it.
+   */
+  private long idleSeconds;
+
+  /**
+   * Parses the activation triggers from the `activation` field of a
+   * package.json.
+   *
+   * @param json The activation object.
+   * @return The parsed triggers.
+   * @throws RuntimeException if the activation object is malformed.
+   */
+  public static ActivationTriggers fromJson(JsonObject json) throws RuntimeException {
+    ActivationTriggers triggers = new ActivationTriggers();
+
+    triggers.events = new ArrayList<>();
+    triggers.commands = new ArrayList<>();
+    triggers.schedules = new ArrayList<>();
+
+    try {
+      if (json.has("events")) {
+        for (JsonElement element : json.getAsJsonArray("events")) {
+          triggers.events.add(element.getAsString());
+        }
+      }
+
+      if (json.has("commands")) {
+        for (JsonElement element : json.getAsJsonArray("commands")) {
+          triggers.commands.add(element.getAsString());
+        }
+      }
+
+      if (json.has("schedules")) {
+        for (JsonElement element : json.getAsJsonArray("schedules")) {
+          long seconds = element.getAsLong();
+
+          if (seconds <= 0) {
+            throw new RuntimeException("Schedules must be positive intervals in seconds.");
+          }
+
+          triggers.schedules.add(seconds);
+        }
+      }
+
+      triggers.idleSeconds = json.has("idleSeconds") ? json.get("idleSeconds").getAsLong() : 0;
+    } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+      throw new RuntimeException("Invalid 'activation' value in package.json: " + e.getMessage());
+    }
+
+    if (triggers.events.isEmpty() && triggers.commands.isEmpty() && triggers.schedules.isEmpty()) {
+      throw new RuntimeException("The 'activation' field in package.json declares no triggers.");
+    }
+
+    return triggers;
+  }
+
+  public List<String> getEvents() {
+    return events;
+  }
+
+  public List<String> getCommands() {
+    return commands;
+  }
+
+  public List<Long> getSchedules() {
+    return schedules;
+  }
+
+  public long getIdleSeconds() {
+    return idleSeconds;
+  }
+}
@@ -0,0 +1,396 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.caoccao.javet.enums.V8ValueReferenceType;
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.values.reference.V8ValueArrayBuffer;
+import com.caoccao.javet.values.reference.V8ValueObject;
+import com.caoccao.javet.values.reference.V8ValueTypedArray;
+
+/**
+ * BlockMutation class for applying a large batch of block changes from a single
+ * script call.
+ * The changes are given as a packed int array with four entries per block (x,
+ * y, z and palette index) and are applied chunk by chunk on the main thread,
+ * spread across ticks so that no tick exceeds the given time budget.
+ * On Folia, the changes are applied by the threads of the regions owning the
+ * chunks instead, one region after the other, each within the time budget.
+ */
+public class BlockMutation {
+  /**
+   * The number of ints used to describe a single block change.
+   */
+  public static final int STRIDE = 4;
+  /**
+   * How many blocks are applied between two checks of the tick deadline.
+   */
+  private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+  /**
+   * The JavaPlugin instance used to schedule the mutation.
+   */
+  private JavaPlugin plugin;
+  /**
+   * The world the blocks are changed in.
+   */
+  private World world;
+  /**
+   * The packed block changes, ordered by chunk.
+   */
+  private int[] blocks;
+  /**
+   * The block data for every palette index.
+   */
+  private BlockData[] palette;
+  /**
+   * The time budget per tick, in nanoseconds.
+   */
+  private long budgetNanos;
+  /**
+   * The function called once per tick with the completed fraction, may be null.
+   */
+  private Function<Object, Void> onProgress;
+  /**
+   * The result resolved with the number of changed blocks once done.
+   */
+  private PendingResult<Integer> result;
+  /**
+   * The index of the next block change to apply.
+   */
+  private int cursor;
+  /**
+   * The repeating task applying the changes.
+   */
+  private Schedulers.Task task;
+  private volatile boolean cancelled;
+  /**
+   * Whether the changes are held back, while the module is staged.
+   */
+  private volatile boolean paused;
+
+  /**
+   * Constructor for the BlockMutation class.
+   * Validates the packed changes, resolves the palette and groups the changes by
+   * chunk, so each chunk is only visited once.
+   *
+   * @param plugin       The JavaPlugin instance used to schedule the mutation.
+   * @param world        The world the blocks are changed in.
+   * @param blocks       The packed block changes, as x, y, z, palette index.
+   * @param palette      The block data strings, e.g. "minecraft:stone".
+   * @param budgetMillis The time budget per tick, in milliseconds.
+   * @param onProgress   The function called once per tick with the completed
+   *                     fraction, may be null.
+   * @throws IllegalArgumentException if the changes or the palette are invalid.
+   */
+  public BlockMutation(JavaPlugin plugin, World world, int[] blocks, List<String> palette, int budgetMillis,
+      Function<Object, Void> onProgress) throws IllegalArgumentException {
+    if (world == null) {
+      throw new IllegalArgumentException("World cannot be null.");
+    }
+
+    if (blocks == null || blocks.length % STRIDE != 0) {
+      throw new IllegalArgumentException("Blocks must contain " + STRIDE + " ints per block (x, y, z, palette).");
+    }
+
+    if (budgetMillis <= 0) {
+      throw new IllegalArgumentException("Budget must be greater than zero.");
+    }
+
+    this.plugin = plugin;
+    this.world = world;
+    this.palette = new BlockData[palette.size()];
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    this.onProgress = onProgress;
+    this.result = new PendingResult<>();
+
+    for (int i = 0; i < palette.size(); i++) {
+      this.palette[i] = Bukkit.createBlockData(palette.get(i));
+    }
+
+    this.blocks = groupByChunk(blocks, this.palette.length);
+  }
+
+  /**
+   * Reads the packed changes given by a script as an Int32Array, or as the
+   * ArrayBuffer of one, e.g. filled by a worker. The buffer is read directly,
+   * as the converter ignores the offset of a typed array viewing part of its
+   * buffer.
+   *
+   * @param blocks The packed block changes.
+   * @return The packed block changes, copied out of the script.
+   * @throws IllegalArgumentException if the blocks are neither, or do not hold
+   *                                  whole ints.
+   * @throws JavetException           if the buffer cannot be read.
+   */
+  static int[] toBlocks(V8ValueObject blocks) throws IllegalArgumentException, JavetException {
+    if (blocks instanceof V8ValueTypedArray
+        && ((V8ValueTypedArray) blocks).getType() == V8ValueReferenceType.Int32Array) {
+      V8ValueTypedArray typedArray = (V8ValueTypedArray) blocks;
+
+      try (V8ValueArrayBuffer buffer = typedArray.getBuffer()) {
+        return readInts(buffer, typedArray.getByteOffset(), typedArray.getByteLength());
+      }
+    }
+
+    if (blocks instanceof V8ValueArrayBuffer) {
+      V8ValueArrayBuffer buffer = (V8ValueArrayBuffer) blocks;
+
+      return readInts(buffer, 0, buffer.getByteLength());
+    }
+
+    throw new IllegalArgumentException("Blocks must be an Int32Array or an ArrayBuffer.");
+  }
+
+  private static int[] readInts(V8ValueArrayBuffer buffer, int byteOffset, int byteLength)
+      throws IllegalArgumentException {
+    if (byteLength % Integer.BYTES != 0) {
+      throw new IllegalArgumentException("Blocks must be a whole number of 32-bit ints.");
+    }
+
+    int[] values = new int[byteLength / Integer.BYTES];
+
+    // Slicing resets the byte order, which is the one of the script
+    buffer.getByteBuffer().slice(byteOffset, byteLength).order(buffer.getByteOrder()).asIntBuffer().get(values);
+
+    return values;
+  }
+
+  /**
+   * Reorders the packed changes so that all changes of a chunk are contiguous,
+   * keeping the original order inside each chunk.
+   *
+   * @param blocks      The packed block changes.
+   * @param paletteSize The number of entries in the palette.
+   * @return The reordered packed block changes.
+   * @throws IllegalArgumentException if a palette index is out of range.
+   */
+  private static int[] groupByChunk(int[] blocks, int paletteSize) throws IllegalArgumentException {
+    int count = blocks.length / STRIDE;
+    Map<Long, int[]> offsets = new HashMap<>();
+    ArrayList<int[]> order = new ArrayList<>();
+
+    // Count the changes per chunk, remembering the order chunks first appear in
+    for (int i = 0; i < count; i++) {
+      int paletteIndex = blocks[i * STRIDE + 3];
+
+      if (paletteIndex < 0 || paletteIndex >= paletteSize) {
+        throw new IllegalArgumentException("Palette index " + paletteIndex + " is out of range at block " + i + ".");
+      }
+
+      long chunkKey = chunkKey(blocks[i * STRIDE] >> 4, blocks[i * STRIDE + 2] >> 4);
+      int[] slot = offsets.get(chunkKey);
+
+      if (slot == null) {
+        slot = new int[] { 0 };
+        offsets.put(chunkKey, slot);
+        order.add(slot);
+      }
+
+      slot[0]++;
+    }
+
+    // Turn the counts into start offsets
+    int offset = 0;
+
+    for (int[] slot : order) {
+      int size = slot[0];
+      slot[0] = offset;
+      offset += size;
+    }
+
+    int[] grouped = new int[blocks.length];
+
+    for (int i = 0; i < count; i++) {
+      int[] slot = offsets.get(chunkKey(blocks[i * STRIDE] >> 4, blocks[i * STRIDE + 2] >> 4));
+
+      System.arraycopy(blocks, i * STRIDE, grouped, slot[0] * STRIDE, STRIDE);
+      slot[0]++;
+    }
+
+    return grouped;
+  }
+
+  private static long chunkKey(int chunkX, int chunkZ) {
+    return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Starts applying the changes, beginning on the next tick.
+   *
+   * @return The result resolved with the number of changed blocks once done.
+   */
+  public PendingResult<Integer> start() {
+    if (Schedulers.isFolia()) {
+      if (this.blocks.length == 0) {
+        this.result.resolve(0);
+      } else {
+        this.scheduleRegionTick();
+      }
+    } else {
+      this.task = Schedulers.runTimer(this.plugin, this::tick, 1L, 1L);
+    }
+
+    return this.result;
+  }
+
+  /**
+   * Cancels the mutation, the changes already applied are kept.
+   * The result is rejected.
+   */
+  public void cancel() {
+    this.cancelled = true;
+
+    if (this.task != null) {
+      this.task.cancel();
+    }
+
+    this.result.reject("Block mutation was cancelled after " + (this.cursor / STRIDE) + " blocks.");
+  }
+
+  /**
+   * Pauses or resumes the mutation. While paused, no changes are applied.
+   *
+   * @param paused true to pause the mutation, false to resume it.
+   */
+  public void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Gets the total number of block changes.
+   *
+   * @return The total number of block changes.
+   */
+  public int getTotal() {
+    return this.blocks.length / STRIDE;
+  }
+
+  /**
+   * Gets the number of block changes applied so far.
+   *
+   * @return The number of block changes applied so far.
+   */
+  public int getApplied() {
+    return this.cursor / STRIDE;
+  }
+
+  /**
+   * Applies changes until the per-tick budget is exhausted.
+   */
+  private void tick() {
+    if (this.paused) {
+      return;
+    }
+
+    try {
+      this.apply(System.nanoTime() + this.budgetNanos);
+    } catch (Exception e) {
+      this.task.cancel();
+      this.result.reject("Block mutation failed: " + e.getMessage());
+      return;
+    }
+
+    this.reportProgress();
+
+    if (this.cursor >= this.blocks.length) {
+      this.task.cancel();
+      this.result.resolve(this.getTotal());
+    }
+  }
+
+  /**
+   * Schedules the next run on the thread of the region owning the chunk of the
+   * next change, on Folia.
+   */
+  private void scheduleRegionTick() {
+    Schedulers.runAt(this.plugin, this.world, this.blocks[this.cursor] >> 4, this.blocks[this.cursor + 2] >> 4,
+        this::regionTick);
+  }
+
+  /**
+   * Applies changes on a region thread until the budget is exhausted or the
+   * next change is in a chunk owned by another region, on Folia.
+   */
+  private void regionTick() {
+    if (this.cancelled) {
+      return;
+    }
+
+    if (this.paused) {
+      this.scheduleRegionTick();
+      return;
+    }
+
+    try {
+      this.apply(System.nanoTime() + this.budgetNanos);
+    } catch (Exception e) {
+      this.result.reject("Block mutation failed: " + e.getMessage());
+      return;
+    }
+
+    this.reportProgress();
+
+    if (this.cursor >= this.blocks.length) {
+      this.result.resolve(this.getTotal());
+    } else if (!this.cancelled) {
+      this.scheduleRegionTick();
+    }
+  }
+
+  /**
+   * Applies changes until the deadline, or until the next change is in a chunk
+   * the current thread does not own.
+   *
+   * @param deadline The deadline, as given by {@link System#nanoTime()}.
+   */
+  private void apply(long deadline) {
+    int chunkX = Integer.MIN_VALUE;
+    int chunkZ = Integer.MIN_VALUE;
+
+    while (this.cursor < this.blocks.length) {
+      for (int i = 0; i < DEADLINE_CHECK_INTERVAL && this.cursor < this.blocks.length; i++) {
+        int x = this.blocks[this.cursor];
+        int y = this.blocks[this.cursor + 1];
+        int z = this.blocks[this.cursor + 2];
+
+        // Changes are grouped by chunk, so ownership only needs checking when the chunk changes
+        if (x >> 4 != chunkX || z >> 4 != chunkZ) {
+          chunkX = x >> 4;
+          chunkZ = z >> 4;
+
+          if (!Bukkit.isOwnedByCurrentRegion(this.world, chunkX, chunkZ)) {
+            return;
+          }
+        }
+
+        this.world.getBlockAt(x, y, z).setBlockData(this.palette[this.blocks[this.cursor + 3]], false);
+        this.cursor += STRIDE;
+      }
+
+      if (System.nanoTime() >= deadline) {
+        return;
+      }
+    }
+  }
+
+  private void reportProgress() {
+    if (this.onProgress != null) {
+      try {
+        this.onProgress.apply((double) this.cursor / Math.max(1, this.blocks.length));
+      } catch (Exception e) {
+        this.plugin.getLogger().severe("Error in block mutation progress callback: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * ChunkCapture class for analyzing a region of a world off the main thread.
+ * The chunks of the region are snapshotted on the main thread, spread across
+ * ticks so that no tick exceeds the given time budget. Chunks that are not
+ * loaded are loaded asynchronously, a few at a time, and chunks that have never
+ * been generated are skipped. The snapshots are then packed into a
+ * {@link ChunkRegion} on a thread of its own, which also resolves the result,
+ * so the script processes the region off the main thread.
+ * On Folia, every chunk is loaded asynchronously and snapshotted by the thread
+ * of the region owning it, as the global region thread may not touch chunks.
+ */
+public class ChunkCapture {
+  /**
+   * The most chunks a single capture may cover.
+   */
+  public static final int MAX_CHUNKS = 256;
+  /**
+   * How many chunks are loaded asynchronously at once.
+   */
+  private static final int MAX_LOADS = 8;
+
+  /**
+   * The JavaPlugin instance used to schedule the capture.
+   */
+  private JavaPlugin plugin;
+  /**
+   * The world the chunks are captured from.
+   */
+  private World world;
+  private int minChunkX;
+  private int minChunkZ;
+  private int sizeX;
+  private int minY;
+  private int height;
+  /**
+   * The time budget per tick, in nanoseconds.
+   */
+  private long budgetNanos;
+  /**
+   * The function called once per tick with the completed fraction, may be null.
+   */
+  private Function<Object, Void> onProgress;
+  /**
+   * The result resolved with the packed region once done.
+   */
+  private PendingResult<ChunkRegion> result;
+  /**
+   * The snapshot of every chunk of the region, null until captured or if the
+   * chunk was never generated.
+   */
+  private ChunkSnapshot[] snapshots;
+  /**
+   * The index of the next chunk to capture.
+   */
+  private int cursor;
+  /**
+   * The number of chunks captured or skipped so far.
+   */
+  private int done;
+  /**
+   * The number of chunks being loaded asynchronously.
+   */
+  private int loading;
+  private volatile boolean cancelled;
+  /**
+   * Whether no more chunks are captured, while the module is staged.
+   */
+  private volatile boolean paused;
+  /**
+   * The repeating task capturing the chunks.
+   */
+  private Schedulers.Task task;
+
+  /**
+   * Constructor for the ChunkCapture class.
+   *
+   * @param plugin       The JavaPlugin instance used to schedule the capture.
+   * @param world        The world the chunks are captured from.
+   * @param minChunkX    The lowest chunk x coordinate, inclusive.
+   * @param minChunkZ    The lowest chunk z coordinate, inclusive.
+   * @param maxChunkX    The highest chunk x coordinate, inclusive.
+   * @param maxChunkZ    The highest chunk z coordinate, inclusive.
+   * @param minY         The lowest captured y coordinate, clamped to the
+   *                     world.
+   * @param maxY         The highest captured y coordinate, clamped to the
+   *                     world.
+   * @param budgetMillis The time budget per tick, in milliseconds.
+   * @param onProgress   The function called once per tick with the completed
+   *                     fraction, may be null.
+   * @throws IllegalArgumentException if the region or the budget are invalid.
+   */
+  public ChunkCapture(JavaPlugin plugin, World world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ,
+      int minY, int maxY, int budgetMillis, Function<Object, Void> onProgress) throws IllegalArgumentException {
+    if (world == null) {
+      throw new IllegalArgumentException("World cannot be null.");
+    }
+
+    if (maxChunkX < minChunkX || maxChunkZ < minChunkZ) {
+      throw new IllegalArgumentException("The maximum chunk coordinates must not be lower than the minimum ones.");
+    }
+
+    long count = ((long) maxChunkX - minChunkX + 1) * ((long) maxChunkZ - minChunkZ + 1);
+
+    if (count > MAX_CHUNKS) {
+      throw new IllegalArgumentException("A capture cannot cover more than " + MAX_CHUNKS + " chunks, got " + count
+          + ".");
+    }
+
+    if (budgetMillis <= 0) {
+      throw new IllegalArgumentException("Budget must be greater than zero.");
+    }
+
+    // Align the layers to the biome grid, so every sample covers whole layers
+    int low = Math.max(minY, world.getMinHeight()) & ~3;
+    int high = Math.min(maxY, world.getMaxHeight() - 1) | 3;
+
+    if (high < low) {
+      throw new IllegalArgumentException("The y range " + minY + ".." + maxY + " is outside of the world.");
+    }
+
+    this.plugin = plugin;
+    this.world = world;
+    this.minChunkX = minChunkX;
+    this.minChunkZ = minChunkZ;
+    this.sizeX = maxChunkX - minChunkX + 1;
+    this.minY = low;
+    this.height = Math.min(high, world.getMaxHeight() - 1) - low + 1;
+    this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    this.onProgress = onProgress;
+    this.result = new PendingResult<>();
+    this.snapshots = new ChunkSnapshot[(int) count];
+  }
+
+  /**
+   * Starts capturing the chunks, beginning on the next tick.
+   *
+   * @return The result resolved with the packed region once done.
+   */
+  public PendingResult<ChunkRegion> start() {
+    this.task = Schedulers.runTimer(this.plugin, this::tick, 1L, 1L);
+
+    return this.result;
+  }
+
+  /**
+   * Cancels the capture. The result is rejected.
+   */
+  public void cancel() {
+    this.cancelled = true;
+
+    if (this.task != null) {
+      this.task.cancel();
+    }
+
+    this.result.reject("Chunk capture was cancelled after " + this.done + " of " + this.snapshots.length
+        + " chunks.");
+  }
+
+  /**
+   * Pauses or resumes the capture. While paused, no more chunks are captured,
+   * the loads already started still complete.
+   *
+   * @param paused true to pause the capture, false to resume it.
+   */
+  public void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Checks if the capture is over, either resolved, rejected or cancelled.
+   *
+   * @return true if the capture is over.
+   */
+  public boolean isDone() {
+    return this.result.isDone();
+  }
+
+  /**
+   * Captures chunks until the per-tick budget is exhausted, then hands the
+   * snapshots over to be packed once every chunk is captured.
+   */
+  private synchronized void tick() {
+    if (this.paused) {
+      return;
+    }
+
+    long deadline = System.nanoTime() + this.budgetNanos;
+
+    try {
+      while (this.cursor < this.snapshots.length && System.nanoTime() < deadline) {
+        int index = this.cursor;
+        int chunkX = this.minChunkX + index % this.sizeX;
+        int chunkZ = this.minChunkZ + index / this.sizeX;
+
+        if (!Schedulers.isFolia() && this.world.isChunkLoaded(chunkX, chunkZ)) {
+          this.snapshots[index] = snapshotOf(this.world.getChunkAt(chunkX, chunkZ));
+          this.done++;
+        } else if (this.loading < MAX_LOADS) {
+          this.loading++;
+          this.world.getChunkAtAsync(chunkX, chunkZ, false).whenComplete((chunk, error) -> {
+            // Folia completes the load on the thread of the region owning the chunk
+            if (Schedulers.isFolia()) {
+              this.loaded(index, chunk);
+            } else {
+              Schedulers.run(this.plugin, () -> this.loaded(index, chunk));
+            }
+          });
+        } else {
+          break;
+        }
+
+        this.cursor++;
+      }
+    } catch (Exception e) {
+      this.task.cancel();
+      this.result.reject("Chunk capture failed: " + e.getMessage());
+      return;
+    }
+
+    if (this.onProgress != null) {
+      try {
+        this.onProgress.apply((double) this.done / this.snapshots.length);
+      } catch (Exception e) {
+        this.plugin.getLogger().severe("Error in chunk capture progress callback: " + e.getMessage());
+      }
+    }
+
+    if (this.done >= this.snapshots.length) {
+      this.task.cancel();
+
+      Thread packer = new Thread(this::pack, "PaperTS chunk capture");
+      packer.setDaemon(true);
+      packer.start();
+    }
+  }
+
+  /**
+   * Snapshots a chunk loaded asynchronously, on the main thread, or the thread
+   * of the region owning the chunk on Folia.
+   *
+   * @param index The index of the chunk in the region.
+   * @param chunk The chunk, or null if it was never generated or failed to
+   *              load.
+   */
+  private synchronized void loaded(int index, Chunk chunk) {
+    this.loading--;
+
+    if (this.cancelled) {
+      return;
+    }
+
+    if (chunk != null) {
+      this.snapshots[index] = snapshotOf(chunk);
+    }
+
+    this.done++;
+  }
+
+  private static ChunkSnapshot snapshotOf(Chunk chunk) {
+    return chunk.getChunkSnapshot(true, true, false);
+  }
+
+  /**
+   * Packs the snapshots into a region and resolves the result.
+   */
+  private void pack() {
+    try {
+      ArrayList<ChunkSnapshot> captured = new ArrayList<>();
+
+      for (ChunkSnapshot snapshot : this.snapshots) {
+        if (snapshot != null) {
+          captured.add(snapshot);
+        }
+      }
+
+      int count = captured.size();
+      int columns = 16 * 16;
+      int cells = 4 * 4;
+      int[] chunkXs = new int[count];
+      int[] chunkZs = new int[count];
+      short[] blocks = new short[count * this.height * columns];
+      short[] biomes = new short[count * (this.height / 4) * cells];
+      int[] heightmaps = new int[count * columns];
+      HashMap<BlockData, Integer> blockIndices = new HashMap<>();
+      ArrayList<String> palette = new ArrayList<>();
+      HashMap<Biome, Integer> biomeIndices = new HashMap<>();
+      ArrayList<String> biomePalette = new ArrayList<>();
+
+      // Blocks of empty sections are left as zeros, so air comes first
+      paletteIndexOf(blockIndices, palette, Material.AIR.createBlockData(), "minecraft:air");
+
+      for (int c = 0; c < count && !this.cancelled; c++) {
+        ChunkSnapshot snapshot = captured.get(c);
+        int blockOffset = c * this.height * columns;
+
+        chunkXs[c] = snapshot.getX();
+        chunkZs[c] = snapshot.getZ();
+
+        for (int y = 0; y < this.height; y++) {
+          int worldY = this.minY + y;
+          int section = (worldY - this.world.getMinHeight()) >> 4;
+
+          if (snapshot.isSectionEmpty(section)) {
+            continue;
+          }
+
+          for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+              BlockData data = snapshot.getBlockData(x, worldY, z);
+              Integer index = blockIndices.get(data);
+
+              if (index == null) {
+                index = paletteIndexOf(blockIndices, palette, data, data.getAsString());
+              }
+
+              blocks[blockOffset + (y * 16 + z) * 16 + x] = (short) (int) index;
+            }
+          }
+        }
+
+        int biomeOffset = c * (this.height / 4) * cells;
+
+        for (int y = 0; y < this.height / 4; y++) {
+          for (int z = 0; z < 4; z++) {
+            for (int x = 0; x < 4; x++) {
+              Biome biome = snapshot.getBiome(x * 4, this.minY + y * 4, z * 4);
+              Integer index = biomeIndices.get(biome);
+
+              if (index == null) {
+                index = paletteIndexOf(biomeIndices, biomePalette, biome, biome.getKey().toString());
+              }
+
+              biomes[biomeOffset + (y * 4 + z) * 4 + x] = (short) (int) index;
+            }
+          }
+        }
+
+        for (int z = 0; z < 16; z++) {
+          for (int x = 0; x < 16; x++) {
+            heightmaps[c * columns + z * 16 + x] = snapshot.getHighestBlockYAt(x, z);
+          }
+        }
+      }
+
+      if (this.cancelled) {
+        return;
+      }
+
+      this.result.resolve(new ChunkRegion(chunkXs, chunkZs, this.minY, this.height, blocks,
+          palette, biomes, biomePalette, heightmaps,
+          this.snapshots.length - count));
+    } catch (Exception e) {
+      this.result.reject("Chunk capture failed: " + e.getMessage());
+    }
+  }
+
+  private static <T> int paletteIndexOf(HashMap<T, Integer> indices, ArrayList<String> palette, T value,
+      String name) {
+    int index = palette.size();
+
+    if (index > Short.MAX_VALUE) {
+      throw new IllegalStateException("The region has more than " + (Short.MAX_VALUE + 1) + " distinct entries.");
+    }
+
+    indices.put(value, index);
+    palette.add(name);
+
+    return index;
+  }
+}
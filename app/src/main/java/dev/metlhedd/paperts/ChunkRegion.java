@@ -0,0 +1,143 @@
+package dev.metlhedd.paperts;
+
+import java.util.List;
+
+/**
+ * The chunks captured by a {@link ChunkCapture}, packed into primitive arrays,
+ * which scripts receive as typed arrays.
+ *
+ * Chunks are stored in the order of {@link #getChunkXs()} and
+ * {@link #getChunkZs()}. Blocks are palette indices, in x, then z, then y
+ * order within a chunk: the block at (x, y, z) of chunk c is at
+ * ((c * height + y - minY) * 16 + z) * 16 + x. Biomes are sampled every 4
+ * blocks, as the game stores them, in the same order with quarter
+ * coordinates. Heightmaps hold the highest non-air block of each column, at
+ * c * 256 + z * 16 + x.
+ */
+public class ChunkRegion {
+  private int[] chunkXs;
+  private int[] chunkZs;
+  private int minY;
+  private int height;
+  private short[] blocks;
+  private List<String> palette;
+  private short[] biomes;
+  private List<String> biomePalette;
+  private int[] heightmaps;
+  private int missing;
+
+  ChunkRegion(int[] chunkXs, int[] chunkZs, int minY, int height, short[] blocks, List<String> palette,
+      short[] biomes, List<String> biomePalette, int[] heightmaps, int missing) {
+    this.chunkXs = chunkXs;
+    this.chunkZs = chunkZs;
+    this.minY = minY;
+    this.height = height;
+    this.blocks = blocks;
+    this.palette = palette;
+    this.biomes = biomes;
+    this.biomePalette = biomePalette;
+    this.heightmaps = heightmaps;
+    this.missing = missing;
+  }
+
+  /**
+   * Gets the number of captured chunks.
+   *
+   * @return The number of chunks.
+   */
+  public int getCount() {
+    return this.chunkXs.length;
+  }
+
+  /**
+   * Gets the x coordinates of the captured chunks.
+   *
+   * @return The chunk x coordinates, typically an Int32Array.
+   */
+  public int[] getChunkXs() {
+    return this.chunkXs;
+  }
+
+  /**
+   * Gets the z coordinates of the captured chunks.
+   *
+   * @return The chunk z coordinates, typically an Int32Array.
+   */
+  public int[] getChunkZs() {
+    return this.chunkZs;
+  }
+
+  /**
+   * Gets the lowest captured y coordinate.
+   *
+   * @return The lowest y coordinate.
+   */
+  public int getMinY() {
+    return this.minY;
+  }
+
+  /**
+   * Gets the number of captured layers per chunk.
+   *
+   * @return The height of the capture, in blocks.
+   */
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Gets the blocks, as indices into {@link #getPalette()}.
+   *
+   * @return The packed blocks, typically an Int16Array.
+   */
+  public short[] getBlocks() {
+    return this.blocks;
+  }
+
+  /**
+   * Gets the block data strings the blocks refer to, e.g.
+   * "minecraft:oak_log[axis=y]".
+   *
+   * @return The block palette.
+   */
+  public List<String> getPalette() {
+    return this.palette;
+  }
+
+  /**
+   * Gets the biomes, as indices into {@link #getBiomePalette()}.
+   *
+   * @return The packed biomes, typically an Int16Array.
+   */
+  public short[] getBiomes() {
+    return this.biomes;
+  }
+
+  /**
+   * Gets the biome keys the biomes refer to, e.g. "minecraft:plains".
+   *
+   * @return The biome palette.
+   */
+  public List<String> getBiomePalette() {
+    return this.biomePalette;
+  }
+
+  /**
+   * Gets the highest non-air block of each column.
+   *
+   * @return The packed heightmaps, typically an Int32Array.
+   */
+  public int[] getHeightmaps() {
+    return this.heightmaps;
+  }
+
+  /**
+   * Gets the number of chunks of the area that were not captured, because
+   * they have never been generated.
+   *
+   * @return The number of missing chunks.
+   */
+  public int getMissing() {
+    return this.missing;
+  }
+}
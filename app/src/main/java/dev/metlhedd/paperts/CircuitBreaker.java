@@ -0,0 +1,144 @@
+package dev.metlhedd.paperts;
+
+import java.util.logging.Logger;
+
+/**
+ * CircuitBreaker class suspending a handler that keeps throwing.
+ * Once a handler throws more than the allowed number of errors within the
+ * window, its dispatch is suspended for a backoff period. After the period, a
+ * single invocation is let through: if it succeeds the handler is resumed,
+ * otherwise it is suspended again for twice as long, up to the maximum
+ * backoff.
+ * While the handler is healthy, checking the breaker is a single volatile read.
+ */
+public class CircuitBreaker {
+  /**
+   * The settings shared by every breaker. A maximum of 0 errors disables the
+   * breakers.
+   */
+  private static volatile int maxErrors = 50;
+  private static volatile long windowMillis = 10_000;
+  private static volatile long initialBackoffMillis = 5_000;
+  private static volatile long maxBackoffMillis = 300_000;
+
+  private String description;
+  private Logger logger;
+  /**
+   * When the handler may be retried, in milliseconds, or 0 while it is not
+   * suspended.
+   */
+  private volatile long suspendedUntil;
+  /**
+   * Whether the invocation retrying the handler is running.
+   */
+  private boolean retrying;
+  private long backoffMillis;
+  private long windowStart;
+  private int windowErrors;
+
+  /**
+   * Constructor for the CircuitBreaker class.
+   *
+   * @param description The description of the handler, used in the log.
+   * @param logger      The logger reporting suspensions.
+   */
+  public CircuitBreaker(String description, Logger logger) {
+    this.description = description;
+    this.logger = logger;
+  }
+
+  /**
+   * Sets the settings of the breakers.
+   *
+   * @param maxErrors            The number of errors within the window that
+   *                             suspends a handler, or 0 to never suspend.
+   * @param windowSeconds        The length of the window, in seconds.
+   * @param initialBackoffSeconds How long a handler is first suspended for, in
+   *                             seconds.
+   * @param maxBackoffSeconds    The longest a handler is suspended for, in
+   *                             seconds.
+   */
+  public static void configure(int maxErrors, long windowSeconds, long initialBackoffSeconds,
+      long maxBackoffSeconds) {
+    CircuitBreaker.maxErrors = maxErrors;
+    CircuitBreaker.windowMillis = windowSeconds * 1000;
+    CircuitBreaker.initialBackoffMillis = Math.max(1, initialBackoffSeconds) * 1000;
+    CircuitBreaker.maxBackoffMillis = Math.max(initialBackoffSeconds, maxBackoffSeconds) * 1000;
+  }
+
+  /**
+   * Checks if the handler may be invoked. When the backoff is over, the first
+   * caller is let through to retry the handler, and must report the outcome.
+   *
+   * @return true if the handler may be invoked, false while it is suspended.
+   */
+  public boolean allow() {
+    if (this.suspendedUntil == 0) {
+      return true;
+    }
+
+    synchronized (this) {
+      if (this.suspendedUntil == 0) {
+        return true;
+      } else if (this.retrying || System.currentTimeMillis() < this.suspendedUntil) {
+        return false;
+      }
+
+      this.retrying = true;
+
+      return true;
+    }
+  }
+
+  /**
+   * Reports a successful invocation.
+   */
+  public void recordSuccess() {
+    if (this.suspendedUntil == 0) {
+      return;
+    }
+
+    synchronized (this) {
+      if (this.retrying) {
+        this.retrying = false;
+        this.suspendedUntil = 0;
+        this.backoffMillis = 0;
+        this.windowErrors = 0;
+        this.logger.info("Resumed " + this.description + ".");
+      }
+    }
+  }
+
+  /**
+   * Reports a failed invocation.
+   */
+  public synchronized void recordFailure() {
+    long now = System.currentTimeMillis();
+
+    if (this.retrying) {
+      this.retrying = false;
+      this.backoffMillis = Math.min(this.backoffMillis * 2, maxBackoffMillis);
+      this.suspendedUntil = now + this.backoffMillis;
+      this.logger.warning("Retrying " + this.description + " failed, suspended for " + this.backoffMillis / 1000
+          + " s.");
+
+      return;
+    }
+
+    if (maxErrors <= 0 || this.suspendedUntil != 0) {
+      return;
+    }
+
+    if (now - this.windowStart > windowMillis) {
+      this.windowStart = now;
+      this.windowErrors = 0;
+    }
+
+    if (++this.windowErrors >= maxErrors) {
+      this.backoffMillis = initialBackoffMillis;
+      this.suspendedUntil = now + this.backoffMillis;
+      this.logger.warning("Suspended " + this.description + " for " + this.backoffMillis / 1000 + " s after "
+          + this.windowErrors + " errors in " + windowMillis / 1000 + " s.");
+    }
+  }
+}
@@ -1,13 +1,29 @@
 package dev.metlhedd.paperts;
 
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.defaults.BukkitCommand;
 import org.jetbrains.annotations.NotNull;
 
 public class Command extends BukkitCommand {
+  /**
+   * The usage of the subcommands taking arguments, sent when they are given
+   * none.
+   */
+  private static final Map<String, String> USAGES = Map.of(
+      "load", "/paperts load <module>",
+      "unload", "/paperts unload <module>",
+      "profile", "/paperts profile <module> start|stop",
+      "trace", "/paperts trace start|stop",
+      "loadtest", "/paperts loadtest <module> <players> <seconds>\n       /paperts loadtest <module> replay <file>",
+      "record", "/paperts record start|stop",
+      "metrics", "/paperts metrics <module>",
+      "heapdump", "/paperts heapdump <module>");
+
   private PaperTSPlugin plugin;
 
   protected Command(@NotNull String name, PaperTSPlugin plugin) {
@@ -46,11 +62,25 @@ public class Command extends BukkitCommand {
           Set<Path> modules = plugin.listModules();
 
           for (Path module : modules) {
-            sender.sendMessage("Module: " + module.getFileName());
+            sender.sendMessage("Module: " + module.getFileName()
+                + (plugin.isModuleHibernated(module) ? " (hibernated)" : ""));
+          }
+
+          return true;
+        case "gc":
+          sender.sendMessage("GC pauses per runtime:");
+
+          for (Map.Entry<String, GcStats> entry : plugin.getGcStats().entrySet()) {
+            sender.sendMessage(entry.getKey() + ": " + entry.getValue().describe());
           }
 
           return true;
         default:
+          if (USAGES.containsKey(subcommand)) {
+            sender.sendMessage(("Usage: " + USAGES.get(subcommand)).split("\n"));
+            return false;
+          }
+
           sender.sendMessage("Unknown subcommand: " + subcommand);
           return false;
       }
@@ -89,8 +119,118 @@ public class Command extends BukkitCommand {
             return false;
           }
 
+          return true;
+        case "profile":
+          if (subArgs.length < 2 || !(subArgs[1].equalsIgnoreCase("start") || subArgs[1].equalsIgnoreCase("stop"))) {
+            sender.sendMessage("Usage: /paperts profile <module> start|stop");
+            return false;
+          }
+
+          if (subArgs[1].equalsIgnoreCase("start")) {
+            sender.sendMessage("Starting the CPU profiler of module " + subArgs[0] + "...");
+            reportResult(sender, plugin.startProfiling(subArgs[0]), value -> "CPU profiler started.");
+          } else {
+            sender.sendMessage("Stopping the CPU profiler of module " + subArgs[0] + "...");
+            reportResult(sender, plugin.stopProfiling(subArgs[0]), value -> "CPU profile written to " + value);
+          }
+
+          return true;
+        case "trace":
+          if (subArgs[0].equalsIgnoreCase("start")) {
+            try {
+              plugin.startTrace();
+            } catch (Exception e) {
+              sender.sendMessage("Failed to start the trace: " + e.getMessage());
+              return false;
+            }
+
+            sender.sendMessage("Recording a trace of all modules.");
+          } else if (subArgs[0].equalsIgnoreCase("stop")) {
+            sender.sendMessage("Writing the trace...");
+            reportResult(sender, plugin.stopTrace(), value -> "Trace written to " + value);
+          } else {
+            sender.sendMessage("Usage: /paperts trace start|stop");
+            return false;
+          }
+
+          return true;
+        case "loadtest":
+          if (subArgs.length == 3 && subArgs[1].equalsIgnoreCase("replay")) {
+            sender.sendMessage("Replaying " + subArgs[2] + " against module " + subArgs[0] + "...");
+            reportResult(sender, plugin.replayTraffic(subArgs[0], subArgs[2]), value -> String.valueOf(value));
+
+            return true;
+          }
+
+          int players;
+          int seconds;
+
+          try {
+            players = Integer.parseInt(subArgs[1]);
+            seconds = Integer.parseInt(subArgs[2]);
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            sender.sendMessage("Usage: /paperts loadtest <module> <players> <seconds>");
+            sender.sendMessage("       /paperts loadtest <module> replay <file>");
+            return false;
+          }
+
+          sender.sendMessage("Running a load test of module " + subArgs[0] + " with " + players
+              + " virtual players for " + seconds + " seconds...");
+          reportResult(sender, plugin.startLoadTest(subArgs[0], players, seconds), value -> String.valueOf(value));
+
+          return true;
+        case "record":
+          if (subArgs[0].equalsIgnoreCase("start")) {
+            try {
+              sender.sendMessage("Recording the player traffic into " + plugin.startTrafficRecording() + ".");
+            } catch (Exception e) {
+              sender.sendMessage("Failed to start the recording: " + e.getMessage());
+              return false;
+            }
+          } else if (subArgs[0].equalsIgnoreCase("stop")) {
+            sender.sendMessage("Stopping the traffic recording...");
+            reportResult(sender, plugin.stopTrafficRecording(), value -> "Traffic recorded into " + value);
+          } else {
+            sender.sendMessage("Usage: /paperts record start|stop");
+            return false;
+          }
+
+          return true;
+        case "metrics":
+          Metrics metrics = Metrics.get(subArgs[0]);
+
+          if (metrics == null) {
+            sender.sendMessage("Module " + subArgs[0] + " has not recorded any metrics.");
+            return false;
+          }
+
+          sender.sendMessage("Metrics of module " + subArgs[0] + ":");
+
+          for (String line : metrics.describe()) {
+            sender.sendMessage(line);
+          }
+
+          return true;
+        case "heapdump":
+          sender.sendMessage("Writing a heap snapshot of module " + subArgs[0] + "...");
+          reportResult(sender, plugin.writeHeapSnapshot(subArgs[0]), value -> "Heap snapshot written to " + value);
+
           return true;
         case "reload":
+          if (plugin.isBlueGreenReload(args[1])) {
+            sender.sendMessage("Reloading PaperTS module " + args[1] + " without downtime...");
+
+            plugin.reloadModuleBlueGreen(args[1]).then(value -> {
+              Schedulers.runFor(plugin, sender, () -> sender.sendMessage("Module reloaded successfully."));
+              return null;
+            }, error -> {
+              Schedulers.runFor(plugin, sender, () -> sender.sendMessage("Failed to reload module: " + error));
+              return null;
+            });
+
+            return true;
+          }
+
           sender.sendMessage("Reloading PaperTS modules...");
 
           try {
@@ -110,4 +250,22 @@ public class Command extends BukkitCommand {
     }
   }
 
+  /**
+   * Reports the outcome of a pending result to a sender, on the main thread.
+   *
+   * @param sender  The sender to report to.
+   * @param result  The pending result.
+   * @param success Builds the message sent on success from the result.
+   */
+  private void reportResult(CommandSender sender, PendingResult<String> result, Function<Object, String> success) {
+    result.then(value -> {
+      String message = success.apply(value);
+
+      Schedulers.runFor(plugin, sender, () -> sender.sendMessage(message));
+      return null;
+    }, error -> {
+      Schedulers.runFor(plugin, sender, () -> sender.sendMessage("Failed: " + error));
+      return null;
+    });
+  }
 }
@@ -0,0 +1,6 @@
+package dev.metlhedd.paperts;
+
+public enum CommandMode {
+  Synchronous,
+  Queued,
+}
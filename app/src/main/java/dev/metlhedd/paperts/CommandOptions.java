@@ -0,0 +1,205 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.command.CommandSender;
+
+/**
+ * CommandOptions class holding the options of a script command.
+ * The options are given by scripts as a plain object, which is converted to a
+ * map, e.g.:
+ *
+ * <pre>
+ * {
+ *   description: "Gives an item",
+ *   usage: "/give &lt;target&gt; &lt;item&gt;",
+ *   permission: "example.give",
+ *   aliases: ["g"],
+ *   arguments: ["&lt;target:player&gt; &lt;item:material&gt; [amount:int(1..64)]"],
+ *   mode: "Queued",
+ *   maxConcurrent: 2,
+ *   timeoutMillis: 5000,
+ *   rateLimit: "commands",
+ * }
+ * </pre>
+ */
+public class CommandOptions {
+  /**
+   * The handler of a command registered with options. Next to the raw
+   * arguments, it gets the typed values of the arguments of the schema by
+   * name, e.g. the {@link org.bukkit.entity.Player} of a player argument, so
+   * scripts do not parse them again. Scripts may leave the values out.
+   */
+  @FunctionalInterface
+  public interface Handler {
+    /**
+     * Handles an invocation of the command.
+     *
+     * @param sender The sender of the command.
+     * @param args   The arguments of the command.
+     * @param values The typed values of the arguments by name, empty if the
+     *               command has no argument schema.
+     * @return Nothing, the result of the script is ignored.
+     */
+    Void apply(CommandSender sender, String[] args, Map<String, Object> values);
+  }
+
+  private String description = "";
+  private String usage;
+  private String permission = "";
+  private ArrayList<String> aliases = new ArrayList<>();
+  /**
+   * The argument schema of the command, or null if arguments are not validated.
+   */
+  private CommandSchema schema;
+  /**
+   * Where the handler runs, see {@link CommandMode}.
+   */
+  private CommandMode mode = CommandMode.Synchronous;
+  /**
+   * The maximum number of queued or running invocations of a queued command.
+   */
+  private int maxConcurrent = 1;
+  /**
+   * How long a queued invocation may wait and run before the sender is told it
+   * timed out, or 0 for no timeout.
+   */
+  private long timeoutMillis = 0;
+  /**
+   * The name of the rate limiter players are limited by, see
+   * {@link RateLimiter}, or null if the command is not limited.
+   */
+  private String rateLimit;
+
+  /**
+   * Parses the options of a command from a map.
+   * Unknown keys are rejected, so typos are reported at registration time.
+   *
+   * @param commandName The name of the command, used to build the usage
+   *                    message.
+   * @param options     The options given by the script, may be null.
+   * @return The parsed options.
+   * @throws IllegalArgumentException if an option is unknown or invalid.
+   */
+  public static CommandOptions fromMap(String commandName, Map<String, Object> options)
+      throws IllegalArgumentException {
+    CommandOptions commandOptions = new CommandOptions();
+
+    if (options != null) {
+      for (Map.Entry<String, Object> entry : options.entrySet()) {
+        Object value = entry.getValue();
+
+        switch (entry.getKey()) {
+          case "description":
+            commandOptions.description = asString(entry.getKey(), value);
+            break;
+          case "usage":
+            commandOptions.usage = asString(entry.getKey(), value);
+            break;
+          case "permission":
+            commandOptions.permission = asString(entry.getKey(), value);
+            break;
+          case "aliases":
+            commandOptions.aliases = asStringList(entry.getKey(), value);
+            break;
+          case "arguments":
+            commandOptions.schema = new CommandSchema(asStringList(entry.getKey(), value));
+            break;
+          case "mode":
+            try {
+              commandOptions.mode = CommandMode.valueOf(asString(entry.getKey(), value));
+            } catch (IllegalArgumentException e) {
+              throw new IllegalArgumentException("Invalid command mode '" + value + "'.");
+            }
+            break;
+          case "maxConcurrent":
+            commandOptions.maxConcurrent = (int) asLong(entry.getKey(), value, 1);
+            break;
+          case "timeoutMillis":
+            commandOptions.timeoutMillis = asLong(entry.getKey(), value, 0);
+            break;
+          case "rateLimit":
+            commandOptions.rateLimit = asString(entry.getKey(), value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown command option '" + entry.getKey() + "'.");
+        }
+      }
+    }
+
+    if (commandOptions.usage == null) {
+      commandOptions.usage = commandOptions.schema != null ? commandOptions.schema.describe(commandName)
+          : "/" + commandName;
+    }
+
+    return commandOptions;
+  }
+
+  private static String asString(String key, Object value) throws IllegalArgumentException {
+    if (!(value instanceof String)) {
+      throw new IllegalArgumentException("Command option '" + key + "' must be a string.");
+    }
+
+    return (String) value;
+  }
+
+  private static long asLong(String key, Object value, long min) throws IllegalArgumentException {
+    if (!(value instanceof Number) || ((Number) value).longValue() < min) {
+      throw new IllegalArgumentException("Command option '" + key + "' must be a number of at least " + min + ".");
+    }
+
+    return ((Number) value).longValue();
+  }
+
+  private static ArrayList<String> asStringList(String key, Object value) throws IllegalArgumentException {
+    if (!(value instanceof List)) {
+      throw new IllegalArgumentException("Command option '" + key + "' must be an array of strings.");
+    }
+
+    ArrayList<String> list = new ArrayList<>();
+
+    for (Object item : (List<?>) value) {
+      list.add(asString(key, item));
+    }
+
+    return list;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public String getUsage() {
+    return usage;
+  }
+
+  public String getPermission() {
+    return permission;
+  }
+
+  public ArrayList<String> getAliases() {
+    return aliases;
+  }
+
+  public CommandSchema getSchema() {
+    return schema;
+  }
+
+  public CommandMode getMode() {
+    return mode;
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  public String getRateLimit() {
+    return rateLimit;
+  }
+}
@@ -0,0 +1,593 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * CommandSchema class describing the arguments a script command accepts.
+ * The schema is a list of branches, each one a space separated list of tokens:
+ * <ul>
+ * <li>{@code add|remove}: a literal, with its alternatives separated by
+ * {@code |}.</li>
+ * <li>{@code <name:type>}: a required argument.</li>
+ * <li>{@code [name:type]}: an optional argument, only allowed at the end.</li>
+ * </ul>
+ * The supported types are {@code player}, {@code material}, {@code world},
+ * {@code string}, {@code text} (the rest of the line), and {@code int} or
+ * {@code double} with an optional range, e.g. {@code int(1..64)}.
+ * Arguments are validated and completed on the Java side, so invalid
+ * invocations and tab completions never reach the script, and the handler gets
+ * the typed values of the arguments by name.
+ * Completions are served off the main thread, so players and worlds are read
+ * from a snapshot refreshed on the main thread, see {@link #refreshSnapshot()}.
+ */
+public class CommandSchema {
+  /**
+   * The maximum number of completions returned for a single argument.
+   */
+  private static final int MAX_COMPLETIONS = 64;
+
+  /**
+   * The names of the online players, by lower case name, as of the last
+   * snapshot.
+   */
+  private static volatile Map<String, String> playerNames = Map.of();
+  /**
+   * The names of the players each player cannot see, by the id of the viewer,
+   * as of the last snapshot. Players seeing everyone are left out.
+   */
+  private static volatile Map<UUID, Set<String>> hiddenPlayerNames = Map.of();
+  /**
+   * The names of the loaded worlds, by lower case name, as of the last
+   * snapshot.
+   */
+  private static volatile Map<String, String> worldNames = Map.of();
+
+  /**
+   * The type of an argument token.
+   */
+  enum ArgumentType {
+    LITERAL,
+    PLAYER,
+    MATERIAL,
+    WORLD,
+    STRING,
+    TEXT,
+    INT,
+    DOUBLE,
+  }
+
+  /**
+   * A single token of a branch.
+   */
+  static class Token {
+    ArgumentType type;
+    String name;
+    String[] literals;
+    boolean optional;
+    double min = Double.NEGATIVE_INFINITY;
+    double max = Double.POSITIVE_INFINITY;
+
+    /**
+     * Parses a single argument into its typed value, e.g. the {@link Player}
+     * of a player argument.
+     * Players and worlds are looked up through the server, so this must run
+     * on the thread the command is dispatched on.
+     *
+     * @param argument The argument given by the sender.
+     * @return The value of the argument, or null if it is invalid.
+     */
+    Object parse(String argument) {
+      switch (this.type) {
+        case LITERAL:
+          for (String literal : this.literals) {
+            if (literal.equalsIgnoreCase(argument)) {
+              return literal;
+            }
+          }
+
+          return null;
+        case PLAYER:
+          return Bukkit.getPlayerExact(argument);
+        case MATERIAL:
+          return Material.matchMaterial(argument);
+        case WORLD:
+          return Bukkit.getWorld(argument);
+        case INT:
+          long integer;
+
+          try {
+            integer = Long.parseLong(argument);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+
+          if (integer < this.min || integer > this.max) {
+            return null;
+          }
+
+          // Scripts get a number, as Javet turns a Long into a BigInt
+          return integer == (int) integer ? (Object) (int) integer : (Object) (double) integer;
+        case DOUBLE:
+          double number;
+
+          try {
+            number = Double.parseDouble(argument);
+          } catch (NumberFormatException e) {
+            return null;
+          }
+
+          return number < this.min || number > this.max ? null : number;
+        default:
+          return argument;
+      }
+    }
+
+    /**
+     * Checks a single argument against the token off the main thread, looking
+     * players and worlds up in the snapshot.
+     *
+     * @param argument The argument given by the sender.
+     * @return Whether the argument is valid.
+     */
+    boolean accepts(String argument) {
+      switch (this.type) {
+        case PLAYER:
+          return playerNames.containsKey(argument.toLowerCase(Locale.ROOT));
+        case WORLD:
+          return worldNames.containsKey(argument.toLowerCase(Locale.ROOT));
+        default:
+          return this.parse(argument) != null;
+      }
+    }
+
+    /**
+     * Validates a single argument against the token.
+     *
+     * @param argument The argument given by the sender.
+     * @return An error message, or null if the argument is valid.
+     */
+    String validate(String argument) {
+      if (this.parse(argument) != null) {
+        return null;
+      }
+
+      switch (this.type) {
+        case LITERAL:
+          return "Expected " + String.join(" or ", this.literals) + " but got '" + argument + "'.";
+        case PLAYER:
+          return "Player '" + argument + "' is not online.";
+        case MATERIAL:
+          return "Unknown material '" + argument + "'.";
+        case WORLD:
+          return "Unknown world '" + argument + "'.";
+        case INT:
+        case DOUBLE:
+          try {
+            if (this.type == ArgumentType.INT) {
+              Long.parseLong(argument);
+            } else {
+              Double.parseDouble(argument);
+            }
+          } catch (NumberFormatException e) {
+            return "'" + argument + "' is not a valid " + (this.type == ArgumentType.INT ? "integer" : "number")
+                + ".";
+          }
+
+          // The argument is a number, so it is out of range
+          return this.name + " must be between " + format(this.min) + " and " + format(this.max) + ".";
+        default:
+          return null;
+      }
+    }
+
+    /**
+     * Lists the completions of the token for a partial argument.
+     *
+     * @param sender  The sender asking for completions.
+     * @param partial The partial argument typed so far.
+     * @param out     The list the completions are added to.
+     */
+    void complete(CommandSender sender, String partial, List<String> out) {
+      String prefix = partial.toLowerCase(Locale.ROOT);
+
+      switch (this.type) {
+        case LITERAL:
+          for (String literal : this.literals) {
+            addIfMatches(out, literal, prefix);
+          }
+          break;
+        case PLAYER:
+          Set<String> hidden = sender instanceof Player
+              ? hiddenPlayerNames.getOrDefault(((Player) sender).getUniqueId(), Set.of())
+              : Set.of();
+
+          for (String playerName : playerNames.values()) {
+            if (!hidden.contains(playerName)) {
+              addIfMatches(out, playerName, prefix);
+            }
+          }
+          break;
+        case MATERIAL:
+          for (Material material : Material.values()) {
+            if (!material.isLegacy()) {
+              addIfMatches(out, material.getKey().getKey(), prefix);
+            }
+          }
+          break;
+        case WORLD:
+          for (String worldName : worldNames.values()) {
+            addIfMatches(out, worldName, prefix);
+          }
+          break;
+        case INT:
+          // Small ranges are listed, larger ones would only be noise
+          if (this.max - this.min <= 16) {
+            for (long value = (long) this.min; value <= (long) this.max; value++) {
+              addIfMatches(out, Long.toString(value), prefix);
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    String describe() {
+      if (this.type == ArgumentType.LITERAL) {
+        return String.join("|", this.literals);
+      }
+
+      return this.optional ? "[" + this.name + "]" : "<" + this.name + ">";
+    }
+
+    private static void addIfMatches(List<String> out, String candidate, String prefix) {
+      if (out.size() < MAX_COMPLETIONS && candidate.toLowerCase(Locale.ROOT).startsWith(prefix)
+          && !out.contains(candidate)) {
+        out.add(candidate);
+      }
+    }
+
+    private static String format(double value) {
+      return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+  }
+
+  /**
+   * The branches of the schema, each one a list of tokens.
+   */
+  private ArrayList<Token[]> branches;
+
+  /**
+   * Constructor for the CommandSchema class.
+   *
+   * @param branches The branches of the schema, e.g. "give &lt;target:player&gt;
+   *                 &lt;item:material&gt; [amount:int(1..64)]".
+   * @throws IllegalArgumentException if a branch is malformed.
+   */
+  public CommandSchema(List<String> branches) throws IllegalArgumentException {
+    this.branches = new ArrayList<>();
+
+    for (String branch : branches) {
+      this.branches.add(parseBranch(branch));
+    }
+  }
+
+  /**
+   * Parses a branch of the schema into its tokens.
+   *
+   * @param branch The branch to parse.
+   * @return The tokens of the branch.
+   * @throws IllegalArgumentException if the branch is malformed.
+   */
+  private static Token[] parseBranch(String branch) throws IllegalArgumentException {
+    String trimmed = branch.trim();
+    String[] parts = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    Token[] tokens = new Token[parts.length];
+
+    for (int i = 0; i < parts.length; i++) {
+      String part = parts[i];
+      Token token = new Token();
+
+      if ((part.startsWith("<") && part.endsWith(">")) || (part.startsWith("[") && part.endsWith("]"))) {
+        token.optional = part.startsWith("[");
+
+        String inner = part.substring(1, part.length() - 1);
+        int separator = inner.indexOf(':');
+        String typeName = separator < 0 ? "string" : inner.substring(separator + 1);
+
+        token.name = separator < 0 ? inner : inner.substring(0, separator);
+        parseType(token, typeName, branch);
+      } else {
+        token.type = ArgumentType.LITERAL;
+        token.name = part;
+        token.literals = part.split("\\|");
+      }
+
+      if (i > 0 && tokens[i - 1].optional && !token.optional) {
+        throw new IllegalArgumentException("Required argument after an optional one in '" + branch + "'.");
+      }
+
+      if (i > 0 && tokens[i - 1].type == ArgumentType.TEXT) {
+        throw new IllegalArgumentException("A text argument must be the last one in '" + branch + "'.");
+      }
+
+      tokens[i] = token;
+    }
+
+    return tokens;
+  }
+
+  private static void parseType(Token token, String typeName, String branch) throws IllegalArgumentException {
+    String range = null;
+    int rangeStart = typeName.indexOf('(');
+
+    if (rangeStart >= 0 && typeName.endsWith(")")) {
+      range = typeName.substring(rangeStart + 1, typeName.length() - 1);
+      typeName = typeName.substring(0, rangeStart);
+    }
+
+    try {
+      token.type = ArgumentType.valueOf(typeName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown argument type '" + typeName + "' in '" + branch + "'.");
+    }
+
+    if (token.type == ArgumentType.LITERAL) {
+      throw new IllegalArgumentException("Unknown argument type '" + typeName + "' in '" + branch + "'.");
+    }
+
+    if (range != null) {
+      if (token.type != ArgumentType.INT && token.type != ArgumentType.DOUBLE) {
+        throw new IllegalArgumentException("Only numbers can have a range in '" + branch + "'.");
+      }
+
+      String[] bounds = range.split("\\.\\.", -1);
+
+      try {
+        if (bounds.length != 2) {
+          throw new NumberFormatException();
+        }
+
+        if (!bounds[0].isEmpty()) {
+          token.min = Double.parseDouble(bounds[0]);
+        }
+
+        if (!bounds[1].isEmpty()) {
+          token.max = Double.parseDouble(bounds[1]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid range '" + range + "' in '" + branch + "'.");
+      }
+    }
+  }
+
+  /**
+   * Parses the arguments of an invocation with the first branch they match.
+   * Players and worlds are looked up through the server, so this must run on
+   * the thread the command is dispatched on.
+   *
+   * @param args The arguments given by the sender.
+   * @return The typed values of the arguments by name, without the literals
+   *         and the optional arguments not given, or null if no branch matches.
+   */
+  public Map<String, Object> parse(String[] args) {
+    for (Token[] tokens : this.branches) {
+      Map<String, Object> values = parseBranch(tokens, args);
+
+      if (values != null) {
+        return values;
+      }
+    }
+
+    return null;
+  }
+
+  private static Map<String, Object> parseBranch(Token[] tokens, String[] args) {
+    LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+    boolean greedy = tokens.length > 0 && tokens[tokens.length - 1].type == ArgumentType.TEXT;
+
+    if (args.length > tokens.length && !greedy) {
+      return null;
+    }
+
+    for (int i = 0; i < tokens.length; i++) {
+      Token token = tokens[i];
+
+      if (i >= args.length) {
+        return token.optional ? values : null;
+      }
+
+      if (token.type == ArgumentType.TEXT) {
+        values.put(token.name, String.join(" ", List.of(args).subList(i, args.length)));
+
+        return values;
+      }
+
+      Object value = token.parse(args[i]);
+
+      if (value == null) {
+        return null;
+      }
+
+      if (token.type != ArgumentType.LITERAL) {
+        values.put(token.name, value);
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Validates the arguments of an invocation against the schema.
+   *
+   * @param args The arguments given by the sender.
+   * @return An error message, or null if one of the branches matches.
+   */
+  public String validate(String[] args) {
+    String bestError = null;
+    int bestDepth = -1;
+
+    for (Token[] tokens : this.branches) {
+      int depth = 0;
+      String error = null;
+
+      for (; depth < tokens.length; depth++) {
+        Token token = tokens[depth];
+
+        if (depth >= args.length) {
+          if (!token.optional) {
+            error = "Missing argument " + token.describe() + ".";
+          }
+          break;
+        }
+
+        if (token.type == ArgumentType.TEXT) {
+          depth = tokens.length;
+          break;
+        }
+
+        error = token.validate(args[depth]);
+
+        if (error != null) {
+          break;
+        }
+      }
+
+      boolean greedy = tokens.length > 0 && tokens[tokens.length - 1].type == ArgumentType.TEXT;
+
+      if (error == null && depth >= tokens.length && args.length > tokens.length && !greedy) {
+        error = "Too many arguments.";
+      }
+
+      if (error == null) {
+        return null;
+      }
+
+      // Report the error of the branch that got the furthest
+      if (depth > bestDepth) {
+        bestDepth = depth;
+        bestError = error;
+      }
+    }
+
+    return bestError == null ? "Invalid arguments." : bestError;
+  }
+
+  /**
+   * Lists the completions for the last argument of a partial invocation.
+   *
+   * @param sender The sender asking for completions.
+   * @param args   The arguments typed so far, the last one being partial.
+   * @return The completions for the last argument.
+   */
+  public List<String> complete(CommandSender sender, String[] args) {
+    ArrayList<String> completions = new ArrayList<>();
+
+    if (args.length == 0) {
+      return completions;
+    }
+
+    int position = args.length - 1;
+
+    for (Token[] tokens : this.branches) {
+      if (position >= tokens.length) {
+        continue;
+      }
+
+      boolean prefixMatches = true;
+
+      for (int i = 0; i < position; i++) {
+        if (tokens[i].type == ArgumentType.TEXT || !tokens[i].accepts(args[i])) {
+          prefixMatches = false;
+          break;
+        }
+      }
+
+      if (prefixMatches) {
+        tokens[position].complete(sender, args[position], completions);
+      }
+    }
+
+    return completions;
+  }
+
+  /**
+   * Refreshes the snapshot of the players and worlds completions are served
+   * from, as the server must not be queried off the main thread.
+   * Called once a second on the main thread, or the global region thread on
+   * Folia, so a player who just joined may take a second to be completed.
+   */
+  public static void refreshSnapshot() {
+    Collection<? extends Player> players = Bukkit.getOnlinePlayers();
+    HashMap<String, String> online = new HashMap<>();
+    HashMap<UUID, Set<String>> hidden = new HashMap<>();
+    HashMap<String, String> worlds = new HashMap<>();
+
+    for (Player player : players) {
+      online.put(player.getName().toLowerCase(Locale.ROOT), player.getName());
+    }
+
+    for (Player viewer : players) {
+      HashSet<String> hiddenNames = null;
+
+      for (Player player : players) {
+        if (!viewer.canSee(player)) {
+          if (hiddenNames == null) {
+            hiddenNames = new HashSet<>();
+          }
+
+          hiddenNames.add(player.getName());
+        }
+      }
+
+      if (hiddenNames != null) {
+        hidden.put(viewer.getUniqueId(), hiddenNames);
+      }
+    }
+
+    for (World world : Bukkit.getWorlds()) {
+      worlds.put(world.getName().toLowerCase(Locale.ROOT), world.getName());
+    }
+
+    playerNames = online;
+    hiddenPlayerNames = hidden;
+    worldNames = worlds;
+  }
+
+  /**
+   * Builds a usage message from the schema, one line per branch.
+   *
+   * @param commandName The name of the command.
+   * @return The usage message.
+   */
+  public String describe(String commandName) {
+    ArrayList<String> lines = new ArrayList<>();
+
+    for (Token[] tokens : this.branches) {
+      StringBuilder line = new StringBuilder("/").append(commandName);
+
+      for (Token token : tokens) {
+        line.append(' ').append(token.describe());
+      }
+
+      lines.add(line.toString());
+    }
+
+    return String.join("\n", lines);
+  }
+}
@@ -0,0 +1,182 @@
+package dev.metlhedd.paperts;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+
+/**
+ * EntityQuery class for spatial entity and player lookups done entirely on the
+ * Java side.
+ * Instead of handing a proxied collection to the script, a query returns an
+ * {@link EntityQueryResult} with the positions and ids packed into primitive
+ * arrays, so a whole scan costs a single crossing.
+ */
+public class EntityQuery {
+  /**
+   * The entity types to include, or null to include every type.
+   */
+  private EnumSet<EntityType> types;
+
+  /**
+   * Constructor for the EntityQuery class.
+   *
+   * @param typeNames The entity type names to include, e.g. "ZOMBIE", or null
+   *                  or empty to include every type.
+   * @throws IllegalArgumentException if a type name is not a valid entity type.
+   */
+  public EntityQuery(List<String> typeNames) throws IllegalArgumentException {
+    if (typeNames == null || typeNames.isEmpty()) {
+      this.types = null;
+      return;
+    }
+
+    this.types = EnumSet.noneOf(EntityType.class);
+
+    for (String typeName : typeNames) {
+      try {
+        this.types.add(EntityType.valueOf(typeName.toUpperCase(Locale.ROOT)));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid entity type: " + typeName);
+      }
+    }
+  }
+
+  /**
+   * Finds the players within a radius of a point.
+   * Only the players of the world are scanned, which is much cheaper than a
+   * generic entity lookup.
+   *
+   * @param world  The world to search in.
+   * @param x      The x coordinate of the center.
+   * @param y      The y coordinate of the center.
+   * @param z      The z coordinate of the center.
+   * @param radius The radius of the sphere.
+   * @return The matching players.
+   */
+  public static EntityQueryResult playersInRadius(World world, double x, double y, double z, double radius) {
+    EntityQueryResult.Builder builder = new EntityQueryResult.Builder();
+    Location scratch = new Location(world, 0, 0, 0);
+    double radiusSquared = radius * radius;
+
+    for (Player player : world.getPlayers()) {
+      player.getLocation(scratch);
+
+      double dx = scratch.getX() - x;
+      double dy = scratch.getY() - y;
+      double dz = scratch.getZ() - z;
+
+      if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+        builder.add(player, scratch);
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Finds the entities within a radius of a point.
+   *
+   * @param world  The world to search in.
+   * @param x      The x coordinate of the center.
+   * @param y      The y coordinate of the center.
+   * @param z      The z coordinate of the center.
+   * @param radius The radius of the sphere.
+   * @return The matching entities.
+   */
+  public EntityQueryResult inRadius(World world, double x, double y, double z, double radius) {
+    EntityQueryResult.Builder builder = new EntityQueryResult.Builder();
+    Location center = new Location(world, x, y, z);
+    Location scratch = new Location(world, 0, 0, 0);
+    double radiusSquared = radius * radius;
+
+    // The box lookup only visits the chunks around the sphere, the exact distance
+    // check is done afterwards
+    for (Entity entity : world.getNearbyEntities(center, radius, radius, radius)) {
+      if (!this.matches(entity)) {
+        continue;
+      }
+
+      entity.getLocation(scratch);
+
+      if (scratch.distanceSquared(center) <= radiusSquared) {
+        builder.add(entity, scratch);
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Finds the entities inside an axis-aligned box.
+   *
+   * @param world The world to search in.
+   * @param minX  The minimum x coordinate of the box.
+   * @param minY  The minimum y coordinate of the box.
+   * @param minZ  The minimum z coordinate of the box.
+   * @param maxX  The maximum x coordinate of the box.
+   * @param maxY  The maximum y coordinate of the box.
+   * @param maxZ  The maximum z coordinate of the box.
+   * @return The matching entities.
+   */
+  public EntityQueryResult inBox(World world, double minX, double minY, double minZ, double maxX, double maxY,
+      double maxZ) {
+    EntityQueryResult.Builder builder = new EntityQueryResult.Builder();
+    Location center = new Location(world, (minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+    Location scratch = new Location(world, 0, 0, 0);
+
+    for (Entity entity : world.getNearbyEntities(center, Math.abs(maxX - minX) / 2, Math.abs(maxY - minY) / 2,
+        Math.abs(maxZ - minZ) / 2)) {
+      if (this.matches(entity)) {
+        builder.add(entity, entity.getLocation(scratch));
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Finds the entities in a chunk.
+   * The chunk is not loaded if it is not already loaded, in which case the
+   * result is empty.
+   *
+   * @param world  The world to search in.
+   * @param chunkX The x coordinate of the chunk.
+   * @param chunkZ The z coordinate of the chunk.
+   * @return The matching entities.
+   */
+  public EntityQueryResult inChunk(World world, int chunkX, int chunkZ) {
+    EntityQueryResult.Builder builder = new EntityQueryResult.Builder();
+
+    if (!world.isChunkLoaded(chunkX, chunkZ)) {
+      return builder.build();
+    }
+
+    Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+    Location scratch = new Location(world, 0, 0, 0);
+
+    for (Entity entity : chunk.getEntities()) {
+      if (this.matches(entity)) {
+        builder.add(entity, entity.getLocation(scratch));
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Checks if an entity passes the type filter.
+   *
+   * @param entity The entity to check.
+   * @return true if the entity matches, false otherwise.
+   */
+  private boolean matches(Entity entity) {
+    return this.types == null || this.types.contains(entity.getType());
+  }
+}
@@ -0,0 +1,105 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+/**
+ * The result of an {@link EntityQuery}.
+ * Positions and ids are exposed as primitive arrays, which scripts receive as
+ * a Float64Array and an Int32Array. The entities themselves are only handed out
+ * on demand through {@link #resolve(int)}.
+ */
+public class EntityQueryResult {
+  /**
+   * The positions of the entities, as x, y, z triples.
+   */
+  private double[] positions;
+  /**
+   * The entity ids of the entities.
+   */
+  private int[] ids;
+  /**
+   * The entities, in the same order as the ids.
+   */
+  private Entity[] handles;
+
+  private EntityQueryResult(double[] positions, int[] ids, Entity[] handles) {
+    this.positions = positions;
+    this.ids = ids;
+    this.handles = handles;
+  }
+
+  /**
+   * Gets the number of entities found.
+   *
+   * @return The number of entities found.
+   */
+  public int getCount() {
+    return this.ids.length;
+  }
+
+  /**
+   * Gets the positions of the entities, three doubles (x, y, z) per entity.
+   *
+   * @return The packed positions.
+   */
+  public double[] getPositions() {
+    return this.positions;
+  }
+
+  /**
+   * Gets the entity ids of the entities.
+   *
+   * @return The entity ids.
+   */
+  public int[] getIds() {
+    return this.ids;
+  }
+
+  /**
+   * Resolves the full entity at the given index.
+   *
+   * @param index The index of the entity in the result.
+   * @return The entity, or null if it is no longer valid.
+   * @throws IndexOutOfBoundsException if the index is out of range.
+   */
+  public Entity resolve(int index) throws IndexOutOfBoundsException {
+    Entity entity = this.handles[index];
+
+    return entity.isValid() ? entity : null;
+  }
+
+  /**
+   * Builder collecting the entities of a query into growable primitive arrays.
+   */
+  static class Builder {
+    private double[] positions = new double[48];
+    private int[] ids = new int[16];
+    private ArrayList<Entity> handles = new ArrayList<>();
+
+    void add(Entity entity, Location location) {
+      int index = this.handles.size();
+
+      if (index == this.ids.length) {
+        this.ids = Arrays.copyOf(this.ids, index * 2);
+        this.positions = Arrays.copyOf(this.positions, index * 6);
+      }
+
+      this.ids[index] = entity.getEntityId();
+      this.positions[index * 3] = location.getX();
+      this.positions[index * 3 + 1] = location.getY();
+      this.positions[index * 3 + 2] = location.getZ();
+      this.handles.add(entity);
+    }
+
+    EntityQueryResult build() {
+      int count = this.handles.size();
+
+      return new EntityQueryResult(Arrays.copyOf(this.positions, count * 3),
+          Arrays.copyOf(this.ids, count), this.handles.toArray(new Entity[0]));
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package dev.metlhedd.paperts;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.caoccao.javet.exceptions.JavetExecutionException;
+import com.caoccao.javet.exceptions.JavetScriptingError;
+
+/**
+ * ErrorReporter class logging the errors thrown by the handlers of a module
+ * without flooding the log.
+ * Errors are deduplicated by their source, e.g. the event or command, and the
+ * script location they were thrown at. The first error of each kind is logged
+ * with its stack trace; the following ones are only counted, and summarized
+ * periodically.
+ */
+public class ErrorReporter {
+  /**
+   * The most distinct kinds of errors tracked per module; further kinds are
+   * counted together.
+   */
+  private static final int MAX_KINDS = 256;
+  private static final String OTHER_KIND = "other errors";
+
+  /**
+   * How often the counts are summarized, in seconds, shared by every module.
+   */
+  private static volatile long summaryIntervalSeconds = 60;
+
+  private JavaPlugin plugin;
+  private String moduleName;
+  /**
+   * The errors counted since the last summary, by kind.
+   */
+  private ConcurrentHashMap<String, LongAdder> counts;
+  /**
+   * The task logging the summaries, started with the first repeated error.
+   */
+  private volatile Schedulers.Task summaryTask;
+  private volatile boolean closed;
+
+  /**
+   * Constructor for the ErrorReporter class.
+   *
+   * @param plugin     The plugin instance, used for logging and scheduling.
+   * @param moduleName The name of the module, used in reports.
+   */
+  public ErrorReporter(JavaPlugin plugin, String moduleName) {
+    this.plugin = plugin;
+    this.moduleName = moduleName;
+    this.counts = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Sets how often the repeated errors are summarized.
+   *
+   * @param seconds The interval between summaries, in seconds.
+   */
+  public static void setSummaryIntervalSeconds(long seconds) {
+    summaryIntervalSeconds = Math.max(1, seconds);
+  }
+
+  /**
+   * Reports an error thrown by a handler.
+   *
+   * @param source The source of the error, e.g. "event PlayerMoveEvent".
+   * @param error  The error.
+   */
+  public void report(String source, Throwable error) {
+    String kind = source + " at " + locationOf(error);
+    LongAdder count = this.counts.get(kind);
+
+    if (count == null) {
+      if (this.counts.size() >= MAX_KINDS) {
+        kind = OTHER_KIND;
+        count = this.counts.computeIfAbsent(kind, key -> new LongAdder());
+      } else if (this.counts.putIfAbsent(kind, new LongAdder()) == null) {
+        this.plugin.getLogger().log(Level.SEVERE, "Error in " + source + " of module " + this.moduleName + ": "
+            + error.getMessage() + " (repeated errors are summarized every " + summaryIntervalSeconds + " s)",
+            error);
+        return;
+      } else {
+        count = this.counts.get(kind);
+      }
+    }
+
+    count.increment();
+    this.startSummaries();
+  }
+
+  /**
+   * Creates a circuit breaker for one of the module's handlers, reporting to
+   * the module's log.
+   *
+   * @param source The source handled, e.g. "event PlayerMoveEvent".
+   * @return The circuit breaker.
+   */
+  public CircuitBreaker createCircuitBreaker(String source) {
+    return new CircuitBreaker(source + " of module " + this.moduleName, this.plugin.getLogger());
+  }
+
+  /**
+   * Logs the last summary and stops summarizing.
+   */
+  public void close() {
+    this.closed = true;
+
+    if (this.summaryTask != null) {
+      this.summaryTask.cancel();
+    }
+
+    this.summarize();
+  }
+
+  private void startSummaries() {
+    if (this.summaryTask == null && !this.closed) {
+      synchronized (this) {
+        if (this.summaryTask == null) {
+          long intervalTicks = summaryIntervalSeconds * 20;
+
+          this.summaryTask = Schedulers.runAsyncTimer(this.plugin, this::summarize,
+              intervalTicks, intervalTicks);
+        }
+      }
+    }
+  }
+
+  private void summarize() {
+    for (Map.Entry<String, LongAdder> entry : this.counts.entrySet()) {
+      long count = entry.getValue().sumThenReset();
+
+      if (count > 0) {
+        this.plugin.getLogger().severe("Module " + this.moduleName + ": " + count + " more errors in "
+            + entry.getKey() + " in the last " + summaryIntervalSeconds + " s.");
+      }
+    }
+  }
+
+  /**
+   * Gets the script location an error was thrown at, or the Java frame if it
+   * was not thrown by a script.
+   *
+   * @param error The error.
+   * @return The location of the error.
+   */
+  private static String locationOf(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof JavetExecutionException) {
+        JavetScriptingError scriptingError = ((JavetExecutionException) cause).getScriptingError();
+
+        return scriptingError.getResourceName() + ":" + scriptingError.getLineNumber();
+      }
+    }
+
+    StackTraceElement[] stackTrace = error.getStackTrace();
+
+    return error.getClass().getName() + (stackTrace.length > 0 ? " " + stackTrace[0] : "");
+  }
+}
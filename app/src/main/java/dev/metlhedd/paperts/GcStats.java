@@ -0,0 +1,133 @@
+package dev.metlhedd.paperts;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * GcStats class counting the garbage collection pauses of a runtime, by kind
+ * (minor, major, incremental, weakcb), as reported by Node's perf_hooks, and
+ * the idle time handed to the runtime between ticks.
+ */
+public class GcStats {
+  /**
+   * The pauses of one kind.
+   */
+  private static class Pauses {
+    private long count;
+    private double totalMillis;
+    private double maxMillis;
+  }
+
+  /**
+   * Observes the garbage collections of the runtime, reporting them to the
+   * stats object found in the __papertsGcStats global.
+   */
+  static final String OBSERVER_SCRIPT = """
+      (function (stats) {
+        const { PerformanceObserver, constants } = require("perf_hooks");
+        const kinds = {
+          [constants.NODE_PERFORMANCE_GC_MINOR]: "minor",
+          [constants.NODE_PERFORMANCE_GC_MAJOR]: "major",
+          [constants.NODE_PERFORMANCE_GC_INCREMENTAL]: "incremental",
+          [constants.NODE_PERFORMANCE_GC_WEAKCB]: "weakcb",
+        };
+        const observer = new PerformanceObserver((list) => {
+          for (const entry of list.getEntries()) {
+            const kind = entry.detail ? entry.detail.kind : entry.kind;
+            stats.record(kinds[kind] || "other", entry.duration);
+          }
+        });
+
+        observer.observe({ entryTypes: ["gc"] });
+        globalThis.__papertsGcObserver = observer;
+      })(__papertsGcStats);
+      delete globalThis.__papertsGcStats;
+      """;
+
+  /**
+   * Stops observing the garbage collections of the runtime.
+   */
+  static final String DISCONNECT_SCRIPT = """
+      if (globalThis.__papertsGcObserver) {
+        globalThis.__papertsGcObserver.disconnect();
+        delete globalThis.__papertsGcObserver;
+      }
+      """;
+
+  private HashMap<String, Pauses> pauses;
+  private long idleNotifications;
+  private long idleNanos;
+
+  /**
+   * Constructor for the GcStats class.
+   */
+  public GcStats() {
+    this.pauses = new HashMap<>();
+  }
+
+  /**
+   * Records a garbage collection pause. Called by the runtime's observer.
+   *
+   * @param kind           The kind of the collection.
+   * @param durationMillis The duration of the pause, in milliseconds.
+   */
+  public synchronized void record(String kind, double durationMillis) {
+    Pauses kindPauses = this.pauses.computeIfAbsent(kind, key -> new Pauses());
+
+    kindPauses.count++;
+    kindPauses.totalMillis += durationMillis;
+    kindPauses.maxMillis = Math.max(kindPauses.maxMillis, durationMillis);
+  }
+
+  /**
+   * Records idle time handed to the runtime.
+   *
+   * @param nanos The time spent in the idle notification, in nanoseconds.
+   */
+  public synchronized void recordIdle(long nanos) {
+    this.idleNotifications++;
+    this.idleNanos += nanos;
+  }
+
+  /**
+   * Gets the statistics, as a flat map, e.g. "minor.count", "minor.totalMillis",
+   * "minor.maxMillis", "idle.count" and "idle.totalMillis".
+   *
+   * @return The statistics, sorted by name.
+   */
+  public synchronized Map<String, Double> toMap() {
+    TreeMap<String, Double> stats = new TreeMap<>();
+
+    for (Map.Entry<String, Pauses> entry : this.pauses.entrySet()) {
+      stats.put(entry.getKey() + ".count", (double) entry.getValue().count);
+      stats.put(entry.getKey() + ".totalMillis", entry.getValue().totalMillis);
+      stats.put(entry.getKey() + ".maxMillis", entry.getValue().maxMillis);
+    }
+
+    stats.put("idle.count", (double) this.idleNotifications);
+    stats.put("idle.totalMillis", this.idleNanos / 1_000_000.0);
+
+    return stats;
+  }
+
+  /**
+   * Describes the statistics in a single line, for the paperts command.
+   *
+   * @return The description of the statistics.
+   */
+  public synchronized String describe() {
+    StringBuilder builder = new StringBuilder();
+
+    for (Map.Entry<String, Pauses> entry : new TreeMap<>(this.pauses).entrySet()) {
+      Pauses kindPauses = entry.getValue();
+
+      builder.append(String.format("%s %d (avg %.2f ms, max %.2f ms), ", entry.getKey(), kindPauses.count,
+          kindPauses.totalMillis / kindPauses.count, kindPauses.maxMillis));
+    }
+
+    builder.append(String.format("idle %d (%.1f ms)", this.idleNotifications, this.idleNanos / 1_000_000.0));
+
+    return builder.toString();
+  }
+}
@@ -0,0 +1,89 @@
+package dev.metlhedd.paperts;
+
+/**
+ * GeneratorChunk class describing the chunk a world generator script is asked
+ * to generate or populate.
+ * It is handed to the script's functions as their only argument, so a chunk
+ * costs a single call into the runtime.
+ */
+public class GeneratorChunk {
+  private String worldName;
+  private long seed;
+  private int chunkX;
+  private int chunkZ;
+  private int minY;
+  private int height;
+
+  /**
+   * Constructor for the GeneratorChunk class.
+   *
+   * @param worldName The name of the world.
+   * @param seed      The seed of the world.
+   * @param chunkX    The x coordinate of the chunk.
+   * @param chunkZ    The z coordinate of the chunk.
+   * @param minY      The lowest y coordinate of the world.
+   * @param height    The height of the world, in blocks.
+   */
+  GeneratorChunk(String worldName, long seed, int chunkX, int chunkZ, int minY, int height) {
+    this.worldName = worldName;
+    this.seed = seed;
+    this.chunkX = chunkX;
+    this.chunkZ = chunkZ;
+    this.minY = minY;
+    this.height = height;
+  }
+
+  /**
+   * Gets the name of the world.
+   *
+   * @return The world name.
+   */
+  public String getWorldName() {
+    return this.worldName;
+  }
+
+  /**
+   * Gets the seed of the world.
+   *
+   * @return The world seed.
+   */
+  public long getSeed() {
+    return this.seed;
+  }
+
+  /**
+   * Gets the x coordinate of the chunk.
+   *
+   * @return The chunk x coordinate.
+   */
+  public int getChunkX() {
+    return this.chunkX;
+  }
+
+  /**
+   * Gets the z coordinate of the chunk.
+   *
+   * @return The chunk z coordinate.
+   */
+  public int getChunkZ() {
+    return this.chunkZ;
+  }
+
+  /**
+   * Gets the lowest y coordinate of the world.
+   *
+   * @return The lowest y coordinate.
+   */
+  public int getMinY() {
+    return this.minY;
+  }
+
+  /**
+   * Gets the height of the world, in blocks.
+   *
+   * @return The height of the world.
+   */
+  public int getHeight() {
+    return this.height;
+  }
+}
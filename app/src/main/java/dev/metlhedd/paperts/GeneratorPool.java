@@ -0,0 +1,234 @@
+package dev.metlhedd.paperts;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Material;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.caoccao.javet.enums.JSRuntimeType;
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.interception.jvm.JavetJVMInterceptor;
+import com.caoccao.javet.interop.NodeRuntime;
+import com.caoccao.javet.interop.V8Host;
+import com.caoccao.javet.interop.V8Runtime;
+import com.caoccao.javet.node.modules.NodeModuleModule;
+
+/**
+ * GeneratorPool class owning the runtimes running the world generator script
+ * of a module.
+ * The server generates chunks on several worldgen threads at once, while a
+ * runtime runs a single call at a time. The pool therefore grows up to one
+ * runtime per worldgen thread, each running its own copy of the script, and
+ * hands an idle one to every chunk. The runtimes only see the Generator
+ * global, the Java bridge and Node modules: generation happens off the main
+ * thread, where the rest of the server API is not safe to use.
+ */
+public class GeneratorPool {
+  /**
+   * The most runtimes a pool creates, 0 for one per processor.
+   */
+  private static int maxRuntimes = 0;
+
+  private JavaPlugin plugin;
+  private JSRuntimeType runtimeType;
+  private RuntimeProfile profile;
+  private Path path;
+  private String script;
+  private ErrorReporter errorReporter;
+  /**
+   * The runtimes that are not generating a chunk.
+   */
+  private LinkedBlockingQueue<GeneratorRuntime> idle;
+  /**
+   * Every runtime of the pool.
+   */
+  private ArrayList<GeneratorRuntime> runtimes;
+  /**
+   * The first runtime, whose settings stand for the whole pool.
+   */
+  private GeneratorRuntime template;
+  private volatile boolean closed;
+
+  /**
+   * Constructor for the GeneratorPool class.
+   * Creates the first runtime right away, so errors in the script are reported
+   * when the world is created rather than when its first chunk is.
+   *
+   * @param plugin           The plugin instance, used for logging.
+   * @param runtimeType      The type of the Node.js runtime.
+   * @param profile          The runtime profile of the module.
+   * @param workingDirectory The working directory of the module.
+   * @throws RuntimeException if the script fails, or sets neither a generate
+   *                          nor a populate function.
+   * @throws IOException      if the script cannot be read.
+   * @throws JavetException   if the runtime cannot be created.
+   */
+  public GeneratorPool(JavaPlugin plugin, JSRuntimeType runtimeType, RuntimeProfile profile,
+      WorkingDirectory workingDirectory) throws RuntimeException, IOException, JavetException {
+    this.plugin = plugin;
+    this.runtimeType = runtimeType;
+    this.profile = profile;
+    this.path = workingDirectory.getPath();
+    this.script = workingDirectory.getGeneratorScriptContent();
+    this.idle = new LinkedBlockingQueue<>();
+    this.runtimes = new ArrayList<>();
+    this.template = this.create();
+
+    if (!this.template.hasGenerator() && !this.template.hasPopulator()) {
+      this.template.close();
+      throw new RuntimeException("The generator script must call Generator.onGenerate or Generator.onPopulate.");
+    }
+
+    this.errorReporter = new ErrorReporter(plugin, this.path.getFileName() + " generator");
+    this.runtimes.add(this.template);
+    this.idle.add(this.template);
+  }
+
+  /**
+   * Sets the most runtimes a pool creates.
+   *
+   * @param max The most runtimes, 0 or less for one per processor.
+   */
+  public static void setMaxRuntimes(int max) {
+    maxRuntimes = Math.max(0, max);
+  }
+
+  private static int getMaxRuntimes() {
+    return maxRuntimes > 0 ? maxRuntimes : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Creates a runtime and runs the generator script in it.
+   *
+   * @return The runtime.
+   * @throws JavetException if the runtime cannot be created, or the script
+   *                        fails.
+   */
+  private GeneratorRuntime create() throws JavetException {
+    V8Runtime runtime = V8Host.getInstance(this.runtimeType).createV8Runtime(this.profile.toRuntimeOptions());
+
+    try {
+      PaperTSProxyConverter proxyConverter = new PaperTSProxyConverter();
+      JavetJVMInterceptor javetJVMInterceptor = new JavetJVMInterceptor(runtime);
+      GeneratorRuntime generatorRuntime = new GeneratorRuntime(runtime, javetJVMInterceptor, proxyConverter);
+
+      runtime.allowEval(this.profile.isAllowEval());
+      ((NodeRuntime) runtime).getNodeModule(NodeModuleModule.class).setRequireRootDirectory(this.path.toFile());
+      runtime.setConverter(proxyConverter);
+      javetJVMInterceptor.register(runtime.getGlobalObject());
+
+      runtime.getGlobalObject().set("Generator", generatorRuntime);
+      runtime.getGlobalObject().set("Material", Material.class);
+      runtime.getGlobalObject().set("Java", new JavaBridge());
+      runtime.getExecutor("let org = javet.package.org").executeVoid();
+      runtime.getExecutor("let java = javet.package.java").executeVoid();
+      runtime.getExecutor(Pool.REQUIRE_SCRIPT).executeVoid();
+      runtime.getExecutor(this.script).executeVoid();
+
+      return generatorRuntime;
+    } catch (JavetException | RuntimeException e) {
+      runtime.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Takes an idle runtime, creating one if all of them are busy and the pool
+   * can still grow, or waiting for one otherwise.
+   *
+   * @return The runtime, to be handed back with {@link #release}.
+   * @throws IllegalStateException if the pool is closed.
+   * @throws InterruptedException  if the thread is interrupted while waiting.
+   * @throws JavetException        if a new runtime cannot be created.
+   */
+  public GeneratorRuntime acquire() throws IllegalStateException, InterruptedException, JavetException {
+    GeneratorRuntime runtime = this.idle.poll();
+
+    if (runtime != null) {
+      return runtime;
+    }
+
+    synchronized (this) {
+      if (this.closed) {
+        throw new IllegalStateException("The generator of " + this.path.getFileName() + " is closed.");
+      }
+
+      if (this.runtimes.size() < getMaxRuntimes()) {
+        runtime = this.create();
+        this.runtimes.add(runtime);
+        this.plugin.getLogger().info("Generator of " + this.path.getFileName() + " now runs "
+            + this.runtimes.size() + " runtimes.");
+
+        return runtime;
+      }
+    }
+
+    // Wait for a runtime to be handed back, giving up once the pool is closed
+    while (true) {
+      runtime = this.idle.poll(100, TimeUnit.MILLISECONDS);
+
+      if (runtime != null) {
+        return runtime;
+      }
+
+      if (this.closed) {
+        throw new IllegalStateException("The generator of " + this.path.getFileName() + " is closed.");
+      }
+    }
+  }
+
+  /**
+   * Hands a runtime back to the pool, closing it if the pool was closed in the
+   * meantime.
+   *
+   * @param runtime The runtime taken with {@link #acquire}.
+   */
+  public void release(GeneratorRuntime runtime) {
+    synchronized (this) {
+      if (!this.closed) {
+        this.idle.add(runtime);
+        return;
+      }
+    }
+
+    runtime.close();
+  }
+
+  /**
+   * Gets the first runtime of the pool, whose functions and vanilla steps are
+   * the ones of every runtime, since they all run the same script.
+   *
+   * @return The first runtime.
+   */
+  GeneratorRuntime getTemplate() {
+    return this.template;
+  }
+
+  /**
+   * Gets the reporter of the errors thrown by the script.
+   *
+   * @return The error reporter of the pool.
+   */
+  ErrorReporter getErrorReporter() {
+    return this.errorReporter;
+  }
+
+  /**
+   * Closes the idle runtimes, and the busy ones once they are handed back.
+   */
+  public void close() {
+    synchronized (this) {
+      this.closed = true;
+    }
+
+    for (GeneratorRuntime runtime = this.idle.poll(); runtime != null; runtime = this.idle.poll()) {
+      runtime.close();
+    }
+
+    this.errorReporter.close();
+  }
+}
@@ -0,0 +1,250 @@
+package dev.metlhedd.paperts;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.bukkit.Bukkit;
+import org.bukkit.block.data.BlockData;
+
+import com.caoccao.javet.interception.jvm.JavetJVMInterceptor;
+import com.caoccao.javet.interop.NodeRuntime;
+import com.caoccao.javet.interop.V8Runtime;
+
+/**
+ * GeneratorRuntime class for a runtime running the world generator script of a
+ * module, see {@link GeneratorPool}.
+ * It is exposed to the script as the Generator global, which the script uses
+ * to set its block palette and its generate and populate functions. Both
+ * functions take a {@link GeneratorChunk} and return packed palette indices,
+ * so a chunk costs a single call into the runtime.
+ */
+public class GeneratorRuntime {
+  /**
+   * The vanilla generation steps a script can keep, see
+   * {@link #setVanillaSteps(List)}.
+   */
+  static final List<String> VANILLA_STEPS = List.of("noise", "surface", "caves", "decorations", "mobs",
+      "structures");
+
+  private V8Runtime runtime;
+  private JavetJVMInterceptor javetJVMInterceptor;
+  private PaperTSProxyConverter proxyConverter;
+  /**
+   * The block data for every palette index.
+   */
+  private BlockData[] palette;
+  /**
+   * Whether the block of every palette index is air, which is left as is.
+   */
+  private boolean[] air;
+  private Function<GeneratorChunk, Object> generator;
+  private Function<GeneratorChunk, Object> populator;
+  private Set<String> vanillaSteps;
+
+  /**
+   * Constructor for the GeneratorRuntime class.
+   *
+   * @param runtime             The runtime running the generator script.
+   * @param javetJVMInterceptor The interceptor registered on the runtime.
+   * @param proxyConverter      The converter installed on the runtime.
+   */
+  GeneratorRuntime(V8Runtime runtime, JavetJVMInterceptor javetJVMInterceptor,
+      PaperTSProxyConverter proxyConverter) {
+    this.runtime = runtime;
+    this.javetJVMInterceptor = javetJVMInterceptor;
+    this.proxyConverter = proxyConverter;
+    this.palette = new BlockData[0];
+    this.air = new boolean[0];
+    this.vanillaSteps = new HashSet<>();
+  }
+
+  /**
+   * Sets the block palette the generate and populate functions index into.
+   *
+   * @param palette The block data strings, e.g. "minecraft:stone".
+   * @throws IllegalArgumentException if a block data string is invalid.
+   */
+  public void setPalette(List<String> palette) throws IllegalArgumentException {
+    BlockData[] blockData = new BlockData[palette.size()];
+    boolean[] air = new boolean[palette.size()];
+
+    for (int i = 0; i < palette.size(); i++) {
+      blockData[i] = Bukkit.createBlockData(palette.get(i));
+      air[i] = blockData[i].getMaterial().isAir();
+    }
+
+    this.palette = blockData;
+    this.air = air;
+  }
+
+  /**
+   * Sets the function generating the blocks of a chunk.
+   * It returns the palette index of every block of the chunk, typically as a
+   * Uint16Array, in x, then z, then y order: the block at (x, y, z) is at
+   * ((y - minY) * 16 + z) * 16 + x. Blocks whose palette entry is air are left
+   * as they are.
+   *
+   * @param generator The function generating the blocks of a chunk.
+   */
+  public void onGenerate(Function<GeneratorChunk, Object> generator) {
+    this.generator = generator;
+  }
+
+  /**
+   * Sets the function populating a chunk once its neighbours are generated,
+   * e.g. with trees or ores.
+   * It returns packed block changes, typically as an Int32Array, with four
+   * entries per block: x, y and z in world coordinates, and the palette index.
+   * Changes outside of the region the server hands out are skipped.
+   *
+   * @param populator The function populating a chunk.
+   */
+  public void onPopulate(Function<GeneratorChunk, Object> populator) {
+    this.populator = populator;
+  }
+
+  /**
+   * Sets the vanilla generation steps that still run, none by default.
+   *
+   * @param steps The steps: noise, surface, caves, decorations, mobs or
+   *              structures.
+   * @throws IllegalArgumentException if a step is unknown.
+   */
+  public void setVanillaSteps(List<String> steps) throws IllegalArgumentException {
+    for (String step : steps) {
+      if (!VANILLA_STEPS.contains(step)) {
+        throw new IllegalArgumentException("Unknown vanilla step " + step + ", expected one of " + VANILLA_STEPS
+            + ".");
+      }
+    }
+
+    this.vanillaSteps = new HashSet<>(steps);
+  }
+
+  boolean hasGenerator() {
+    return this.generator != null;
+  }
+
+  boolean hasPopulator() {
+    return this.populator != null;
+  }
+
+  Set<String> getVanillaSteps() {
+    return this.vanillaSteps;
+  }
+
+  /**
+   * Runs the generate function of the script.
+   *
+   * @param chunk The chunk to generate.
+   * @return The palette index of every block of the chunk, or null if the
+   *         script returned nothing.
+   * @throws IllegalArgumentException if the script returned something else than
+   *                                  a block per position.
+   */
+  int[] generate(GeneratorChunk chunk) throws IllegalArgumentException {
+    int[] blocks = toIndices(this.generator.apply(chunk));
+
+    if (blocks != null && blocks.length != 16 * 16 * chunk.getHeight()) {
+      throw new IllegalArgumentException("The generate function must return " + (16 * 16 * chunk.getHeight())
+          + " blocks, got " + blocks.length + ".");
+    }
+
+    return blocks;
+  }
+
+  /**
+   * Runs the populate function of the script.
+   *
+   * @param chunk The chunk to populate.
+   * @return The packed block changes, or null if the script returned nothing.
+   * @throws IllegalArgumentException if the changes are not an Int32Array
+   *                                  packed by {@link BlockMutation#STRIDE}.
+   */
+  int[] populate(GeneratorChunk chunk) throws IllegalArgumentException {
+    Object changes = this.populator.apply(chunk);
+
+    if (changes != null && (!(changes instanceof int[]) || ((int[]) changes).length % BlockMutation.STRIDE != 0)) {
+      throw new IllegalArgumentException("The populate function must return an Int32Array with "
+          + BlockMutation.STRIDE + " ints per block (x, y, z, palette).");
+    }
+
+    return (int[]) changes;
+  }
+
+  /**
+   * Gets the block data of a palette index.
+   *
+   * @param index The palette index.
+   * @return The block data.
+   * @throws IllegalArgumentException if the index is out of range.
+   */
+  BlockData getBlockData(int index) throws IllegalArgumentException {
+    if (index < 0 || index >= this.palette.length) {
+      throw new IllegalArgumentException("Palette index " + index + " is out of range, the palette has "
+          + this.palette.length + " entries.");
+    }
+
+    return this.palette[index];
+  }
+
+  /**
+   * Checks if the block of a palette index is air.
+   *
+   * @param index The palette index, already checked.
+   * @return true if the block is air.
+   */
+  boolean isAir(int index) {
+    return this.air[index];
+  }
+
+  /**
+   * Reads the typed array returned by the script. Unsigned arrays reach Java as
+   * signed ones, so their values are widened as unsigned.
+   */
+  private static int[] toIndices(Object value) throws IllegalArgumentException {
+    if (value == null || value instanceof int[]) {
+      return (int[]) value;
+    }
+
+    if (value instanceof short[] shorts) {
+      int[] indices = new int[shorts.length];
+
+      for (int i = 0; i < shorts.length; i++) {
+        indices[i] = shorts[i] & 0xFFFF;
+      }
+
+      return indices;
+    }
+
+    if (value instanceof byte[] bytes) {
+      int[] indices = new int[bytes.length];
+
+      for (int i = 0; i < bytes.length; i++) {
+        indices[i] = bytes[i] & 0xFF;
+      }
+
+      return indices;
+    }
+
+    throw new IllegalArgumentException("The generate function must return an Int32Array, a Uint16Array or a "
+        + "Uint8Array.");
+  }
+
+  /**
+   * Closes the runtime.
+   */
+  void close() {
+    try {
+      this.proxyConverter.getIdentityCache().close();
+      this.javetJVMInterceptor.unregister(this.runtime.getGlobalObject());
+      ((NodeRuntime) this.runtime).setStopping(true);
+      this.runtime.terminateExecution();
+      this.runtime.close();
+    } catch (Exception e) {
+      // The runtime is being discarded, there is nothing left to clean up
+    }
+  }
+}
@@ -1,75 +1,404 @@
 package dev.metlhedd.paperts;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.bukkit.Bukkit;
 import org.bukkit.NamespacedKey;
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.defaults.BukkitCommand;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityEvent;
 import org.bukkit.persistence.PersistentDataContainer;
 import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.NotNull;
 
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.values.reference.V8ValueObject;
+import com.destroystokyo.paper.event.server.AsyncTabCompleteEvent;
+
+import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.text.Component;
+
 class EventHandler {
   private Function<Event, Void> handler;
   private Listener listener;
+  private String source;
+  private ErrorReporter errorReporter;
+  private CircuitBreaker circuitBreaker;
+  /**
+   * The rate limiter of the players or entities the events are about, or null
+   * if the handler is not limited.
+   */
+  private RateLimiter rateLimiter;
+  /**
+   * Whether every shard of a sharded module handles the events, rather than
+   * only the shard they are routed to.
+   */
+  private boolean broadcast;
+  /**
+   * Whether the events are handed to the runtime thread of the module, rather
+   * than handled on the thread calling them.
+   */
+  private boolean queued;
 
-  public EventHandler(Function<Event, Void> handler) {
+  public EventHandler(Function<Event, Void> handler, String source, ErrorReporter errorReporter) {
     this.handler = handler;
     this.listener = new Listener() {
     };
+    this.source = source;
+    this.errorReporter = errorReporter;
+    this.circuitBreaker = errorReporter.createCircuitBreaker(source);
   }
 
   public Listener getListener() {
     return this.listener;
   }
 
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public boolean isBroadcast() {
+    return this.broadcast;
+  }
+
+  public void setBroadcast(boolean broadcast) {
+    this.broadcast = broadcast;
+  }
+
+  public boolean isQueued() {
+    return this.queued;
+  }
+
+  public void setQueued(boolean queued) {
+    this.queued = queued;
+  }
+
   public void handleEvent(Event event) {
+    if (this.rateLimiter != null && !this.isAllowed(event)) {
+      return;
+    }
+
+    if (!this.circuitBreaker.allow()) {
+      return;
+    }
+
     try {
       handler.apply(event);
+      this.circuitBreaker.recordSuccess();
     } catch (Exception e) {
-      Bukkit.getLogger().severe("Error handling event: " + e.getMessage());
-      e.printStackTrace();
+      this.errorReporter.report(this.source, e);
+      this.circuitBreaker.recordFailure();
+    } catch (Error e) {
+      // Still count it, or the breaker would stay in its trial call forever
+      this.errorReporter.report(this.source, e);
+      this.circuitBreaker.recordFailure();
+      throw e;
+    }
+  }
+
+  /**
+   * Checks the rate limiter for the player or entity an event is about. Events
+   * about neither are always allowed.
+   */
+  private boolean isAllowed(Event event) {
+    Object key = ShardGroup.playerOf(event);
+
+    if (key == null && event instanceof EntityEvent) {
+      key = ((EntityEvent) event).getEntity();
     }
+
+    return key == null || this.rateLimiter.tryAcquire(key);
   }
 }
 
 class CommandExecutor extends BukkitCommand {
-  private BiFunction<CommandSender, String[], Void> handler;
+  /**
+   * The maximum number of cached completions per command.
+   */
+  private static final int MAX_CACHED_COMPLETIONS = 1024;
+
+  private CommandOptions.Handler handler;
+  private CommandSchema schema;
+  private BiFunction<CommandSender, String[], Object> completer;
+  private long completionCacheMillis;
+  private ConcurrentHashMap<String, CachedCompletions> completionCache;
+  /**
+   * The worker the invocations are queued to, or null to run them on the
+   * calling thread.
+   */
+  private ModuleWorker worker;
+  private Semaphore concurrency;
+  private long timeoutMillis;
+  /**
+   * The shards of the module, or null if it is not sharded.
+   */
+  private ShardGroup shardGroup;
+  private ErrorReporter errorReporter;
+  private CircuitBreaker circuitBreaker;
+  /**
+   * The rate limiter of the players running the command, or null if it is not
+   * limited.
+   */
+  private RateLimiter rateLimiter;
+
+  /**
+   * Completions returned by a script completer, with the time they expire at.
+   */
+  private static class CachedCompletions {
+    private final List<String> completions;
+    private final long expiresAt;
+
+    CachedCompletions(List<String> completions, long expiresAt) {
+      this.completions = completions;
+      this.expiresAt = expiresAt;
+    }
+  }
 
-  public CommandExecutor(BiFunction<CommandSender, String[], Void> handler, String commandName, String description,
-      String usageMessage, String permission, ArrayList<String> aliases) {
+  public CommandExecutor(CommandOptions.Handler handler, String commandName, String description,
+      String usageMessage, String permission, ArrayList<String> aliases, ErrorReporter errorReporter) {
     super(commandName);
 
     this.handler = handler;
+    this.errorReporter = errorReporter;
+    this.circuitBreaker = errorReporter.createCircuitBreaker("command /" + commandName);
     this.setDescription(description);
     this.setUsage(usageMessage);
     this.setPermission(permission);
     this.setAliases(aliases);
+    this.completionCache = new ConcurrentHashMap<>();
+  }
+
+  public void setSchema(CommandSchema schema) {
+    this.schema = schema;
+  }
+
+  public void setQueued(ModuleWorker worker, int maxConcurrent, long timeoutMillis) {
+    this.worker = worker;
+    this.concurrency = new Semaphore(maxConcurrent);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public void setShardGroup(ShardGroup shardGroup) {
+    this.shardGroup = shardGroup;
+  }
+
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public void setCompleter(BiFunction<CommandSender, String[], Object> completer, long cacheMillis) {
+    this.completer = completer;
+    this.completionCacheMillis = cacheMillis;
+    this.completionCache.clear();
+  }
+
+  public boolean hasCompleter() {
+    return this.completer != null;
+  }
+
+  public boolean matchesLabel(String label) {
+    if (this.getName().equalsIgnoreCase(label)) {
+      return true;
+    }
+
+    for (String alias : this.getAliases()) {
+      if (alias.equalsIgnoreCase(label)) {
+        return true;
+      }
+    }
+
+    return false;
   }
 
   @Override
   public boolean execute(@NotNull CommandSender sender, @NotNull String commandLabel,
       @NotNull String @NotNull [] args) {
+    if (this.shardGroup != null) {
+      CommandExecutor target = this.shardGroup.getCommand(this.getName(), sender);
+
+      // The sender's shard is not running, e.g. it is restarting
+      if (target == null) {
+        sender.sendMessage("This command is unavailable right now, try again shortly.");
+
+        return true;
+      }
+
+      // Only the first shard's commands are in the command map
+      if (target != this) {
+        return target.execute(sender, commandLabel, args);
+      }
+    }
+
+    Map<String, Object> values = Map.of();
+
+    if (this.schema != null) {
+      values = this.schema.parse(args);
+
+      // Invalid invocations are rejected before they reach the script
+      if (values == null) {
+        sender.sendMessage(this.schema.validate(args));
+        sender.sendMessage("Usage: " + this.getUsage());
+
+        return false;
+      }
+    }
+
+    // Limited invocations are rejected before they reach the script
+    if (this.rateLimiter != null && sender instanceof Player && !this.rateLimiter.tryAcquire(sender)) {
+      long seconds = (this.rateLimiter.getRemainingMillis(sender) + 999) / 1000;
+
+      sender.sendMessage("You are using this command too often, try again in " + seconds + " s.");
+
+      return false;
+    }
+
+    if (this.worker != null) {
+      return this.queue(sender, args, values);
+    }
+
+    return this.run(sender, args, values);
+  }
+
+  private boolean run(CommandSender sender, String[] args, Map<String, Object> values) {
+    if (!this.circuitBreaker.allow()) {
+      sender.sendMessage("This command is temporarily disabled after repeated errors.");
+
+      return false;
+    }
+
     try {
-      handler.apply(sender, args);
+      handler.apply(sender, args, values);
+      this.circuitBreaker.recordSuccess();
 
       return true;
     } catch (Exception e) {
-      Bukkit.getLogger().severe("Error executing command: " + e.getMessage());
-      e.printStackTrace();
+      this.errorReporter.report("command /" + this.getName(), e);
+      this.circuitBreaker.recordFailure();
+
+      return false;
+    } catch (Error e) {
+      // Still count it, or the breaker would stay in its trial call forever
+      this.errorReporter.report("command /" + this.getName(), e);
+      this.circuitBreaker.recordFailure();
+      throw e;
+    }
+  }
+
+  /**
+   * Queues the invocation to the module's worker and returns immediately.
+   *
+   * @param sender The sender of the command.
+   * @param args   The arguments of the command.
+   * @param values The typed values of the arguments, parsed on the calling
+   *               thread.
+   * @return true if the invocation was queued, false if the command is busy.
+   */
+  private boolean queue(CommandSender sender, String[] args, Map<String, Object> values) {
+    if (!this.concurrency.tryAcquire()) {
+      sender.sendMessage("This command is busy, please try again later.");
+
+      return false;
+    }
+
+    // The permit is only released once the invocation is done, a timed out
+    // invocation that already started keeps running
+    boolean queued = this.worker.submit(() -> this.run(sender, args, values), this.timeoutMillis,
+        this.concurrency::release, () -> sender.sendMessage("The command timed out."));
+
+    if (!queued) {
+      this.concurrency.release();
+      sender.sendMessage("This command is unavailable right now, try again shortly.");
 
       return false;
     }
+
+    return true;
+  }
+
+  @Override
+  public @NotNull List<String> tabComplete(@NotNull CommandSender sender, @NotNull String alias,
+      @NotNull String @NotNull [] args) throws IllegalArgumentException {
+    if (this.schema != null) {
+      return this.schema.complete(sender, args);
+    }
+
+    return super.tabComplete(sender, alias, args);
   }
 
+  /**
+   * Computes the completions off the main thread, combining the schema with the
+   * script completer.
+   * The results of the script completer are cached per sender and input.
+   *
+   * @param sender The sender asking for completions.
+   * @param args   The arguments typed so far, the last one being partial.
+   * @return The completions, or null if the command has no script completer.
+   */
+  public List<String> completeAsync(CommandSender sender, String[] args) {
+    if (this.completer == null) {
+      return null;
+    }
+
+    ArrayList<String> completions = new ArrayList<>();
+
+    if (this.schema != null) {
+      completions.addAll(this.schema.complete(sender, args));
+    }
+
+    String key = sender.getName() + '\0' + String.join(" ", args);
+    long now = System.currentTimeMillis();
+    CachedCompletions cached = this.completionCache.get(key);
+
+    if (cached == null || cached.expiresAt < now) {
+      ArrayList<String> scriptCompletions = new ArrayList<>();
+
+      try {
+        Object result = this.completer.apply(sender, args);
+
+        if (result instanceof List) {
+          for (Object item : (List<?>) result) {
+            scriptCompletions.add(String.valueOf(item));
+          }
+        }
+      } catch (Exception e) {
+        this.errorReporter.report("completer of /" + this.getName(), e);
+      }
+
+      if (this.completionCache.size() >= MAX_CACHED_COMPLETIONS) {
+        this.completionCache.clear();
+      }
+
+      cached = new CachedCompletions(scriptCompletions, now + this.completionCacheMillis);
+      this.completionCache.put(key, cached);
+    }
+
+    for (String completion : cached.completions) {
+      if (!completions.contains(completion)) {
+        completions.add(completion);
+      }
+    }
+
+    return completions;
+  }
 }
 
 /**
@@ -96,20 +425,123 @@ public class Globals {
    * Each command can have a single executor registered to it.
    * If a command is registered multiple times, it will throw an exception.
    */
-  private HashMap<String, CommandExecutor> commands;
+  private ConcurrentHashMap<String, CommandExecutor> commands;
+  /**
+   * The listener serving asynchronous tab completions for the commands with a
+   * script completer.
+   * It is only registered while at least one completer exists.
+   */
+  private Listener tabCompleteListener;
+  /**
+   * The block mutations started by the module that are still running.
+   * They are cancelled when the module is unloaded.
+   */
+  private ArrayList<BlockMutation> blockMutations;
+  /**
+   * The chunk captures started by the module that are still running.
+   * They are cancelled when the module is unloaded.
+   */
+  private ArrayList<ChunkCapture> chunkCaptures;
+  /**
+   * The tasks scheduled by the module while it is staged, scheduled with the
+   * server by {@link #install()}.
+   */
+  private ArrayList<Runnable> stagedTasks;
+  /**
+   * The regions registered by the module, and the players inside them.
+   */
+  private RegionService regionService;
+  /**
+   * The owners the region enter and leave handlers are tracked under, so the
+   * previous handler is released when it is replaced.
+   */
+  private final Object regionEnterOwner = new Object();
+  private final Object regionLeaveOwner = new Object();
+  /**
+   * The name of the module the globals belong to.
+   */
+  private String moduleName;
+  /**
+   * The work queued to the loop of the module's runtime, created when first
+   * needed.
+   */
+  private volatile ModuleWorker worker;
+  /**
+   * The queue used to hand work back to the main thread.
+   */
+  private MainThreadQueue mainThreadQueue;
+  /**
+   * The cache of the proxies of long-lived objects in the module's runtime.
+   */
+  private ProxyIdentityCache proxyIdentityCache;
+  /**
+   * The last time an event or command of the module was dispatched, in
+   * milliseconds.
+   */
+  private volatile long lastActivityMillis;
+  /**
+   * Whether the registrations are kept out of the server, while a new version
+   * of the module boots next to the running one.
+   */
+  private volatile boolean staged;
+  /**
+   * The script values handed to the module's handlers, closed when they are
+   * unregistered or the module is unloaded.
+   */
+  private ResourceTracker resourceTracker;
+  /**
+   * Logs the errors thrown by the module's handlers, deduplicated.
+   */
+  private ErrorReporter errorReporter;
+  /**
+   * The shards of the module, or null if it is not sharded.
+   */
+  private ShardGroup shardGroup;
+  /**
+   * The index of the shard the globals belong to.
+   */
+  private int shardIndex;
+  /**
+   * The key-value store of the module, opened when first needed.
+   */
+  private KeyValueStore store;
+  /**
+   * The metrics of the module, opened when first needed.
+   */
+  private Metrics metrics;
+  /**
+   * The rate limiters created by the module, by name.
+   */
+  private ConcurrentHashMap<String, RateLimiter> rateLimiters;
+  /**
+   * The message templates registered by the module, by name.
+   */
+  private ConcurrentHashMap<String, MessageTemplate> messageTemplates;
 
   /**
    * Constructor for the Globals class.
    * Initializes the plugin instance and the maps for event handlers and commands.
    * 
-   * @param plugin The JavaPlugin instance for the plugin.
+   * @param plugin     The JavaPlugin instance for the plugin.
+   * @param moduleName The name of the module the globals belong to.
    */
 
-  public Globals(JavaPlugin plugin) {
+  public Globals(JavaPlugin plugin, String moduleName) {
     this.plugin = plugin;
+    this.moduleName = moduleName;
 
     this.eventHandlers = new HashMap<>();
-    this.commands = new HashMap<>();
+    this.commands = new ConcurrentHashMap<>();
+    this.blockMutations = new ArrayList<>();
+    this.chunkCaptures = new ArrayList<>();
+    this.stagedTasks = new ArrayList<>();
+    this.rateLimiters = new ConcurrentHashMap<>();
+    this.messageTemplates = new ConcurrentHashMap<>();
+    this.regionService = new RegionService(plugin);
+    this.resourceTracker = new ResourceTracker(moduleName, plugin.getLogger());
+    this.errorReporter = new ErrorReporter(plugin, moduleName);
+    this.mainThreadQueue = new MainThreadQueue(plugin, this.errorReporter);
+    this.lastActivityMillis = System.currentTimeMillis();
   }
 
   /**
@@ -125,92 +557,629 @@ public class Globals {
       throw new RuntimeException("Event " + eventClass.getName() + " is already registered.");
     }
 
-    EventHandler eventHandler = new EventHandler(handler);
+    EventHandler eventHandler = new EventHandler(handler, "event " + eventClass.getSimpleName(),
+        this.errorReporter);
 
-    Bukkit.getPluginManager().registerEvent(eventClass, eventHandler.getListener(),
-        org.bukkit.event.EventPriority.NORMAL,
-        (Listener l, Event event) -> {
-          eventHandler.handleEvent(event);
-        }, this.plugin);
+    this.resourceTracker.track(eventHandler, handler, "Event handler for " + eventClass.getName());
+
+    if (!this.staged) {
+      this.installEvent(eventClass, eventHandler);
+    }
+
+    this.eventHandlers.put(eventClass, eventHandler);
   }
 
   /**
-   * Unregisters an event handler for a specific event class.
+   * Registers an event handler for a specific event class, limited per player
+   * or entity. Events about a player or entity over its limit are dropped
+   * before they reach the script; events about neither are always handled.
    *
-   * @param eventClass The class of the event to unregister.
-   * @throws RuntimeException if the event class is not registered.
+   * @param eventClass  The class of the event to register.
+   * @param handler     The function to handle the event.
+   * @param rateLimiter The name of the rate limiter, see
+   *                    {@link #createRateLimiter}.
+   * @param <T>         The type of the event.
+   * @throws IllegalArgumentException if the rate limiter does not exist.
    */
-  public void unregisterEvent(Class<? extends Event> eventClass) throws RuntimeException {
-    if (!eventHandlers.containsKey(eventClass)) {
-      throw new RuntimeException("Event " + eventClass.getName() + " is not registered.");
-    }
+  public <T extends Event> void registerEvent(Class<T> eventClass, Function<Event, Void> handler,
+      String rateLimiter) throws IllegalArgumentException {
+    RateLimiter limiter = this.getRateLimiter(rateLimiter);
 
-    EventHandler handler = eventHandlers.remove(eventClass);
-    HandlerList.unregisterAll(handler.getListener());
+    this.registerEvent(eventClass, handler);
+    this.eventHandlers.get(eventClass).setRateLimiter(limiter);
   }
 
   /**
-   * Unregisters all event handlers.
-   * This is useful for cleaning up when the plugin is disabled.
+   * Registers an event handler run by every shard of a sharded module, for
+   * events that every shard needs to see, e.g. world or server events. In a
+   * module that is not sharded, this is the same as {@link #registerEvent}.
+   *
+   * @param eventClass The class of the event to register.
+   * @param handler    The function to handle the event.
+   * @param <T>        The type of the event.
    */
-  public void unregisterAllEvents() {
-    for (EventHandler handler : eventHandlers.values()) {
-      HandlerList.unregisterAll(handler.getListener());
-    }
-    eventHandlers.clear();
+  public <T extends Event> void registerBroadcastEvent(Class<T> eventClass, Function<Event, Void> handler) {
+    this.registerEvent(eventClass, handler);
+    this.eventHandlers.get(eventClass).setBroadcast(true);
   }
 
   /**
-   * Registers a command with the plugin's command map.
-   * If the command is already registered, it will throw an exception.
+   * Registers an event handler run on the runtime thread of the module, off the
+   * main thread. In a sharded module, each event runs in the runtime of the
+   * shard it is routed to, so the shards handle their players' events in
+   * parallel, like queued commands.
+   * The event has already completed by the time the handler runs: it cannot be
+   * cancelled or changed, and the world may have moved on. Read what is needed
+   * from the event, and hand Bukkit calls back with {@link #runOnMainThread},
+   * {@link #runAt} or {@link #runForEntity}.
    *
-   * @param commandName  The name of the command.
-   * @param description  The description of the command.
-   * @param usageMessage The usage message for the command.
-   * @param permission   The permission required to execute the command.
-   * @param aliases      The aliases for the command.
-   * @param handler      The function to handle the command execution.
-   * @throws RuntimeException if the command is already registered.
+   * @param eventClass The class of the event to register.
+   * @param handler    The function to handle the event.
+   * @param <T>        The type of the event.
    */
-  public void registerCommand(String commandName,
-      String description, String usageMessage, String permission, ArrayList<String> aliases,
-      BiFunction<CommandSender, String[], Void> handler) throws RuntimeException {
-    if (this.commands.containsKey(commandName)) {
-      throw new RuntimeException("Command " + commandName + " is already registered.");
+  public <T extends Event> void registerQueuedEvent(Class<T> eventClass, Function<Event, Void> handler) {
+    this.registerEvent(eventClass, handler);
+    this.eventHandlers.get(eventClass).setQueued(true);
+  }
+
+  /**
+   * Registers an event handler with the server.
+   *
+   * @param eventClass   The class of the event.
+   * @param eventHandler The handler of the event.
+   */
+  private void installEvent(Class<? extends Event> eventClass, EventHandler eventHandler) {
+    String eventName = eventClass.getSimpleName();
+
+    Bukkit.getPluginManager().registerEvent(eventClass, eventHandler.getListener(),
+        org.bukkit.event.EventPriority.NORMAL,
+        (Listener l, Event event) -> this.handleEvent(eventHandler, event, eventName), this.plugin);
+  }
+
+  private void handleEvent(EventHandler eventHandler, Event event, String eventName) {
+    if (this.shardGroup != null && !this.shardGroup.isRoutedTo(this.shardIndex, event,
+        eventHandler.isBroadcast())) {
+      return;
     }
 
-    CommandExecutor commandExecutor = new CommandExecutor(handler, commandName, description, usageMessage, permission,
-        aliases);
+    this.lastActivityMillis = System.currentTimeMillis();
 
-    this.plugin.getServer().getCommandMap().register(commandName, commandExecutor);
-    this.commands.put(commandName, commandExecutor);
+    // Only the routing runs on the calling thread, the shards run the handlers
+    // in parallel
+    if (eventHandler.isQueued()) {
+      this.getWorker().submit(() -> this.runEventHandler(eventHandler, event, eventName));
+      return;
+    }
+
+    this.runEventHandler(eventHandler, event, eventName);
+  }
+
+  private void runEventHandler(EventHandler eventHandler, Event event, String eventName) {
+    long traceStart = TraceRecorder.begin();
+
+    try {
+      eventHandler.handleEvent(event);
+    } finally {
+      TraceRecorder.end(traceStart, this.moduleName, TraceRecorder.EVENT, eventName);
+    }
   }
 
   /**
-   * Unregisters a command from the plugin's command map.
-   * If the command is not registered, it will throw an exception.
+   * Runs the module's handler of an event directly, without calling the event
+   * on the server, so no other plugin sees it. Used by load tests.
    *
-   * @param commandName The name of the command to unregister.
-   * @throws RuntimeException if the command is not registered.
+   * @param event The event.
+   * @return true if the module handles the event, false otherwise.
    */
-  public void unregisterCommand(String commandName) throws RuntimeException {
-    if (!this.commands.containsKey(commandName)) {
-      throw new RuntimeException("Command " + commandName + " is not registered.");
+  boolean dispatchEvent(Event event) {
+    if (this.shardGroup != null && this.shardIndex == 0) {
+      boolean handled = false;
+
+      for (int shard = 1; shard < this.shardGroup.size(); shard++) {
+        Globals globals = this.shardGroup.get(shard);
+
+        if (globals != null) {
+          handled |= globals.dispatchLocalEvent(event);
+        }
+      }
+
+      return this.dispatchLocalEvent(event) || handled;
+    }
+
+    return this.dispatchLocalEvent(event);
+  }
+
+  private boolean dispatchLocalEvent(Event event) {
+    for (Class<?> eventClass = event.getClass(); eventClass != null; eventClass = eventClass.getSuperclass()) {
+      EventHandler eventHandler = this.eventHandlers.get(eventClass);
+
+      if (eventHandler != null) {
+        this.handleEvent(eventHandler, event, eventClass.getSimpleName());
+        return true;
+      }
     }
 
-    this.commands.remove(commandName);
-    this.plugin.getServer().getCommandMap().getKnownCommands().remove(commandName);
+    return false;
   }
 
   /**
-   * Unregisters all commands from the plugin's command map.
-   * This is useful for cleaning up when the plugin is disabled.
+   * Runs one of the module's commands directly, without going through the
+   * server's command map. Used by load tests.
+   *
+   * @param sender      The sender of the command.
+   * @param commandLine The command line, without the leading slash.
+   * @return true if the command belongs to the module, false otherwise.
    */
-  public void unregisterAllCommands() {
-    for (String commandName : this.commands.keySet()) {
-      this.plugin.getServer().getCommandMap().getKnownCommands().remove(commandName);
+  boolean dispatchCommand(CommandSender sender, String commandLine) {
+    String[] parts = commandLine.split(" ", -1);
+    String[] args = new String[parts.length - 1];
+
+    System.arraycopy(parts, 1, args, 0, args.length);
+
+    // The executors route the command to the shard of the sender
+    for (CommandExecutor executor : this.commands.values()) {
+      if (executor.matchesLabel(parts[0])) {
+        executor.execute(sender, parts[0], args);
+        return true;
+      }
     }
-    this.commands.clear();
+
+    return false;
+  }
+
+  /**
+   * Gets the names of the commands registered by the module.
+   *
+   * @return The command names.
+   */
+  Set<String> getCommandNames() {
+    return this.commands.keySet();
+  }
+
+  /**
+   * Gets the error reporter of the module, for the errors thrown outside of
+   * its handlers, e.g. while it starts.
+   *
+   * @return The error reporter.
+   */
+  ErrorReporter getErrorReporter() {
+    return this.errorReporter;
+  }
+
+  /**
+   * Gets one of the module's commands.
+   *
+   * @param commandName The name of the command.
+   * @return The command, or null if it is not registered.
+   */
+  CommandExecutor getCommand(String commandName) {
+    return this.commands.get(commandName);
+  }
+
+  /**
+   * Sets the shard the globals belong to, before the script runs.
+   * Only the first shard installs the commands in the command map, they route
+   * the invocations to the other shards.
+   *
+   * @param shardGroup The shards of the module.
+   * @param shardIndex The index of the shard.
+   */
+  void setShard(ShardGroup shardGroup, int shardIndex) {
+    this.shardGroup = shardGroup;
+    this.shardIndex = shardIndex;
+  }
+
+  /**
+   * Gets the index of the shard running the script, to partition state by
+   * player.
+   *
+   * @return The index of the shard, 0 if the module is not sharded.
+   */
+  public int getShardIndex() {
+    return this.shardIndex;
+  }
+
+  /**
+   * Gets the number of shards the module runs in.
+   *
+   * @return The number of shards, 1 if the module is not sharded.
+   */
+  public int getShardCount() {
+    return this.shardGroup == null ? 1 : this.shardGroup.size();
+  }
+
+  /**
+   * Checks if the commands of the globals are kept out of the command map,
+   * because they are staged or belong to a shard other than the first one.
+   *
+   * @return true if the commands are not installed.
+   */
+  private boolean isCommandMapStaged() {
+    return this.staged || this.shardIndex > 0;
+  }
+
+  /**
+   * Unregisters an event handler for a specific event class.
+   *
+   * @param eventClass The class of the event to unregister.
+   * @throws RuntimeException if the event class is not registered.
+   */
+  public void unregisterEvent(Class<? extends Event> eventClass) throws RuntimeException {
+    if (!eventHandlers.containsKey(eventClass)) {
+      throw new RuntimeException("Event " + eventClass.getName() + " is not registered.");
+    }
+
+    EventHandler handler = eventHandlers.remove(eventClass);
+    HandlerList.unregisterAll(handler.getListener());
+    this.resourceTracker.release(handler);
+  }
+
+  /**
+   * Unregisters all event handlers.
+   * This is useful for cleaning up when the plugin is disabled.
+   */
+  public void unregisterAllEvents() {
+    for (EventHandler handler : eventHandlers.values()) {
+      HandlerList.unregisterAll(handler.getListener());
+      this.resourceTracker.release(handler);
+    }
+    eventHandlers.clear();
+  }
+
+  /**
+   * Registers a command with the plugin's command map.
+   * If the command is already registered, it will throw an exception.
+   *
+   * @param commandName  The name of the command.
+   * @param description  The description of the command.
+   * @param usageMessage The usage message for the command.
+   * @param permission   The permission required to execute the command.
+   * @param aliases      The aliases for the command.
+   * @param handler      The function to handle the command execution.
+   * @throws RuntimeException if the command is already registered.
+   */
+  public void registerCommand(String commandName,
+      String description, String usageMessage, String permission, ArrayList<String> aliases,
+      BiFunction<CommandSender, String[], Void> handler) throws RuntimeException {
+    if (this.commands.containsKey(commandName)) {
+      throw new RuntimeException("Command " + commandName + " is already registered.");
+    }
+
+    CommandExecutor commandExecutor = new CommandExecutor(
+        this.trackActivity(commandName, (sender, args, values) -> handler.apply(sender, args)), commandName,
+        description, usageMessage, permission, aliases, this.errorReporter);
+
+    this.resourceTracker.track(commandExecutor, handler, "Command handler for /" + commandName);
+    commandExecutor.setShardGroup(this.shardGroup);
+
+    if (!this.isCommandMapStaged()) {
+      this.plugin.getServer().getCommandMap().register(commandName, commandExecutor);
+    }
+
+    this.commands.put(commandName, commandExecutor);
+  }
+
+  /**
+   * Registers a command with the plugin's command map, using an options object.
+   * When the options contain an argument schema, the arguments are validated
+   * and tab completed on the Java side, see {@link CommandSchema}, and the
+   * handler gets their typed values.
+   *
+   * @param commandName The name of the command.
+   * @param options     The options of the command, see {@link CommandOptions}.
+   * @param handler     The function to handle the command execution, given the
+   *                    sender, the arguments and their typed values.
+   * @throws RuntimeException if the command is already registered, or if the
+   *                          options are invalid.
+   */
+  public void registerCommand(String commandName, Map<String, Object> options,
+      CommandOptions.Handler handler) throws RuntimeException {
+    if (this.commands.containsKey(commandName)) {
+      throw new RuntimeException("Command " + commandName + " is already registered.");
+    }
+
+    CommandOptions commandOptions = CommandOptions.fromMap(commandName, options);
+    RateLimiter rateLimiter = commandOptions.getRateLimit() != null
+        ? this.getRateLimiter(commandOptions.getRateLimit())
+        : null;
+    CommandExecutor commandExecutor = new CommandExecutor(this.trackActivity(commandName, handler), commandName,
+        commandOptions.getDescription(), commandOptions.getUsage(), commandOptions.getPermission(),
+        commandOptions.getAliases(), this.errorReporter);
+
+    this.resourceTracker.track(commandExecutor, handler, "Command handler for /" + commandName);
+
+    commandExecutor.setSchema(commandOptions.getSchema());
+    commandExecutor.setShardGroup(this.shardGroup);
+    commandExecutor.setRateLimiter(rateLimiter);
+
+    if (commandOptions.getMode() == CommandMode.Queued) {
+      commandExecutor.setQueued(this.getWorker(), commandOptions.getMaxConcurrent(),
+          commandOptions.getTimeoutMillis());
+    }
+
+    if (!this.isCommandMapStaged()) {
+      this.plugin.getServer().getCommandMap().register(commandName, commandExecutor);
+    }
+
+    this.commands.put(commandName, commandExecutor);
+  }
+
+  /**
+   * Sets a script function providing tab completions for a command.
+   * The function is called off the main thread, through Paper's asynchronous
+   * tab completion, and its results are cached per sender and input.
+   * Its completions are added to the ones of the argument schema, if any.
+   *
+   * @param commandName The name of the command.
+   * @param completer   The function returning the completions for the
+   *                    arguments typed so far.
+   * @param cacheMillis How long the completions are cached, in milliseconds.
+   * @throws RuntimeException if the command is not registered.
+   */
+  public void registerCommandCompleter(String commandName, BiFunction<CommandSender, String[], Object> completer,
+      int cacheMillis) throws RuntimeException {
+    CommandExecutor commandExecutor = this.commands.get(commandName);
+
+    if (commandExecutor == null) {
+      throw new RuntimeException("Command " + commandName + " is not registered.");
+    }
+
+    this.resourceTracker.track(commandExecutor, completer, "Tab completer for /" + commandName);
+    commandExecutor.setCompleter(completer, cacheMillis);
+
+    if (!this.isCommandMapStaged()) {
+      this.installTabCompleteListener();
+    }
+  }
+
+  /**
+   * Registers the listener serving asynchronous tab completions, if it is not
+   * registered yet.
+   */
+  private synchronized void installTabCompleteListener() {
+    if (this.tabCompleteListener == null) {
+      this.tabCompleteListener = new Listener() {
+      };
+
+      Bukkit.getPluginManager().registerEvent(AsyncTabCompleteEvent.class, this.tabCompleteListener,
+          EventPriority.NORMAL, (Listener l, Event event) -> {
+            if (event instanceof AsyncTabCompleteEvent) {
+              this.handleAsyncTabComplete((AsyncTabCompleteEvent) event);
+            }
+          }, this.plugin, true);
+    }
+  }
+
+  /**
+   * Serves an asynchronous tab completion for one of the module's commands.
+   *
+   * @param event The tab completion event.
+   */
+  private void handleAsyncTabComplete(AsyncTabCompleteEvent event) {
+    if (!event.isCommand() || event.isHandled()) {
+      return;
+    }
+
+    String buffer = event.getBuffer().startsWith("/") ? event.getBuffer().substring(1) : event.getBuffer();
+    int space = buffer.indexOf(' ');
+
+    if (space < 0) {
+      return;
+    }
+
+    String label = buffer.substring(0, space).toLowerCase(Locale.ROOT);
+
+    // Strip the fallback prefix, e.g. "hello:hello"
+    label = label.substring(label.indexOf(':') + 1);
+
+    for (CommandExecutor commandExecutor : this.commands.values()) {
+      if (!commandExecutor.matchesLabel(label) || !commandExecutor.testPermissionSilent(event.getSender())) {
+        continue;
+      }
+
+      List<String> completions = commandExecutor.completeAsync(event.getSender(),
+          buffer.substring(space + 1).split(" ", -1));
+
+      if (completions != null) {
+        event.setCompletions(completions);
+        event.setHandled(true);
+      }
+
+      return;
+    }
+  }
+
+  /**
+   * Wraps a command handler so its invocations count as activity of the module,
+   * and are traced.
+   *
+   * @param commandName The name of the command.
+   * @param handler     The function to handle the command execution.
+   * @return The wrapped function.
+   */
+  private CommandOptions.Handler trackActivity(String commandName, CommandOptions.Handler handler) {
+    return (CommandSender sender, String[] args, Map<String, Object> values) -> {
+      this.lastActivityMillis = System.currentTimeMillis();
+      long traceStart = TraceRecorder.begin();
+
+      try {
+        return handler.apply(sender, args, values);
+      } finally {
+        TraceRecorder.end(traceStart, this.moduleName, TraceRecorder.COMMAND, commandName);
+      }
+    };
+  }
+
+  /**
+   * Gets the last time an event or command of the module was dispatched.
+   * On the first shard of a sharded module, this covers every shard.
+   *
+   * @return The last activity time, in milliseconds.
+   */
+  public long getLastActivityMillis() {
+    long lastActivityMillis = this.lastActivityMillis;
+
+    if (this.shardGroup != null && this.shardIndex == 0) {
+      for (int shard = 1; shard < this.shardGroup.size(); shard++) {
+        Globals globals = this.shardGroup.get(shard);
+
+        if (globals != null) {
+          lastActivityMillis = Math.max(lastActivityMillis, globals.lastActivityMillis);
+        }
+      }
+    }
+
+    return lastActivityMillis;
+  }
+
+  /**
+   * Unregisters a command from the plugin's command map.
+   * If the command is not registered, it will throw an exception.
+   *
+   * @param commandName The name of the command to unregister.
+   * @throws RuntimeException if the command is not registered.
+   */
+  public void unregisterCommand(String commandName) throws RuntimeException {
+    if (!this.commands.containsKey(commandName)) {
+      throw new RuntimeException("Command " + commandName + " is not registered.");
+    }
+
+    CommandExecutor commandExecutor = this.commands.remove(commandName);
+
+    this.uninstallCommand(commandExecutor);
+    this.resourceTracker.release(commandExecutor);
+  }
+
+  /**
+   * Unregisters all commands from the plugin's command map.
+   * This is useful for cleaning up when the plugin is disabled.
+   */
+  public void unregisterAllCommands() {
+    for (CommandExecutor commandExecutor : this.commands.values()) {
+      this.uninstallCommand(commandExecutor);
+      this.resourceTracker.release(commandExecutor);
+    }
+    this.commands.clear();
+    this.uninstallTabCompleteListener();
+  }
+
+  /**
+   * Removes a command from the plugin's command map.
+   * Only the entries pointing at the command are removed, its names may belong
+   * to another version of the module by now.
+   *
+   * @param commandExecutor The command to remove.
+   */
+  private void uninstallCommand(CommandExecutor commandExecutor) {
+    this.plugin.getServer().getCommandMap().getKnownCommands().values()
+        .removeIf(command -> command == commandExecutor);
+  }
+
+  private synchronized void uninstallTabCompleteListener() {
+    if (this.tabCompleteListener != null) {
+      HandlerList.unregisterAll(this.tabCompleteListener);
+      this.tabCompleteListener = null;
+    }
+  }
+
+  /**
+   * Sets whether the registrations are kept out of the server.
+   * While staged, events and commands registered by the script are recorded,
+   * and only registered with the server by {@link #install()}. Regions are not
+   * tracked, and block mutations, chunk captures and tasks are held back until
+   * then.
+   * Must be set before the script runs.
+   *
+   * @param staged true to stage the registrations, false otherwise.
+   */
+  void setStaged(boolean staged) {
+    this.staged = staged;
+    this.regionService.setPaused(staged);
+    this.mainThreadQueue.setPaused(staged);
+  }
+
+  /**
+   * Pauses or resumes the work of the module touching the world: region
+   * tracking, main thread tasks, block mutations and chunk captures.
+   *
+   * @param paused true to pause the work, false to resume it.
+   */
+  private void setWorkPaused(boolean paused) {
+    this.regionService.setPaused(paused);
+    this.mainThreadQueue.setPaused(paused);
+
+    synchronized (this.blockMutations) {
+      for (BlockMutation mutation : this.blockMutations) {
+        mutation.setPaused(paused);
+      }
+    }
+
+    synchronized (this.chunkCaptures) {
+      for (ChunkCapture capture : this.chunkCaptures) {
+        capture.setPaused(paused);
+      }
+    }
+  }
+
+  /**
+   * Registers the recorded events and commands with the server, ending the
+   * staging, and resumes the regions and tasks of the module.
+   * Must be called from the main thread.
+   */
+  void install() {
+    for (Map.Entry<Class<?>, EventHandler> entry : this.eventHandlers.entrySet()) {
+      this.installEvent(entry.getKey().asSubclass(Event.class), entry.getValue());
+    }
+
+    this.staged = false;
+    this.setWorkPaused(false);
+
+    ArrayList<Runnable> tasks;
+
+    synchronized (this.stagedTasks) {
+      tasks = new ArrayList<>(this.stagedTasks);
+      this.stagedTasks.clear();
+    }
+
+    for (Runnable schedule : tasks) {
+      schedule.run();
+    }
+
+    if (this.isCommandMapStaged()) {
+      return;
+    }
+
+    boolean hasCompleter = false;
+
+    for (Map.Entry<String, CommandExecutor> entry : this.commands.entrySet()) {
+      this.plugin.getServer().getCommandMap().register(entry.getKey(), entry.getValue());
+      hasCompleter |= entry.getValue().hasCompleter();
+    }
+
+    if (hasCompleter) {
+      this.installTabCompleteListener();
+    }
+  }
+
+  /**
+   * Removes the events and commands from the server, keeping them recorded so
+   * they can be installed again, and pauses the regions and tasks of the
+   * module. Tasks already handed to the server's scheduler still run.
+   * Must be called from the main thread.
+   */
+  void uninstall() {
+    this.staged = true;
+    this.setWorkPaused(true);
+
+    for (EventHandler handler : this.eventHandlers.values()) {
+      HandlerList.unregisterAll(handler.getListener());
+    }
+
+    for (CommandExecutor commandExecutor : this.commands.values()) {
+      this.uninstallCommand(commandExecutor);
+    }
+
+    this.uninstallTabCompleteListener();
   }
 
   /**
@@ -280,16 +1249,890 @@ public class Globals {
   }
 
   /**
-   * Creates a Runnable from a Function.
+   * Creates a Runnable from a Function, which may run any number of times,
+   * e.g. as a repeating task.
+   * The function is kept until {@link #releaseRunnable} is called, or the
+   * module is unloaded.
    * @param function The function to convert to a Runnable.
    * @return A Runnable that executes the function.
    */
   public Runnable createRunnable(Function<Void, Void> function) {
-    return new Runnable() {
+    return this.createRunnable(function, false);
+  }
+
+  /**
+   * Creates a Runnable from a Function.
+   * @param function The function to convert to a Runnable.
+   * @param once     true if the Runnable runs a single time, e.g. as a delayed
+   *                 task, in which case the function is released after its
+   *                 run.
+   * @return A Runnable that executes the function.
+   */
+  public Runnable createRunnable(Function<Void, Void> function, boolean once) {
+    Runnable runnable = new Runnable() {
       @Override
       public void run() {
-        function.apply(null);
+        long traceStart = TraceRecorder.begin();
+
+        try {
+          function.apply(null);
+        } finally {
+          TraceRecorder.end(traceStart, moduleName, TraceRecorder.TASK, "Runnable");
+
+          if (once) {
+            resourceTracker.release(this);
+          }
+        }
       }
     };
+
+    this.resourceTracker.track(runnable, function, once ? "One-shot runnable" : "Runnable");
+
+    return runnable;
+  }
+
+  /**
+   * Releases the function of a Runnable created with {@link #createRunnable},
+   * once it will not run anymore, e.g. when its repeating task is cancelled.
+   * @param runnable The Runnable.
+   */
+  public void releaseRunnable(Runnable runnable) {
+    this.resourceTracker.release(runnable);
+  }
+
+  /**
+   * Changes a batch of blocks, spread across ticks.
+   * The blocks are given as packed ints, four per block: x, y, z and the index
+   * of the block data in the palette. The changes are applied chunk by chunk on
+   * the main thread, never spending more than the budget per tick.
+   *
+   * @param world        The world to change the blocks in.
+   * @param blocks       The packed block changes.
+   * @param palette      The block data strings, e.g. "minecraft:stone".
+   * @param budgetMillis The time budget per tick, in milliseconds.
+   * @param onProgress   The function called once per tick with the completed
+   *                     fraction, may be null.
+   * @return A result that resolves with the number of changed blocks.
+   * @throws IllegalArgumentException if the changes or the palette are invalid.
+   */
+  public PendingResult<Integer> setBlocks(World world, int[] blocks, List<String> palette, int budgetMillis,
+      Function<Object, Void> onProgress) throws IllegalArgumentException {
+    BlockMutation mutation = new BlockMutation(this.plugin, world, blocks, palette, budgetMillis, onProgress);
+
+    synchronized (this.blockMutations) {
+      this.blockMutations.removeIf(running -> running.getApplied() >= running.getTotal());
+      this.blockMutations.add(mutation);
+      // A staged module does not change the world until it is installed
+      mutation.setPaused(this.staged);
+    }
+
+    PendingResult<Integer> result = mutation.start();
+
+    this.resourceTracker.track(mutation, onProgress, "Block mutation progress callback");
+    result.then(value -> {
+      this.resourceTracker.release(mutation);
+      return null;
+    }, error -> {
+      this.resourceTracker.release(mutation);
+      return null;
+    });
+
+    return result;
+  }
+
+  /**
+   * Changes a batch of blocks, spread across ticks, using a budget of 10
+   * milliseconds per tick.
+   *
+   * @param world   The world to change the blocks in.
+   * @param blocks  The packed block changes.
+   * @param palette The block data strings, e.g. "minecraft:stone".
+   * @return A result that resolves with the number of changed blocks.
+   * @throws IllegalArgumentException if the changes or the palette are invalid.
+   */
+  public PendingResult<Integer> setBlocks(World world, int[] blocks, List<String> palette)
+      throws IllegalArgumentException {
+    return this.setBlocks(world, blocks, palette, 10, null);
+  }
+
+  /**
+   * Changes a batch of blocks given by a script, spread across ticks.
+   * Script calls land here rather than on the int[] overloads, so a view on
+   * part of a buffer and a bare ArrayBuffer are read as given.
+   *
+   * @param world        The world to change the blocks in.
+   * @param blocks       The packed block changes, an Int32Array or an
+   *                     ArrayBuffer holding 32-bit ints.
+   * @param palette      The block data strings, e.g. "minecraft:stone".
+   * @param budgetMillis The time budget per tick, in milliseconds.
+   * @param onProgress   The function called once per tick with the completed
+   *                     fraction, may be null.
+   * @return A result that resolves with the number of changed blocks.
+   * @throws IllegalArgumentException if the changes or the palette are invalid.
+   * @throws JavetException           if the changes cannot be read.
+   */
+  public PendingResult<Integer> setBlocks(World world, V8ValueObject blocks, List<String> palette, int budgetMillis,
+      Function<Object, Void> onProgress) throws IllegalArgumentException, JavetException {
+    return this.setBlocks(world, BlockMutation.toBlocks(blocks), palette, budgetMillis, onProgress);
+  }
+
+  /**
+   * Changes a batch of blocks given by a script, spread across ticks, using a
+   * budget of 10 milliseconds per tick.
+   *
+   * @param world   The world to change the blocks in.
+   * @param blocks  The packed block changes, an Int32Array or an ArrayBuffer
+   *                holding 32-bit ints.
+   * @param palette The block data strings, e.g. "minecraft:stone".
+   * @return A result that resolves with the number of changed blocks.
+   * @throws IllegalArgumentException if the changes or the palette are invalid.
+   * @throws JavetException           if the changes cannot be read.
+   */
+  public PendingResult<Integer> setBlocks(World world, V8ValueObject blocks, List<String> palette)
+      throws IllegalArgumentException, JavetException {
+    return this.setBlocks(world, BlockMutation.toBlocks(blocks), palette, 10, null);
+  }
+
+  /**
+   * Cancels all block mutations that are still running.
+   * This is useful for cleaning up when the module is unloaded.
+   */
+  public void cancelAllBlockMutations() {
+    synchronized (this.blockMutations) {
+      for (BlockMutation mutation : this.blockMutations) {
+        if (mutation.getApplied() < mutation.getTotal()) {
+          mutation.cancel();
+        }
+      }
+
+      this.blockMutations.clear();
+    }
+  }
+
+  /**
+   * Creates an entity query filtered by entity type.
+   * The query methods return the positions and ids of the entities packed into
+   * primitive arrays, so a scan costs a single call instead of one per entity.
+   *
+   * @param types The entity type names to include, e.g. "ZOMBIE", or an empty
+   *              list to include every type.
+   * @return The entity query.
+   * @throws IllegalArgumentException if a type name is not a valid entity type.
+   */
+  public EntityQuery queryEntities(List<String> types) throws IllegalArgumentException {
+    return new EntityQuery(types);
+  }
+
+  /**
+   * Finds the players within a radius of a point.
+   *
+   * @param world  The world to search in.
+   * @param x      The x coordinate of the center.
+   * @param y      The y coordinate of the center.
+   * @param z      The z coordinate of the center.
+   * @param radius The radius of the sphere.
+   * @return The matching players, with their positions and ids packed.
+   */
+  public EntityQueryResult playersInRadius(World world, double x, double y, double z, double radius) {
+    return EntityQuery.playersInRadius(world, x, y, z, radius);
+  }
+
+  /**
+   * Registers a box region.
+   * Players are tracked on the Java side, and the functions set with
+   * {@link #onRegionEnter(BiFunction)} and {@link #onRegionLeave(BiFunction)}
+   * are only called when a player enters or leaves a region.
+   *
+   * @param id    The identifier of the region.
+   * @param world The world the region is in.
+   * @param minX  The minimum x coordinate of the box.
+   * @param minY  The minimum y coordinate of the box.
+   * @param minZ  The minimum z coordinate of the box.
+   * @param maxX  The maximum x coordinate of the box.
+   * @param maxY  The maximum y coordinate of the box.
+   * @param maxZ  The maximum z coordinate of the box.
+   * @throws RuntimeException if a region with the same id is already
+   *                          registered.
+   */
+  public void registerRegion(String id, World world, double minX, double minY, double minZ, double maxX,
+      double maxY, double maxZ) throws RuntimeException {
+    this.regionService.addRegion(new Region(id, world.getUID(), minX, minY, minZ, maxX, maxY, maxZ));
+  }
+
+  /**
+   * Registers a polygon region, extruded between two heights.
+   *
+   * @param id      The identifier of the region.
+   * @param world   The world the region is in.
+   * @param polygon The polygon vertices as x, z pairs.
+   * @param minY    The minimum y coordinate of the region.
+   * @param maxY    The maximum y coordinate of the region.
+   * @throws RuntimeException if a region with the same id is already
+   *                          registered, or if the polygon is invalid.
+   */
+  public void registerPolygonRegion(String id, World world, double[] polygon, double minY, double maxY)
+      throws RuntimeException {
+    this.regionService.addRegion(new Region(id, world.getUID(), polygon, minY, maxY));
+  }
+
+  /**
+   * Unregisters a region.
+   *
+   * @param id The identifier of the region.
+   * @throws RuntimeException if the region is not registered.
+   */
+  public void unregisterRegion(String id) throws RuntimeException {
+    this.regionService.removeRegion(id);
+  }
+
+  /**
+   * Unregisters all regions.
+   * This is useful for cleaning up when the plugin is disabled.
+   */
+  public void unregisterAllRegions() {
+    this.regionService.clear();
+  }
+
+  /**
+   * Gets the ids of the regions a player is currently in.
+   *
+   * @param player The player to look up.
+   * @return The ids of the regions the player is in.
+   */
+  public Set<String> getRegions(Player player) {
+    return this.regionService.getRegions(player);
+  }
+
+  /**
+   * Sets the function called when a player enters a region.
+   *
+   * @param handler The function receiving the player and the region id.
+   */
+  public void onRegionEnter(BiFunction<Player, String, Void> handler) {
+    this.regionService.setEnterHandler(this.trackRegionHandler("region enter", handler));
+    // The previous handler is not called anymore
+    this.resourceTracker.release(this.regionEnterOwner);
+    this.resourceTracker.track(this.regionEnterOwner, handler, "Region enter handler");
+  }
+
+  /**
+   * Sets the function called when a player leaves a region.
+   *
+   * @param handler The function receiving the player and the region id.
+   */
+  public void onRegionLeave(BiFunction<Player, String, Void> handler) {
+    this.regionService.setLeaveHandler(this.trackRegionHandler("region leave", handler));
+    // The previous handler is not called anymore
+    this.resourceTracker.release(this.regionLeaveOwner);
+    this.resourceTracker.track(this.regionLeaveOwner, handler, "Region leave handler");
+  }
+
+  /**
+   * Wraps a region handler so its calls count as activity of the module, are
+   * traced, and its errors are reported and trip a circuit breaker like the
+   * ones of event handlers.
+   *
+   * @param source  The name of the handler, used in traces and error reports.
+   * @param handler The region handler of the script.
+   * @return The wrapped handler.
+   */
+  private BiFunction<Player, String, Void> trackRegionHandler(String source,
+      BiFunction<Player, String, Void> handler) {
+    CircuitBreaker circuitBreaker = this.errorReporter.createCircuitBreaker(source);
+
+    return (Player player, String id) -> {
+      if (!circuitBreaker.allow()) {
+        return null;
+      }
+
+      this.lastActivityMillis = System.currentTimeMillis();
+      long traceStart = TraceRecorder.begin();
+
+      try {
+        handler.apply(player, id);
+        circuitBreaker.recordSuccess();
+      } catch (Exception e) {
+        this.errorReporter.report(source, e);
+        circuitBreaker.recordFailure();
+      } catch (Error e) {
+        // Still count it, or the breaker would stay in its trial call forever
+        this.errorReporter.report(source, e);
+        circuitBreaker.recordFailure();
+        throw e;
+      } finally {
+        TraceRecorder.end(traceStart, this.moduleName, TraceRecorder.EVENT, source);
+      }
+
+      return null;
+    };
+  }
+
+  /**
+   * Gets the worker of the module, creating it when first needed.
+   *
+   * @return The worker of the module.
+   */
+  private synchronized ModuleWorker getWorker() {
+    if (this.worker == null) {
+      this.worker = new ModuleWorker(this.moduleName);
+    }
+
+    return this.worker;
+  }
+
+  /**
+   * Runs a function on the main thread during the next tick.
+   * Work queued from other threads, e.g. from queued commands, is run in a
+   * single batch per tick. Use it for Bukkit API calls that require the main
+   * thread. On Folia, the function runs on the global region thread, which may
+   * not touch blocks or entities: use {@link #runAt} and
+   * {@link #runForEntity} for those.
+   *
+   * @param function The function to run.
+   */
+  public void runOnMainThread(Function<Void, Void> function) {
+    this.resourceTracker.track(function, function, "Main thread task");
+    this.mainThreadQueue.post(() -> {
+      long traceStart = TraceRecorder.begin();
+
+      try {
+        function.apply(null);
+      } finally {
+        TraceRecorder.end(traceStart, this.moduleName, TraceRecorder.TASK, "Main thread task");
+        this.resourceTracker.release(function);
+      }
+    });
+  }
+
+  /**
+   * Runs a function on the thread owning a location during the next tick.
+   * On Folia, this is the thread of the region containing the location, the
+   * only one allowed to change its blocks. On Paper, it is the main thread.
+   *
+   * @param world    The world of the location.
+   * @param x        The x coordinate of the location.
+   * @param z        The z coordinate of the location.
+   * @param function The function to run.
+   */
+  public void runAt(World world, double x, double z, Function<Void, Void> function) {
+    this.resourceTracker.track(function, function, "Region task");
+    this.whenInstalled(() -> Schedulers.runAt(this.plugin, world, (int) Math.floor(x) >> 4,
+        (int) Math.floor(z) >> 4, () -> this.runTask(function, "Region task")));
+  }
+
+  /**
+   * Runs a function on the thread owning an entity during the next tick.
+   * On Folia, the function follows the entity when it moves to another region,
+   * and is not run if the entity is removed first. On Paper, it runs on the
+   * main thread.
+   *
+   * @param entity   The entity.
+   * @param function The function to run.
+   */
+  public void runForEntity(Entity entity, Function<Void, Void> function) {
+    this.resourceTracker.track(function, function, "Entity task");
+    this.whenInstalled(() -> Schedulers.runFor(this.plugin, entity, () -> this.runTask(function, "Entity task"),
+        () -> this.resourceTracker.release(function)));
+  }
+
+  /**
+   * Schedules a task with the server, or keeps it until {@link #install()} if
+   * the module is staged.
+   *
+   * @param schedule The function scheduling the task.
+   */
+  private void whenInstalled(Runnable schedule) {
+    synchronized (this.stagedTasks) {
+      if (this.staged) {
+        this.stagedTasks.add(schedule);
+        return;
+      }
+    }
+
+    schedule.run();
+  }
+
+  private void runTask(Function<Void, Void> function, String name) {
+    long traceStart = TraceRecorder.begin();
+
+    try {
+      function.apply(null);
+    } finally {
+      TraceRecorder.end(traceStart, this.moduleName, TraceRecorder.TASK, name);
+      this.resourceTracker.release(function);
+    }
+  }
+
+  /**
+   * Checks if the server is Folia, where the world is ticked by many region
+   * threads in parallel instead of a single main thread.
+   *
+   * @return true if the server is Folia.
+   */
+  public boolean isFolia() {
+    return Schedulers.isFolia();
+  }
+
+  /**
+   * Captures a region of a world for analysis off the main thread.
+   * The chunks are snapshotted on the main thread, never spending more than
+   * the budget per tick, then packed into typed arrays of block palette
+   * indices, biomes and heightmaps on another thread, which also resolves the
+   * result, so the region is processed without blocking the server.
+   *
+   * @param world        The world to capture the chunks from.
+   * @param minChunkX    The lowest chunk x coordinate, inclusive.
+   * @param minChunkZ    The lowest chunk z coordinate, inclusive.
+   * @param maxChunkX    The highest chunk x coordinate, inclusive.
+   * @param maxChunkZ    The highest chunk z coordinate, inclusive.
+   * @param minY         The lowest captured y coordinate.
+   * @param maxY         The highest captured y coordinate.
+   * @param budgetMillis The time budget per tick, in milliseconds.
+   * @param onProgress   The function called once per tick with the completed
+   *                     fraction, may be null.
+   * @return A result that resolves with the captured region.
+   * @throws IllegalArgumentException if the region or the budget are invalid.
+   */
+  public PendingResult<ChunkRegion> captureChunks(World world, int minChunkX, int minChunkZ, int maxChunkX,
+      int maxChunkZ, int minY, int maxY, int budgetMillis, Function<Object, Void> onProgress)
+      throws IllegalArgumentException {
+    ChunkCapture capture = new ChunkCapture(this.plugin, world, minChunkX, minChunkZ, maxChunkX, maxChunkZ, minY,
+        maxY, budgetMillis, onProgress);
+
+    synchronized (this.chunkCaptures) {
+      this.chunkCaptures.removeIf(ChunkCapture::isDone);
+      this.chunkCaptures.add(capture);
+      capture.setPaused(this.staged);
+    }
+
+    PendingResult<ChunkRegion> result = capture.start();
+
+    this.resourceTracker.track(capture, onProgress, "Chunk capture progress callback");
+    result.then(value -> {
+      this.resourceTracker.release(capture);
+      return null;
+    }, error -> {
+      this.resourceTracker.release(capture);
+      return null;
+    });
+
+    return result;
+  }
+
+  /**
+   * Captures a region of a world over its whole height for analysis off the
+   * main thread, using a budget of 5 milliseconds per tick.
+   *
+   * @param world     The world to capture the chunks from.
+   * @param minChunkX The lowest chunk x coordinate, inclusive.
+   * @param minChunkZ The lowest chunk z coordinate, inclusive.
+   * @param maxChunkX The highest chunk x coordinate, inclusive.
+   * @param maxChunkZ The highest chunk z coordinate, inclusive.
+   * @return A result that resolves with the captured region.
+   * @throws IllegalArgumentException if the region is invalid.
+   */
+  public PendingResult<ChunkRegion> captureChunks(World world, int minChunkX, int minChunkZ, int maxChunkX,
+      int maxChunkZ) throws IllegalArgumentException {
+    return this.captureChunks(world, minChunkX, minChunkZ, maxChunkX, maxChunkZ, Integer.MIN_VALUE,
+        Integer.MAX_VALUE, 5, null);
+  }
+
+  /**
+   * Cancels all chunk captures that are still running.
+   * This is useful for cleaning up when the module is unloaded.
+   */
+  public void cancelAllChunkCaptures() {
+    synchronized (this.chunkCaptures) {
+      for (ChunkCapture capture : this.chunkCaptures) {
+        if (!capture.isDone()) {
+          capture.cancel();
+        }
+      }
+
+      this.chunkCaptures.clear();
+    }
+  }
+
+  /**
+   * Creates a named table of cooldowns or rate limits, keyed by player or
+   * entity, see {@link RateLimiter}. Event handlers and commands can be
+   * limited by it declaratively, so limited calls never reach the script.
+   *
+   * @param name         The name of the rate limiter.
+   * @param policy       The policy: "Cooldown", "FixedWindow" or
+   *                     "TokenBucket".
+   * @param limit        The actions allowed per period, ignored by cooldowns.
+   * @param periodMillis The period, in milliseconds.
+   * @return The rate limiter.
+   * @throws IllegalArgumentException if the name is taken, or the policy, limit
+   *                                  or period are invalid.
+   */
+  public RateLimiter createRateLimiter(String name, String policy, int limit, long periodMillis)
+      throws IllegalArgumentException {
+    RateLimitPolicy rateLimitPolicy;
+
+    try {
+      rateLimitPolicy = RateLimitPolicy.valueOf(policy);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid rate limit policy '" + policy + "'.");
+    }
+
+    RateLimiter rateLimiter = new RateLimiter(name, rateLimitPolicy, limit, periodMillis);
+
+    if (this.rateLimiters.putIfAbsent(name, rateLimiter) != null) {
+      throw new IllegalArgumentException("Rate limiter " + name + " already exists.");
+    }
+
+    return rateLimiter;
+  }
+
+  /**
+   * Gets a rate limiter created by the module.
+   *
+   * @param name The name of the rate limiter.
+   * @return The rate limiter.
+   * @throws IllegalArgumentException if the rate limiter does not exist.
+   */
+  public RateLimiter getRateLimiter(String name) throws IllegalArgumentException {
+    RateLimiter rateLimiter = this.rateLimiters.get(name);
+
+    if (rateLimiter == null) {
+      throw new IllegalArgumentException("Rate limiter " + name + " does not exist.");
+    }
+
+    return rateLimiter;
+  }
+
+  /**
+   * Registers a message template, parsed once from MiniMessage.
+   * The slots are tags of the template filled in on every send, e.g.
+   * "<gold>Welcome, <player>!" with the slot "player". Registering a template
+   * under a name that is already used replaces it.
+   *
+   * @param name        The name of the template.
+   * @param miniMessage The MiniMessage string.
+   * @param slots       The names of the slots, in the order their values are
+   *                    given when sending.
+   * @throws IllegalArgumentException if a slot name is invalid.
+   */
+  public void registerMessage(String name, String miniMessage, List<String> slots) throws IllegalArgumentException {
+    this.messageTemplates.put(name, new MessageTemplate(name, miniMessage, slots));
+  }
+
+  /**
+   * Registers a message template without slots, parsed once from MiniMessage.
+   *
+   * @param name        The name of the template.
+   * @param miniMessage The MiniMessage string.
+   */
+  public void registerMessage(String name, String miniMessage) {
+    this.registerMessage(name, miniMessage, List.of());
+  }
+
+  /**
+   * Unregisters a message template.
+   *
+   * @param name The name of the template.
+   */
+  public void unregisterMessage(String name) {
+    this.messageTemplates.remove(name);
+  }
+
+  /**
+   * Renders a message template, e.g. for a scoreboard line or a title.
+   *
+   * @param name   The name of the template.
+   * @param values The value of every slot, in the order of the slots. Strings
+   *               and numbers are inserted as plain text, components as they
+   *               are.
+   * @return The rendered component.
+   * @throws IllegalArgumentException if the template does not exist, or the
+   *                                  values do not match its slots.
+   */
+  public Component renderMessage(String name, List<Object> values) throws IllegalArgumentException {
+    MessageTemplate template = this.messageTemplates.get(name);
+
+    if (template == null) {
+      throw new IllegalArgumentException("Message " + name + " is not registered.");
+    }
+
+    return template.render(values);
+  }
+
+  /**
+   * Renders a message template and sends it as a chat message.
+   *
+   * @param name     The name of the template.
+   * @param audience The receiver, e.g. a player or a command sender.
+   * @param values   The value of every slot, in the order of the slots.
+   * @throws IllegalArgumentException if the template does not exist, or the
+   *                                  values do not match its slots.
+   */
+  public void sendMessage(String name, Audience audience, List<Object> values) throws IllegalArgumentException {
+    audience.sendMessage(this.renderMessage(name, values));
+  }
+
+  /**
+   * Renders a message template and shows it in the action bar.
+   *
+   * @param name     The name of the template.
+   * @param audience The receiver, e.g. a player.
+   * @param values   The value of every slot, in the order of the slots.
+   * @throws IllegalArgumentException if the template does not exist, or the
+   *                                  values do not match its slots.
+   */
+  public void sendActionBar(String name, Audience audience, List<Object> values) throws IllegalArgumentException {
+    audience.sendActionBar(this.renderMessage(name, values));
+  }
+
+  /**
+   * Renders a message template once and sends it as a chat message to every
+   * receiver.
+   *
+   * @param name      The name of the template.
+   * @param audiences The receivers, e.g. players.
+   * @param values    The value of every slot, in the order of the slots.
+   * @throws IllegalArgumentException if the template does not exist, or the
+   *                                  values do not match its slots.
+   */
+  public void broadcastMessage(String name, Collection<? extends Audience> audiences, List<Object> values)
+      throws IllegalArgumentException {
+    Component message = this.renderMessage(name, values);
+
+    for (Audience audience : audiences) {
+      audience.sendMessage(message);
+    }
+  }
+
+  /**
+   * Renders a message template once and shows it in the action bar of every
+   * receiver.
+   *
+   * @param name      The name of the template.
+   * @param audiences The receivers, e.g. players.
+   * @param values    The value of every slot, in the order of the slots.
+   * @throws IllegalArgumentException if the template does not exist, or the
+   *                                  values do not match its slots.
+   */
+  public void broadcastActionBar(String name, Collection<? extends Audience> audiences, List<Object> values)
+      throws IllegalArgumentException {
+    Component message = this.renderMessage(name, values);
+
+    for (Audience audience : audiences) {
+      audience.sendActionBar(message);
+    }
+  }
+
+  /**
+   * Gets the metrics of the module, shared by its shards and kept across
+   * reloads.
+   *
+   * @return The metrics of the module.
+   */
+  public synchronized Metrics getMetrics() {
+    if (this.metrics == null) {
+      this.metrics = Metrics.open(this.moduleName, this.plugin.getLogger());
+    }
+
+    return this.metrics;
+  }
+
+  /**
+   * Gets the persistent key-value store of the module, kept in the store folder
+   * of the module. The shards of a module share the same store.
+   * The store is loaded off the calling thread the first time, so opening a
+   * large store does not stall the main thread.
+   *
+   * @return A result that resolves with the key-value store once it is loaded,
+   *         or is rejected if it cannot be opened.
+   */
+  public synchronized PendingResult<KeyValueStore> getStore() {
+    // A store that failed to load, e.g. while another process held it, is
+    // opened again
+    if (this.store != null && this.store.hasFailed()) {
+      KeyValueStore.release(this.store);
+      this.store = null;
+    }
+
+    if (this.store == null) {
+      this.store = KeyValueStore.open(this.plugin.getDataFolder().toPath().resolve(this.moduleName).resolve("store"),
+          this.plugin.getLogger());
+    }
+
+    return this.store.whenLoaded();
+  }
+
+  /**
+   * Releases the key-value store of the module, committing its queued writes.
+   * This is called once the cleanup function of the module has run, so it may
+   * still write to the store.
+   */
+  synchronized void closeStore() {
+    if (this.store != null) {
+      KeyValueStore.release(this.store);
+      this.store = null;
+    }
+  }
+
+  /**
+   * Removes everything the module registered with the server and stops its
+   * work: commands, events, block mutations, chunk captures, regions and
+   * workers, logs the last summary of its errors and releases its metrics.
+   * This is called when the module is unloaded, before its cleanup function.
+   */
+  void close() {
+    this.unregisterAllCommands();
+    this.unregisterAllEvents();
+    this.cancelAllBlockMutations();
+    this.cancelAllChunkCaptures();
+    this.unregisterAllRegions();
+    this.shutdownWorkers();
+    this.errorReporter.close();
+
+    synchronized (this) {
+      if (this.metrics != null) {
+        Metrics.release(this.metrics);
+      }
+    }
+  }
+
+  /**
+   * Gets the tracker of the script values handed to the module's handlers.
+   *
+   * @return The resource tracker of the module.
+   */
+  ResourceTracker getResourceTracker() {
+    return this.resourceTracker;
+  }
+
+  /**
+   * Runs the work queued to the worker of the module. Called by the thread
+   * pumping the event loop of the module's runtime, between two turns.
+   *
+   * @param waitMillis How long to wait for work if there is none, in
+   *                   milliseconds.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  void runQueuedWork(long waitMillis) throws InterruptedException {
+    ModuleWorker worker = this.worker;
+
+    if (worker != null) {
+      worker.runPending(waitMillis);
+    } else if (waitMillis > 0) {
+      TimeUnit.MILLISECONDS.sleep(waitMillis);
+    }
+  }
+
+  /**
+   * Waits for the work queued to the worker to finish, then stops it.
+   * New work cannot be queued afterwards.
+   *
+   * @param timeoutMillis How long to wait for the queued work, in milliseconds.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  void drainWorker(long timeoutMillis) throws InterruptedException {
+    ModuleWorker worker;
+
+    synchronized (this) {
+      worker = this.worker;
+    }
+
+    if (worker != null) {
+      worker.drain(timeoutMillis);
+    }
+  }
+
+  /**
+   * Stops the worker and the main thread queue of the module.
+   * This is useful for cleaning up when the module is unloaded.
+   */
+  public synchronized void shutdownWorkers() {
+    if (this.worker != null) {
+      this.worker.shutdown();
+      this.worker = null;
+    }
+
+    this.mainThreadQueue.close();
+  }
+
+  /**
+   * Reads several properties of an object in a single call.
+   * Properties follow the same naming as the proxies, e.g. "name" reads
+   * getName(). The accessors are discovered once per class and shared by all
+   * modules, see {@link AccessorCache}.
+   *
+   * @param target     The object to read from.
+   * @param properties The names of the properties.
+   * @return The values of the properties, in the same order.
+   * @throws IllegalArgumentException if a property does not exist.
+   */
+  public Object[] read(Object target, List<String> properties) throws IllegalArgumentException {
+    Object[] values = new Object[properties.size()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = AccessorCache.get(target, properties.get(i));
+    }
+
+    return values;
+  }
+
+  /**
+   * Reads a numeric property of many objects in a single call.
+   *
+   * @param targets  The objects to read from.
+   * @param property The name of the property, e.g. "health".
+   * @return The values of the property, in the same order as the objects.
+   * @throws IllegalArgumentException if the property does not exist or is not
+   *                                  a number.
+   */
+  public double[] readNumbers(List<Object> targets, String property) throws IllegalArgumentException {
+    double[] values = new double[targets.size()];
+
+    for (int i = 0; i < values.length; i++) {
+      Object value = AccessorCache.get(targets.get(i), property);
+
+      if (!(value instanceof Number)) {
+        throw new IllegalArgumentException("Property '" + property + "' is not a number.");
+      }
+
+      values[i] = ((Number) value).doubleValue();
+    }
+
+    return values;
+  }
+
+  /**
+   * Writes a property of an object, e.g. "health" calls setHealth(value).
+   *
+   * @param target   The object to write to.
+   * @param property The name of the property.
+   * @param value    The value to write.
+   * @throws IllegalArgumentException if the property does not exist.
+   */
+  public void write(Object target, String property, Object value) throws IllegalArgumentException {
+    AccessorCache.set(target, property, value);
+  }
+
+  /**
+   * Sets the cache of the proxies of long-lived objects in the module's
+   * runtime.
+   *
+   * @param proxyIdentityCache The proxy identity cache of the runtime.
+   */
+  public void setProxyIdentityCache(ProxyIdentityCache proxyIdentityCache) {
+    this.proxyIdentityCache = proxyIdentityCache;
+  }
+
+  /**
+   * Gets the statistics of the proxy identity cache of the module's runtime.
+   *
+   * @return The number of hits, misses and cached proxies.
+   */
+  public Map<String, Long> getProxyCacheStats() {
+    if (this.proxyIdentityCache == null) {
+      return new HashMap<>();
+    }
+
+    return this.proxyIdentityCache.getStats();
   }
 }
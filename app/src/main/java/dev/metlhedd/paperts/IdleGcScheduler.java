@@ -0,0 +1,156 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.caoccao.javet.interop.V8Runtime;
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+
+/**
+ * IdleGcScheduler class handing the time left at the end of each server tick
+ * to the runtimes as V8 idle time, so their minor and incremental garbage
+ * collection work happens between ticks rather than in the middle of a
+ * handler.
+ * The slack is shared round-robin between the runtimes, and each runtime's
+ * GC pauses are counted in its {@link GcStats}.
+ */
+public class IdleGcScheduler implements Listener {
+  /**
+   * The part of the slack that is never handed out, in nanoseconds, so the
+   * next tick is not delayed.
+   */
+  private static final long SAFETY_MARGIN_NANOS = 1_000_000;
+
+  /**
+   * A runtime receiving idle time.
+   */
+  private static class Entry {
+    private final String name;
+    private final V8Runtime runtime;
+    private final GcStats stats;
+
+    Entry(String name, V8Runtime runtime, GcStats stats) {
+      this.name = name;
+      this.runtime = runtime;
+      this.stats = stats;
+    }
+  }
+
+  private JavaPlugin plugin;
+  private CopyOnWriteArrayList<Entry> entries;
+  /**
+   * The most idle time handed out per tick, in nanoseconds.
+   */
+  private long maxNanosPerTick;
+  /**
+   * The runtime that is served first on the next tick.
+   */
+  private int next;
+
+  /**
+   * Constructor for the IdleGcScheduler class.
+   *
+   * @param plugin The plugin instance, used for logging.
+   */
+  public IdleGcScheduler(JavaPlugin plugin) {
+    this.plugin = plugin;
+    this.entries = new CopyOnWriteArrayList<>();
+    this.maxNanosPerTick = 10_000_000;
+  }
+
+  /**
+   * Sets the most idle time handed out per tick, across all runtimes.
+   *
+   * @param maxMillisPerTick The most idle time per tick, in milliseconds.
+   */
+  public void setMaxMillisPerTick(long maxMillisPerTick) {
+    this.maxNanosPerTick = maxMillisPerTick * 1_000_000;
+  }
+
+  /**
+   * Registers a runtime to receive idle time.
+   *
+   * @param name    The name of the runtime, usually its module.
+   * @param runtime The runtime.
+   * @return The GC statistics of the runtime.
+   */
+  public GcStats register(String name, V8Runtime runtime) {
+    GcStats stats = new GcStats();
+
+    this.entries.add(new Entry(name, runtime, stats));
+
+    return stats;
+  }
+
+  /**
+   * Stops handing idle time to a runtime.
+   * This must be called before the runtime is closed.
+   *
+   * @param runtime The runtime.
+   */
+  public void unregister(V8Runtime runtime) {
+    this.entries.removeIf(entry -> entry.runtime == runtime);
+  }
+
+  /**
+   * Gets the GC statistics of the registered runtimes.
+   *
+   * @return The statistics, by runtime name.
+   */
+  public Map<String, GcStats> getStats() {
+    LinkedHashMap<String, GcStats> stats = new LinkedHashMap<>();
+
+    for (Entry entry : this.entries) {
+      stats.put(entry.name, entry.stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   * Hands the slack of the tick that just ended to the runtimes.
+   *
+   * @param event The tick end event.
+   */
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onServerTickEnd(ServerTickEndEvent event) {
+    long slackNanos = Math.min(event.getTimeRemaining() - SAFETY_MARGIN_NANOS, this.maxNanosPerTick);
+    ArrayList<Entry> runtimes = new ArrayList<>(this.entries);
+
+    if (slackNanos <= 0 || runtimes.isEmpty()) {
+      return;
+    }
+
+    long endNanos = System.nanoTime() + slackNanos;
+    int first = Math.floorMod(this.next++, runtimes.size());
+
+    for (int i = 0; i < runtimes.size(); i++) {
+      Entry entry = runtimes.get((first + i) % runtimes.size());
+      long startNanos = System.nanoTime();
+
+      if (startNanos >= endNanos) {
+        break;
+      }
+
+      if (entry.runtime.isClosed()) {
+        continue;
+      }
+
+      try {
+        // V8 expects an absolute deadline on the monotonic clock, which is
+        // the one System.nanoTime() reads
+        entry.runtime.idleNotificationDeadline(endNanos / 1_000_000);
+        entry.stats.recordIdle(System.nanoTime() - startNanos);
+      } catch (Exception e) {
+        this.plugin.getLogger().warning("Failed to hand idle time to " + entry.name + ": " + e.getMessage());
+      }
+    }
+  }
+}
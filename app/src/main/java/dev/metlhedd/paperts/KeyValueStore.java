@@ -0,0 +1,816 @@
+package dev.metlhedd.paperts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * KeyValueStore class for the persistent state of a module, kept in the store
+ * folder of the module.
+ * The store is an append-only log split in fixed-size segment files, which are
+ * memory-mapped, so reads are served from the page cache without a system
+ * call. An in-memory index maps every key to its latest record.
+ *
+ * The store is opened on its background thread, since replaying the segments
+ * takes a while for a large store, and handed out once it is loaded.
+ * Writes never block the caller: they are visible to reads right away, and
+ * appended by a background thread, which commits everything queued at once
+ * with a single flush to disk. The result of a write resolves once it is on
+ * disk. Every record carries a checksum, so after a crash the log is replayed
+ * up to the last complete record. The same thread periodically compacts the
+ * log, copying the live records out of the older segments and deleting them.
+ */
+public class KeyValueStore {
+  /**
+   * The longest key, in UTF-8 bytes.
+   */
+  public static final int MAX_KEY_BYTES = 1024;
+  /**
+   * The largest value, in bytes.
+   */
+  public static final int MAX_VALUE_BYTES = 1024 * 1024;
+
+  private static final int MAGIC = 0x50545356;
+  private static final int VERSION = 1;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  /**
+   * The size of a segment file. Segments are sparse files, so the unused end
+   * of the active segment takes no disk space.
+   */
+  private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+  /**
+   * The checksum, key length, value length and kind of a record.
+   */
+  private static final int RECORD_HEADER_SIZE = 13;
+  private static final byte PUT = 0;
+  private static final byte DELETE = 1;
+  /**
+   * The most writes committed together.
+   */
+  private static final int MAX_BATCH = 4096;
+  /**
+   * The least garbage, in bytes, worth compacting.
+   */
+  private static final long MIN_GARBAGE_BYTES = 4 * 1024 * 1024;
+  private static final int PAGE_SIZE = 4096;
+
+  /**
+   * How often the log is checked for compaction, in milliseconds, shared by
+   * every store.
+   */
+  private static volatile long compactionIntervalMillis = 300_000;
+
+  /**
+   * The open stores, by folder, shared by the shards and the versions of a
+   * module running side by side while it reloads.
+   */
+  private static final HashMap<Path, KeyValueStore> OPEN_STORES = new HashMap<>();
+
+  private Path directory;
+  private Logger logger;
+  private int references;
+  private FileChannel lockChannel;
+  private FileLock lock;
+  /**
+   * The segments, oldest first. Only touched by the writer thread once the
+   * store is open.
+   */
+  private ArrayList<Segment> segments;
+  private Segment active;
+  /**
+   * The latest record of every key that is set.
+   */
+  private ConcurrentHashMap<String, Location> index;
+  /**
+   * The latest write of every key that is not committed yet.
+   */
+  private ConcurrentHashMap<String, Write> pending;
+  private LinkedBlockingQueue<Write> queue;
+  private Thread writer;
+  /**
+   * Resolved with the store once its segments are replayed.
+   */
+  private PendingResult<KeyValueStore> loaded;
+  private volatile boolean failed;
+  private volatile boolean closed;
+
+  private KeyValueStore(Path directory, Logger logger) {
+    this.directory = directory;
+    this.logger = logger;
+    this.segments = new ArrayList<>();
+    this.index = new ConcurrentHashMap<>();
+    this.pending = new ConcurrentHashMap<>();
+    this.queue = new LinkedBlockingQueue<>();
+    this.loaded = new PendingResult<>();
+  }
+
+  /**
+   * Sets how often the stores are checked for compaction.
+   *
+   * @param seconds The interval between checks, in seconds.
+   */
+  public static void setCompactionIntervalSeconds(long seconds) {
+    compactionIntervalMillis = Math.max(1, seconds) * 1000;
+  }
+
+  /**
+   * Opens the store in a folder, or takes another reference to it if it is
+   * already open. Every call must be paired with {@link #release}.
+   * The store is loaded on its background thread, it can be used once
+   * {@link #whenLoaded()} resolves.
+   *
+   * @param directory The folder of the store, created if needed.
+   * @param logger    The logger reporting failed writes.
+   * @return The store, possibly still loading.
+   */
+  public static synchronized KeyValueStore open(Path directory, Logger logger) {
+    Path key = directory.toAbsolutePath().normalize();
+    KeyValueStore store = OPEN_STORES.get(key);
+
+    if (store == null) {
+      store = new KeyValueStore(key, logger);
+      store.writer = new Thread(store::run, "PaperTS store " + key.getParent().getFileName());
+      store.writer.setDaemon(true);
+      store.writer.start();
+      OPEN_STORES.put(key, store);
+    }
+
+    store.references++;
+
+    return store;
+  }
+
+  /**
+   * Gets the result of loading the store.
+   *
+   * @return A result that resolves with the store once it is loaded, or is
+   *         rejected if it cannot be read or is used by another process.
+   */
+  public PendingResult<KeyValueStore> whenLoaded() {
+    return this.loaded;
+  }
+
+  /**
+   * Checks if the store failed to load.
+   *
+   * @return true if the store failed to load.
+   */
+  public boolean hasFailed() {
+    return this.failed;
+  }
+
+  /**
+   * Releases a reference to a store. The last one commits the queued writes
+   * and closes the store.
+   *
+   * @param store The store.
+   */
+  public static void release(KeyValueStore store) {
+    synchronized (KeyValueStore.class) {
+      if (--store.references > 0) {
+        return;
+      }
+
+      OPEN_STORES.remove(store.directory, store);
+    }
+
+    store.close();
+  }
+
+  /**
+   * Gets a value as a string.
+   *
+   * @param key The key.
+   * @return The value decoded as UTF-8, or null if the key is not set.
+   */
+  public String getString(String key) {
+    byte[] value = this.read(key);
+
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets a value as bytes.
+   *
+   * @param key The key.
+   * @return The value, typically an Int8Array, or null if the key is not set.
+   */
+  public byte[] getBytes(String key) {
+    return this.read(key);
+  }
+
+  /**
+   * Checks if a key is set.
+   *
+   * @param key The key.
+   * @return true if the key is set.
+   */
+  public boolean has(String key) {
+    Write write = this.pending.get(key);
+
+    return write != null ? write.kind == PUT : this.index.containsKey(key);
+  }
+
+  /**
+   * Gets the keys starting with a prefix.
+   *
+   * @param prefix The prefix, or an empty string for every key.
+   * @return The keys, in no particular order.
+   */
+  public List<String> keys(String prefix) {
+    HashSet<String> keys = new HashSet<>();
+
+    for (String key : this.index.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+
+    for (Write write : this.pending.values()) {
+      if (write.key.startsWith(prefix)) {
+        if (write.kind == PUT) {
+          keys.add(write.key);
+        } else {
+          keys.remove(write.key);
+        }
+      }
+    }
+
+    return new ArrayList<>(keys);
+  }
+
+  /**
+   * Sets a key to a string.
+   *
+   * @param key   The key.
+   * @param value The value, stored as UTF-8.
+   * @return A result that resolves once the value is on disk.
+   * @throws IllegalArgumentException if the key or the value are invalid.
+   * @throws IllegalStateException    if the store is closed.
+   */
+  public PendingResult<Void> putString(String key, String value)
+      throws IllegalArgumentException, IllegalStateException {
+    if (value == null) {
+      throw new IllegalArgumentException("Value cannot be null, use delete instead.");
+    }
+
+    return this.enqueue(key, PUT, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Sets a key to bytes.
+   *
+   * @param key   The key.
+   * @param value The value, typically a Uint8Array.
+   * @return A result that resolves once the value is on disk.
+   * @throws IllegalArgumentException if the key or the value are invalid.
+   * @throws IllegalStateException    if the store is closed.
+   */
+  public PendingResult<Void> putBytes(String key, byte[] value)
+      throws IllegalArgumentException, IllegalStateException {
+    if (value == null) {
+      throw new IllegalArgumentException("Value cannot be null, use delete instead.");
+    }
+
+    return this.enqueue(key, PUT, value.clone());
+  }
+
+  /**
+   * Deletes a key.
+   *
+   * @param key The key.
+   * @return A result that resolves once the deletion is on disk.
+   * @throws IllegalArgumentException if the key is invalid.
+   * @throws IllegalStateException    if the store is closed.
+   */
+  public PendingResult<Void> delete(String key) throws IllegalArgumentException, IllegalStateException {
+    return this.enqueue(key, DELETE, new byte[0]);
+  }
+
+  private byte[] read(String key) {
+    Write write = this.pending.get(key);
+
+    if (write != null) {
+      return write.kind == PUT ? write.value.clone() : null;
+    }
+
+    Location location = this.index.get(key);
+
+    if (location == null) {
+      return null;
+    }
+
+    byte[] value = new byte[location.valueLength];
+    location.segment.buffer.get(location.valueOffset, value);
+
+    return value;
+  }
+
+  private PendingResult<Void> enqueue(String key, byte kind, byte[] value)
+      throws IllegalArgumentException, IllegalStateException {
+    if (key == null || key.isEmpty()) {
+      throw new IllegalArgumentException("Key cannot be empty.");
+    }
+
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+    if (keyBytes.length > MAX_KEY_BYTES) {
+      throw new IllegalArgumentException("Key cannot be longer than " + MAX_KEY_BYTES + " bytes.");
+    }
+
+    if (value.length > MAX_VALUE_BYTES) {
+      throw new IllegalArgumentException("Value cannot be larger than " + MAX_VALUE_BYTES + " bytes.");
+    }
+
+    if (this.closed) {
+      throw new IllegalStateException("The store is closed.");
+    }
+
+    Write write = new Write(key, keyBytes, kind, value);
+
+    this.pending.put(key, write);
+    this.queue.add(write);
+
+    return write.result;
+  }
+
+  /**
+   * Locks the folder and replays the segments into the index.
+   *
+   * @throws IOException if the store cannot be read, or is used by another
+   *                     process.
+   */
+  private void load() throws IOException {
+    Files.createDirectories(this.directory);
+
+    this.lockChannel = FileChannel.open(this.directory.resolve("LOCK"), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    this.lock = this.lockChannel.tryLock();
+
+    if (this.lock == null) {
+      this.lockChannel.close();
+      throw new IOException("Store " + this.directory + " is used by another process.");
+    }
+
+    try {
+      ArrayList<Integer> ids = new ArrayList<>();
+      File[] files = this.directory.toFile().listFiles();
+
+      for (File file : files == null ? new File[0] : files) {
+        String name = file.getName();
+
+        if (name.matches("\\d{8}\\.log")) {
+          ids.add(Integer.parseInt(name.substring(0, 8)));
+        }
+      }
+
+      ids.sort(null);
+
+      for (int id : ids) {
+        Segment segment = this.openSegment(id);
+
+        this.segments.add(segment);
+        this.replay(segment);
+      }
+
+      if (this.segments.isEmpty()) {
+        this.segments.add(this.openSegment(1));
+      }
+
+      this.active = this.segments.get(this.segments.size() - 1);
+      this.clearTail(this.active);
+    } catch (IOException | RuntimeException e) {
+      this.closeFiles();
+      throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Runs the background thread of the store: loads it, then commits the
+   * queued writes until it is closed. A store that fails to load is closed
+   * right away, and forgotten so it can be opened again.
+   */
+  private void run() {
+    try {
+      this.load();
+    } catch (IOException e) {
+      this.failed = true;
+      this.closed = true;
+
+      synchronized (KeyValueStore.class) {
+        OPEN_STORES.remove(this.directory, this);
+      }
+
+      this.logger.severe("Failed to open store " + this.directory + ": " + e.getMessage());
+      this.loaded.reject("Failed to open store: " + e.getMessage());
+
+      return;
+    }
+
+    this.loaded.resolve(this);
+    this.write();
+  }
+
+  private Segment openSegment(int id) throws IOException {
+    File file = this.directory.resolve(String.format("%08d.log", id)).toFile();
+
+    try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+      if (access.length() < SEGMENT_SIZE) {
+        access.setLength(SEGMENT_SIZE);
+      }
+
+      MappedByteBuffer buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+      Segment segment = new Segment(id, file, buffer);
+      int magic = buffer.getInt(0);
+
+      if (magic == 0) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.force();
+      } else if (magic != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("File " + file + " is not a segment of a PaperTS store.");
+      }
+
+      return segment;
+    }
+  }
+
+  /**
+   * Applies the records of a segment to the index, up to the first incomplete
+   * or corrupted record, where the segment ends.
+   *
+   * @param segment The segment.
+   */
+  private void replay(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    int position = SEGMENT_HEADER_SIZE;
+    CRC32 crc = new CRC32();
+
+    while (position + RECORD_HEADER_SIZE <= SEGMENT_SIZE) {
+      int checksum = buffer.getInt(position);
+      int keyLength = buffer.getInt(position + 4);
+      int valueLength = buffer.getInt(position + 8);
+      byte kind = buffer.get(position + 12);
+
+      if (keyLength <= 0 || keyLength > MAX_KEY_BYTES || valueLength < 0 || valueLength > MAX_VALUE_BYTES
+          || (kind != PUT && kind != DELETE)) {
+        break;
+      }
+
+      int length = RECORD_HEADER_SIZE + keyLength + valueLength;
+
+      if (position + length > SEGMENT_SIZE) {
+        break;
+      }
+
+      byte[] record = new byte[length - 4];
+      buffer.get(position + 4, record);
+      crc.reset();
+      crc.update(record);
+
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+
+      String key = new String(record, RECORD_HEADER_SIZE - 4, keyLength, StandardCharsets.UTF_8);
+
+      this.apply(key, kind, new Location(segment, length, position + RECORD_HEADER_SIZE + keyLength, valueLength));
+      position += length;
+    }
+
+    segment.end = position;
+  }
+
+  /**
+   * Zeroes whatever follows the last record of the active segment, so a record
+   * torn by a crash cannot be mistaken for a valid one once new records are
+   * appended in front of it. Pages that were never written are left alone, so
+   * the file stays sparse.
+   *
+   * @param segment The active segment.
+   */
+  private void clearTail(Segment segment) {
+    byte[] page = new byte[PAGE_SIZE];
+    byte[] zeros = new byte[PAGE_SIZE];
+    boolean cleared = false;
+
+    int position = segment.end;
+
+    while (position < SEGMENT_SIZE) {
+      int length = Math.min(PAGE_SIZE - position % PAGE_SIZE, SEGMENT_SIZE - position);
+
+      segment.buffer.get(position, page, 0, length);
+
+      for (int i = 0; i < length; i++) {
+        if (page[i] != 0) {
+          segment.buffer.put(position, zeros, 0, length);
+          cleared = true;
+          break;
+        }
+      }
+
+      position += length;
+    }
+
+    if (cleared) {
+      segment.buffer.force();
+    }
+  }
+
+  /**
+   * Points a key to its latest record, keeping track of the live bytes of
+   * every segment.
+   */
+  private void apply(String key, byte kind, Location location) {
+    Location previous = kind == PUT ? this.index.put(key, location) : this.index.remove(key);
+
+    if (previous != null) {
+      previous.segment.liveBytes -= previous.length;
+    }
+
+    if (kind == PUT) {
+      location.segment.liveBytes += location.length;
+    }
+  }
+
+  /**
+   * Runs the writer thread: commits the queued writes in batches and compacts
+   * the log every so often, until the store is closed.
+   */
+  private void write() {
+    ArrayList<Write> batch = new ArrayList<>();
+    long nextCompaction = System.currentTimeMillis() + compactionIntervalMillis;
+
+    while (true) {
+      Write first;
+
+      try {
+        first = this.queue.poll(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        first = null;
+      }
+
+      if (first != null) {
+        batch.add(first);
+        this.queue.drainTo(batch, MAX_BATCH - 1);
+        this.commit(batch);
+        batch.clear();
+      } else if (this.closed) {
+        break;
+      }
+
+      if (System.currentTimeMillis() >= nextCompaction) {
+        try {
+          this.compact();
+        } catch (IOException | RuntimeException e) {
+          this.logger.log(Level.SEVERE, "Failed to compact store " + this.directory + ": " + e.getMessage(), e);
+        }
+
+        nextCompaction = System.currentTimeMillis() + compactionIntervalMillis;
+      }
+    }
+  }
+
+  /**
+   * Appends a batch of writes and flushes them to disk at once, then applies
+   * them to the index and resolves their results.
+   *
+   * @param batch The writes.
+   */
+  private void commit(List<Write> batch) {
+    ArrayList<Location> locations = new ArrayList<>(batch.size());
+
+    try {
+      HashSet<Segment> touched = new HashSet<>();
+
+      for (Write write : batch) {
+        Location location = this.append(write.keyBytes, write.kind, write.value);
+
+        locations.add(location);
+        touched.add(location.segment);
+      }
+
+      for (Segment segment : touched) {
+        segment.buffer.force();
+      }
+    } catch (IOException | RuntimeException e) {
+      this.logger.log(Level.SEVERE, "Failed to write to store " + this.directory + ": " + e.getMessage(), e);
+
+      for (Write write : batch) {
+        this.pending.remove(write.key, write);
+        write.result.reject("Failed to write to the store: " + e.getMessage());
+      }
+
+      return;
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      Write write = batch.get(i);
+
+      this.apply(write.key, write.kind, locations.get(i));
+      this.pending.remove(write.key, write);
+    }
+
+    for (Write write : batch) {
+      write.result.resolve(null);
+    }
+  }
+
+  /**
+   * Appends a record to the active segment, starting a new segment when it is
+   * full.
+   *
+   * @return The location of the record.
+   * @throws IOException if a new segment cannot be created.
+   */
+  private Location append(byte[] key, byte kind, byte[] value) throws IOException {
+    int length = RECORD_HEADER_SIZE + key.length + value.length;
+
+    if (this.active.end + length > SEGMENT_SIZE) {
+      this.active = this.openSegment(this.active.id + 1);
+      this.segments.add(this.active);
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(length);
+    CRC32 crc = new CRC32();
+
+    record.putInt(0).putInt(key.length).putInt(value.length).put(kind).put(key).put(value);
+    crc.update(record.array(), 4, length - 4);
+    record.putInt(0, (int) crc.getValue());
+
+    int position = this.active.end;
+
+    this.active.buffer.put(position, record.array());
+    this.active.end += length;
+
+    return new Location(this.active, length, position + RECORD_HEADER_SIZE + key.length, value.length);
+  }
+
+  /**
+   * Copies the live records of the older segments to the active one, then
+   * deletes them, if they hold enough garbage.
+   * The copies are on disk before the first segment is deleted, and segments
+   * are deleted oldest first, so a crash at any point never brings back a
+   * value that was overwritten or deleted.
+   *
+   * @throws IOException if the records cannot be copied.
+   */
+  private void compact() throws IOException {
+    List<Segment> sealed = new ArrayList<>(this.segments.subList(0, this.segments.size() - 1));
+    long total = 0;
+    long live = 0;
+
+    for (Segment segment : sealed) {
+      total += segment.end - SEGMENT_HEADER_SIZE;
+      live += segment.liveBytes;
+    }
+
+    if (sealed.isEmpty() || total - live < Math.max(total / 2, MIN_GARBAGE_BYTES)) {
+      return;
+    }
+
+    HashSet<Segment> compacted = new HashSet<>(sealed);
+    HashSet<Segment> touched = new HashSet<>();
+
+    for (Map.Entry<String, Location> entry : this.index.entrySet()) {
+      Location location = entry.getValue();
+
+      if (compacted.contains(location.segment)) {
+        byte[] value = new byte[location.valueLength];
+        location.segment.buffer.get(location.valueOffset, value);
+
+        Location copy = this.append(entry.getKey().getBytes(StandardCharsets.UTF_8), PUT, value);
+
+        this.apply(entry.getKey(), PUT, copy);
+        touched.add(copy.segment);
+      }
+    }
+
+    for (Segment segment : touched) {
+      segment.buffer.force();
+    }
+
+    for (Segment segment : sealed) {
+      this.segments.remove(segment);
+      Files.deleteIfExists(segment.file.toPath());
+    }
+
+    this.logger.info("Compacted store " + this.directory + ", reclaimed " + (total - live) / 1024 + " KiB.");
+  }
+
+  /**
+   * Commits the queued writes and closes the store.
+   */
+  private void close() {
+    this.closed = true;
+
+    try {
+      this.writer.join(TimeUnit.SECONDS.toMillis(30));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (Write write : this.queue) {
+      write.result.reject("The store was closed.");
+    }
+
+    this.queue.clear();
+    this.closeFiles();
+  }
+
+  private void closeFiles() {
+    if (this.lockChannel == null || !this.lockChannel.isOpen()) {
+      return;
+    }
+
+    try {
+      if (this.lock != null) {
+        this.lock.release();
+      }
+
+      this.lockChannel.close();
+    } catch (IOException e) {
+      this.logger.warning("Failed to unlock store " + this.directory + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * A segment file of the log, mapped into memory for its whole size.
+   */
+  private static class Segment {
+    private int id;
+    private File file;
+    private MappedByteBuffer buffer;
+    /**
+     * Where the next record is appended.
+     */
+    private int end;
+    /**
+     * The bytes of the records the index points to.
+     */
+    private long liveBytes;
+
+    private Segment(int id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+      // A new segment is appended to right after its header
+      this.end = SEGMENT_HEADER_SIZE;
+    }
+  }
+
+  /**
+   * Where the value of a key is stored.
+   */
+  private static class Location {
+    private Segment segment;
+    private int length;
+    private int valueOffset;
+    private int valueLength;
+
+    private Location(Segment segment, int length, int valueOffset, int valueLength) {
+      this.segment = segment;
+      this.length = length;
+      this.valueOffset = valueOffset;
+      this.valueLength = valueLength;
+    }
+  }
+
+  /**
+   * A write waiting to be committed.
+   */
+  private static class Write {
+    private String key;
+    private byte[] keyBytes;
+    private byte kind;
+    private byte[] value;
+    private PendingResult<Void> result;
+
+    private Write(String key, byte[] keyBytes, byte kind, byte[] value) {
+      this.key = key;
+      this.keyBytes = keyBytes;
+      this.kind = kind;
+      this.value = value;
+      this.result = new PendingResult<>();
+    }
+  }
+}
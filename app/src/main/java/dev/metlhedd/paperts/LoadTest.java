@@ -0,0 +1,401 @@
+package dev.metlhedd.paperts;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import io.papermc.paper.chat.ChatRenderer;
+import io.papermc.paper.event.player.AsyncChatEvent;
+import net.kyori.adventure.chat.SignedMessage;
+import net.kyori.adventure.text.Component;
+
+/**
+ * LoadTest class measuring the cost of a module's handlers on the server
+ * thread, by firing the traffic of virtual players at it at 20 ticks per
+ * second. The traffic is either generated, with a mix of joins, moves, chat,
+ * interactions and commands close to that of real players, or replayed from a
+ * {@link TrafficLog}.
+ *
+ * The events are handed to the module's handlers directly, so other plugins
+ * and the worlds never see them, but the handlers still run for real. Load
+ * tests are meant to run offline, against a simulated server, with the
+ * loadTest task of the build; the /paperts loadtest command runs the same test
+ * inside a server, which should then be a staging one.
+ *
+ * The report gives the time spent in the handlers per tick, their p50 and p99
+ * latency, and the rate the server thread allocated at while running them.
+ */
+public class LoadTest {
+  /**
+   * The time budget of a tick, in nanoseconds.
+   */
+  private static final long TICK_NANOS = 50_000_000;
+
+  /**
+   * Provides the traffic of each tick.
+   */
+  public interface Source {
+    /**
+     * Gets the traffic of the next tick.
+     *
+     * @return The records of the tick, or null once the traffic is over.
+     * @throws IOException if the traffic cannot be read.
+     */
+    List<TrafficLog.Record> nextTick() throws IOException;
+
+    /**
+     * Releases the source.
+     */
+    default void close() {
+    }
+  }
+
+  /**
+   * Generates the traffic of virtual players: they join one per tick, walk
+   * around their spawn, now and then chat, interact or run one of the module's
+   * commands, and quit at the end.
+   */
+  private static class Generator implements Source {
+    private static final double MOVE_CHANCE = 0.5;
+    private static final double INTERACT_CHANCE = 0.01;
+    private static final double CHAT_CHANCE = 0.001;
+    private static final double COMMAND_CHANCE = 0.0005;
+    private static final String[] MESSAGES = { "hi", "hello everyone", "gg", "where is spawn?", "lol",
+        "anyone want to trade?", "brb", "how do I get to the nether" };
+
+    private int players;
+    private int ticks;
+    private List<String> commands;
+    private SplittableRandom random;
+    private double[][] positions;
+    private int tick;
+
+    Generator(int players, int seconds, Set<String> commands, Location spawn, long seed) {
+      this.players = players;
+      this.ticks = Math.max(seconds * 20, players + 1);
+      this.commands = new ArrayList<>(commands);
+      this.random = new SplittableRandom(seed);
+      this.positions = new double[players][];
+
+      for (int i = 0; i < players; i++) {
+        this.positions[i] = new double[] { spawn.getX(), spawn.getY(), spawn.getZ(), 0 };
+      }
+    }
+
+    @Override
+    public List<TrafficLog.Record> nextTick() {
+      if (this.tick > this.ticks) {
+        return null;
+      }
+
+      ArrayList<TrafficLog.Record> records = new ArrayList<>();
+      int joined = Math.min(this.tick, this.players);
+
+      if (this.tick == this.ticks) {
+        for (int i = 0; i < this.players; i++) {
+          records.add(new TrafficLog.Record(this.tick, TrafficKind.Quit, i, 0, 0, 0, 0, 0, null, 0));
+        }
+      } else if (this.tick < this.players) {
+        records.add(new TrafficLog.Record(this.tick, TrafficKind.Join, this.tick, 0, 0, 0, 0, 0, null, 0));
+      }
+
+      for (int i = 0; i < joined && this.tick < this.ticks; i++) {
+        double[] position = this.positions[i];
+
+        if (this.random.nextDouble() < MOVE_CHANCE) {
+          // Walk at about 4 blocks per second, turning a little every step
+          position[3] += this.random.nextDouble(-20, 20);
+          position[0] -= Math.sin(Math.toRadians(position[3])) * 0.2;
+          position[2] += Math.cos(Math.toRadians(position[3])) * 0.2;
+          records.add(new TrafficLog.Record(this.tick, TrafficKind.Move, i, position[0], position[1], position[2],
+              (float) position[3], 0, null, 0));
+        }
+
+        if (this.random.nextDouble() < INTERACT_CHANCE) {
+          records.add(new TrafficLog.Record(this.tick, TrafficKind.Interact, i, Math.floor(position[0]),
+              Math.floor(position[1]) - 1, Math.floor(position[2]), 0, 0, null,
+              this.random.nextBoolean() ? Action.RIGHT_CLICK_BLOCK.ordinal() : Action.LEFT_CLICK_AIR.ordinal()));
+        }
+
+        if (this.random.nextDouble() < CHAT_CHANCE) {
+          records.add(new TrafficLog.Record(this.tick, TrafficKind.Chat, i, 0, 0, 0, 0, 0,
+              MESSAGES[this.random.nextInt(MESSAGES.length)], 0));
+        }
+
+        if (!this.commands.isEmpty() && this.random.nextDouble() < COMMAND_CHANCE) {
+          records.add(new TrafficLog.Record(this.tick, TrafficKind.Command, i, 0, 0, 0, 0, 0,
+              this.commands.get(this.random.nextInt(this.commands.size())), 0));
+        }
+      }
+
+      this.tick++;
+
+      return records;
+    }
+  }
+
+  private JavaPlugin plugin;
+  private String moduleName;
+  private Globals globals;
+  private Source source;
+  private World world;
+  private HashMap<Integer, VirtualPlayer> players;
+  private com.sun.management.ThreadMXBean threadBean;
+  private PendingResult<String> result;
+  private Schedulers.Task task;
+
+  private long[] latencies;
+  private int latencyCount;
+  private int ticks;
+  private long totalNanos;
+  private long maxTickNanos;
+  private int ticksOverBudget;
+  private long allocatedBytes;
+  private long unhandled;
+
+  /**
+   * Constructor for the LoadTest class.
+   *
+   * @param plugin     The plugin instance, used for scheduling.
+   * @param moduleName The name of the module under test.
+   * @param globals    The globals of the module under test.
+   * @param source     The traffic to fire at the module.
+   * @param world      The world the virtual players are in.
+   */
+  public LoadTest(JavaPlugin plugin, String moduleName, Globals globals, Source source, World world) {
+    this.plugin = plugin;
+    this.moduleName = moduleName;
+    this.globals = globals;
+    this.source = source;
+    this.world = world;
+    this.players = new HashMap<>();
+    this.threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    this.result = new PendingResult<>();
+    this.latencies = new long[4096];
+  }
+
+  /**
+   * Creates a source generating the traffic of virtual players.
+   *
+   * @param globals The globals of the module under test, whose commands are
+   *                used.
+   * @param spawn   The location the virtual players join at.
+   * @param players The number of virtual players.
+   * @param seconds The duration of the test, in seconds.
+   * @return The source.
+   */
+  public static Source generate(Globals globals, Location spawn, int players, int seconds) {
+    return new Generator(players, seconds, globals.getCommandNames(), spawn, players * 31L + seconds);
+  }
+
+  /**
+   * Creates a source replaying a traffic log.
+   *
+   * @param file The log file.
+   * @return The source.
+   * @throws IOException if the log cannot be opened.
+   */
+  public static Source replay(File file) throws IOException {
+    TrafficLog.Reader reader = new TrafficLog.Reader(file);
+
+    return new Source() {
+      @Override
+      public List<TrafficLog.Record> nextTick() throws IOException {
+        return reader.nextTick();
+      }
+
+      @Override
+      public void close() {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // Just ignore close errors
+        }
+      }
+    };
+  }
+
+  /**
+   * Starts the test, on the next tick.
+   *
+   * @return A pending result, resolved with the report once the traffic is
+   *         over.
+   */
+  public PendingResult<String> start() {
+    this.task = Schedulers.runTimer(this.plugin, this::tick, 1L, 1L);
+
+    return this.result;
+  }
+
+  /**
+   * Gets the name of the module under test.
+   *
+   * @return The name of the module.
+   */
+  public String getModuleName() {
+    return this.moduleName;
+  }
+
+  /**
+   * Stops the test before the traffic is over.
+   */
+  public void cancel() {
+    if (this.task != null) {
+      this.task.cancel();
+    }
+
+    this.source.close();
+    this.result.reject("The load test was cancelled.");
+  }
+
+  private void tick() {
+    List<TrafficLog.Record> records;
+
+    try {
+      records = this.source.nextTick();
+    } catch (IOException e) {
+      this.task.cancel();
+      this.source.close();
+      this.result.reject("Failed to read the traffic: " + e.getMessage());
+      return;
+    }
+
+    if (records == null) {
+      this.task.cancel();
+      this.source.close();
+      this.result.resolve(this.report());
+      return;
+    }
+
+    long allocatedBefore = this.threadBean.getCurrentThreadAllocatedBytes();
+    long tickNanos = 0;
+
+    for (TrafficLog.Record record : records) {
+      long start = System.nanoTime();
+
+      if (this.dispatch(record)) {
+        long latency = System.nanoTime() - start;
+
+        tickNanos += latency;
+
+        if (this.latencyCount == this.latencies.length) {
+          this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+        }
+
+        this.latencies[this.latencyCount++] = latency;
+      } else {
+        this.unhandled++;
+      }
+    }
+
+    this.allocatedBytes += this.threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+    this.ticks++;
+    this.totalNanos += tickNanos;
+    this.maxTickNanos = Math.max(this.maxTickNanos, tickNanos);
+
+    if (tickNanos > TICK_NANOS) {
+      this.ticksOverBudget++;
+    }
+  }
+
+  /**
+   * Fires a record at the module.
+   *
+   * @param record The record.
+   * @return true if the module handled it, false otherwise.
+   */
+  private boolean dispatch(TrafficLog.Record record) {
+    VirtualPlayer player = this.players.get(record.getPlayer());
+
+    if (player == null) {
+      // Replays may start with players that were already online
+      player = new VirtualPlayer(record.getPlayer(), this.world.getSpawnLocation());
+      this.players.put(record.getPlayer(), player);
+    }
+
+    switch (record.getKind()) {
+      case Join:
+        return this.globals.dispatchEvent(new PlayerJoinEvent(player.getPlayer(),
+            Component.text(player.getPlayer().getName() + " joined the game")));
+      case Quit:
+        this.players.remove(record.getPlayer());
+
+        return this.globals.dispatchEvent(new PlayerQuitEvent(player.getPlayer(),
+            Component.text(player.getPlayer().getName() + " left the game"),
+            PlayerQuitEvent.QuitReason.DISCONNECTED));
+      case Move:
+        Location to = new Location(this.world, record.getX(), record.getY(), record.getZ(), record.getYaw(),
+            record.getPitch());
+        PlayerMoveEvent moveEvent = new PlayerMoveEvent(player.getPlayer(), player.getLocation(), to);
+        boolean handled = this.globals.dispatchEvent(moveEvent);
+
+        if (!moveEvent.isCancelled()) {
+          player.setLocation(moveEvent.getTo());
+        }
+
+        return handled;
+      case Chat:
+        Component message = Component.text(record.getText());
+
+        return this.globals.dispatchEvent(new AsyncChatEvent(true, player.getPlayer(), new HashSet<>(),
+            ChatRenderer.defaultRenderer(), message, message, SignedMessage.system(record.getText(), message)));
+      case Interact:
+        Block block = null;
+        int x = (int) record.getX();
+        int z = (int) record.getZ();
+
+        // Never load chunks for a replayed interaction
+        if (this.world.isChunkLoaded(x >> 4, z >> 4)) {
+          block = this.world.getBlockAt(x, (int) record.getY(), z);
+        }
+
+        return this.globals.dispatchEvent(new PlayerInteractEvent(player.getPlayer(),
+            Action.values()[record.getAction()], null, block, null));
+      case Command:
+        return this.globals.dispatchCommand(player.getPlayer(), record.getText());
+      default:
+        return false;
+    }
+  }
+
+  private String report() {
+    long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+    double seconds = Math.max(this.ticks, 1) / 20.0;
+
+    Arrays.sort(sorted);
+
+    return String.format("Load test of %s: %d ticks, %d events handled, %d not handled by the module.\n"
+        + "Handler time per tick: avg %.3f ms, max %.3f ms, %d ticks over 50 ms.\n"
+        + "Handler latency: p50 %.1f us, p99 %.1f us, max %.1f us.\n"
+        + "Allocated on the server thread: %.2f MB/s.",
+        this.moduleName, this.ticks, this.latencyCount, this.unhandled,
+        this.totalNanos / 1_000_000.0 / Math.max(this.ticks, 1), this.maxTickNanos / 1_000_000.0,
+        this.ticksOverBudget, percentile(sorted, 0.5) / 1000.0, percentile(sorted, 0.99) / 1000.0,
+        percentile(sorted, 1.0) / 1000.0, this.allocatedBytes / 1_048_576.0 / seconds);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+  }
+}
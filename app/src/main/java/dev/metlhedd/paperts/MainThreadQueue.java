@@ -0,0 +1,122 @@
+package dev.metlhedd.paperts;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * MainThreadQueue class for handing work from other threads back to the main
+ * thread.
+ * Instead of scheduling one task per call, the work is queued and drained in a
+ * single batch per tick, bounded by a time budget.
+ */
+public class MainThreadQueue {
+  /**
+   * The time budget for draining the queue per tick.
+   */
+  private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /**
+   * The JavaPlugin instance used to schedule the drain task.
+   */
+  private JavaPlugin plugin;
+  /**
+   * The error reporter of the module the work belongs to.
+   */
+  private ErrorReporter errorReporter;
+  /**
+   * The work waiting to run on the main thread.
+   */
+  private ConcurrentLinkedQueue<Runnable> queue;
+  /**
+   * The repeating task draining the queue, null until work is first queued.
+   */
+  private volatile Schedulers.Task task;
+  /**
+   * Whether the queue is closed, after which work is dropped.
+   */
+  private volatile boolean closed;
+  /**
+   * Whether the queued work is held back, while the module is staged.
+   */
+  private volatile boolean paused;
+
+  /**
+   * Constructor for the MainThreadQueue class.
+   *
+   * @param plugin        The JavaPlugin instance used to schedule the drain
+   *                      task.
+   * @param errorReporter The error reporter of the module the work belongs to.
+   */
+  public MainThreadQueue(JavaPlugin plugin, ErrorReporter errorReporter) {
+    this.plugin = plugin;
+    this.errorReporter = errorReporter;
+    this.queue = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Queues work to run on the main thread during the next tick.
+   *
+   * @param runnable The work to run.
+   */
+  public void post(Runnable runnable) {
+    if (this.closed) {
+      return;
+    }
+
+    this.queue.add(runnable);
+
+    if (this.task == null) {
+      synchronized (this) {
+        if (this.task == null && !this.closed) {
+          this.task = Schedulers.runTimer(this.plugin, this::drain, 1L, 1L);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the queued work until the queue is empty or the budget is exhausted.
+   * What is left runs on the following ticks.
+   */
+  private void drain() {
+    if (this.paused) {
+      return;
+    }
+
+    long deadline = System.nanoTime() + BUDGET_NANOS;
+    Runnable runnable;
+
+    while (System.nanoTime() < deadline && (runnable = this.queue.poll()) != null) {
+      try {
+        runnable.run();
+      } catch (Exception e) {
+        this.errorReporter.report("queued main thread work", e);
+      }
+    }
+  }
+
+  /**
+   * Pauses or resumes the queue. While paused, work is queued but not run.
+   *
+   * @param paused true to pause the queue, false to resume it.
+   */
+  public void setPaused(boolean paused) {
+    this.paused = paused;
+  }
+
+  /**
+   * Stops draining the queue and drops the work that did not run yet.
+   */
+  public synchronized void close() {
+    this.closed = true;
+
+    if (this.task != null) {
+      this.task.cancel();
+      this.task = null;
+    }
+
+    this.queue.clear();
+  }
+}
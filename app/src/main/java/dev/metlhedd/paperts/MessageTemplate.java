@@ -0,0 +1,199 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.ComponentLike;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
+import net.kyori.adventure.text.minimessage.tag.resolver.TagResolver;
+
+/**
+ * MessageTemplate class for a MiniMessage string parsed once into a component
+ * tree, with named slots filled in on every render.
+ * Rendering only rebuilds the path from the root to each slot: the parts of the
+ * tree without slots are shared by every rendered message, as components are
+ * immutable. Slot values are inserted as plain text, so players cannot inject
+ * tags through them.
+ */
+public class MessageTemplate {
+  /**
+   * The first private use character, marking the slots in the parsed tree.
+   */
+  private static final char SLOT_MARKER = '\uE000';
+  /**
+   * The most slots a template may have.
+   */
+  public static final int MAX_SLOTS = 256;
+  /**
+   * Parses templates without compacting the tree, which would merge the slots
+   * into the text around them.
+   */
+  private static final MiniMessage PARSER = MiniMessage.builder().postProcessor(component -> component).build();
+
+  /**
+   * A node of the parsed tree.
+   */
+  private static class Node {
+    private Component component;
+    /**
+     * The index of the slot the node stands for, or -1.
+     */
+    private int slot = -1;
+    /**
+     * The compiled children, or null if no slot is below the node.
+     */
+    private Node[] children;
+  }
+
+  private String name;
+  private List<String> slots;
+  private Node root;
+
+  /**
+   * Constructor for the MessageTemplate class.
+   *
+   * @param name        The name of the template.
+   * @param miniMessage The MiniMessage string, e.g. "<gold>Hi <player>".
+   * @param slots       The names of the slots, e.g. "player", in the order their
+   *                    values are given when rendering.
+   * @throws IllegalArgumentException if there are too many slots, or a slot
+   *                                  name is not a valid tag name.
+   */
+  public MessageTemplate(String name, String miniMessage, List<String> slots) throws IllegalArgumentException {
+    if (slots.size() > MAX_SLOTS) {
+      throw new IllegalArgumentException("A message template cannot have more than " + MAX_SLOTS + " slots.");
+    }
+
+    TagResolver.Builder resolver = TagResolver.builder();
+
+    for (int i = 0; i < slots.size(); i++) {
+      Component marker = Component.text(String.valueOf((char) (SLOT_MARKER + i)));
+
+      resolver.resolver(Placeholder.component(slots.get(i), marker));
+    }
+
+    this.name = name;
+    this.slots = List.copyOf(slots);
+    this.root = this.compile(PARSER.deserialize(miniMessage, resolver.build()));
+  }
+
+  private Node compile(Component component) {
+    Node node = new Node();
+
+    node.component = component;
+    node.slot = this.slotOf(component);
+
+    if (node.slot >= 0) {
+      return node;
+    }
+
+    List<Component> children = component.children();
+    Node[] compiled = new Node[children.size()];
+    boolean dynamic = false;
+
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = this.compile(children.get(i));
+      dynamic |= compiled[i].slot >= 0 || compiled[i].children != null;
+    }
+
+    if (dynamic) {
+      node.children = compiled;
+    }
+
+    return node;
+  }
+
+  private int slotOf(Component component) {
+    if (!(component instanceof TextComponent text) || text.content().length() != 1
+        || !component.children().isEmpty()) {
+      return -1;
+    }
+
+    int slot = text.content().charAt(0) - SLOT_MARKER;
+
+    return slot >= 0 && slot < this.slots.size() ? slot : -1;
+  }
+
+  /**
+   * Gets the name of the template.
+   *
+   * @return The name of the template.
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Gets the names of the slots, in the order their values are given.
+   *
+   * @return The names of the slots.
+   */
+  public List<String> getSlots() {
+    return this.slots;
+  }
+
+  /**
+   * Renders the template with the values of its slots.
+   * Strings and numbers are inserted as plain text, and components as they
+   * are.
+   *
+   * @param values The value of every slot, in the order of the slots.
+   * @return The rendered component.
+   * @throws IllegalArgumentException if the number of values does not match
+   *                                  the number of slots.
+   */
+  public Component render(List<Object> values) throws IllegalArgumentException {
+    int count = values == null ? 0 : values.size();
+
+    if (count != this.slots.size()) {
+      throw new IllegalArgumentException("Message " + this.name + " expects " + this.slots.size()
+          + " values (" + String.join(", ", this.slots) + "), got " + count + ".");
+    }
+
+    Component[] components = new Component[count];
+
+    for (int i = 0; i < count; i++) {
+      components[i] = toComponent(values.get(i));
+    }
+
+    return render(this.root, components);
+  }
+
+  private static Component render(Node node, Component[] values) {
+    if (node.slot >= 0) {
+      return values[node.slot];
+    }
+
+    if (node.children == null) {
+      return node.component;
+    }
+
+    ArrayList<Component> children = new ArrayList<>(node.children.length);
+
+    for (Node child : node.children) {
+      children.add(render(child, values));
+    }
+
+    return node.component.children(children);
+  }
+
+  private static Component toComponent(Object value) {
+    if (value == null) {
+      return Component.empty();
+    }
+
+    if (value instanceof ComponentLike componentLike) {
+      return componentLike.asComponent();
+    }
+
+    // Script numbers arrive as doubles, show whole ones without a fraction
+    if (value instanceof Double number && number == Math.rint(number) && !Double.isInfinite(number)) {
+      return Component.text(number.longValue());
+    }
+
+    return Component.text(String.valueOf(value));
+  }
+}
@@ -0,0 +1,599 @@
+package dev.metlhedd.paperts;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Metrics class for the counters, gauges and histograms of a module.
+ * Metrics are created by name and recorded without locks: counters through
+ * {@link LongAdder}s, gauges through an atomic, and histograms into log-linear
+ * buckets, like HDR histograms, with a relative error of about 3 %. Each metric
+ * has an id, so a script can record a batch of updates in a single call with
+ * {@link #update(int[], double[])}.
+ *
+ * The metrics of a module are shared by its shards and survive a reload. They
+ * are exposed through the `/paperts metrics` command, a JMX MBean named
+ * `dev.metlhedd.paperts:type=Metrics,module=<module>`, and snapshots appended
+ * periodically to the metrics folder of the plugin.
+ */
+public class Metrics {
+  /**
+   * The most metrics a module may create.
+   */
+  public static final int MAX_METRICS = 1024;
+
+  /**
+   * The metrics of the loaded modules, by module name.
+   */
+  private static final HashMap<String, Metrics> OPEN_METRICS = new HashMap<>();
+
+  private String moduleName;
+  private int references;
+  private ObjectName objectName;
+  private ConcurrentHashMap<String, Metric> byName;
+  /**
+   * The metrics by id, copied when a metric is created.
+   */
+  private volatile Metric[] byId;
+
+  private Metrics(String moduleName) {
+    this.moduleName = moduleName;
+    this.byName = new ConcurrentHashMap<>();
+    this.byId = new Metric[0];
+  }
+
+  /**
+   * Takes a reference to the metrics of a module, creating them and
+   * registering their MBean if needed. Every call must be paired with
+   * {@link #release}.
+   *
+   * @param moduleName The name of the module.
+   * @param logger     The logger reporting a failed MBean registration.
+   * @return The metrics of the module.
+   */
+  public static synchronized Metrics open(String moduleName, Logger logger) {
+    Metrics metrics = OPEN_METRICS.get(moduleName);
+
+    if (metrics == null) {
+      metrics = new Metrics(moduleName);
+      OPEN_METRICS.put(moduleName, metrics);
+
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        metrics.objectName = new ObjectName("dev.metlhedd.paperts:type=Metrics,module="
+            + ObjectName.quote(moduleName));
+        server.registerMBean(new MetricsMBean(metrics), metrics.objectName);
+      } catch (Exception e) {
+        metrics.objectName = null;
+        logger.warning("Failed to register the metrics of module " + moduleName + " with JMX: " + e.getMessage());
+      }
+    }
+
+    metrics.references++;
+
+    return metrics;
+  }
+
+  /**
+   * Releases a reference to the metrics of a module. The last one unregisters
+   * their MBean.
+   *
+   * @param metrics The metrics.
+   */
+  public static synchronized void release(Metrics metrics) {
+    if (--metrics.references > 0) {
+      return;
+    }
+
+    OPEN_METRICS.remove(metrics.moduleName);
+
+    if (metrics.objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metrics.objectName);
+      } catch (Exception e) {
+        // The MBean is already gone
+      }
+    }
+  }
+
+  /**
+   * Gets the metrics of a loaded module.
+   *
+   * @param moduleName The name of the module.
+   * @return The metrics, or null if the module did not record any.
+   */
+  public static synchronized Metrics get(String moduleName) {
+    return OPEN_METRICS.get(moduleName);
+  }
+
+  /**
+   * Appends a snapshot of the metrics of every loaded module to a file per
+   * module, one JSON object per line.
+   *
+   * @param directory The folder of the files, created if needed.
+   * @throws IOException if a snapshot cannot be written.
+   */
+  public static void snapshotAll(File directory) throws IOException {
+    ArrayList<Metrics> all;
+
+    synchronized (Metrics.class) {
+      all = new ArrayList<>(OPEN_METRICS.values());
+    }
+
+    if (all.isEmpty()) {
+      return;
+    }
+
+    directory.mkdirs();
+
+    for (Metrics metrics : all) {
+      if (metrics.byId.length > 0) {
+        metrics.snapshot(new File(directory, metrics.moduleName + ".jsonl"));
+      }
+    }
+  }
+
+  /**
+   * Gets or creates a counter.
+   *
+   * @param name The name of the counter.
+   * @return The counter.
+   * @throws IllegalArgumentException if another kind of metric has the name, or
+   *                                  there are too many metrics.
+   */
+  public Counter counter(String name) throws IllegalArgumentException {
+    return this.getOrCreate(name, Counter.class);
+  }
+
+  /**
+   * Gets or creates a gauge.
+   *
+   * @param name The name of the gauge.
+   * @return The gauge.
+   * @throws IllegalArgumentException if another kind of metric has the name, or
+   *                                  there are too many metrics.
+   */
+  public Gauge gauge(String name) throws IllegalArgumentException {
+    return this.getOrCreate(name, Gauge.class);
+  }
+
+  /**
+   * Gets or creates a histogram.
+   *
+   * @param name The name of the histogram.
+   * @return The histogram.
+   * @throws IllegalArgumentException if another kind of metric has the name, or
+   *                                  there are too many metrics.
+   */
+  public Histogram histogram(String name) throws IllegalArgumentException {
+    return this.getOrCreate(name, Histogram.class);
+  }
+
+  /**
+   * Records a batch of updates in a single call: each value is added to a
+   * counter, set on a gauge, or recorded into a histogram, depending on the
+   * metric its id belongs to.
+   *
+   * @param ids    The ids of the metrics, typically an Int32Array.
+   * @param values The values, typically a Float64Array.
+   * @throws IllegalArgumentException if the arrays differ in length, or an id
+   *                                  is unknown.
+   */
+  public void update(int[] ids, double[] values) throws IllegalArgumentException {
+    if (ids.length != values.length) {
+      throw new IllegalArgumentException("Ids and values must have the same length.");
+    }
+
+    Metric[] metrics = this.byId;
+
+    for (int i = 0; i < ids.length; i++) {
+      int id = ids[i];
+
+      if (id < 0 || id >= metrics.length) {
+        throw new IllegalArgumentException("Unknown metric id " + id + " at index " + i + ".");
+      }
+
+      metrics[id].update(values[i]);
+    }
+  }
+
+  /**
+   * Describes every metric, one line each, sorted by name.
+   *
+   * @return The descriptions.
+   */
+  public List<String> describe() {
+    Metric[] metrics = this.byId.clone();
+    ArrayList<String> lines = new ArrayList<>();
+
+    Arrays.sort(metrics, (a, b) -> a.name.compareTo(b.name));
+
+    for (Metric metric : metrics) {
+      lines.add(metric.name + ": " + metric.describe());
+    }
+
+    return lines;
+  }
+
+  /**
+   * Gets every metric.
+   *
+   * @return The metrics, by id.
+   */
+  Metric[] getAll() {
+    return this.byId;
+  }
+
+  private synchronized <T extends Metric> T getOrCreate(String name, Class<T> kind) throws IllegalArgumentException {
+    Metric metric = this.byName.get(name);
+
+    if (metric == null) {
+      if (this.byId.length >= MAX_METRICS) {
+        throw new IllegalArgumentException("A module cannot create more than " + MAX_METRICS + " metrics.");
+      }
+
+      int id = this.byId.length;
+
+      if (kind == Counter.class) {
+        metric = new Counter(name, id);
+      } else if (kind == Gauge.class) {
+        metric = new Gauge(name, id);
+      } else {
+        metric = new Histogram(name, id);
+      }
+
+      Metric[] byId = Arrays.copyOf(this.byId, id + 1);
+      byId[id] = metric;
+      this.byId = byId;
+      this.byName.put(name, metric);
+    } else if (!kind.isInstance(metric)) {
+      throw new IllegalArgumentException("Metric " + name + " is not a " + kind.getSimpleName().toLowerCase() + ".");
+    }
+
+    return kind.cast(metric);
+  }
+
+  private void snapshot(File file) throws IOException {
+    try (FileWriter out = new FileWriter(file, true)) {
+      JsonWriter writer = new JsonWriter(out);
+
+      writer.beginObject();
+      writer.name("time").value(System.currentTimeMillis());
+
+      for (Metric metric : this.byId) {
+        writer.name(metric.name);
+        metric.write(writer);
+      }
+
+      writer.endObject();
+      writer.flush();
+      out.write('\n');
+    }
+  }
+
+  /**
+   * A metric created by a module.
+   */
+  public abstract static class Metric {
+    private String name;
+    private int id;
+
+    private Metric(String name, int id) {
+      this.name = name;
+      this.id = id;
+    }
+
+    /**
+     * Gets the name of the metric.
+     *
+     * @return The name.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Gets the id of the metric, used to record batches of updates.
+     *
+     * @return The id.
+     */
+    public int getId() {
+      return this.id;
+    }
+
+    abstract void update(double value);
+
+    abstract String describe();
+
+    abstract void write(JsonWriter writer) throws IOException;
+
+    /**
+     * Gets the attributes of the metric exposed through JMX.
+     *
+     * @return The attributes, by name.
+     */
+    abstract Map<String, Object> attributes();
+  }
+
+  /**
+   * A counter, only ever incremented.
+   */
+  public static class Counter extends Metric {
+    private LongAdder value = new LongAdder();
+
+    private Counter(String name, int id) {
+      super(name, id);
+    }
+
+    /**
+     * Increments the counter by one.
+     */
+    public void increment() {
+      this.value.increment();
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param amount The amount to add.
+     */
+    public void add(long amount) {
+      this.value.add(amount);
+    }
+
+    /**
+     * Gets the value of the counter.
+     *
+     * @return The value.
+     */
+    public long getValue() {
+      return this.value.sum();
+    }
+
+    @Override
+    void update(double value) {
+      this.value.add((long) value);
+    }
+
+    @Override
+    String describe() {
+      return String.valueOf(this.getValue());
+    }
+
+    @Override
+    void write(JsonWriter writer) throws IOException {
+      writer.value(this.getValue());
+    }
+
+    @Override
+    Map<String, Object> attributes() {
+      return Map.of(this.getName(), this.getValue());
+    }
+  }
+
+  /**
+   * A gauge, holding the last value set.
+   */
+  public static class Gauge extends Metric {
+    private AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    private Gauge(String name, int id) {
+      super(name, id);
+    }
+
+    /**
+     * Sets the value of the gauge.
+     *
+     * @param value The value.
+     */
+    public void set(double value) {
+      this.bits.set(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Gets the value of the gauge.
+     *
+     * @return The value.
+     */
+    public double getValue() {
+      return Double.longBitsToDouble(this.bits.get());
+    }
+
+    @Override
+    void update(double value) {
+      this.set(value);
+    }
+
+    @Override
+    String describe() {
+      return String.valueOf(this.getValue());
+    }
+
+    @Override
+    void write(JsonWriter writer) throws IOException {
+      double value = this.getValue();
+
+      if (Double.isFinite(value)) {
+        writer.value(value);
+      } else {
+        writer.nullValue();
+      }
+    }
+
+    @Override
+    Map<String, Object> attributes() {
+      return Map.of(this.getName(), this.getValue());
+    }
+  }
+
+  /**
+   * A histogram of non-negative values. Values are counted in buckets: one per
+   * value below 32, then 32 buckets per power of two, so every recorded value
+   * is reported within about 3 % of its exact value.
+   */
+  public static class Histogram extends Metric {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private Histogram(String name, int id) {
+      super(name, id);
+    }
+
+    /**
+     * Records a value, rounded to the nearest integer. Negative values are
+     * recorded as zero.
+     *
+     * @param value The value.
+     */
+    public void record(double value) {
+      long rounded = Math.max(0, Math.round(value));
+
+      this.counts.incrementAndGet(bucketOf(rounded));
+      this.count.increment();
+      this.sum.add(rounded);
+      this.max.accumulate(rounded);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+      return this.count.sum();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean, or 0 if no value was recorded.
+     */
+    public double getMean() {
+      long count = this.count.sum();
+
+      return count == 0 ? 0 : (double) this.sum.sum() / count;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The largest value.
+     */
+    public long getMax() {
+      return this.max.get();
+    }
+
+    /**
+     * Gets the value below which a fraction of the recorded values fall.
+     *
+     * @param fraction The fraction, between 0 and 1, e.g. 0.99.
+     * @return The value, or 0 if no value was recorded.
+     */
+    public long getPercentile(double fraction) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = this.counts.get(i);
+        total += counts[i];
+      }
+
+      if (total == 0) {
+        return 0;
+      }
+
+      long target = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * total));
+      long seen = 0;
+
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+
+        if (seen >= target) {
+          return Math.min(valueOf(i), this.getMax());
+        }
+      }
+
+      return this.getMax();
+    }
+
+    private static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+      return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the middle of the values counted in a bucket.
+     */
+    private static long valueOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+
+      int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+      long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+
+      return lowest + ((1L << shift) >> 1);
+    }
+
+    @Override
+    void update(double value) {
+      this.record(value);
+    }
+
+    @Override
+    String describe() {
+      return "count " + this.getCount() + ", mean " + String.format("%.1f", this.getMean()) + ", p50 "
+          + this.getPercentile(0.5) + ", p99 " + this.getPercentile(0.99) + ", max " + this.getMax();
+    }
+
+    @Override
+    void write(JsonWriter writer) throws IOException {
+      writer.beginObject();
+      writer.name("count").value(this.getCount());
+      writer.name("mean").value(this.getMean());
+      writer.name("p50").value(this.getPercentile(0.5));
+      writer.name("p90").value(this.getPercentile(0.9));
+      writer.name("p99").value(this.getPercentile(0.99));
+      writer.name("max").value(this.getMax());
+      writer.endObject();
+    }
+
+    @Override
+    Map<String, Object> attributes() {
+      return Map.of(this.getName() + ".count", this.getCount(), this.getName() + ".mean", this.getMean(),
+          this.getName() + ".p50", this.getPercentile(0.5), this.getName() + ".p99", this.getPercentile(0.99),
+          this.getName() + ".max", this.getMax());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * MetricsMBean class exposing the metrics of a module through JMX.
+ * Every counter and gauge is a read-only attribute named after it, and every
+ * histogram adds its count, mean, p50, p99 and max as attributes suffixed with
+ * the statistic, e.g. "join-time.p99". Metrics created after the MBean is
+ * registered show up the next time a JMX client reads its info.
+ */
+public class MetricsMBean implements DynamicMBean {
+  private Metrics metrics;
+
+  /**
+   * Constructor for the MetricsMBean class.
+   *
+   * @param metrics The metrics to expose.
+   */
+  public MetricsMBean(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object value = this.values().get(attribute);
+
+    if (value == null) {
+      throw new AttributeNotFoundException("No metric named " + attribute + ".");
+    }
+
+    return value;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only.");
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> values = this.values();
+    AttributeList list = new AttributeList();
+
+    for (String attribute : attributes) {
+      if (values.containsKey(attribute)) {
+        list.add(new Attribute(attribute, values.get(attribute)));
+      }
+    }
+
+    return list;
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations.");
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+
+    for (Map.Entry<String, Object> entry : this.values().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+          true, false, false));
+    }
+
+    return new MBeanInfo(Metrics.class.getName(), "Metrics of a PaperTS module",
+        attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+  }
+
+  private Map<String, Object> values() {
+    HashMap<String, Object> values = new HashMap<>();
+
+    for (Metrics.Metric metric : this.metrics.getAll()) {
+      values.putAll(metric.attributes());
+    }
+
+    return values;
+  }
+}
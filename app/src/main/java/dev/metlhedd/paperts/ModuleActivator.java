@@ -0,0 +1,374 @@
+package dev.metlhedd.paperts;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.defaults.BukkitCommand;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ModuleActivator class for modules that are started lazily.
+ * Instead of booting such a module with the server, stub listeners, commands
+ * and timers are registered for the triggers declared in its package.json, and
+ * the runtime is only started on the first trigger. Once the module has been
+ * idle for the declared time, its runtime is released and the stubs are armed
+ * again.
+ * All methods must be called from the main thread.
+ */
+public class ModuleActivator {
+  /**
+   * How long a module may take to start before the pending command invocations
+   * are dropped, in ticks.
+   */
+  private static final long START_TIMEOUT_TICKS = 20L * 60;
+  /**
+   * How often the idle modules are looked for, in ticks.
+   */
+  private static final long IDLE_CHECK_PERIOD_TICKS = 20L * 10;
+  /**
+   * The fallback prefix of the stub commands.
+   */
+  private static final String STUB_PREFIX = "paperts";
+
+  private enum State {
+    Hibernated,
+    Starting,
+    Active,
+    Stopping,
+  }
+
+  /**
+   * A lazily started module and its stubs.
+   */
+  private static class LazyModule {
+    private Path path;
+    private ActivationTriggers triggers;
+    private State state;
+    private Listener listener;
+    private ArrayList<StubCommand> stubCommands = new ArrayList<>();
+    private ArrayList<Schedulers.Task> scheduleTasks = new ArrayList<>();
+    private ArrayList<Runnable> pendingInvocations = new ArrayList<>();
+  }
+
+  /**
+   * A command standing in for a command of a hibernated module.
+   * Invoking it starts the module, and the invocation is replayed once the
+   * module is up.
+   */
+  private class StubCommand extends BukkitCommand {
+    private LazyModule module;
+
+    StubCommand(String name, LazyModule module) {
+      super(name);
+
+      this.module = module;
+      this.setDescription("Starts the " + module.path.getFileName() + " module");
+    }
+
+    @Override
+    public boolean execute(@NotNull CommandSender sender, @NotNull String commandLabel,
+        @NotNull String @NotNull [] args) {
+      String commandLine = args.length == 0 ? commandLabel : commandLabel + " " + String.join(" ", args);
+
+      sender.sendMessage("Starting module " + this.module.path.getFileName() + "...");
+      this.module.pendingInvocations.add(() -> Bukkit.dispatchCommand(sender, commandLine));
+      activate(this.module);
+
+      return true;
+    }
+  }
+
+  private PaperTSPlugin plugin;
+  private Pool pool;
+  private HashMap<Path, LazyModule> modules;
+  private Schedulers.Task idleTask;
+
+  /**
+   * Constructor for the ModuleActivator class.
+   *
+   * @param plugin The plugin instance, used to start modules.
+   * @param pool   The pool the module runtimes live in.
+   */
+  public ModuleActivator(PaperTSPlugin plugin, Pool pool) {
+    this.plugin = plugin;
+    this.pool = pool;
+    this.modules = new HashMap<>();
+  }
+
+  /**
+   * Registers a lazily started module and arms its triggers.
+   *
+   * @param path     The path to the module directory.
+   * @param triggers The triggers that start the module.
+   */
+  public void register(Path path, ActivationTriggers triggers) {
+    if (this.modules.containsKey(path)) {
+      this.unregister(path);
+    }
+
+    LazyModule module = new LazyModule();
+
+    module.path = path;
+    module.triggers = triggers;
+    module.state = State.Hibernated;
+
+    this.modules.put(path, module);
+    this.arm(module);
+
+    if (this.idleTask == null) {
+      this.idleTask = Schedulers.runTimer(this.plugin, this::hibernateIdleModules,
+          IDLE_CHECK_PERIOD_TICKS, IDLE_CHECK_PERIOD_TICKS);
+    }
+
+    this.plugin.getLogger().info("Module " + path.getFileName() + " is hibernated until first use.");
+  }
+
+  /**
+   * Unregisters a lazily started module, removing its stubs.
+   * The runtime, if running, is not released.
+   *
+   * @param path The path to the module directory.
+   */
+  public void unregister(Path path) {
+    LazyModule module = this.modules.remove(path);
+
+    if (module != null) {
+      this.disarm(module);
+    }
+  }
+
+  /**
+   * Checks if a module is hibernated, i.e. waiting for its first trigger.
+   *
+   * @param path The path to the module directory.
+   * @return true if the module is hibernated, false otherwise.
+   */
+  public boolean isHibernated(Path path) {
+    LazyModule module = this.modules.get(path);
+
+    return module != null && module.state == State.Hibernated;
+  }
+
+  /**
+   * Gets the paths of all lazily started modules.
+   *
+   * @return The paths of the lazily started modules.
+   */
+  public Set<Path> getModules() {
+    return new HashSet<>(this.modules.keySet());
+  }
+
+  /**
+   * Removes all stubs and stops looking for idle modules.
+   * This is useful for cleaning up when the plugin is disabled.
+   */
+  public void shutdown() {
+    for (LazyModule module : this.modules.values()) {
+      this.disarm(module);
+    }
+
+    this.modules.clear();
+
+    if (this.idleTask != null) {
+      this.idleTask.cancel();
+      this.idleTask = null;
+    }
+  }
+
+  /**
+   * Registers the stub listeners, commands and timers of a module.
+   *
+   * @param module The module to arm.
+   */
+  private void arm(LazyModule module) {
+    ActivationTriggers triggers = module.triggers;
+
+    module.listener = new Listener() {
+    };
+
+    for (String eventClassName : triggers.getEvents()) {
+      try {
+        Class<? extends Event> eventClass = Class.forName(eventClassName).asSubclass(Event.class);
+
+        Bukkit.getPluginManager().registerEvent(eventClass, module.listener, EventPriority.MONITOR,
+            (Listener l, Event event) -> {
+              if (eventClass.isInstance(event)) {
+                activate(module);
+              }
+            }, this.plugin);
+      } catch (ClassNotFoundException | ClassCastException e) {
+        this.plugin.getLogger().severe("Invalid activation event " + eventClassName + " for module "
+            + module.path.getFileName() + ": " + e.getMessage());
+      } catch (Exception e) {
+        this.plugin.getLogger().severe("Failed to register activation event " + eventClassName + " for module "
+            + module.path.getFileName() + ": " + e.getMessage());
+      }
+    }
+
+    for (String commandName : triggers.getCommands()) {
+      StubCommand stubCommand = new StubCommand(commandName, module);
+
+      this.plugin.getServer().getCommandMap().register(STUB_PREFIX, stubCommand);
+      module.stubCommands.add(stubCommand);
+    }
+
+    for (long seconds : triggers.getSchedules()) {
+      long ticks = seconds * 20;
+
+      module.scheduleTasks.add(Schedulers.runTimer(this.plugin, () -> activate(module), ticks, ticks));
+    }
+  }
+
+  /**
+   * Removes the stub listeners, commands and timers of a module.
+   *
+   * @param module The module to disarm.
+   */
+  private void disarm(LazyModule module) {
+    if (module.listener != null) {
+      HandlerList.unregisterAll(module.listener);
+      module.listener = null;
+    }
+
+    // Only remove the entries pointing at the stubs, the names may belong to
+    // another plugin
+    for (StubCommand stubCommand : module.stubCommands) {
+      this.plugin.getServer().getCommandMap().getKnownCommands().remove(stubCommand.getName(), stubCommand);
+      this.plugin.getServer().getCommandMap().getKnownCommands().remove(STUB_PREFIX + ":" + stubCommand.getName(),
+          stubCommand);
+    }
+
+    module.stubCommands.clear();
+
+    for (Schedulers.Task task : module.scheduleTasks) {
+      task.cancel();
+    }
+
+    module.scheduleTasks.clear();
+  }
+
+  /**
+   * Starts a hibernated module.
+   * The stubs are removed first, so the module can register its own commands.
+   * Command invocations received by the stubs are replayed once the module is
+   * up. Events that triggered the activation are not delivered, since the
+   * module cannot be started within the event.
+   *
+   * @param module The module to start.
+   */
+  private void activate(LazyModule module) {
+    if (module.state != State.Hibernated) {
+      return;
+    }
+
+    this.plugin.getLogger().info("Activating module " + module.path.getFileName() + "...");
+
+    module.state = State.Starting;
+    this.disarm(module);
+    this.plugin.initRuntimeNewThread(module.path);
+
+    long[] waitedTicks = { 0 };
+    Schedulers.Task[] readinessTask = { null };
+
+    readinessTask[0] = Schedulers.runTimer(this.plugin, () -> {
+      waitedTicks[0]++;
+
+      if (this.modules.get(module.path) != module) {
+        readinessTask[0].cancel();
+        return;
+      }
+
+      if (this.pool.getGlobals(module.path) != null) {
+        readinessTask[0].cancel();
+        module.state = State.Active;
+        this.replayPendingInvocations(module);
+      } else if (waitedTicks[0] > START_TIMEOUT_TICKS
+          || (waitedTicks[0] > 20 && !this.pool.getRuntimes().contains(module.path))) {
+        readinessTask[0].cancel();
+        this.plugin.getLogger().severe("Module " + module.path.getFileName() + " failed to start.");
+        module.pendingInvocations.clear();
+        module.state = State.Hibernated;
+        this.arm(module);
+      }
+    }, 1L, 1L);
+  }
+
+  private void replayPendingInvocations(LazyModule module) {
+    ArrayList<Runnable> pending = new ArrayList<>(module.pendingInvocations);
+
+    module.pendingInvocations.clear();
+
+    for (Runnable invocation : pending) {
+      try {
+        invocation.run();
+      } catch (Exception e) {
+        this.plugin.getLogger().severe("Failed to replay command for module " + module.path.getFileName() + ": "
+            + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Releases the runtimes of the active modules that have been idle for longer
+   * than their idle time, and arms their stubs again.
+   */
+  private void hibernateIdleModules() {
+    long now = System.currentTimeMillis();
+
+    for (LazyModule module : this.modules.values()) {
+      if (module.state != State.Active || module.triggers.getIdleSeconds() <= 0) {
+        continue;
+      }
+
+      Globals globals = this.pool.getGlobals(module.path);
+
+      if (globals == null || now - globals.getLastActivityMillis() < module.triggers.getIdleSeconds() * 1000) {
+        continue;
+      }
+
+      this.plugin.getLogger().info("Hibernating idle module " + module.path.getFileName() + "...");
+      module.state = State.Stopping;
+
+      // Releasing waits for the runtime to close, which must not block the main
+      // thread
+      Schedulers.runAsync(this.plugin, () -> {
+        boolean released;
+
+        try {
+          this.pool.releaseRuntime(module.path);
+          released = true;
+        } catch (Exception e) {
+          this.plugin.getLogger().log(Level.SEVERE, "Failed to hibernate module " + module.path.getFileName()
+              + ", it stays active: " + e.getMessage(), e);
+          released = false;
+        }
+
+        boolean hibernated = released;
+
+        Schedulers.run(this.plugin, () -> {
+          if (this.modules.get(module.path) != module) {
+            return;
+          }
+
+          // The stubs would shadow the commands of a runtime still running
+          if (hibernated) {
+            module.state = State.Hibernated;
+            this.arm(module);
+          } else {
+            module.state = State.Active;
+          }
+        });
+      });
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package dev.metlhedd.paperts;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ModuleWorker class holding the work queued by a module.
+ * Work queued to it runs one task at a time, in order, off the main thread, so
+ * heavy script handlers do not cost server ticks. It runs on the thread
+ * pumping the event loop of the module's runtime, between two turns of the
+ * loop, rather than on a thread of its own calling into the runtime at the
+ * same time.
+ */
+public class ModuleWorker {
+  /**
+   * The time budget for running queued work per turn of the loop, so timers
+   * and promises of the runtime are not starved.
+   */
+  private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private static final int QUEUED = 0;
+  private static final int STARTED = 1;
+  private static final int DONE = 2;
+
+  /**
+   * A queued task, with its callbacks.
+   */
+  private static class Job implements Runnable {
+    private final Runnable task;
+    private final Runnable onComplete;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    Job(Runnable task, Runnable onComplete) {
+      this.task = task;
+      this.onComplete = onComplete;
+    }
+
+    @Override
+    public void run() {
+      if (!this.state.compareAndSet(QUEUED, STARTED)) {
+        return;
+      }
+
+      try {
+        this.task.run();
+      } finally {
+        this.state.set(DONE);
+        this.complete();
+      }
+    }
+
+    /**
+     * Drops the task if it did not start yet.
+     *
+     * @return true if the task was dropped, false if it already started.
+     */
+    boolean drop() {
+      if (!this.state.compareAndSet(QUEUED, DONE)) {
+        return false;
+      }
+
+      this.complete();
+
+      return true;
+    }
+
+    boolean isStarted() {
+      return this.state.get() == STARTED;
+    }
+
+    private void complete() {
+      if (this.onComplete != null) {
+        this.onComplete.run();
+      }
+    }
+  }
+
+  /**
+   * The work waiting for the loop of the runtime.
+   */
+  private LinkedBlockingQueue<Job> queue;
+  /**
+   * The thread watching for queued work that exceeds its timeout.
+   */
+  private ScheduledExecutorService watchdog;
+  /**
+   * Whether the loop is running a task.
+   */
+  private volatile boolean running;
+  private volatile boolean accepting;
+
+  /**
+   * Constructor for the ModuleWorker class.
+   *
+   * @param moduleName The name of the module, used to name the threads.
+   */
+  public ModuleWorker(String moduleName) {
+    this.queue = new LinkedBlockingQueue<>();
+    this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "PaperTS-" + moduleName + "-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.accepting = true;
+  }
+
+  /**
+   * Queues a task to the loop of the runtime.
+   * onComplete is called exactly once, after the task ran, or when it is
+   * dropped without running. When the timeout expires first, a task that did
+   * not start yet is dropped, and onTimeout is called. A task that already
+   * started cannot be interrupted, since script execution cannot be aborted
+   * without stopping the whole runtime, so onComplete only follows once it
+   * returns.
+   *
+   * @param task          The task to run.
+   * @param timeoutMillis The timeout in milliseconds, or 0 for no timeout.
+   * @param onComplete    The function called once the task ran or was
+   *                      dropped, may be null.
+   * @param onTimeout     The function called when the timeout expires first,
+   *                      may be null.
+   * @return true if the task was queued, false if the worker is stopping.
+   */
+  public boolean submit(Runnable task, long timeoutMillis, Runnable onComplete, Runnable onTimeout) {
+    if (!this.accepting) {
+      return false;
+    }
+
+    Job job = new Job(task, onComplete);
+
+    this.queue.add(job);
+
+    if (timeoutMillis > 0) {
+      this.watchdog.schedule(() -> {
+        boolean dropped = job.drop();
+
+        if (dropped) {
+          this.queue.remove(job);
+        }
+
+        if ((dropped || job.isStarted()) && onTimeout != null) {
+          onTimeout.run();
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    return true;
+  }
+
+  /**
+   * Queues a task to the loop of the runtime, without a timeout.
+   *
+   * @param task The task to run.
+   * @return true if the task was queued, false if the worker is stopping.
+   */
+  public boolean submit(Runnable task) {
+    return this.submit(task, 0, null, null);
+  }
+
+  /**
+   * Runs the queued work on the calling thread, which must be the one pumping
+   * the event loop of the module's runtime, until the queue is empty or the
+   * budget is exhausted. What is left runs on the following turns.
+   *
+   * @param waitMillis How long to wait for work if there is none, in
+   *                   milliseconds.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void runPending(long waitMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + BUDGET_NANOS;
+    Job job = this.queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+
+    while (job != null) {
+      this.running = true;
+
+      try {
+        job.run();
+      } catch (RuntimeException | Error e) {
+        // The tasks report their own errors, keep the loop going
+      } finally {
+        this.running = false;
+      }
+
+      job = System.nanoTime() < deadline ? this.queue.poll() : null;
+    }
+  }
+
+  /**
+   * Stops accepting work and waits for the queued work to finish, then stops
+   * the worker.
+   * Work still queued when the timeout expires is dropped.
+   *
+   * @param timeoutMillis How long to wait for the queued work, in milliseconds.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void drain(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    this.accepting = false;
+
+    try {
+      while ((!this.queue.isEmpty() || this.running) && System.currentTimeMillis() < deadline) {
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+    } finally {
+      this.shutdown();
+    }
+  }
+
+  /**
+   * Stops the worker, dropping the work that did not start yet.
+   */
+  public void shutdown() {
+    this.accepting = false;
+
+    for (Job job = this.queue.poll(); job != null; job = this.queue.poll()) {
+      job.drop();
+    }
+
+    this.watchdog.shutdownNow();
+  }
+}
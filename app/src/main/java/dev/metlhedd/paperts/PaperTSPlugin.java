@@ -3,14 +3,30 @@ package dev.metlhedd.paperts;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.generator.ChunkGenerator;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
 
 import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.interop.V8Runtime;
 import com.caoccao.javet.interop.options.NodeRuntimeOptions;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 
 import net.byteflux.libby.BukkitLibraryManager;
 import net.byteflux.libby.Library;
@@ -19,10 +35,29 @@ import net.byteflux.libby.Library;
  * Main class for the PaperTS plugin.
  */
 public class PaperTSPlugin extends JavaPlugin implements Listener {
+  /**
+   * An action run against the V8 runtime of a module.
+   */
+  private interface RuntimeAction {
+    String run(V8Runtime runtime) throws Exception;
+  }
+
   /**
    * The pool for managing Javet engines and V8 runtimes.
    */
   private Pool pool;
+  /**
+   * The activator starting and hibernating the lazily started modules.
+   */
+  private ModuleActivator activator;
+  /**
+   * The recorder of the server's player traffic.
+   */
+  private TrafficLog trafficLog;
+  /**
+   * The load test that is running, if any.
+   */
+  private volatile LoadTest loadTest;
 
   private void downloadNodeJsDependencies() {
     String osArchitecture = System.getProperty("os.arch");
@@ -106,6 +141,46 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
     return true;
   }
 
+  /**
+   * Loads the V8 flags set for the whole server from the config.
+   * 
+   * @return The V8 flags.
+   * @throws IllegalArgumentException if a flag is not allowed.
+   */
+  private List<String> loadV8Flags() throws IllegalArgumentException {
+    List<String> v8Flags = getConfig().getStringList("v8-flags");
+
+    RuntimeProfile.checkV8Flags(v8Flags);
+
+    return v8Flags;
+  }
+
+  /**
+   * Loads the runtime profiles modules can select from the config.
+   * 
+   * @return The runtime profiles, by name.
+   * @throws IllegalArgumentException if a profile uses a flag that is not
+   *                                  allowed.
+   */
+  private Map<String, RuntimeProfile> loadRuntimeProfiles() throws IllegalArgumentException {
+    HashMap<String, RuntimeProfile> profiles = new HashMap<>();
+    ConfigurationSection section = getConfig().getConfigurationSection("runtime-profiles");
+
+    if (section != null) {
+      for (String name : section.getKeys(false)) {
+        ConfigurationSection profileSection = section.getConfigurationSection(name);
+
+        if (profileSection == null) {
+          throw new IllegalArgumentException("Runtime profile " + name + " must be a section.");
+        }
+
+        profiles.put(name, RuntimeProfile.fromConfig(name, profileSection));
+      }
+    }
+
+    return profiles;
+  }
+
   /**
    * Called when the plugin is enabled.
    * This method initializes the pool and sets up modules by scanning the server
@@ -115,9 +190,22 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
   @Override
   public void onEnable() {
     this.downloadNodeJsDependencies();
+    this.saveDefaultConfig();
+
+    AccessorCache.setHotTypes(getConfig().getStringList("hot-types"), getLogger());
+    ProxyIdentityCache.setCachedTypes(getConfig().getStringList("identity-cached-types"), getLogger());
+    ResourceTracker.setDebug(getConfig().getBoolean("debug-resource-tracking", false));
+    ErrorReporter.setSummaryIntervalSeconds(getConfig().getLong("error-summary-interval-seconds", 60));
+    CircuitBreaker.configure(getConfig().getInt("circuit-breaker-max-errors", 50),
+        getConfig().getLong("circuit-breaker-window-seconds", 10),
+        getConfig().getLong("circuit-breaker-initial-backoff-seconds", 5),
+        getConfig().getLong("circuit-breaker-max-backoff-seconds", 300));
+    KeyValueStore.setCompactionIntervalSeconds(getConfig().getLong("store-compaction-interval-seconds", 300));
+    GeneratorPool.setMaxRuntimes(getConfig().getInt("generator-max-runtimes", 0));
 
     try {
-      this.pool = new Pool(this, enableNodeI18n());
+      this.pool = new Pool(this, enableNodeI18n(), this.loadV8Flags(), this.loadRuntimeProfiles());
+      this.activator = new ModuleActivator(this, this.pool);
 
       setupModules();
     } catch (Exception e) {
@@ -129,7 +217,24 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
     }
 
     Bukkit.getPluginManager().registerEvents(this, this);
+
+    if (getConfig().getBoolean("idle-gc", true)) {
+      this.pool.getIdleGcScheduler().setMaxMillisPerTick(getConfig().getLong("idle-gc-max-millis-per-tick", 10));
+      Bukkit.getPluginManager().registerEvents(this.pool.getIdleGcScheduler(), this);
+    }
+
+    Bukkit.getPluginManager().registerEvents(new TraceRecorder(), this);
+    this.trafficLog = new TrafficLog(this);
+    Bukkit.getPluginManager().registerEvents(this.trafficLog, this);
     getServer().getCommandMap().register("paperts", new Command("paperts", this));
+    // Script commands complete players and worlds off the main thread
+    Schedulers.runTimer(this, CommandSchema::refreshSnapshot, 1, 20);
+
+    long snapshotTicks = getConfig().getLong("metrics-snapshot-interval-seconds", 60) * 20;
+
+    if (snapshotTicks > 0) {
+      Schedulers.runAsyncTimer(this, this::snapshotMetrics, snapshotTicks, snapshotTicks);
+    }
   }
 
   /**
@@ -138,6 +243,22 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
    */
   @Override
   public void onDisable() {
+    if (this.activator != null) {
+      this.activator.shutdown();
+    }
+
+    if (this.loadTest != null) {
+      this.loadTest.cancel();
+    }
+
+    if (this.trafficLog != null && this.trafficLog.isRecording()) {
+      try {
+        this.trafficLog.stop();
+      } catch (Exception e) {
+        getLogger().severe("Failed to stop the traffic recording: " + e.getMessage());
+      }
+    }
+
     try {
       this.pool.releaseAllRuntimes();
     } catch (Exception e) {
@@ -146,6 +267,95 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
     }
   }
 
+  /**
+   * Gets the chunk generator of a world using PaperTS as its generator, e.g.
+   * "PaperTS:my-module" in bukkit.yml or with
+   * {@link org.bukkit.WorldCreator#generator(String)}.
+   * The id is the name of the module whose world generator script generates
+   * the world.
+   *
+   * @param worldName The name of the world.
+   * @param id        The name of the module.
+   * @return The chunk generator, or null if the module has no usable world
+   *         generator script.
+   */
+  @Override
+  public ChunkGenerator getDefaultWorldGenerator(@NotNull String worldName, String id) {
+    if (this.pool == null) {
+      return null;
+    }
+
+    if (id == null || id.isEmpty()) {
+      getLogger().severe("World " + worldName + " must name a module as its generator, e.g. PaperTS:my-module.");
+      return null;
+    }
+
+    Path path = getDataFolder().toPath().resolve(id).normalize();
+
+    if (!getDataFolder().toPath().normalize().equals(path.getParent())) {
+      getLogger().severe("Invalid generator module " + id + " for world " + worldName + ".");
+      return null;
+    }
+
+    try {
+      return this.pool.getGenerator(path);
+    } catch (Exception e) {
+      getLogger().severe("Failed to create the generator of world " + worldName + " from module " + id + ": "
+          + e.getMessage());
+      e.printStackTrace();
+
+      return null;
+    }
+  }
+
+  /**
+   * Appends a snapshot of the metrics of every module to the metrics folder of
+   * the plugin, see {@link Metrics}.
+   */
+  private void snapshotMetrics() {
+    try {
+      Metrics.snapshotAll(new File(getDataFolder(), "metrics"));
+    } catch (IOException e) {
+      getLogger().warning("Failed to write the metrics snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Removes a player that quit from the proxy identity caches of the modules.
+   *
+   * @param event The player quit event.
+   */
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    ProxyIdentityCache.invalidateEverywhere(event.getPlayer());
+  }
+
+  /**
+   * Removes an unloaded world, and its entities, from the proxy identity caches
+   * of the modules.
+   *
+   * @param event The world unload event.
+   */
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onWorldUnload(WorldUnloadEvent event) {
+    ProxyIdentityCache.invalidateEverywhere(event.getWorld());
+  }
+
+  /**
+   * Removes an entity that left its world from the proxy identity caches of the
+   * modules.
+   * Players are only removed when they quit, so they keep their proxy when they
+   * change worlds.
+   *
+   * @param event The entity remove event.
+   */
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+    if (!(event.getEntity() instanceof Player)) {
+      ProxyIdentityCache.invalidateEverywhere(event.getEntity());
+    }
+  }
+
   /**
    * Sets up modules by scanning the server root folder for directories
    * containing a package.json file.
@@ -164,11 +374,35 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
       if (file.isDirectory() && new File(file, "package.json").exists()) {
         Path path = file.toPath();
 
-        this.initRuntimeNewThread(path);
+        this.startModule(path);
       }
     }
   }
 
+  /**
+   * Starts a module, or arms its activation triggers if its package.json
+   * declares any, in which case the runtime is only started on first use.
+   * 
+   * @param modulePath The path to the module directory.
+   */
+  private void startModule(Path modulePath) {
+    WorkingDirectory workingDirectory;
+
+    try {
+      workingDirectory = new WorkingDirectory(modulePath);
+    } catch (Exception e) {
+      getLogger().severe("Failed to read module at " + modulePath + ": " + e.getMessage());
+      e.printStackTrace();
+      return;
+    }
+
+    if (workingDirectory.getActivationTriggers() != null) {
+      this.activator.register(modulePath, workingDirectory.getActivationTriggers());
+    } else {
+      this.initRuntimeNewThread(modulePath);
+    }
+  }
+
   /**
    * Loads a module by its name.
    * This method starts a new thread to initialize the runtime for the specified
@@ -182,7 +416,7 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
   public void loadModule(String moduleName) {
     Path modulePath = getDataFolder().toPath().resolve(moduleName);
 
-    this.initRuntimeNewThread(modulePath);
+    this.startModule(modulePath);
   }
 
   public void initRuntimeNewThread(Path modulePath) {
@@ -213,6 +447,8 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
   public void unloadModule(String moduleName) throws JavetException, InterruptedException {
     Path modulePath = getDataFolder().toPath().resolve(moduleName);
 
+    this.cancelLoadTest(moduleName);
+    this.activator.unregister(modulePath);
     this.pool.releaseRuntime(modulePath);
   }
 
@@ -249,14 +485,352 @@ public class PaperTSPlugin extends JavaPlugin implements Listener {
     this.loadModule(moduleName);
   }
 
+  /**
+   * Checks if a module is reloaded without downtime, see
+   * {@link #reloadModuleBlueGreen(String)}.
+   * This is the case when the module is up and running, and opted in, with
+   * "reloadMode" in its package.json or "reload-mode" in the config. The
+   * module decides, as both versions run side by side during the reload.
+   * 
+   * @param moduleName The name of the module.
+   * @return true if the module is reloaded without downtime, false otherwise.
+   */
+  public boolean isBlueGreenReload(String moduleName) {
+    Path modulePath = getDataFolder().toPath().resolve(moduleName);
+
+    if (this.pool.getGlobals(modulePath) == null) {
+      return false;
+    }
+
+    String reloadMode;
+
+    try {
+      reloadMode = new WorkingDirectory(modulePath).getReloadMode();
+    } catch (IOException | RuntimeException e) {
+      // The restart reports why the package file cannot be read
+      return false;
+    }
+
+    if (reloadMode == null) {
+      reloadMode = getConfig().getString("reload-mode", "restart");
+    }
+
+    return "blue-green".equalsIgnoreCase(reloadMode);
+  }
+
+  /**
+   * Reloads a running module without downtime.
+   * The new version boots next to the running one, and replaces it once it is
+   * up. If it fails to start, the running version is kept.
+   * 
+   * @param moduleName The name of the module to reload.
+   * @return A pending result, resolved once the new version replaced the old
+   *         one, or rejected with the reason the reload was rolled back.
+   */
+  public PendingResult<Void> reloadModuleBlueGreen(String moduleName) {
+    Path modulePath = getDataFolder().toPath().resolve(moduleName);
+    long timeoutMillis = getConfig().getLong("reload-timeout-seconds", 60) * 1000;
+    PendingResult<Void> result = new PendingResult<>();
+
+    // The test would keep firing at the old version
+    this.cancelLoadTest(moduleName);
+
+    // The reload waits for the new version to start, which may need the main
+    // thread
+    new Thread(() -> {
+      try {
+        this.pool.reloadRuntime(modulePath, timeoutMillis);
+        result.resolve(null);
+      } catch (Exception e) {
+        getLogger().severe("Failed to reload module " + moduleName + ": " + e.getMessage());
+        result.reject(e.getMessage());
+      }
+    }).start();
+
+    return result;
+  }
+
   /**
    * Lists all modules managed by the pool.
    * This method returns a set of paths representing the modules currently
-   * managed by the pool.
+   * managed by the pool, including the hibernated ones.
    * 
    * @return A set of paths representing the modules managed by the pool.
    */
   public Set<Path> listModules() {
-    return this.pool.getRuntimes();
+    Set<Path> modules = new HashSet<>(this.pool.getRuntimes());
+
+    modules.addAll(this.activator.getModules());
+
+    return modules;
+  }
+
+  /**
+   * Starts the V8 CPU profiler of a running module.
+   * Modules running in a shared runtime profile the whole shared runtime.
+   * 
+   * @param moduleName The name of the module.
+   * @return A pending result, resolved once the profiler is running.
+   */
+  public PendingResult<String> startProfiling(String moduleName) {
+    return this.runOnModuleRuntime(moduleName, runtime -> {
+      RuntimeInspector.startCpuProfile(runtime);
+      return moduleName;
+    });
+  }
+
+  /**
+   * Stops the V8 CPU profiler of a module, and writes its profile into the
+   * profiles folder of the plugin.
+   * 
+   * @param moduleName The name of the module.
+   * @return A pending result, resolved with the path of the .cpuprofile file.
+   */
+  public PendingResult<String> stopProfiling(String moduleName) {
+    File file = this.getProfilesFile(moduleName, "cpuprofile");
+
+    return this.runOnModuleRuntime(moduleName, runtime -> {
+      RuntimeInspector.stopCpuProfile(runtime, file);
+      return file.getPath();
+    });
+  }
+
+  /**
+   * Writes a heap snapshot of a running module into the profiles folder of the
+   * plugin. The module's runtime is paused while the snapshot is written, the
+   * server is not.
+   * 
+   * @param moduleName The name of the module.
+   * @return A pending result, resolved with the path of the .heapsnapshot file.
+   */
+  public PendingResult<String> writeHeapSnapshot(String moduleName) {
+    File file = this.getProfilesFile(moduleName, "heapsnapshot");
+
+    return this.runOnModuleRuntime(moduleName, runtime -> {
+      RuntimeInspector.writeHeapSnapshot(runtime, file);
+      return file.getPath();
+    });
+  }
+
+  /**
+   * Starts recording a trace of the handlers run by all modules, see
+   * {@link TraceRecorder}.
+   */
+  public void startTrace() {
+    TraceRecorder.start(getConfig().getInt("trace-buffer-size", 65536));
+  }
+
+  /**
+   * Stops recording the trace, and writes it into the profiles folder of the
+   * plugin, on a new thread.
+   * 
+   * @return A pending result, resolved with the path of the trace file.
+   */
+  public PendingResult<String> stopTrace() {
+    File file = this.getProfilesFile("trace", "json");
+    PendingResult<String> result = new PendingResult<>();
+
+    new Thread(() -> {
+      try {
+        int spans = TraceRecorder.stop(file);
+        result.resolve(file.getPath() + " (" + spans + " spans)");
+      } catch (Exception e) {
+        result.reject(e.getMessage());
+      }
+    }, "PaperTS-trace-writer").start();
+
+    return result;
+  }
+
+  /**
+   * Starts a load test firing the traffic of virtual players at a running
+   * module, see {@link LoadTest}. This runs the test inside the server, load
+   * tests are rather meant to run offline with the loadTest task of the build.
+   * 
+   * @param moduleName The name of the module.
+   * @param players    The number of virtual players.
+   * @param seconds    The duration of the test, in seconds.
+   * @return A pending result, resolved with the report of the test.
+   */
+  public PendingResult<String> startLoadTest(String moduleName, int players, int seconds) {
+    Globals globals = this.pool.getGlobals(getDataFolder().toPath().resolve(moduleName));
+
+    if (globals == null) {
+      return this.rejected("Module " + moduleName + " is not running.");
+    } else if (players <= 0 || seconds <= 0) {
+      return this.rejected("The number of players and the duration must be positive.");
+    }
+
+    return this.startLoadTest(moduleName, globals,
+        LoadTest.generate(globals, Bukkit.getWorlds().get(0).getSpawnLocation(), players, seconds));
+  }
+
+  /**
+   * Starts a load test replaying a traffic log, from the recordings folder of
+   * the plugin, against a running module.
+   * 
+   * @param moduleName The name of the module.
+   * @param fileName   The name of the traffic log.
+   * @return A pending result, resolved with the report of the test.
+   */
+  public PendingResult<String> replayTraffic(String moduleName, String fileName) {
+    Globals globals = this.pool.getGlobals(getDataFolder().toPath().resolve(moduleName));
+    Path recordingsFolder = getDataFolder().toPath().resolve("recordings").normalize();
+    Path path = recordingsFolder.resolve(fileName).normalize();
+    File file = path.toFile();
+
+    if (globals == null) {
+      return this.rejected("Module " + moduleName + " is not running.");
+    } else if (!recordingsFolder.equals(path.getParent())) {
+      // Only traffic logs right in the recordings folder can be replayed
+      return this.rejected("Traffic log " + fileName + " is not in the recordings folder.");
+    } else if (!file.isFile()) {
+      return this.rejected("Traffic log " + fileName + " does not exist.");
+    }
+
+    try {
+      return this.startLoadTest(moduleName, globals, LoadTest.replay(file));
+    } catch (IOException e) {
+      return this.rejected(e.getMessage());
+    }
+  }
+
+  private PendingResult<String> startLoadTest(String moduleName, Globals globals, LoadTest.Source source) {
+    if (this.loadTest != null) {
+      source.close();
+      return this.rejected("A load test is already running.");
+    }
+
+    LoadTest test = new LoadTest(this, moduleName, globals, source, Bukkit.getWorlds().get(0));
+    PendingResult<String> result = test.start();
+
+    this.loadTest = test;
+    result.then(report -> {
+      this.loadTest = null;
+      getLogger().info(String.valueOf(report));
+      return null;
+    }, error -> {
+      this.loadTest = null;
+      return null;
+    });
+
+    return result;
+  }
+
+  /**
+   * Cancels the load test running against a module, if any.
+   * 
+   * @param moduleName The name of the module.
+   */
+  private void cancelLoadTest(String moduleName) {
+    LoadTest test = this.loadTest;
+
+    if (test != null && test.getModuleName().equals(moduleName)) {
+      test.cancel();
+    }
+  }
+
+  private PendingResult<String> rejected(String error) {
+    PendingResult<String> result = new PendingResult<>();
+
+    result.reject(error);
+
+    return result;
+  }
+
+  /**
+   * Starts recording the player traffic of the server into the recordings
+   * folder of the plugin, to replay it with a load test later.
+   * 
+   * @return The name of the traffic log.
+   * @throws Exception if traffic is already being recorded, or the log cannot
+   *                   be created.
+   */
+  public String startTrafficRecording() throws Exception {
+    File recordingsFolder = new File(getDataFolder(), "recordings");
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File file = new File(recordingsFolder, "traffic-" + timestamp + ".ptlog");
+
+    recordingsFolder.mkdirs();
+    this.trafficLog.start(file);
+
+    return file.getName();
+  }
+
+  /**
+   * Stops recording the player traffic of the server.
+   * 
+   * @return A pending result, resolved with the name of the traffic log once
+   *         it is written.
+   */
+  public PendingResult<String> stopTrafficRecording() {
+    PendingResult<String> result = new PendingResult<>();
+
+    new Thread(() -> {
+      try {
+        File file = this.trafficLog.stop();
+        result.resolve(file.getName() + " (" + this.trafficLog.getRecords() + " records)");
+      } catch (Exception e) {
+        result.reject(e.getMessage());
+      }
+    }, "PaperTS-traffic-log-stop").start();
+
+    return result;
+  }
+
+  private File getProfilesFile(String moduleName, String extension) {
+    File profilesFolder = new File(getDataFolder(), "profiles");
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+    profilesFolder.mkdirs();
+
+    return new File(profilesFolder, moduleName + "-" + timestamp + "." + extension);
+  }
+
+  /**
+   * Runs an action against the V8 runtime of a running module, on a new thread.
+   * 
+   * @param moduleName The name of the module.
+   * @param action     The action to run.
+   * @return A pending result, resolved with the result of the action.
+   */
+  private PendingResult<String> runOnModuleRuntime(String moduleName, RuntimeAction action) {
+    V8Runtime runtime = this.pool.getV8Runtime(getDataFolder().toPath().resolve(moduleName));
+    PendingResult<String> result = new PendingResult<>();
+
+    if (runtime == null) {
+      result.reject("Module " + moduleName + " is not running.");
+      return result;
+    }
+
+    new Thread(() -> {
+      try {
+        result.resolve(action.run(runtime));
+      } catch (Exception e) {
+        result.reject(e.getMessage());
+      }
+    }, "PaperTS-" + moduleName + "-inspector").start();
+
+    return result;
+  }
+
+  /**
+   * Gets the GC statistics of the running runtimes.
+   * 
+   * @return The statistics, by runtime name.
+   */
+  public Map<String, GcStats> getGcStats() {
+    return this.pool.getIdleGcScheduler().getStats();
+  }
+
+  /**
+   * Checks if a module is hibernated, waiting for one of its activation
+   * triggers.
+   * 
+   * @param modulePath The path to the module directory.
+   * @return true if the module is hibernated, false otherwise.
+   */
+  public boolean isModuleHibernated(Path modulePath) {
+    return this.activator.isHibernated(modulePath);
   }
 }
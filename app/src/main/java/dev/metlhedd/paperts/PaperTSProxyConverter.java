@@ -0,0 +1,61 @@
+package dev.metlhedd.paperts;
+
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.interop.V8Runtime;
+import com.caoccao.javet.interop.converters.JavetProxyConverter;
+import com.caoccao.javet.values.V8Value;
+import com.caoccao.javet.values.reference.V8ValueReference;
+
+/**
+ * PaperTSProxyConverter class, the converter installed on every module
+ * runtime.
+ * It behaves like the stock proxy converter, but returns the same proxy each
+ * time a long-lived object (player, world, entity) is passed into the runtime,
+ * see {@link ProxyIdentityCache}.
+ */
+public class PaperTSProxyConverter extends JavetProxyConverter {
+  /**
+   * The proxies of the long-lived objects of this runtime.
+   */
+  private ProxyIdentityCache identityCache;
+
+  /**
+   * Constructor for the PaperTSProxyConverter class.
+   */
+  public PaperTSProxyConverter() {
+    super();
+
+    this.identityCache = new ProxyIdentityCache();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T extends V8Value> T toV8Value(V8Runtime v8Runtime, Object object, int depth) throws JavetException {
+    if (object == null || !ProxyIdentityCache.isCachedType(object)) {
+      return super.toV8Value(v8Runtime, object, depth);
+    }
+
+    V8Value cached = this.identityCache.get(object);
+
+    if (cached != null) {
+      return (T) cached;
+    }
+
+    T v8Value = super.toV8Value(v8Runtime, object, depth);
+
+    if (v8Value instanceof V8ValueReference) {
+      this.identityCache.put(object, v8Value);
+    }
+
+    return v8Value;
+  }
+
+  /**
+   * Gets the identity cache of the runtime.
+   *
+   * @return The identity cache of the runtime.
+   */
+  public ProxyIdentityCache getIdentityCache() {
+    return this.identityCache;
+  }
+}
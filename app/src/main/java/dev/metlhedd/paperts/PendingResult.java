@@ -0,0 +1,146 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.function.Function;
+
+/**
+ * PendingResult class for values that are produced asynchronously on the Java
+ * side.
+ * It exposes a `then` method, which makes it a thenable on the JavaScript side,
+ * so scripts can simply `await` it like a Promise.
+ *
+ * @param <T> The type of the value the result is resolved with.
+ */
+public class PendingResult<T> {
+  /**
+   * Whether the result has been resolved or rejected.
+   */
+  private boolean done;
+  /**
+   * The value the result was resolved with, if any.
+   */
+  private T value;
+  /**
+   * The error message the result was rejected with, or null if it was resolved.
+   */
+  private String error;
+  /**
+   * Callbacks waiting for the result to be resolved.
+   */
+  private ArrayList<Function<Object, Void>> resolveCallbacks;
+  /**
+   * Callbacks waiting for the result to be rejected.
+   */
+  private ArrayList<Function<Object, Void>> rejectCallbacks;
+
+  /**
+   * Constructor for the PendingResult class.
+   */
+  public PendingResult() {
+    this.resolveCallbacks = new ArrayList<>();
+    this.rejectCallbacks = new ArrayList<>();
+  }
+
+  /**
+   * Registers the callbacks for the result, following the Promise/A+ thenable
+   * contract used by `await`.
+   * If the result is already completed, the matching callback is called
+   * immediately.
+   *
+   * @param onResolve The function called with the value once resolved.
+   * @param onReject  The function called with the error message once rejected.
+   */
+  public void then(Function<Object, Void> onResolve, Function<Object, Void> onReject) {
+    synchronized (this) {
+      if (!this.done) {
+        if (onResolve != null) {
+          this.resolveCallbacks.add(onResolve);
+        }
+
+        if (onReject != null) {
+          this.rejectCallbacks.add(onReject);
+        }
+
+        return;
+      }
+    }
+
+    if (this.error == null) {
+      if (onResolve != null) {
+        onResolve.apply(this.value);
+      }
+    } else if (onReject != null) {
+      onReject.apply(this.error);
+    }
+  }
+
+  /**
+   * Registers a callback for the result being resolved.
+   *
+   * @param onResolve The function called with the value once resolved.
+   */
+  public void then(Function<Object, Void> onResolve) {
+    this.then(onResolve, null);
+  }
+
+  /**
+   * Resolves the result with the given value.
+   * Does nothing if the result is already completed.
+   *
+   * @param value The value to resolve the result with.
+   */
+  public void resolve(T value) {
+    ArrayList<Function<Object, Void>> callbacks;
+
+    synchronized (this) {
+      if (this.done) {
+        return;
+      }
+
+      this.done = true;
+      this.value = value;
+      callbacks = this.resolveCallbacks;
+      this.resolveCallbacks = new ArrayList<>();
+      this.rejectCallbacks.clear();
+    }
+
+    for (Function<Object, Void> callback : callbacks) {
+      callback.apply(value);
+    }
+  }
+
+  /**
+   * Rejects the result with the given error message.
+   * Does nothing if the result is already completed.
+   *
+   * @param error The error message to reject the result with.
+   */
+  public void reject(String error) {
+    ArrayList<Function<Object, Void>> callbacks;
+
+    synchronized (this) {
+      if (this.done) {
+        return;
+      }
+
+      this.done = true;
+      this.error = error == null ? "Unknown error" : error;
+      callbacks = this.rejectCallbacks;
+      this.rejectCallbacks = new ArrayList<>();
+      this.resolveCallbacks.clear();
+    }
+
+    for (Function<Object, Void> callback : callbacks) {
+      callback.apply(this.error);
+    }
+  }
+
+  /**
+   * Checks if the result has been resolved or rejected.
+   *
+   * @return true if the result is completed, false otherwise.
+   */
+  public synchronized boolean isDone() {
+    return this.done;
+  }
+}
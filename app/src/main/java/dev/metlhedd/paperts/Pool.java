@@ -2,24 +2,30 @@ package dev.metlhedd.paperts;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bukkit.*;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
 
 import com.caoccao.javet.enums.JSRuntimeType;
+import com.caoccao.javet.enums.V8AwaitMode;
 import com.caoccao.javet.exceptions.JavetException;
 import com.caoccao.javet.interception.jvm.JavetJVMInterceptor;
 import com.caoccao.javet.interop.NodeRuntime;
+import com.caoccao.javet.interop.V8Host;
 import com.caoccao.javet.interop.V8Runtime;
-import com.caoccao.javet.interop.converters.JavetProxyConverter;
-import com.caoccao.javet.interop.engine.IJavetEngine;
-import com.caoccao.javet.interop.engine.IJavetEnginePool;
-import com.caoccao.javet.interop.engine.JavetEnginePool;
 import com.caoccao.javet.interop.options.NodeRuntimeOptions;
 import com.caoccao.javet.node.modules.NodeModuleModule;
 import com.google.gson.JsonSyntaxException;
@@ -29,20 +35,172 @@ import com.google.gson.JsonSyntaxException;
  * This class handles the initialization, starting, and releasing of runtimes.
  */
 public class Pool {
+  /**
+   * How long the old version of a module may take to finish its queued work
+   * after a blue/green reload, in milliseconds.
+   */
+  private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+  /**
+   * How often the event loop of a runtime is pumped, in milliseconds.
+   */
+  private static final long PUMP_INTERVAL_MILLIS = 10;
+  /**
+   * Lets require load Java packages, e.g. require("org.bukkit"), next to Node
+   * modules.
+   */
+  static final String REQUIRE_SCRIPT = """
+      const Module = require("module");
+      const originalRequire = Module.prototype.require;
+
+      Module.prototype.require = function () {
+        if (arguments.length === 1 && typeof arguments[0] === "string" && (arguments[0].startsWith("org.") || arguments[0].startsWith("java.") || arguments[0].startsWith("net.") || arguments[0].startsWith("com."))) {
+          return javet.package[arguments[0]];
+        }
+
+        return originalRequire.apply(this, arguments);
+      };
+      """;
+
+  /**
+   * A runtime of a module, from its creation until it is closed.
+   * During a blue/green reload, a module has two of them.
+   */
+  private static class ModuleRuntime {
+    /**
+     * Whether the registrations of the runtime are staged, see
+     * {@link Globals#setStaged(boolean)}.
+     */
+    private final boolean staged;
+    /**
+     * Whether the runtime can be closed. Shared by the shards of a module, so
+     * they are closed together.
+     */
+    private final AtomicBoolean canBeClosed;
+    /**
+     * The shards of the module, or null if it is not sharded.
+     */
+    private final ShardGroup shardGroup;
+    /**
+     * The index of the shard this runtime runs.
+     */
+    private final int shard;
+    /**
+     * The runtimes of the other shards, on the runtime of the first shard.
+     */
+    private final List<ModuleRuntime> followers = new CopyOnWriteArrayList<>();
+    /**
+     * The globals of the runtime, set while its script is up and running.
+     */
+    private volatile Globals globals;
+    /**
+     * The V8 runtime running the module, set while its script is up and
+     * running. Shared with other modules if the module runs in a shared
+     * runtime.
+     */
+    private volatile V8Runtime runtime;
+    /**
+     * Whether the script failed to start.
+     */
+    private volatile boolean failed;
+    /**
+     * Whether the runtime is closed.
+     */
+    private volatile boolean closed;
+
+    ModuleRuntime(boolean staged, int shards) {
+      this.staged = staged;
+      this.canBeClosed = new AtomicBoolean(false);
+      this.shardGroup = shards > 1 ? new ShardGroup(shards) : null;
+      this.shard = 0;
+    }
+
+    ModuleRuntime(ModuleRuntime leader, int shard) {
+      this.staged = leader.staged;
+      this.canBeClosed = leader.canBeClosed;
+      this.shardGroup = leader.shardGroup;
+      this.shard = shard;
+    }
+
+    /**
+     * Gets the globals of every shard of the runtime.
+     *
+     * @return The globals, or null if the script of a shard is not running.
+     */
+    List<Globals> getAllGlobals() {
+      ArrayList<Globals> allGlobals = new ArrayList<>();
+
+      allGlobals.add(this.globals);
+
+      for (ModuleRuntime follower : this.followers) {
+        allGlobals.add(follower.globals);
+      }
+
+      return allGlobals.contains(null) ? null : allGlobals;
+    }
+
+    /**
+     * Checks if the script of a shard failed to start, or stopped.
+     *
+     * @return true if a shard failed or is closed.
+     */
+    boolean hasFailed() {
+      if (this.failed || this.closed) {
+        return true;
+      }
+
+      for (ModuleRuntime follower : this.followers) {
+        if (follower.failed || follower.closed) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+  }
+
   /**
    * The JavaPlugin instance associated with this pool, used for logging and
    * accessing plugin resources.
    */
   private JavaPlugin plugin;
   /**
-   * A map to track whether a runtime can be closed for each path.
-   * The key is the path to the module directory, and the value is an
-   * AtomicBoolean
-   * indicating whether the runtime can be closed.
+   * Maps the paths of the modules to their current runtime.
    * This is used to manage the lifecycle of runtimes and ensure they are closed
    * properly when they are no longer needed.
    */
-  private HashMap<Path, AtomicBoolean> runtimeCanBeClosed;
+  private ConcurrentHashMap<Path, ModuleRuntime> runtimes;
+  /**
+   * Maps the paths of the modules being reloaded to the runtime of their new
+   * version, until it replaces the current one.
+   */
+  private ConcurrentHashMap<Path, ModuleRuntime> stagedRuntimes;
+  /**
+   * The runtimes shared by the modules that opted into it, by runtime profile,
+   * created when first needed.
+   */
+  private HashMap<String, SharedIsolate> sharedIsolates;
+  /**
+   * The runtimes running the world generator scripts of the modules, by module
+   * path, created when a world first uses them.
+   */
+  private HashMap<Path, GeneratorPool> generators;
+  /**
+   * The runtime profiles modules can select, by name.
+   */
+  private Map<String, RuntimeProfile> profiles;
+  /**
+   * The V8 flags set for the whole server.
+   */
+  private List<String> v8Flags;
+  /**
+   * The number of contexts created in the shared runtime, used to name them.
+   */
+  private AtomicLong sharedContextCount;
+  /**
+   * Hands the slack at the end of each tick to the runtimes, and keeps their
+   * GC statistics.
+   */
+  private IdleGcScheduler idleGcScheduler;
   private JSRuntimeType runtimeType;
 
   /**
@@ -59,24 +217,49 @@ public class Pool {
    *                       If false, the Node.js runtime will be configured
    *                       without
    *                       i18n support.
+   * @param v8Flags        The V8 flags set for the whole server, already checked
+   *                       against the allowlist.
+   * @param profiles       The runtime profiles modules can select, by name.
    * @throws JavetException if there is an error initializing the Javet engine
    *                        pool.
    */
-  public Pool(JavaPlugin plugin, boolean enableNodeI18n) throws JavetException {
+  public Pool(JavaPlugin plugin, boolean enableNodeI18n, List<String> v8Flags, Map<String, RuntimeProfile> profiles)
+      throws JavetException {
     // Set the JavaScript runtime type to Node.js
-    NodeRuntimeOptions nodeRuntimeOptions = new NodeRuntimeOptions();
-    nodeRuntimeOptions.setConsoleArguments(new String[] { "--input-type=commonjs" });
-
     if (enableNodeI18n) {
       this.runtimeType = JSRuntimeType.NodeI18n;
-      this.runtimeType.isRuntimeOptionsValid(nodeRuntimeOptions);
     } else {
       this.runtimeType = JSRuntimeType.Node;
-      this.runtimeType.isRuntimeOptionsValid(nodeRuntimeOptions);
+    }
+
+    // V8 is initialized once per process, so its flags can only be set before
+    // the first runtime is created. After a plugin reload, the flags applied
+    // at startup are still the ones in effect.
+    if (NodeRuntimeOptions.V8_FLAGS.isSealed()) {
+      String customFlags = NodeRuntimeOptions.V8_FLAGS.getCustomFlags();
+      List<String> applied = customFlags == null || customFlags.isBlank() ? List.of()
+          : List.of(customFlags.trim().split("\\s+"));
+
+      if (!applied.equals(v8Flags)) {
+        plugin.getLogger().warning("V8 flags cannot be changed until the server restarts, keeping " + applied
+            + " instead of v8-flags.");
+      }
+
+      v8Flags = applied;
+    } else if (!v8Flags.isEmpty()) {
+      NodeRuntimeOptions.V8_FLAGS.setCustomFlags(String.join(" ", v8Flags));
     }
 
     this.plugin = plugin;
-    this.runtimeCanBeClosed = new HashMap<>();
+    this.v8Flags = v8Flags;
+    this.profiles = new HashMap<>(profiles);
+    this.profiles.putIfAbsent(RuntimeProfile.DEFAULT_NAME, RuntimeProfile.createDefault());
+    this.sharedIsolates = new HashMap<>();
+    this.generators = new HashMap<>();
+    this.runtimes = new ConcurrentHashMap<>();
+    this.stagedRuntimes = new ConcurrentHashMap<>();
+    this.sharedContextCount = new AtomicLong();
+    this.idleGcScheduler = new IdleGcScheduler(plugin);
 
   }
 
@@ -94,170 +277,502 @@ public class Pool {
    * @throws InterruptedException if the thread is interrupted while waiting for
    *                              the runtime to be ready.
    */
-  @SuppressWarnings("null")
   public void initRuntime(Path path)
       throws RuntimeException, IOException, JsonSyntaxException, JavetException, InterruptedException {
-    try (IJavetEnginePool<V8Runtime> javetEnginePool = new JavetEnginePool<>()) {
-      javetEnginePool.getConfig().setJSRuntimeType(this.runtimeType);
+    ModuleRuntime moduleRuntime = new ModuleRuntime(false, new WorkingDirectory(path).getShards());
 
-      try (IJavetEngine<V8Runtime> javetEngine = javetEnginePool.getEngine()) {
-        if (javetEngine == null) {
-          throw new RuntimeException("Failed to create Javet engine.");
+    this.runtimes.put(path, moduleRuntime);
+    this.runRuntime(path, moduleRuntime);
+  }
+
+  /**
+   * Runs a runtime for the given path until it is released.
+   * 
+   * @param path          The path to the module directory.
+   * @param moduleRuntime The runtime to run, already tracked by the pool.
+   * @throws RuntimeException     if the runtime cannot be initialized.
+   * @throws IOException          if there is an error reading the module files.
+   * @throws JsonSyntaxException  if the package.json file is malformed.
+   * @throws JavetException       if there is an error with the Javet engine.
+   * @throws InterruptedException if the thread is interrupted while waiting for
+   *                              the runtime to be ready.
+   */
+  private void runRuntime(Path path, ModuleRuntime moduleRuntime)
+      throws RuntimeException, IOException, JsonSyntaxException, JavetException, InterruptedException {
+    try {
+      if (new WorkingDirectory(path).isSharedIsolate()) {
+        this.startAndAwaitSharedContext(path, moduleRuntime);
+      } else {
+        this.startFollowers(path, moduleRuntime);
+        this.startAndAwaitRuntime(path, moduleRuntime);
+      }
+    } finally {
+      moduleRuntime.canBeClosed.set(true);
+
+      for (ModuleRuntime follower : moduleRuntime.followers) {
+        while (!follower.closed) {
+          TimeUnit.MILLISECONDS.sleep(100);
         }
+      }
 
-        try (V8Runtime runtime = javetEngine.getV8Runtime()) {
-          if (runtime == null) {
-            throw new RuntimeException("Failed to create V8 runtime.");
-          }
+      moduleRuntime.globals = null;
+      moduleRuntime.runtime = null;
+      moduleRuntime.closed = true;
+      this.runtimes.remove(path, moduleRuntime);
+      this.stagedRuntimes.remove(path, moduleRuntime);
+    }
+  }
 
-          JavetProxyConverter proxyConverter = new JavetProxyConverter();
-          WorkingDirectory workingDirectory = new WorkingDirectory(path);
-          JavetJVMInterceptor javetJVMInterceptor = new JavetJVMInterceptor(runtime);
-          Globals globals = new Globals(plugin);
-          AtomicBoolean scriptIsUp = new AtomicBoolean(false);
-
-          runtime.allowEval(true);
-          ((NodeRuntime) runtime).getNodeModule(NodeModuleModule.class).setRequireRootDirectory(path.toFile());
-          // ((NodeRuntime)
-          // runtime).getNodeModule(NodeModuleProcess.class).setWorkingDirectory(path.toFile());
-
-          runtime.setConverter(proxyConverter);
-          javetJVMInterceptor.register(runtime.getGlobalObject());
-
-          runtime.getGlobalObject().set("PaperTS", globals);
-          runtime.getGlobalObject().set("TreeType", TreeType.class);
-          runtime.getGlobalObject().set("Material", Material.class);
-          runtime.getGlobalObject().set("GameMode", GameMode.class);
-          runtime.getGlobalObject().set("Difficulty", Difficulty.class);
-          runtime.getGlobalObject().set("Java", new JavaBridge());
-
-          // Set the global objects for the runtime
-          runtime.getExecutor("let org = javet.package.org").executeVoid();
-          runtime.getExecutor("let java = javet.package.java").executeVoid();
-
-          // Setup required function
-          runtime
-              .getExecutor(
-                  """
-                      const Module = require("module");
-                      const originalRequire = Module.prototype.require;
-
-                      Module.prototype.require = function () {
-                        if (arguments.length === 1 && typeof arguments[0] === "string" && (arguments[0].startsWith("org.") || arguments[0].startsWith("java.") || arguments[0].startsWith("net.") || arguments[0].startsWith("com."))) {
-                          return javet.package[arguments[0]];
-                        }
-
-                        return originalRequire.apply(this, arguments);
-                      };
-                      """)
-              .executeVoid();
-          // Handle uncaught exceptions in the runtime
-          runtime.getExecutor(
-              """
-                    process.on("uncaughtException", function (err) {
-                        console.error("Uncaught Exception:", err);
-                    });
-                  """)
-              .executeVoid();
-          // Prevent exports and module from being undefined
-          runtime.getExecutor(
-              """
-                  var exports = exports || {};
-                  """).executeVoid();
-          runtime.getExecutor(
-              """
-                  var module = module || {};
-                  """).executeVoid();
-
-          this.runtimeCanBeClosed.put(path, new AtomicBoolean(false));
-
-          BukkitTask bukkitTask = null;
-          Thread thread = null;
-
-          Runnable startRuntime = () -> {
-            try {
-              runtime.getExecutor(workingDirectory.getIndexScriptContent()).executeVoid();
-              scriptIsUp.set(true);
-              plugin.getLogger().info("Script is up and running for path " + path + " and run type: "
-                  + workingDirectory.getRunType().name());
-              runtime.await();
-            } catch (Exception e) {
-              plugin.getLogger().severe("Failed to start runtime for path " + path + " and run type: "
-                  + workingDirectory.getRunType().name() + ": " + e.getMessage());
-              e.printStackTrace();
-              scriptIsUp.set(true);
-              this.runtimeCanBeClosed.get(path).set(true);
-            }
-          };
-
-          switch (workingDirectory.getRunType()) {
-            case SynchronousOnNextTick:
-              bukkitTask = Bukkit.getScheduler().runTask(plugin, startRuntime);
-              break;
-            case AsynchronousOnNextTick:
-              bukkitTask = Bukkit.getScheduler().runTaskAsynchronously(plugin, startRuntime);
-              break;
-            case NewThread:
-              thread = new Thread(startRuntime);
-              thread.start();
-              break;
-          }
+  /**
+   * Starts the runtimes of the other shards of a sharded module, each on a
+   * thread of its own. They are closed together with the first shard.
+   * 
+   * @param path   The path to the module directory.
+   * @param leader The runtime of the first shard.
+   */
+  private void startFollowers(Path path, ModuleRuntime leader) {
+    if (leader.shardGroup == null) {
+      return;
+    }
 
-          // Wait for the script to be up before proceeding
-          while (!scriptIsUp.get()) {
-            TimeUnit.MILLISECONDS.sleep(1000);
-          }
+    for (int shard = 1; shard < leader.shardGroup.size(); shard++) {
+      ModuleRuntime follower = new ModuleRuntime(leader, shard);
+
+      leader.followers.add(follower);
+      new Thread(() -> {
+        try {
+          this.startAndAwaitRuntime(path, follower);
+        } catch (Exception e) {
+          follower.failed = true;
+          this.reportError(path, null, "startup of shard " + follower.shard, e);
+        } finally {
+          // A module is not usable without all of its shards
+          follower.canBeClosed.set(true);
+          follower.globals = null;
+          follower.runtime = null;
+          follower.closed = true;
+        }
+      }, "PaperTS-" + path.getFileName() + "-shard-" + shard).start();
+    }
+  }
+
+  /**
+   * Reports an error of a module thrown outside of its handlers through the
+   * error reporter of the module, or a new one if it has no globals yet.
+   *
+   * @param path    The path to the module directory.
+   * @param globals The globals of the module, or null.
+   * @param source  The source of the error, e.g. "startup of shard 1".
+   * @param error   The error.
+   */
+  private void reportError(Path path, Globals globals, String source, Throwable error) {
+    ErrorReporter errorReporter = globals != null ? globals.getErrorReporter()
+        : new ErrorReporter(plugin, path.getFileName().toString());
 
-          // Wait for the runtime to be closed
-          while (true) {
-            TimeUnit.MILLISECONDS.sleep(100);
+    errorReporter.report(source, error);
+  }
 
-            if (this.runtimeCanBeClosed.get(path).get()) {
-              plugin.getLogger().info("Closing runtime for path: " + path);
-              break;
-            }
-          }
+  /**
+   * Runs a module in a context of the shared runtime until it is released.
+   * The run type is honored for the script's first execution; afterwards the
+   * module is driven by the event loop of the shared runtime.
+   * 
+   * @param path          The path to the module directory.
+   * @param moduleRuntime The runtime to run, already tracked by the pool.
+   * @throws IOException          if there is an error reading the module files.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  private void startAndAwaitSharedContext(Path path, ModuleRuntime moduleRuntime)
+      throws IOException, InterruptedException {
+    WorkingDirectory workingDirectory = new WorkingDirectory(path);
+    String contextId = path.getFileName() + "#" + this.sharedContextCount.incrementAndGet();
+    String code = workingDirectory.getIndexScriptContent();
+    Globals globals = new Globals(plugin, path.getFileName().toString());
+    SharedIsolate isolate = this.retainSharedIsolate(this.getProfile(workingDirectory));
+
+    globals.setStaged(moduleRuntime.staged);
+
+    try {
+      Callable<Void> createContext = () -> {
+        long traceStart = TraceRecorder.begin();
+
+        try {
+          isolate.createContext(contextId, globals, workingDirectory.getIndexScriptPath(), code);
+        } finally {
+          TraceRecorder.end(traceStart, path.getFileName().toString(), TraceRecorder.LIFECYCLE, "Start");
+        }
+
+        return null;
+      };
+
+      try {
+        if (workingDirectory.getRunType() == RunType.SynchronousOnNextTick) {
+          Schedulers.callGlobal(plugin, createContext).get();
+        } else {
+          createContext.call();
+        }
+
+        moduleRuntime.runtime = isolate.getRuntime();
+        moduleRuntime.globals = globals;
+        plugin.getLogger().info("Script is up and running for path " + path + " in the shared runtime.");
+      } catch (Exception e) {
+        Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+
+        globals.getErrorReporter().report("startup in the shared runtime", cause);
+        moduleRuntime.failed = true;
+        moduleRuntime.canBeClosed.set(true);
+      }
+
+      while (!moduleRuntime.canBeClosed.get()) {
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+
+      plugin.getLogger().info("Closing context for path: " + path);
+      moduleRuntime.globals = null;
+      moduleRuntime.runtime = null;
+
+      long traceStart = TraceRecorder.begin();
+
+      globals.close();
+      isolate.disposeContext(contextId);
+      globals.getResourceTracker().closeAll();
+      globals.closeStore();
+      TraceRecorder.end(traceStart, path.getFileName().toString(), TraceRecorder.LIFECYCLE, "Stop");
+    } finally {
+      isolate.release();
+    }
+  }
+
+  /**
+   * Takes a reference to the shared runtime of a profile, starting it if
+   * needed. Modules only share a runtime with modules of the same profile.
+   * 
+   * @param profile The runtime profile of the module.
+   * @return The shared runtime.
+   * @throws InterruptedException if the thread is interrupted while waiting for
+   *                              the runtime to start.
+   */
+  private synchronized SharedIsolate retainSharedIsolate(RuntimeProfile profile) throws InterruptedException {
+    SharedIsolate isolate = this.sharedIsolates.get(profile.getName());
+
+    if (isolate == null || !isolate.retain()) {
+      isolate = new SharedIsolate(plugin, this.runtimeType, profile, this.idleGcScheduler);
+      isolate.start();
+      isolate.retain();
+      this.sharedIsolates.put(profile.getName(), isolate);
+    }
+
+    return isolate;
+  }
+
+  /**
+   * Gets the runtime profile selected by a module.
+   * 
+   * @param workingDirectory The working directory of the module.
+   * @return The runtime profile of the module.
+   * @throws RuntimeException if the profile does not exist, or requires V8 flags
+   *                          that are not set.
+   */
+  private RuntimeProfile getProfile(WorkingDirectory workingDirectory) throws RuntimeException {
+    RuntimeProfile profile = this.profiles.get(workingDirectory.getRuntimeProfile());
 
-          this.runtimeCanBeClosed.remove(path);
+    if (profile == null) {
+      throw new RuntimeException("Unknown runtime profile " + workingDirectory.getRuntimeProfile() + " for module "
+          + workingDirectory.getPath().getFileName() + ".");
+    }
+
+    try {
+      profile.checkRequirements(this.v8Flags);
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException("Module " + workingDirectory.getPath().getFileName() + " cannot be loaded: "
+          + e.getMessage());
+    }
 
-          globals.unregisterAllCommands();
-          globals.unregisterAllEvents();
+    return profile;
+  }
+
+  @SuppressWarnings("null")
+  private void startAndAwaitRuntime(Path path, ModuleRuntime moduleRuntime)
+      throws RuntimeException, IOException, JsonSyntaxException, JavetException, InterruptedException {
+    WorkingDirectory workingDirectory = new WorkingDirectory(path);
+    RuntimeProfile profile = this.getProfile(workingDirectory);
 
-          if (bukkitTask != null) {
-            bukkitTask.cancel();
-          } else if (thread != null) {
-            thread.interrupt();
+    try (V8Runtime runtime = V8Host.getInstance(this.runtimeType).createV8Runtime(profile.toRuntimeOptions())) {
+      if (runtime == null) {
+        throw new RuntimeException("Failed to create V8 runtime.");
+      }
+
+      PaperTSProxyConverter proxyConverter = new PaperTSProxyConverter();
+      JavetJVMInterceptor javetJVMInterceptor = new JavetJVMInterceptor(runtime);
+      Globals globals = new Globals(plugin, path.getFileName().toString());
+      AtomicBoolean scriptIsUp = new AtomicBoolean(false);
+      String runtimeName = moduleRuntime.shard > 0 ? path.getFileName() + "#" + moduleRuntime.shard
+          : path.getFileName().toString();
+
+      globals.setStaged(moduleRuntime.staged);
+
+      if (moduleRuntime.shardGroup != null) {
+        globals.setShard(moduleRuntime.shardGroup, moduleRuntime.shard);
+      }
+
+      runtime.allowEval(profile.isAllowEval());
+      ((NodeRuntime) runtime).getNodeModule(NodeModuleModule.class).setRequireRootDirectory(path.toFile());
+      // ((NodeRuntime)
+      // runtime).getNodeModule(NodeModuleProcess.class).setWorkingDirectory(path.toFile());
+
+      runtime.setConverter(proxyConverter);
+      globals.setProxyIdentityCache(proxyConverter.getIdentityCache());
+      javetJVMInterceptor.register(runtime.getGlobalObject());
+
+      runtime.getGlobalObject().set("PaperTS", globals);
+      runtime.getGlobalObject().set("TreeType", TreeType.class);
+      runtime.getGlobalObject().set("Material", Material.class);
+      runtime.getGlobalObject().set("GameMode", GameMode.class);
+      runtime.getGlobalObject().set("Difficulty", Difficulty.class);
+      runtime.getGlobalObject().set("Java", new JavaBridge());
+
+      // Set the global objects for the runtime
+      runtime.getExecutor("let org = javet.package.org").executeVoid();
+      runtime.getExecutor("let java = javet.package.java").executeVoid();
+
+      // Setup required function
+      runtime.getExecutor(REQUIRE_SCRIPT).executeVoid();
+      // Handle uncaught exceptions in the runtime
+      runtime.getExecutor(
+          """
+                process.on("uncaughtException", function (err) {
+                    console.error("Uncaught Exception:", err);
+                });
+              """)
+          .executeVoid();
+      // Count the GC pauses of the runtime
+      runtime.getGlobalObject().set("__papertsGcStats",
+          this.idleGcScheduler.register(runtimeName, runtime));
+      runtime.getExecutor(GcStats.OBSERVER_SCRIPT).executeVoid();
+      // Prevent exports and module from being undefined
+      runtime.getExecutor(
+          """
+              var exports = exports || {};
+              """).executeVoid();
+      runtime.getExecutor(
+          """
+              var module = module || {};
+              """).executeVoid();
+
+      Schedulers.Task startTask = null;
+      Thread thread = null;
+
+      Runnable startRuntime = () -> {
+        try {
+          long traceStart = TraceRecorder.begin();
+
+          try {
+            runtime.getExecutor(workingDirectory.getIndexScriptContent()).executeVoid();
+          } finally {
+            TraceRecorder.end(traceStart, path.getFileName().toString(), TraceRecorder.LIFECYCLE, "Start");
           }
 
-          // Add cleanup logic for the runtime
-          runtime.getExecutor(
-              """
-                  try {
-                    cleanup();
-                  } catch (err) {
-                    // Just ignore cleanup errors
-                  }
-                  """).executeVoid();
-          runtime.getExecutor("PaperTS = undefined;").executeVoid();
-          javetJVMInterceptor.unregister(runtime.getGlobalObject());
-
-          // Dispose of the runtime explicitly
-          runtime.lowMemoryNotification();
-          ((NodeRuntime) runtime).setStopping(true);
-          runtime.terminateExecution();
-          runtime.resetContext();
-          System.gc();
-          System.runFinalization();
+          moduleRuntime.runtime = runtime;
+          moduleRuntime.globals = globals;
+
+          if (moduleRuntime.shardGroup != null) {
+            moduleRuntime.shardGroup.set(moduleRuntime.shard, globals);
+          }
+
+          scriptIsUp.set(true);
+          plugin.getLogger().info("Script is up and running for path " + path + " and run type: "
+              + workingDirectory.getRunType().name());
+        } catch (Exception e) {
+          globals.getErrorReporter().report("startup with run type " + workingDirectory.getRunType().name(), e);
+          moduleRuntime.failed = true;
+          scriptIsUp.set(true);
+          moduleRuntime.canBeClosed.set(true);
         }
+      };
+
+      switch (workingDirectory.getRunType()) {
+        case SynchronousOnNextTick:
+          startTask = Schedulers.run(plugin, startRuntime);
+          break;
+        case AsynchronousOnNextTick:
+          startTask = Schedulers.runAsync(plugin, startRuntime);
+          break;
+        case NewThread:
+          thread = new Thread(startRuntime);
+          thread.start();
+          break;
+      }
 
-        System.gc();
-        System.runFinalization();
-        javetEngine.sendGCNotification();
+      // Wait for the script to be up before proceeding
+      while (!scriptIsUp.get()) {
+        TimeUnit.MILLISECONDS.sleep(1000);
       }
+
+      // Pump the event loop until the runtime is closed, running the work
+      // queued by the module between two turns, so a single thread drives the
+      // loop and the queued work
+      while (!moduleRuntime.canBeClosed.get()) {
+        runtime.await(V8AwaitMode.RunNoWait);
+        globals.runQueuedWork(PUMP_INTERVAL_MILLIS);
+      }
+
+      plugin.getLogger().info("Closing runtime for path: " + path);
+
+      moduleRuntime.globals = null;
+      moduleRuntime.runtime = null;
+
+      if (moduleRuntime.shardGroup != null) {
+        moduleRuntime.shardGroup.set(moduleRuntime.shard, null);
+      }
+
+      long traceStart = TraceRecorder.begin();
+
+      globals.close();
+      proxyConverter.getIdentityCache().close();
+
+      if (startTask != null) {
+        startTask.cancel();
+      } else if (thread != null) {
+        thread.interrupt();
+      }
+
+      this.idleGcScheduler.unregister(runtime);
+      runtime.getExecutor(GcStats.DISCONNECT_SCRIPT).executeVoid();
+
+      // Add cleanup logic for the runtime
+      runtime.getExecutor(
+          """
+              try {
+                cleanup();
+              } catch (err) {
+                // Just ignore cleanup errors
+              }
+              """).executeVoid();
+      runtime.getExecutor("PaperTS = undefined;").executeVoid();
+      javetJVMInterceptor.unregister(runtime.getGlobalObject());
+
+      // Close the values held by Java explicitly, the runtime closes the
+      // remaining references itself, so there is no need for a collection
+      globals.getResourceTracker().closeAll();
+      globals.closeStore();
+
+      if (ResourceTracker.isDebug() && runtime.getReferenceCount() > 0) {
+        plugin.getLogger().warning("Runtime for path " + path + " still has " + runtime.getReferenceCount()
+            + " references, closing them with the runtime.");
+      }
+
+      // Dispose of the runtime explicitly
+      ((NodeRuntime) runtime).setStopping(true);
+      runtime.terminateExecution();
+      runtime.resetContext();
+      TraceRecorder.end(traceStart, path.getFileName().toString(), TraceRecorder.LIFECYCLE, "Stop");
+    }
+  }
+
+  /**
+   * Reloads the module at the given path without downtime.
+   * The new version boots next to the running one, with its registrations
+   * staged. Once its script is up, the events and commands of both versions are
+   * swapped on the main thread, within a single tick, and the old version is
+   * drained and released. If the new version fails to start, or does not start
+   * in time, it is released and the old version keeps running.
+   * This blocks until the reload is done, and must not be called from the main
+   * thread.
+   * 
+   * @param path          The path to the module directory.
+   * @param timeoutMillis How long the new version may take to start, in
+   *                      milliseconds.
+   * @throws RuntimeException     if the module is not running, is already being
+   *                              reloaded, or if the new version failed to
+   *                              start.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void reloadRuntime(Path path, long timeoutMillis) throws RuntimeException, InterruptedException {
+    ModuleRuntime current = this.runtimes.get(path);
+
+    if (current == null || current.getAllGlobals() == null) {
+      throw new RuntimeException("Module " + path.getFileName() + " is not running.");
+    }
+
+    ModuleRuntime next;
+
+    try {
+      next = new ModuleRuntime(true, new WorkingDirectory(path).getShards());
+    } catch (IOException | JsonSyntaxException e) {
+      throw new RuntimeException("Failed to read the new version of module " + path.getFileName() + ": "
+          + e.getMessage());
     }
 
-    System.gc();
-    System.runFinalization();
+    if (this.stagedRuntimes.putIfAbsent(path, next) != null) {
+      throw new RuntimeException("Module " + path.getFileName() + " is already being reloaded.");
+    }
+
+    new Thread(() -> {
+      try {
+        this.runRuntime(path, next);
+      } catch (Exception e) {
+        next.failed = true;
+        this.reportError(path, current.globals, "startup of the new version", e);
+      }
+    }).start();
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    while (next.getAllGlobals() == null && !next.hasFailed() && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    List<Globals> nextGlobals = next.getAllGlobals();
+    List<Globals> currentGlobals = current.getAllGlobals();
+
+    if (nextGlobals == null || currentGlobals == null) {
+      next.canBeClosed.set(true);
+      throw new RuntimeException("The new version of module " + path.getFileName()
+          + " failed to start, the running version is kept.");
+    }
+
+    try {
+      Schedulers.callGlobal(plugin, () -> {
+        long traceStart = TraceRecorder.begin();
+
+        currentGlobals.forEach(Globals::uninstall);
+
+        try {
+          nextGlobals.forEach(Globals::install);
+        } catch (Exception e) {
+          nextGlobals.forEach(Globals::uninstall);
+          currentGlobals.forEach(Globals::install);
+          throw e;
+        }
+
+        this.runtimes.put(path, next);
+        this.stagedRuntimes.remove(path, next);
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+          Schedulers.runFor(plugin, player, player::updateCommands, null);
+        }
+
+        TraceRecorder.end(traceStart, path.getFileName().toString(), TraceRecorder.LIFECYCLE, "Swap");
+
+        return null;
+      }).get();
+    } catch (ExecutionException e) {
+      next.canBeClosed.set(true);
+      throw new RuntimeException("Failed to swap the versions of module " + path.getFileName() + ": "
+          + e.getCause().getMessage());
+    }
+
+    // The old version no longer receives events or commands, let it finish the
+    // work it already accepted
+    for (Globals globals : currentGlobals) {
+      globals.drainWorker(DRAIN_TIMEOUT_MILLIS);
+    }
+
+    current.canBeClosed.set(true);
+
+    while (!current.closed) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
   }
 
   /**
@@ -274,14 +789,16 @@ public class Pool {
    *                        the runtime to be ready.
    */
   public void releaseRuntime(Path path) throws JavetException, InterruptedException {
-    AtomicBoolean canBeClosed = this.runtimeCanBeClosed.get(path);
+    ModuleRuntime moduleRuntime = this.runtimes.get(path);
 
-    if (canBeClosed != null) {
-      canBeClosed.set(true);
+    if (moduleRuntime == null) {
+      return;
     }
 
+    moduleRuntime.canBeClosed.set(true);
+
     // Wait until the runtime is closed
-    while (this.runtimeCanBeClosed.containsKey(path)) {
+    while (!moduleRuntime.closed) {
       TimeUnit.MILLISECONDS.sleep(1000);
     }
   }
@@ -294,13 +811,51 @@ public class Pool {
    * @throws JavetException if there is an error releasing the runtimes.
    */
   public void releaseAllRuntimes() throws JavetException {
-    for (Path path : this.runtimeCanBeClosed.keySet()) {
-      AtomicBoolean canBeClosed = this.runtimeCanBeClosed.get(path);
+    for (ModuleRuntime moduleRuntime : this.runtimes.values()) {
+      moduleRuntime.canBeClosed.set(true);
+    }
 
-      if (canBeClosed != null) {
-        canBeClosed.set(true);
+    for (ModuleRuntime moduleRuntime : this.stagedRuntimes.values()) {
+      moduleRuntime.canBeClosed.set(true);
+    }
+
+    synchronized (this) {
+      for (GeneratorPool generator : this.generators.values()) {
+        generator.close();
       }
+
+      this.generators.clear();
+    }
+  }
+
+  /**
+   * Gets a chunk generator running the world generator script of a module,
+   * the "generator" of its package.json.
+   * All the worlds generated by a module share the runtimes of its script,
+   * which are kept until the plugin is disabled, so changes to the script need
+   * a restart.
+   * 
+   * @param path The path to the module directory.
+   * @return The chunk generator.
+   * @throws RuntimeException    if the module has no world generator script, or
+   *                             if it fails.
+   * @throws IOException         if there is an error reading the module files.
+   * @throws JsonSyntaxException if the package.json file is malformed.
+   * @throws JavetException      if the runtime cannot be created.
+   */
+  public synchronized ScriptChunkGenerator getGenerator(Path path)
+      throws RuntimeException, IOException, JsonSyntaxException, JavetException {
+    GeneratorPool generator = this.generators.get(path);
+
+    if (generator == null) {
+      WorkingDirectory workingDirectory = new WorkingDirectory(path);
+
+      generator = new GeneratorPool(this.plugin, this.runtimeType, this.getProfile(workingDirectory),
+          workingDirectory);
+      this.generators.put(path, generator);
     }
+
+    return new ScriptChunkGenerator(generator);
   }
 
   /**
@@ -311,6 +866,40 @@ public class Pool {
    * @return A set of paths representing the runtimes managed by this pool.
    */
   public Set<Path> getRuntimes() {
-    return this.runtimeCanBeClosed.keySet();
+    return this.runtimes.keySet();
+  }
+
+  /**
+   * Gets the V8 runtime of a module whose script is up and running.
+   * Modules running in a shared runtime return the shared runtime.
+   * 
+   * @param path The path to the module directory.
+   * @return The V8 runtime of the module, or null if its script is not running.
+   */
+  public V8Runtime getV8Runtime(Path path) {
+    ModuleRuntime moduleRuntime = this.runtimes.get(path);
+
+    return moduleRuntime == null ? null : moduleRuntime.runtime;
+  }
+
+  /**
+   * Gets the scheduler handing idle time to the runtimes.
+   * 
+   * @return The idle GC scheduler of the pool.
+   */
+  public IdleGcScheduler getIdleGcScheduler() {
+    return this.idleGcScheduler;
+  }
+
+  /**
+   * Gets the globals of a module whose script is up and running.
+   * 
+   * @param path The path to the module directory.
+   * @return The globals of the module, or null if its script is not running.
+   */
+  public Globals getGlobals(Path path) {
+    ModuleRuntime moduleRuntime = this.runtimes.get(path);
+
+    return moduleRuntime == null ? null : moduleRuntime.globals;
   }
 }
@@ -0,0 +1,247 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.values.V8Value;
+
+/**
+ * ProxyIdentityCache class mapping long-lived Java objects to the JS proxy
+ * created for them in a runtime.
+ * Passing the same player, world or entity into the runtime again returns the
+ * same proxy, so scripts can use them as keys of a Map or compare them with
+ * ===.
+ * The JS proxy keeps its Java object alive, so entries cannot be reclaimed by
+ * the Java garbage collector. They are removed when the player quits, the
+ * world unloads or the entity is removed, and the cache is bounded, evicting
+ * the least recently used entry.
+ */
+public class ProxyIdentityCache {
+  /**
+   * The maximum number of cached proxies per runtime.
+   */
+  private static final int MAX_ENTRIES = 4096;
+
+  /**
+   * The types whose proxies are cached, shared by every runtime.
+   */
+  private static final CopyOnWriteArrayList<Class<?>> cachedTypes = new CopyOnWriteArrayList<>();
+  /**
+   * The caches of the live runtimes, notified when objects are invalidated.
+   */
+  private static final CopyOnWriteArraySet<ProxyIdentityCache> liveCaches = new CopyOnWriteArraySet<>();
+
+  /**
+   * A key comparing its object by identity, since Bukkit objects compare equal
+   * across instances, e.g. a player before and after rejoining.
+   */
+  private static final class IdentityKey {
+    private final Object object;
+
+    IdentityKey(Object object) {
+      this.object = object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this.object);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof IdentityKey && ((IdentityKey) other).object == this.object;
+    }
+  }
+
+  /**
+   * The cached proxies, in access order.
+   */
+  private LinkedHashMap<IdentityKey, V8Value> entries;
+  private LongAdder hits;
+  private LongAdder misses;
+  private boolean closed;
+
+  /**
+   * Constructor for the ProxyIdentityCache class.
+   */
+  public ProxyIdentityCache() {
+    this.entries = new LinkedHashMap<>(64, 0.75f, true);
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+
+    liveCaches.add(this);
+  }
+
+  /**
+   * Sets the types whose proxies are cached.
+   * Classes that cannot be found are reported and skipped.
+   *
+   * @param classNames The fully qualified names of the types.
+   * @param logger     The logger used to report unknown classes.
+   */
+  public static void setCachedTypes(List<String> classNames, Logger logger) {
+    cachedTypes.clear();
+
+    for (String className : classNames) {
+      try {
+        cachedTypes.add(Class.forName(className));
+      } catch (ClassNotFoundException e) {
+        logger.warning("Identity cached type " + className + " was not found, it is ignored.");
+      }
+    }
+  }
+
+  /**
+   * Checks if the proxies of an object are cached.
+   *
+   * @param object The object to check.
+   * @return true if the object is of a cached type, false otherwise.
+   */
+  public static boolean isCachedType(Object object) {
+    for (Class<?> type : cachedTypes) {
+      if (type.isInstance(object)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Removes an object from the caches of all runtimes.
+   * If the object is a world, the entities of that world are removed too.
+   *
+   * @param object The object to remove.
+   */
+  public static void invalidateEverywhere(Object object) {
+    for (ProxyIdentityCache cache : liveCaches) {
+      cache.invalidate(object);
+    }
+  }
+
+  /**
+   * Gets the cached proxy of an object, counting the hit or miss.
+   * The caller receives a new handle to the same proxy, which it owns.
+   *
+   * @param object The object to look up.
+   * @return A new handle to the cached proxy, or null if there is none.
+   * @throws JavetException if the handle cannot be cloned.
+   */
+  public synchronized V8Value get(Object object) throws JavetException {
+    V8Value cached = this.entries.get(new IdentityKey(object));
+
+    if (cached == null || cached.isClosed()) {
+      this.misses.increment();
+      return null;
+    }
+
+    this.hits.increment();
+
+    return cached.toClone();
+  }
+
+  /**
+   * Caches the proxy of an object.
+   * The cache keeps its own handle, the given one stays owned by the caller.
+   *
+   * @param object The object the proxy was created for.
+   * @param proxy  The proxy of the object.
+   * @throws JavetException if the handle cannot be cloned.
+   */
+  public synchronized void put(Object object, V8Value proxy) throws JavetException {
+    if (this.closed || (object instanceof Entity && !((Entity) object).isValid())) {
+      return;
+    }
+
+    V8Value previous = this.entries.put(new IdentityKey(object), proxy.toClone());
+
+    closeQuietly(previous);
+
+    if (this.entries.size() > MAX_ENTRIES) {
+      Iterator<Map.Entry<IdentityKey, V8Value>> iterator = this.entries.entrySet().iterator();
+      Map.Entry<IdentityKey, V8Value> eldest = iterator.next();
+
+      iterator.remove();
+      closeQuietly(eldest.getValue());
+    }
+  }
+
+  /**
+   * Removes an object from the cache.
+   * If the object is a world, the entities of that world are removed too.
+   *
+   * @param object The object to remove.
+   */
+  public synchronized void invalidate(Object object) {
+    closeQuietly(this.entries.remove(new IdentityKey(object)));
+
+    if (object instanceof World) {
+      Iterator<Map.Entry<IdentityKey, V8Value>> iterator = this.entries.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<IdentityKey, V8Value> entry = iterator.next();
+
+        if (entry.getKey().object instanceof Entity && ((Entity) entry.getKey().object).getWorld() == object) {
+          iterator.remove();
+          closeQuietly(entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the statistics of the cache.
+   *
+   * @return The number of hits, misses and cached proxies.
+   */
+  public synchronized Map<String, Long> getStats() {
+    HashMap<String, Long> stats = new HashMap<>();
+
+    stats.put("hits", this.hits.sum());
+    stats.put("misses", this.misses.sum());
+    stats.put("size", (long) this.entries.size());
+
+    return stats;
+  }
+
+  /**
+   * Releases all cached proxies and stops caching.
+   * This must be called before the runtime is closed.
+   */
+  public synchronized void close() {
+    liveCaches.remove(this);
+
+    ArrayList<V8Value> values = new ArrayList<>(this.entries.values());
+
+    this.entries.clear();
+    this.closed = true;
+
+    for (V8Value value : values) {
+      closeQuietly(value);
+    }
+  }
+
+  private static void closeQuietly(V8Value value) {
+    if (value == null || value.isClosed()) {
+      return;
+    }
+
+    try {
+      value.close();
+    } catch (JavetException e) {
+      // The runtime is already gone, nothing left to release
+    }
+  }
+}
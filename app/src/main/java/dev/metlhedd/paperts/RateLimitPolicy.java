@@ -0,0 +1,7 @@
+package dev.metlhedd.paperts;
+
+public enum RateLimitPolicy {
+  Cooldown,
+  FixedWindow,
+  TokenBucket,
+}
@@ -0,0 +1,463 @@
+package dev.metlhedd.paperts;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+
+/**
+ * RateLimiter class for a named table of cooldowns or rate limits, keyed by
+ * player or entity.
+ * Players are keyed by their unique id, stored as two longs, and other entities
+ * by their entity id. Keys are held in an open-addressing table of primitive
+ * arrays, so checking a key allocates nothing. An entry is removed once it is
+ * back to the state of a key never seen, e.g. once its cooldown is over, through
+ * a timing wheel advanced by the checks, so the table only holds the keys that
+ * are currently limited.
+ *
+ * The table is limited by one of the policies of {@link RateLimitPolicy}:
+ * <ul>
+ * <li>Cooldown: one action per period.</li>
+ * <li>FixedWindow: up to the limit of actions per window of the period,
+ * starting with the first action.</li>
+ * <li>TokenBucket: bursts of up to the limit of actions, refilled at the limit
+ * per period.</li>
+ * </ul>
+ */
+public class RateLimiter {
+  /**
+   * The high key of the entities keyed by entity id. The unique ids of players
+   * always have version bits in their high long, so it is never 0.
+   */
+  private static final long ENTITY_KEY = 0;
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int WHEEL_SLOTS = 512;
+  /**
+   * The least duration covered by a slot of the wheel, in milliseconds.
+   */
+  private static final long MIN_SLOT_MILLIS = 50;
+
+  private String name;
+  private RateLimitPolicy policy;
+  private int limit;
+  private long periodMillis;
+
+  private long[] keyHighs;
+  private long[] keyLows;
+  /**
+   * When each entry can be removed, or 0 for an empty slot.
+   */
+  private long[] expiresAt;
+  /**
+   * The window start or last refill of each entry.
+   */
+  private long[] stamps;
+  /**
+   * The actions in the window, or the tokens left, of each entry.
+   */
+  private double[] amounts;
+  private int size;
+
+  /**
+   * The keys to check for expiry in each slot of the wheel, as high and low
+   * longs.
+   */
+  private long[][] wheel;
+  private int[] wheelSizes;
+  private long slotMillis;
+  /**
+   * The slot of the wheel up to which the expired entries were removed, in
+   * slots since the epoch.
+   */
+  private long wheelPosition;
+
+  /**
+   * Constructor for the RateLimiter class.
+   *
+   * @param name         The name of the table.
+   * @param policy       The policy limiting the keys.
+   * @param limit        The actions allowed per period, ignored by cooldowns.
+   * @param periodMillis The period, in milliseconds.
+   * @throws IllegalArgumentException if the limit or the period are not
+   *                                  positive.
+   */
+  public RateLimiter(String name, RateLimitPolicy policy, int limit, long periodMillis)
+      throws IllegalArgumentException {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("Period must be greater than zero.");
+    }
+
+    if (limit <= 0 && policy != RateLimitPolicy.Cooldown) {
+      throw new IllegalArgumentException("Limit must be greater than zero.");
+    }
+
+    this.name = name;
+    this.policy = policy;
+    this.limit = policy == RateLimitPolicy.Cooldown ? 1 : limit;
+    this.periodMillis = periodMillis;
+    this.keyHighs = new long[INITIAL_CAPACITY];
+    this.keyLows = new long[INITIAL_CAPACITY];
+    this.expiresAt = new long[INITIAL_CAPACITY];
+    this.stamps = new long[INITIAL_CAPACITY];
+    this.amounts = new double[INITIAL_CAPACITY];
+    this.wheel = new long[WHEEL_SLOTS][];
+    this.wheelSizes = new int[WHEEL_SLOTS];
+    this.slotMillis = Math.max(MIN_SLOT_MILLIS, periodMillis / WHEEL_SLOTS);
+    this.wheelPosition = System.currentTimeMillis() / this.slotMillis;
+  }
+
+  /**
+   * Gets the name of the table.
+   *
+   * @return The name.
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Records an action of a key, if it is allowed.
+   *
+   * @param key The player, entity, unique id or entity id.
+   * @return true if the action is allowed, false if the key is limited.
+   * @throws IllegalArgumentException if the key is of an unsupported type.
+   */
+  public boolean tryAcquire(Object key) throws IllegalArgumentException {
+    return this.tryAcquire(highOf(key), lowOf(key));
+  }
+
+  /**
+   * Gets how long a key has to wait before its next action is allowed.
+   *
+   * @param key The player, entity, unique id or entity id.
+   * @return The time to wait, in milliseconds, or 0 if an action is allowed.
+   * @throws IllegalArgumentException if the key is of an unsupported type.
+   */
+  public synchronized long getRemainingMillis(Object key) throws IllegalArgumentException {
+    long now = System.currentTimeMillis();
+
+    this.expire(now);
+
+    int slot = this.find(highOf(key), lowOf(key));
+
+    if (slot < 0) {
+      return 0;
+    }
+
+    switch (this.policy) {
+      case Cooldown:
+        return Math.max(0, this.expiresAt[slot] - now);
+      case FixedWindow:
+        return this.amounts[slot] < this.limit ? 0 : Math.max(0, this.expiresAt[slot] - now);
+      default:
+        double tokens = this.refilledTokens(slot, now);
+
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * this.periodMillis / this.limit);
+    }
+  }
+
+  /**
+   * Forgets a key, so its next action is allowed.
+   *
+   * @param key The player, entity, unique id or entity id.
+   * @throws IllegalArgumentException if the key is of an unsupported type.
+   */
+  public synchronized void reset(Object key) throws IllegalArgumentException {
+    int slot = this.find(highOf(key), lowOf(key));
+
+    if (slot >= 0) {
+      this.remove(slot);
+    }
+  }
+
+  /**
+   * Gets the number of keys currently limited.
+   *
+   * @return The number of keys in the table.
+   */
+  public synchronized int size() {
+    this.expire(System.currentTimeMillis());
+
+    return this.size;
+  }
+
+  /**
+   * Records an action of a key, if it is allowed.
+   *
+   * @param high The high long of the key.
+   * @param low  The low long of the key.
+   * @return true if the action is allowed, false if the key is limited.
+   */
+  synchronized boolean tryAcquire(long high, long low) {
+    long now = System.currentTimeMillis();
+
+    this.expire(now);
+
+    int slot = this.find(high, low);
+
+    if (slot < 0) {
+      slot = this.insert(high, low);
+      this.stamps[slot] = now;
+      this.amounts[slot] = this.policy == RateLimitPolicy.TokenBucket ? this.limit : 0;
+    }
+
+    boolean allowed;
+
+    switch (this.policy) {
+      case Cooldown:
+        allowed = this.expiresAt[slot] <= now;
+
+        if (allowed) {
+          this.expiresAt[slot] = now + this.periodMillis;
+        }
+
+        break;
+      case FixedWindow:
+        if (this.expiresAt[slot] <= now) {
+          this.stamps[slot] = now;
+          this.amounts[slot] = 0;
+          this.expiresAt[slot] = now + this.periodMillis;
+        }
+
+        allowed = this.amounts[slot] < this.limit;
+
+        if (allowed) {
+          this.amounts[slot]++;
+        }
+
+        break;
+      default:
+        double tokens = this.refilledTokens(slot, now);
+
+        allowed = tokens >= 1;
+        this.amounts[slot] = allowed ? tokens - 1 : tokens;
+        this.stamps[slot] = now;
+        // The bucket is full again, like a key never seen, once refilled
+        this.expiresAt[slot] = now + (long) Math.ceil((this.limit - this.amounts[slot]) * this.periodMillis
+            / this.limit);
+
+        break;
+    }
+
+    return allowed;
+  }
+
+  private double refilledTokens(int slot, long now) {
+    double refill = (double) (now - this.stamps[slot]) * this.limit / this.periodMillis;
+
+    return Math.min(this.limit, this.amounts[slot] + refill);
+  }
+
+  /**
+   * Gets the high long of a key.
+   */
+  private static long highOf(Object key) throws IllegalArgumentException {
+    if (key instanceof Entity) {
+      return key instanceof Player ? ((Entity) key).getUniqueId().getMostSignificantBits()
+          : ENTITY_KEY;
+    } else if (key instanceof UUID) {
+      return ((UUID) key).getMostSignificantBits();
+    } else if (key instanceof String) {
+      return UUID.fromString((String) key).getMostSignificantBits();
+    } else if (key instanceof Number) {
+      return ENTITY_KEY;
+    }
+
+    throw new IllegalArgumentException("A rate limit key must be an entity, a unique id or an entity id.");
+  }
+
+  /**
+   * Gets the low long of a key.
+   */
+  private static long lowOf(Object key) throws IllegalArgumentException {
+    if (key instanceof Entity) {
+      return key instanceof Player ? ((Entity) key).getUniqueId().getLeastSignificantBits()
+          : ((Entity) key).getEntityId();
+    } else if (key instanceof UUID) {
+      return ((UUID) key).getLeastSignificantBits();
+    } else if (key instanceof String) {
+      return UUID.fromString((String) key).getLeastSignificantBits();
+    } else if (key instanceof Number) {
+      return ((Number) key).longValue();
+    }
+
+    throw new IllegalArgumentException("A rate limit key must be an entity, a unique id or an entity id.");
+  }
+
+  private static int hash(long high, long low) {
+    long hash = high * 0x9E3779B97F4A7C15L ^ low;
+
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+
+    return (int) hash;
+  }
+
+  /**
+   * Gets the slot of a key.
+   *
+   * @return The slot, or -1 if the key is not in the table.
+   */
+  private int find(long high, long low) {
+    int mask = this.expiresAt.length - 1;
+
+    for (int slot = hash(high, low) & mask; this.expiresAt[slot] != 0; slot = (slot + 1) & mask) {
+      if (this.keyHighs[slot] == high && this.keyLows[slot] == low) {
+        return slot;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Adds a key that is not in the table, and schedules its expiry.
+   *
+   * @return The slot of the key.
+   */
+  private int insert(long high, long low) {
+    if ((this.size + 1) * 4 > this.expiresAt.length * 3) {
+      this.resize(this.expiresAt.length * 2);
+    }
+
+    int mask = this.expiresAt.length - 1;
+    int slot = hash(high, low) & mask;
+
+    while (this.expiresAt[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+
+    this.keyHighs[slot] = high;
+    this.keyLows[slot] = low;
+    // Marks the slot as used until the policy sets the actual expiry
+    this.expiresAt[slot] = 1;
+    this.size++;
+    this.schedule(high, low, System.currentTimeMillis() + this.periodMillis);
+
+    return slot;
+  }
+
+  private void resize(int capacity) {
+    long[] keyHighs = this.keyHighs;
+    long[] keyLows = this.keyLows;
+    long[] expiresAt = this.expiresAt;
+    long[] stamps = this.stamps;
+    double[] amounts = this.amounts;
+    int mask = capacity - 1;
+
+    this.keyHighs = new long[capacity];
+    this.keyLows = new long[capacity];
+    this.expiresAt = new long[capacity];
+    this.stamps = new long[capacity];
+    this.amounts = new double[capacity];
+
+    for (int i = 0; i < expiresAt.length; i++) {
+      if (expiresAt[i] != 0) {
+        int slot = hash(keyHighs[i], keyLows[i]) & mask;
+
+        while (this.expiresAt[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        this.keyHighs[slot] = keyHighs[i];
+        this.keyLows[slot] = keyLows[i];
+        this.expiresAt[slot] = expiresAt[i];
+        this.stamps[slot] = stamps[i];
+        this.amounts[slot] = amounts[i];
+      }
+    }
+  }
+
+  /**
+   * Removes the entry of a slot, shifting back the entries that follow it in
+   * its probe sequence, so lookups never need tombstones.
+   */
+  private void remove(int slot) {
+    int mask = this.expiresAt.length - 1;
+    int hole = slot;
+
+    for (int next = (hole + 1) & mask; this.expiresAt[next] != 0; next = (next + 1) & mask) {
+      int home = hash(this.keyHighs[next], this.keyLows[next]) & mask;
+
+      // Move the entry into the hole unless its home lies after the hole
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        this.keyHighs[hole] = this.keyHighs[next];
+        this.keyLows[hole] = this.keyLows[next];
+        this.expiresAt[hole] = this.expiresAt[next];
+        this.stamps[hole] = this.stamps[next];
+        this.amounts[hole] = this.amounts[next];
+        hole = next;
+      }
+    }
+
+    this.expiresAt[hole] = 0;
+    this.size--;
+  }
+
+  /**
+   * Adds a key to the slot of the wheel of a time. Times beyond the span of
+   * the wheel go to its last slot, and are scheduled again from there.
+   */
+  private void schedule(long high, long low, long time) {
+    long position = Math.max(this.wheelPosition + 1,
+        Math.min(time / this.slotMillis + 1, this.wheelPosition + WHEEL_SLOTS - 1));
+    int index = (int) (position % WHEEL_SLOTS);
+    long[] keys = this.wheel[index];
+    int count = this.wheelSizes[index];
+
+    if (keys == null) {
+      keys = new long[8];
+    } else if (count * 2 + 2 > keys.length) {
+      keys = Arrays.copyOf(keys, keys.length * 2);
+    }
+
+    keys[count * 2] = high;
+    keys[count * 2 + 1] = low;
+    this.wheel[index] = keys;
+    this.wheelSizes[index] = count + 1;
+  }
+
+  /**
+   * Advances the wheel to a time, removing the entries that expired and
+   * scheduling again the ones that were extended since.
+   */
+  private void expire(long now) {
+    long target = now / this.slotMillis;
+
+    // After a long pause, every slot is due at most once
+    if (target - this.wheelPosition > WHEEL_SLOTS) {
+      this.wheelPosition = target - WHEEL_SLOTS;
+    }
+
+    while (this.wheelPosition < target) {
+      this.wheelPosition++;
+
+      int index = (int) (this.wheelPosition % WHEEL_SLOTS);
+      long[] keys = this.wheel[index];
+      int count = this.wheelSizes[index];
+
+      if (count == 0) {
+        continue;
+      }
+
+      this.wheel[index] = null;
+      this.wheelSizes[index] = 0;
+
+      for (int i = 0; i < count; i++) {
+        long high = keys[i * 2];
+        long low = keys[i * 2 + 1];
+        int slot = this.find(high, low);
+
+        if (slot < 0) {
+          continue;
+        } else if (this.expiresAt[slot] <= now) {
+          this.remove(slot);
+        } else {
+          this.schedule(high, low, this.expiresAt[slot]);
+        }
+      }
+    }
+  }
+}
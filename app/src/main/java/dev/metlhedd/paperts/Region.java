@@ -0,0 +1,146 @@
+package dev.metlhedd.paperts;
+
+import java.util.UUID;
+
+/**
+ * Region class describing an area of a world registered by a module.
+ * A region is either an axis-aligned box, or a polygon on the x/z plane
+ * extruded between two heights.
+ */
+public class Region {
+  /**
+   * The identifier of the region, unique per module.
+   */
+  private String id;
+  /**
+   * The unique id of the world the region is in.
+   */
+  private UUID worldId;
+  private double minX;
+  private double minY;
+  private double minZ;
+  private double maxX;
+  private double maxY;
+  private double maxZ;
+  /**
+   * The polygon vertices as x, z pairs, or null if the region is a box.
+   */
+  private double[] polygon;
+
+  /**
+   * Constructor for a box region.
+   *
+   * @param id      The identifier of the region.
+   * @param worldId The unique id of the world the region is in.
+   * @param minX    The minimum x coordinate of the box.
+   * @param minY    The minimum y coordinate of the box.
+   * @param minZ    The minimum z coordinate of the box.
+   * @param maxX    The maximum x coordinate of the box.
+   * @param maxY    The maximum y coordinate of the box.
+   * @param maxZ    The maximum z coordinate of the box.
+   */
+  public Region(String id, UUID worldId, double minX, double minY, double minZ, double maxX, double maxY,
+      double maxZ) {
+    this.id = id;
+    this.worldId = worldId;
+    this.minX = Math.min(minX, maxX);
+    this.minY = Math.min(minY, maxY);
+    this.minZ = Math.min(minZ, maxZ);
+    this.maxX = Math.max(minX, maxX);
+    this.maxY = Math.max(minY, maxY);
+    this.maxZ = Math.max(minZ, maxZ);
+  }
+
+  /**
+   * Constructor for a polygon region.
+   *
+   * @param id      The identifier of the region.
+   * @param worldId The unique id of the world the region is in.
+   * @param polygon The polygon vertices as x, z pairs.
+   * @param minY    The minimum y coordinate of the region.
+   * @param maxY    The maximum y coordinate of the region.
+   * @throws IllegalArgumentException if the polygon has less than three
+   *                                  vertices.
+   */
+  public Region(String id, UUID worldId, double[] polygon, double minY, double maxY)
+      throws IllegalArgumentException {
+    if (polygon == null || polygon.length < 6 || polygon.length % 2 != 0) {
+      throw new IllegalArgumentException("A polygon needs at least three x, z pairs.");
+    }
+
+    this.id = id;
+    this.worldId = worldId;
+    this.polygon = polygon.clone();
+    this.minY = Math.min(minY, maxY);
+    this.maxY = Math.max(minY, maxY);
+    this.minX = Double.POSITIVE_INFINITY;
+    this.minZ = Double.POSITIVE_INFINITY;
+    this.maxX = Double.NEGATIVE_INFINITY;
+    this.maxZ = Double.NEGATIVE_INFINITY;
+
+    for (int i = 0; i < polygon.length; i += 2) {
+      this.minX = Math.min(this.minX, polygon[i]);
+      this.maxX = Math.max(this.maxX, polygon[i]);
+      this.minZ = Math.min(this.minZ, polygon[i + 1]);
+      this.maxZ = Math.max(this.maxZ, polygon[i + 1]);
+    }
+  }
+
+  /**
+   * Checks if a point is inside the region.
+   * Boxes include their maximum face, polygons use the even-odd rule.
+   *
+   * @param x The x coordinate of the point.
+   * @param y The y coordinate of the point.
+   * @param z The z coordinate of the point.
+   * @return true if the point is inside the region, false otherwise.
+   */
+  public boolean contains(double x, double y, double z) {
+    if (x < this.minX || x > this.maxX || y < this.minY || y > this.maxY || z < this.minZ || z > this.maxZ) {
+      return false;
+    }
+
+    if (this.polygon == null) {
+      return true;
+    }
+
+    boolean inside = false;
+
+    for (int i = 0, j = this.polygon.length - 2; i < this.polygon.length; j = i, i += 2) {
+      double xi = this.polygon[i];
+      double zi = this.polygon[i + 1];
+      double xj = this.polygon[j];
+      double zj = this.polygon[j + 1];
+
+      if ((zi > z) != (zj > z) && x < (xj - xi) * (z - zi) / (zj - zi) + xi) {
+        inside = !inside;
+      }
+    }
+
+    return inside;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public UUID getWorldId() {
+    return worldId;
+  }
+
+  public double getMinX() {
+    return minX;
+  }
+
+  public double getMinZ() {
+    return minZ;
+  }
+
+  public double getMaxX() {
+    return maxX;
+  }
+
+  public double getMaxZ() {
+    return maxZ;
+  }
+}
@@ -0,0 +1,454 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * RegionService class for tracking which regions of a module the players are
+ * in.
+ * Regions are kept in a grid index per world, with one cell per chunk column.
+ * Regions spanning more cells than {@link #MAX_INDEXED_CELLS} are kept out of
+ * the grid, in a list per world checked on every lookup, so a single huge
+ * region cannot fill the index with millions of cells.
+ * Player movement is handled on the Java side, and only recomputed when a
+ * player changes block, so the script is only called when a player actually
+ * enters or leaves a region.
+ */
+public class RegionService {
+  /**
+   * The size of a grid cell, as a bit shift of the block coordinate.
+   */
+  private static final int CELL_SHIFT = 4;
+  /**
+   * The most grid cells a region is indexed in, 32 by 32 chunks. Larger regions
+   * are checked on every lookup instead.
+   */
+  public static final long MAX_INDEXED_CELLS = 1024;
+
+  /**
+   * The JavaPlugin instance used to register the movement listeners.
+   */
+  private JavaPlugin plugin;
+  /**
+   * The listener the movement events are registered with.
+   * It is only registered while at least one region exists.
+   */
+  private Listener listener;
+  /**
+   * Whether the movement listeners are registered.
+   */
+  private boolean listening;
+  /**
+   * Whether the movement listeners are kept unregistered, while the module is
+   * staged.
+   */
+  private boolean paused;
+  /**
+   * Maps region ids to their regions.
+   */
+  private HashMap<String, Region> regions;
+  /**
+   * Maps world ids to the grid cells of that world, each cell holding the regions
+   * overlapping it.
+   */
+  private HashMap<UUID, HashMap<Long, ArrayList<Region>>> grid;
+  /**
+   * Maps world ids to the regions of that world too large for the grid.
+   */
+  private HashMap<UUID, ArrayList<Region>> largeRegions;
+  /**
+   * Maps player ids to the ids of the regions they are currently in.
+   */
+  private HashMap<UUID, Set<String>> playerRegions;
+  /**
+   * The function called when a player enters a region, may be null.
+   */
+  private BiFunction<Player, String, Void> enterHandler;
+  /**
+   * The function called when a player leaves a region, may be null.
+   */
+  private BiFunction<Player, String, Void> leaveHandler;
+
+  /**
+   * Constructor for the RegionService class.
+   *
+   * @param plugin The JavaPlugin instance used to register the movement
+   *               listeners.
+   */
+  public RegionService(JavaPlugin plugin) {
+    this.plugin = plugin;
+    this.listener = new Listener() {
+    };
+    this.regions = new HashMap<>();
+    this.grid = new HashMap<>();
+    this.largeRegions = new HashMap<>();
+    this.playerRegions = new HashMap<>();
+  }
+
+  /**
+   * Sets the function called when a player enters a region.
+   *
+   * @param handler The function receiving the player and the region id.
+   */
+  public synchronized void setEnterHandler(BiFunction<Player, String, Void> handler) {
+    this.enterHandler = handler;
+  }
+
+  /**
+   * Sets the function called when a player leaves a region.
+   *
+   * @param handler The function receiving the player and the region id.
+   */
+  public synchronized void setLeaveHandler(BiFunction<Player, String, Void> handler) {
+    this.leaveHandler = handler;
+  }
+
+  /**
+   * Adds a region to the index.
+   * The players of the region's world are re-evaluated, so players already
+   * standing in the region receive an enter callback.
+   *
+   * @param region The region to add.
+   * @throws RuntimeException if a region with the same id already exists.
+   */
+  public void addRegion(Region region) throws RuntimeException {
+    synchronized (this) {
+      if (this.regions.containsKey(region.getId())) {
+        throw new RuntimeException("Region " + region.getId() + " is already registered.");
+      }
+
+      this.regions.put(region.getId(), region);
+
+      if (isLarge(region)) {
+        this.largeRegions.computeIfAbsent(region.getWorldId(), id -> new ArrayList<>()).add(region);
+      } else {
+        HashMap<Long, ArrayList<Region>> cells = this.grid.computeIfAbsent(region.getWorldId(),
+            id -> new HashMap<>());
+
+        for (int cellX = cell(region.getMinX()); cellX <= cell(region.getMaxX()); cellX++) {
+          for (int cellZ = cell(region.getMinZ()); cellZ <= cell(region.getMaxZ()); cellZ++) {
+            cells.computeIfAbsent(cellKey(cellX, cellZ), key -> new ArrayList<>()).add(region);
+          }
+        }
+      }
+
+      if (this.paused) {
+        return;
+      }
+
+      if (!this.listening) {
+        this.registerListeners();
+      }
+    }
+
+    this.refreshWorld(region.getWorldId());
+  }
+
+  /**
+   * Removes a region from the index.
+   * Players inside the region receive a leave callback.
+   *
+   * @param id The id of the region to remove.
+   * @throws RuntimeException if the region is not registered.
+   */
+  public void removeRegion(String id) throws RuntimeException {
+    Region region;
+
+    synchronized (this) {
+      region = this.regions.remove(id);
+
+      if (region == null) {
+        throw new RuntimeException("Region " + id + " is not registered.");
+      }
+
+      if (isLarge(region)) {
+        ArrayList<Region> large = this.largeRegions.get(region.getWorldId());
+
+        large.remove(region);
+
+        if (large.isEmpty()) {
+          this.largeRegions.remove(region.getWorldId());
+        }
+      } else {
+        HashMap<Long, ArrayList<Region>> cells = this.grid.get(region.getWorldId());
+
+        for (int cellX = cell(region.getMinX()); cellX <= cell(region.getMaxX()); cellX++) {
+          for (int cellZ = cell(region.getMinZ()); cellZ <= cell(region.getMaxZ()); cellZ++) {
+            long key = cellKey(cellX, cellZ);
+            ArrayList<Region> cell = cells.get(key);
+
+            cell.remove(region);
+
+            if (cell.isEmpty()) {
+              cells.remove(key);
+            }
+          }
+        }
+
+        if (cells.isEmpty()) {
+          this.grid.remove(region.getWorldId());
+        }
+      }
+
+      if (this.paused) {
+        return;
+      }
+    }
+
+    this.refreshWorld(region.getWorldId());
+  }
+
+  /**
+   * Pauses or resumes the tracking of the players.
+   * While paused, the movement listeners are unregistered and no callbacks are
+   * sent. On resume, the players of every world with regions are re-evaluated,
+   * so the enter and leave callbacks missed in the meantime are sent.
+   * Must be called from the main thread.
+   *
+   * @param paused true to pause the tracking, false to resume it.
+   */
+  public void setPaused(boolean paused) {
+    HashSet<UUID> worldIds;
+
+    synchronized (this) {
+      this.paused = paused;
+
+      if (paused) {
+        if (this.listening) {
+          HandlerList.unregisterAll(this.listener);
+          this.listening = false;
+        }
+
+        return;
+      }
+
+      if (this.regions.isEmpty()) {
+        return;
+      }
+
+      if (!this.listening) {
+        this.registerListeners();
+      }
+
+      worldIds = new HashSet<>(this.grid.keySet());
+      worldIds.addAll(this.largeRegions.keySet());
+    }
+
+    for (UUID worldId : worldIds) {
+      this.refreshWorld(worldId);
+    }
+  }
+
+  /**
+   * Gets the ids of the regions a player is currently in.
+   *
+   * @param player The player to look up.
+   * @return The ids of the regions the player is in.
+   */
+  public synchronized Set<String> getRegions(Player player) {
+    Set<String> current = this.playerRegions.get(player.getUniqueId());
+
+    return current == null ? Collections.emptySet() : new HashSet<>(current);
+  }
+
+  /**
+   * Removes all regions and unregisters the movement listeners.
+   * No leave callbacks are sent.
+   * This is useful for cleaning up when the module is unloaded.
+   */
+  public synchronized void clear() {
+    if (this.listening) {
+      HandlerList.unregisterAll(this.listener);
+      this.listening = false;
+    }
+
+    this.regions.clear();
+    this.grid.clear();
+    this.largeRegions.clear();
+    this.playerRegions.clear();
+  }
+
+  private void registerListeners() {
+    registerListener(PlayerMoveEvent.class, event -> {
+      PlayerMoveEvent moveEvent = (PlayerMoveEvent) event;
+
+      if (hasChangedBlock(moveEvent.getFrom(), moveEvent.getTo())) {
+        this.update(moveEvent.getPlayer(), moveEvent.getTo());
+      }
+    }, true);
+    registerListener(PlayerTeleportEvent.class, event -> {
+      PlayerTeleportEvent teleportEvent = (PlayerTeleportEvent) event;
+
+      this.update(teleportEvent.getPlayer(), teleportEvent.getTo());
+    }, true);
+    registerListener(PlayerJoinEvent.class, event -> {
+      Player player = ((PlayerJoinEvent) event).getPlayer();
+
+      this.update(player, player.getLocation());
+    }, false);
+    registerListener(PlayerChangedWorldEvent.class, event -> {
+      Player player = ((PlayerChangedWorldEvent) event).getPlayer();
+
+      this.update(player, player.getLocation());
+    }, false);
+    registerListener(PlayerQuitEvent.class, event -> {
+      this.update(((PlayerQuitEvent) event).getPlayer(), null);
+    }, false);
+
+    this.listening = true;
+  }
+
+  private void registerListener(Class<? extends Event> eventClass, Consumer<Event> consumer,
+      boolean ignoreCancelled) {
+    Bukkit.getPluginManager().registerEvent(eventClass, this.listener, EventPriority.MONITOR,
+        (Listener l, Event event) -> {
+          if (eventClass.isInstance(event)) {
+            consumer.accept(event);
+          }
+        }, this.plugin, ignoreCancelled);
+  }
+
+  /**
+   * Re-evaluates all players of a world, e.g. after a region changed.
+   *
+   * @param worldId The unique id of the world.
+   */
+  private void refreshWorld(UUID worldId) {
+    World world = Bukkit.getWorld(worldId);
+
+    if (world == null) {
+      return;
+    }
+
+    for (Player player : world.getPlayers()) {
+      this.update(player, player.getLocation());
+    }
+  }
+
+  /**
+   * Recomputes the regions a player is in and dispatches the enter and leave
+   * callbacks for the difference.
+   *
+   * @param player   The player to update.
+   * @param location The new location of the player, or null if the player left
+   *                 the server.
+   */
+  private void update(Player player, Location location) {
+    ArrayList<String> left = new ArrayList<>();
+    ArrayList<String> entered = new ArrayList<>();
+    BiFunction<Player, String, Void> onEnter;
+    BiFunction<Player, String, Void> onLeave;
+
+    synchronized (this) {
+      Set<String> previous = this.playerRegions.getOrDefault(player.getUniqueId(), Collections.emptySet());
+      Set<String> current = new HashSet<>();
+
+      if (location != null && location.getWorld() != null) {
+        HashMap<Long, ArrayList<Region>> cells = this.grid.get(location.getWorld().getUID());
+        ArrayList<Region> candidates = cells == null ? null
+            : cells.get(cellKey(cell(location.getX()), cell(location.getZ())));
+
+        addContaining(current, candidates, location);
+        addContaining(current, this.largeRegions.get(location.getWorld().getUID()), location);
+      }
+
+      if (previous.equals(current)) {
+        return;
+      }
+
+      for (String id : previous) {
+        if (!current.contains(id)) {
+          left.add(id);
+        }
+      }
+
+      for (String id : current) {
+        if (!previous.contains(id)) {
+          entered.add(id);
+        }
+      }
+
+      if (current.isEmpty()) {
+        this.playerRegions.remove(player.getUniqueId());
+      } else {
+        this.playerRegions.put(player.getUniqueId(), current);
+      }
+
+      onEnter = this.enterHandler;
+      onLeave = this.leaveHandler;
+    }
+
+    dispatch(onLeave, player, left);
+    dispatch(onEnter, player, entered);
+  }
+
+  private static void addContaining(Set<String> ids, ArrayList<Region> candidates, Location location) {
+    if (candidates == null) {
+      return;
+    }
+
+    for (Region region : candidates) {
+      if (region.contains(location.getX(), location.getY(), location.getZ())) {
+        ids.add(region.getId());
+      }
+    }
+  }
+
+  private static void dispatch(BiFunction<Player, String, Void> handler, Player player, ArrayList<String> ids) {
+    if (handler == null) {
+      return;
+    }
+
+    // The handlers set by the module report their own errors
+    for (String id : ids) {
+      handler.apply(player, id);
+    }
+  }
+
+  private static boolean hasChangedBlock(Location from, Location to) {
+    return from.getBlockX() != to.getBlockX() || from.getBlockY() != to.getBlockY()
+        || from.getBlockZ() != to.getBlockZ() || from.getWorld() != to.getWorld();
+  }
+
+  /**
+   * Checks if a region spans too many cells to be kept in the grid.
+   *
+   * @param region The region to check.
+   * @return true if the region is kept out of the grid, false otherwise.
+   */
+  private static boolean isLarge(Region region) {
+    long width = (long) cell(region.getMaxX()) - cell(region.getMinX()) + 1;
+    long depth = (long) cell(region.getMaxZ()) - cell(region.getMinZ()) + 1;
+
+    return width * depth > MAX_INDEXED_CELLS;
+  }
+
+  private static int cell(double coordinate) {
+    return ((int) Math.floor(coordinate)) >> CELL_SHIFT;
+  }
+
+  private static long cellKey(int cellX, int cellZ) {
+    return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,209 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * ResourceTracker class keeping track of the script values a module hands to
+ * PaperTS, such as the functions behind event handlers, commands and timers.
+ * Each value is tracked under an owner, e.g. the event handler using it, and
+ * closed as soon as the owner is released, or when the module is unloaded,
+ * instead of waiting for the garbage collector to finalize it.
+ * In debug mode, the allocation site of each value is recorded, and the values
+ * the module did not release itself are reported when it is unloaded.
+ * Java objects handed to the script, i.e. the JS proxies wrapping them, are
+ * not tracked here: the script owns them, not PaperTS, so there is no owner
+ * to release them with. The long-lived ones are kept by the runtime's
+ * {@link ProxyIdentityCache}, which drops them when their player, world or
+ * entity goes away, and the rest are reclaimed by V8, or closed with the
+ * runtime.
+ */
+public class ResourceTracker {
+  /**
+   * Whether the allocation sites are recorded, shared by every module.
+   */
+  private static volatile boolean debug;
+
+  /**
+   * A tracked value.
+   */
+  private static class Resource {
+    private final Object value;
+    private final String description;
+    private final Throwable allocationSite;
+
+    Resource(Object value, String description, Throwable allocationSite) {
+      this.value = value;
+      this.description = description;
+      this.allocationSite = allocationSite;
+    }
+  }
+
+  private String moduleName;
+  private Logger logger;
+  /**
+   * The tracked values, by owner.
+   */
+  private IdentityHashMap<Object, List<Resource>> resources;
+  private boolean closed;
+
+  /**
+   * Constructor for the ResourceTracker class.
+   *
+   * @param moduleName The name of the module, used in reports.
+   * @param logger     The logger used to report errors and leaks.
+   */
+  public ResourceTracker(String moduleName, Logger logger) {
+    this.moduleName = moduleName;
+    this.logger = logger;
+    this.resources = new IdentityHashMap<>();
+  }
+
+  /**
+   * Sets whether the allocation sites are recorded, and the values not
+   * released by the modules are reported.
+   *
+   * @param enabled true to enable the debug mode, false otherwise.
+   */
+  public static void setDebug(boolean enabled) {
+    debug = enabled;
+  }
+
+  /**
+   * Checks if the debug mode is enabled.
+   *
+   * @return true if the debug mode is enabled, false otherwise.
+   */
+  public static boolean isDebug() {
+    return debug;
+  }
+
+  /**
+   * Tracks a value under an owner.
+   * If the tracker is already closed, the value is closed right away.
+   *
+   * @param owner       The object the value belongs to.
+   * @param value       The value to track, may be null.
+   * @param description What the value is used for, used in reports.
+   * @param <T>         The type of the value.
+   * @return The value.
+   */
+  public <T> T track(Object owner, T value, String description) {
+    if (value == null) {
+      return null;
+    }
+
+    Resource resource = new Resource(value, description, debug ? new Throwable("Allocated here") : null);
+
+    synchronized (this) {
+      if (!this.closed) {
+        this.resources.computeIfAbsent(owner, key -> new ArrayList<>()).add(resource);
+        return value;
+      }
+    }
+
+    this.close(resource);
+
+    return value;
+  }
+
+  /**
+   * Closes the values tracked under an owner.
+   *
+   * @param owner The owner of the values.
+   */
+  public void release(Object owner) {
+    List<Resource> released;
+
+    synchronized (this) {
+      released = this.resources.remove(owner);
+    }
+
+    if (released != null) {
+      for (Resource resource : released) {
+        this.close(resource);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of tracked values.
+   *
+   * @return The number of tracked values.
+   */
+  public synchronized int size() {
+    int size = 0;
+
+    for (List<Resource> owned : this.resources.values()) {
+      size += owned.size();
+    }
+
+    return size;
+  }
+
+  /**
+   * Closes all tracked values, and stops tracking.
+   * In debug mode, each value is reported with its allocation site first.
+   * This is called when the module is unloaded, before its runtime is closed.
+   */
+  public void closeAll() {
+    ArrayList<Resource> remaining = new ArrayList<>();
+
+    synchronized (this) {
+      for (List<Resource> owned : this.resources.values()) {
+        remaining.addAll(owned);
+      }
+
+      this.resources.clear();
+      this.closed = true;
+    }
+
+    if (debug && !remaining.isEmpty()) {
+      this.logger.warning("Module " + this.moduleName + " did not release " + remaining.size()
+          + " script values, closing them:");
+
+      for (Resource resource : remaining) {
+        this.logger.warning("  " + resource.description + " allocated at "
+            + formatAllocationSite(resource.allocationSite));
+      }
+    }
+
+    for (Resource resource : remaining) {
+      this.close(resource);
+    }
+  }
+
+  private void close(Resource resource) {
+    if (!(resource.value instanceof AutoCloseable)) {
+      return;
+    }
+
+    try {
+      ((AutoCloseable) resource.value).close();
+    } catch (Exception e) {
+      this.logger.severe("Failed to close " + resource.description + " of module " + this.moduleName + ": "
+          + e.getMessage());
+    }
+  }
+
+  private static String formatAllocationSite(Throwable allocationSite) {
+    if (allocationSite == null) {
+      return "unknown location";
+    }
+
+    StringBuilder builder = new StringBuilder();
+
+    for (StackTraceElement element : allocationSite.getStackTrace()) {
+      // Skip the tracker itself
+      if (element.getClassName().equals(ResourceTracker.class.getName())) {
+        continue;
+      }
+
+      builder.append(System.lineSeparator()).append("      at ").append(element);
+    }
+
+    return builder.toString();
+  }
+}
@@ -0,0 +1,112 @@
+package dev.metlhedd.paperts;
+
+import java.io.File;
+
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.interop.V8Runtime;
+import com.google.gson.Gson;
+
+/**
+ * RuntimeInspector class running the V8 CPU profiler and writing heap
+ * snapshots of a runtime, through Node's inspector and v8 modules.
+ * The files can be opened in Chrome DevTools. None of the methods should be
+ * called from the main thread, since the runtime is busy while a snapshot is
+ * written or a profile is serialized.
+ */
+public class RuntimeInspector {
+  /**
+   * The sampling interval of the CPU profiler, in microseconds.
+   */
+  private static final int SAMPLING_INTERVAL_MICROS = 100;
+
+  private static final Gson GSON = new Gson();
+
+  private static final String START_PROFILER_SCRIPT = """
+      (function (interval) {
+        if (globalThis.__papertsProfiler) {
+          throw new Error("The CPU profiler is already running.");
+        }
+
+        const inspector = require("inspector");
+        const session = new inspector.Session();
+
+        session.connect();
+        session.post("Profiler.enable");
+        session.post("Profiler.setSamplingInterval", { interval: interval });
+        session.post("Profiler.start");
+        globalThis.__papertsProfiler = session;
+      })(%d);
+      """;
+
+  /**
+   * Stops the profiler and writes its profile. The in-process inspector session
+   * dispatches synchronously, so the callback has run when post returns.
+   */
+  private static final String STOP_PROFILER_SCRIPT = """
+      (function (file) {
+        const session = globalThis.__papertsProfiler;
+        let error = "The CPU profile was not written.";
+
+        if (!session) {
+          throw new Error("The CPU profiler is not running.");
+        }
+
+        delete globalThis.__papertsProfiler;
+        session.post("Profiler.stop", (err, params) => {
+          if (err) {
+            error = err.message;
+          } else {
+            require("fs").writeFileSync(file, JSON.stringify(params.profile));
+            error = null;
+          }
+        });
+        session.disconnect();
+
+        if (error) {
+          throw new Error(error);
+        }
+      })(%s);
+      """;
+
+  private static final String HEAP_SNAPSHOT_SCRIPT = """
+      require("v8").writeHeapSnapshot(%s);
+      """;
+
+  private RuntimeInspector() {
+  }
+
+  /**
+   * Starts the CPU profiler of a runtime.
+   *
+   * @param runtime The runtime to profile.
+   * @throws JavetException if the profiler is already running, or cannot be
+   *                        started.
+   */
+  public static void startCpuProfile(V8Runtime runtime) throws JavetException {
+    runtime.getExecutor(String.format(START_PROFILER_SCRIPT, SAMPLING_INTERVAL_MICROS)).executeVoid();
+  }
+
+  /**
+   * Stops the CPU profiler of a runtime, and writes the profile.
+   *
+   * @param runtime The profiled runtime.
+   * @param file    The .cpuprofile file to write.
+   * @throws JavetException if the profiler is not running, or the profile
+   *                        cannot be written.
+   */
+  public static void stopCpuProfile(V8Runtime runtime, File file) throws JavetException {
+    runtime.getExecutor(String.format(STOP_PROFILER_SCRIPT, GSON.toJson(file.getAbsolutePath()))).executeVoid();
+  }
+
+  /**
+   * Writes a heap snapshot of a runtime. The runtime is paused while the
+   * snapshot is written.
+   *
+   * @param runtime The runtime.
+   * @param file    The .heapsnapshot file to write.
+   * @throws JavetException if the snapshot cannot be written.
+   */
+  public static void writeHeapSnapshot(V8Runtime runtime, File file) throws JavetException {
+    runtime.getExecutor(String.format(HEAP_SNAPSHOT_SCRIPT, GSON.toJson(file.getAbsolutePath()))).executeVoid();
+  }
+}
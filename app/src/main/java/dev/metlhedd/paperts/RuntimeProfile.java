@@ -0,0 +1,210 @@
+package dev.metlhedd.paperts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import com.caoccao.javet.interop.options.NodeRuntimeOptions;
+
+/**
+ * RuntimeProfile class describing how the runtime of a module is created,
+ * selected with the `runtimeProfile` field of its package.json and declared
+ * under `runtime-profiles` in the plugin's config.yml:
+ *
+ * <pre>
+ * untrusted:
+ *   console-arguments: ["--input-type=commonjs", "--frozen-intrinsics"]
+ *   allow-eval: false
+ *   requires-v8-flags: ["--jitless"]
+ * </pre>
+ *
+ * Console arguments are applied per runtime. V8 flags are shared by every
+ * runtime of the server, since the engine is initialized once per process, so
+ * they are set under `v8-flags`, and a profile can only require them: a module
+ * whose profile requires a flag that is not set is refused at load.
+ * All flags are checked against an allowlist.
+ */
+public class RuntimeProfile {
+  /**
+   * The name of the profile used by modules that do not select one.
+   */
+  public static final String DEFAULT_NAME = "default";
+
+  /**
+   * The V8 flags that may be set under `v8-flags` or required by profiles.
+   */
+  private static final List<Pattern> ALLOWED_V8_FLAGS = List.of(
+      Pattern.compile("--(max|min)-semi-space-size=\\d+"),
+      Pattern.compile("--max-old-space-size=\\d+"),
+      Pattern.compile("--stack-size=\\d+"),
+      Pattern.compile("--jitless"),
+      Pattern.compile("--(no-)?(sparkplug|maglev|turbofan|opt|lazy-feedback-allocation)"),
+      Pattern.compile("--single-threaded(-gc)?"),
+      Pattern.compile("--(no-)?(concurrent-marking|concurrent-sweeping|parallel-scavenge|incremental-marking)"),
+      Pattern.compile("--disallow-code-generation-from-strings"));
+  /**
+   * The Node.js arguments that may be used by profiles.
+   */
+  private static final List<Pattern> ALLOWED_CONSOLE_ARGUMENTS = List.of(
+      Pattern.compile("--input-type=(commonjs|module)"),
+      Pattern.compile("--no-deprecation"),
+      Pattern.compile("--pending-deprecation"),
+      Pattern.compile("--no-warnings"),
+      Pattern.compile("--trace-warnings"),
+      Pattern.compile("--trace-uncaught"),
+      Pattern.compile("--frozen-intrinsics"),
+      Pattern.compile("--disable-proto=(delete|throw)"),
+      Pattern.compile("--unhandled-rejections=(strict|warn|none|throw|warn-with-error-code)"));
+
+  /**
+   * The name of the profile, as selected by the modules.
+   */
+  private String name;
+  /**
+   * The Node.js arguments of the runtimes using the profile.
+   */
+  private List<String> consoleArguments;
+  /**
+   * Whether eval and new Function are allowed in the runtimes.
+   */
+  private boolean allowEval;
+  /**
+   * The V8 flags that must be set under `v8-flags` for the profile to be used.
+   */
+  private List<String> requiredV8Flags;
+
+  private RuntimeProfile(String name, List<String> consoleArguments, boolean allowEval,
+      List<String> requiredV8Flags) {
+    this.name = name;
+    this.consoleArguments = consoleArguments;
+    this.allowEval = allowEval;
+    this.requiredV8Flags = requiredV8Flags;
+  }
+
+  /**
+   * Creates the profile used when none is configured: CommonJS input, eval
+   * allowed, and no required flags.
+   *
+   * @return The built-in default profile.
+   */
+  public static RuntimeProfile createDefault() {
+    return new RuntimeProfile(DEFAULT_NAME, List.of("--input-type=commonjs"), true, List.of());
+  }
+
+  /**
+   * Parses a profile from its section of the config.
+   *
+   * @param name    The name of the profile.
+   * @param section The section of the profile.
+   * @return The parsed profile.
+   * @throws IllegalArgumentException if a flag is not allowed.
+   */
+  public static RuntimeProfile fromConfig(String name, ConfigurationSection section)
+      throws IllegalArgumentException {
+    List<String> consoleArguments = section.isList("console-arguments")
+        ? section.getStringList("console-arguments")
+        : List.of("--input-type=commonjs");
+    List<String> requiredV8Flags = section.getStringList("requires-v8-flags");
+
+    checkAllowed(consoleArguments, ALLOWED_CONSOLE_ARGUMENTS, "Console argument", name);
+    checkAllowed(requiredV8Flags, ALLOWED_V8_FLAGS, "V8 flag", name);
+
+    return new RuntimeProfile(name, new ArrayList<>(consoleArguments), section.getBoolean("allow-eval", true),
+        new ArrayList<>(requiredV8Flags));
+  }
+
+  /**
+   * Checks the V8 flags set for the whole server against the allowlist.
+   *
+   * @param v8Flags The V8 flags.
+   * @throws IllegalArgumentException if a flag is not allowed.
+   */
+  public static void checkV8Flags(List<String> v8Flags) throws IllegalArgumentException {
+    checkAllowed(v8Flags, ALLOWED_V8_FLAGS, "V8 flag", "v8-flags");
+  }
+
+  private static void checkAllowed(List<String> flags, List<Pattern> allowed, String kind, String owner)
+      throws IllegalArgumentException {
+    for (String flag : flags) {
+      boolean matches = false;
+
+      for (Pattern pattern : allowed) {
+        if (pattern.matcher(flag).matches()) {
+          matches = true;
+          break;
+        }
+      }
+
+      if (!matches) {
+        throw new IllegalArgumentException(kind + " " + flag + " is not allowed in " + owner + ".");
+      }
+    }
+  }
+
+  /**
+   * Checks that the V8 flags this profile requires are set.
+   *
+   * @param v8Flags The V8 flags set for the whole server.
+   * @throws IllegalArgumentException if a required flag is not set.
+   */
+  public void checkRequirements(Collection<String> v8Flags) throws IllegalArgumentException {
+    for (String flag : this.requiredV8Flags) {
+      if (!v8Flags.contains(flag)) {
+        throw new IllegalArgumentException("Runtime profile " + this.name + " requires the V8 flag " + flag
+            + ", which is not set under v8-flags.");
+      }
+    }
+  }
+
+  /**
+   * Creates the options of a runtime using this profile.
+   *
+   * @return The runtime options.
+   */
+  public NodeRuntimeOptions toRuntimeOptions() {
+    NodeRuntimeOptions options = new NodeRuntimeOptions();
+
+    options.setConsoleArguments(this.consoleArguments.toArray(new String[0]));
+
+    return options;
+  }
+
+  /**
+   * Gets the name of the profile.
+   *
+   * @return The name of the profile.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the Node.js arguments of the runtimes using the profile.
+   *
+   * @return The console arguments.
+   */
+  public List<String> getConsoleArguments() {
+    return consoleArguments;
+  }
+
+  /**
+   * Checks if eval and new Function are allowed in the runtimes.
+   *
+   * @return true if eval is allowed, false otherwise.
+   */
+  public boolean isAllowEval() {
+    return allowEval;
+  }
+
+  /**
+   * Gets the V8 flags the profile requires.
+   *
+   * @return The required V8 flags.
+   */
+  public List<String> getRequiredV8Flags() {
+    return requiredV8Flags;
+  }
+}
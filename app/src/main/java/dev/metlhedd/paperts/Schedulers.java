@@ -0,0 +1,217 @@
+package dev.metlhedd.paperts;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
+
+/**
+ * Schedulers class for running work on the right thread on both Paper and
+ * Folia.
+ * Paper ticks the whole server on a single main thread. Folia ticks the world
+ * on many region threads in parallel: a block or an entity may only be touched
+ * by the thread of the region owning it, and the work of the server as a whole
+ * runs on the global region thread. On Paper, every method below runs the work
+ * on the main thread, or asynchronously for the async ones.
+ */
+public final class Schedulers {
+  private static final boolean FOLIA = detectFolia();
+
+  private Schedulers() {
+  }
+
+  /**
+   * A scheduled task, which can be cancelled.
+   */
+  public interface Task {
+    /**
+     * Cancels the task. A task that is running finishes its current run.
+     */
+    void cancel();
+  }
+
+  private static boolean detectFolia() {
+    try {
+      Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks if the server is Folia.
+   *
+   * @return true if the world is ticked by region threads.
+   */
+  public static boolean isFolia() {
+    return FOLIA;
+  }
+
+  /**
+   * Runs work on the next tick, on the main thread, or the global region
+   * thread on Folia.
+   *
+   * @param plugin The plugin owning the work.
+   * @param task   The work.
+   * @return The scheduled task.
+   */
+  public static Task run(JavaPlugin plugin, Runnable task) {
+    if (FOLIA) {
+      return wrap(Bukkit.getGlobalRegionScheduler().run(plugin, scheduled -> task.run()));
+    }
+
+    return wrap(Bukkit.getScheduler().runTask(plugin, task));
+  }
+
+  /**
+   * Runs work repeatedly, on the main thread, or the global region thread on
+   * Folia.
+   *
+   * @param plugin      The plugin owning the work.
+   * @param task        The work.
+   * @param delayTicks  The ticks before the first run, at least 1.
+   * @param periodTicks The ticks between two runs.
+   * @return The scheduled task.
+   */
+  public static Task runTimer(JavaPlugin plugin, Runnable task, long delayTicks, long periodTicks) {
+    if (FOLIA) {
+      return wrap(Bukkit.getGlobalRegionScheduler().runAtFixedRate(plugin, scheduled -> task.run(),
+          Math.max(1, delayTicks), periodTicks));
+    }
+
+    return wrap(Bukkit.getScheduler().runTaskTimer(plugin, task, delayTicks, periodTicks));
+  }
+
+  /**
+   * Runs work off the server threads.
+   *
+   * @param plugin The plugin owning the work.
+   * @param task   The work.
+   * @return The scheduled task.
+   */
+  public static Task runAsync(JavaPlugin plugin, Runnable task) {
+    if (FOLIA) {
+      return wrap(Bukkit.getAsyncScheduler().runNow(plugin, scheduled -> task.run()));
+    }
+
+    return wrap(Bukkit.getScheduler().runTaskAsynchronously(plugin, task));
+  }
+
+  /**
+   * Runs work repeatedly off the server threads.
+   *
+   * @param plugin      The plugin owning the work.
+   * @param task        The work.
+   * @param delayTicks  The ticks before the first run.
+   * @param periodTicks The ticks between two runs.
+   * @return The scheduled task.
+   */
+  public static Task runAsyncTimer(JavaPlugin plugin, Runnable task, long delayTicks, long periodTicks) {
+    if (FOLIA) {
+      return wrap(Bukkit.getAsyncScheduler().runAtFixedRate(plugin, scheduled -> task.run(),
+          Math.max(1, delayTicks) * 50, periodTicks * 50, TimeUnit.MILLISECONDS));
+    }
+
+    return wrap(Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, task, delayTicks, periodTicks));
+  }
+
+  /**
+   * Runs work on the thread owning a chunk, on the next tick.
+   *
+   * @param plugin The plugin owning the work.
+   * @param world  The world of the chunk.
+   * @param chunkX The x coordinate of the chunk.
+   * @param chunkZ The z coordinate of the chunk.
+   * @param task   The work.
+   */
+  public static void runAt(JavaPlugin plugin, World world, int chunkX, int chunkZ, Runnable task) {
+    if (FOLIA) {
+      Bukkit.getRegionScheduler().execute(plugin, world, chunkX, chunkZ, task);
+      return;
+    }
+
+    Bukkit.getScheduler().runTask(plugin, task);
+  }
+
+  /**
+   * Runs work on the thread owning an entity, on the next tick, following the
+   * entity across regions on Folia.
+   *
+   * @param plugin  The plugin owning the work.
+   * @param entity  The entity.
+   * @param task    The work.
+   * @param retired The work run instead if the entity is removed first, may be
+   *                null.
+   */
+  public static void runFor(JavaPlugin plugin, Entity entity, Runnable task, Runnable retired) {
+    if (FOLIA) {
+      if (!entity.getScheduler().execute(plugin, task, retired, 1L) && retired != null) {
+        retired.run();
+      }
+
+      return;
+    }
+
+    Bukkit.getScheduler().runTask(plugin, task);
+  }
+
+  /**
+   * Runs work on the thread that may talk to a command sender: the thread of
+   * the player, or the global region thread for other senders.
+   *
+   * @param plugin The plugin owning the work.
+   * @param sender The command sender.
+   * @param task   The work.
+   */
+  public static void runFor(JavaPlugin plugin, CommandSender sender, Runnable task) {
+    if (sender instanceof Entity) {
+      runFor(plugin, (Entity) sender, task, null);
+    } else {
+      run(plugin, task);
+    }
+  }
+
+  /**
+   * Calls a function on the main thread, or the global region thread on Folia.
+   *
+   * @param plugin   The plugin owning the work.
+   * @param callable The function.
+   * @param <T>      The type of the result.
+   * @return The future result of the function.
+   */
+  public static <T> Future<T> callGlobal(JavaPlugin plugin, Callable<T> callable) {
+    if (!FOLIA) {
+      return Bukkit.getScheduler().callSyncMethod(plugin, callable);
+    }
+
+    CompletableFuture<T> future = new CompletableFuture<>();
+
+    Bukkit.getGlobalRegionScheduler().execute(plugin, () -> {
+      try {
+        future.complete(callable.call());
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+
+    return future;
+  }
+
+  private static Task wrap(BukkitTask task) {
+    return task::cancel;
+  }
+
+  private static Task wrap(ScheduledTask task) {
+    return task::cancel;
+  }
+}
@@ -0,0 +1,194 @@
+package dev.metlhedd.paperts;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.generator.BlockPopulator;
+import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.generator.LimitedRegion;
+import org.bukkit.generator.WorldInfo;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ScriptChunkGenerator class generating the chunks of a world with the world
+ * generator script of a module.
+ * The server calls it from its worldgen threads, several chunks at a time, and
+ * every call borrows a runtime of the module's {@link GeneratorPool}. The
+ * script returns the blocks of the chunk as palette indices in a typed array,
+ * which are written to the chunk in runs of identical blocks.
+ */
+public class ScriptChunkGenerator extends ChunkGenerator {
+  private GeneratorPool pool;
+  private boolean generates;
+  private boolean populates;
+  private Set<String> vanillaSteps;
+
+  /**
+   * Constructor for the ScriptChunkGenerator class.
+   *
+   * @param pool The runtimes running the world generator script.
+   */
+  public ScriptChunkGenerator(GeneratorPool pool) {
+    this.pool = pool;
+    this.generates = pool.getTemplate().hasGenerator();
+    this.populates = pool.getTemplate().hasPopulator();
+    this.vanillaSteps = Set.copyOf(pool.getTemplate().getVanillaSteps());
+  }
+
+  @Override
+  public void generateNoise(@NotNull WorldInfo worldInfo, @NotNull Random random, int chunkX, int chunkZ,
+      @NotNull ChunkData chunkData) {
+    if (!this.generates) {
+      return;
+    }
+
+    int minY = chunkData.getMinHeight();
+    GeneratorChunk chunk = new GeneratorChunk(worldInfo.getName(), worldInfo.getSeed(), chunkX, chunkZ, minY,
+        chunkData.getMaxHeight() - minY);
+    GeneratorRuntime runtime = this.acquire();
+
+    if (runtime == null) {
+      return;
+    }
+
+    try {
+      int[] blocks = runtime.generate(chunk);
+
+      if (blocks != null) {
+        fill(runtime, blocks, minY, chunk.getHeight(), chunkData);
+      }
+    } catch (Exception e) {
+      this.pool.getErrorReporter().report("Chunk generation", e);
+    } finally {
+      this.pool.release(runtime);
+    }
+  }
+
+  /**
+   * Writes the blocks returned by the script to the chunk, one run of identical
+   * blocks along x at a time. Air is skipped, which leaves the block empty, or
+   * as the vanilla noise made it.
+   */
+  private static void fill(GeneratorRuntime runtime, int[] blocks, int minY, int height, ChunkData chunkData)
+      throws IllegalArgumentException {
+    for (int y = 0; y < height; y++) {
+      for (int z = 0; z < 16; z++) {
+        int row = (y * 16 + z) * 16;
+        int x = 0;
+
+        while (x < 16) {
+          int index = blocks[row + x];
+          int end = x + 1;
+
+          while (end < 16 && blocks[row + end] == index) {
+            end++;
+          }
+
+          BlockData blockData = runtime.getBlockData(index);
+
+          if (!runtime.isAir(index)) {
+            chunkData.setRegion(x, minY + y, z, end, minY + y + 1, z + 1, blockData);
+          }
+
+          x = end;
+        }
+      }
+    }
+  }
+
+  /**
+   * Borrows a runtime of the pool, reporting why if none can be had.
+   *
+   * @return The runtime, or null if the pool is closed or failed to grow.
+   */
+  private GeneratorRuntime acquire() {
+    try {
+      return this.pool.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      this.pool.getErrorReporter().report("Generator runtime", e);
+    }
+
+    return null;
+  }
+
+  @Override
+  public @NotNull List<BlockPopulator> getDefaultPopulators(@NotNull World world) {
+    return this.populates ? List.of(new ScriptBlockPopulator()) : List.of();
+  }
+
+  @Override
+  public boolean shouldGenerateNoise() {
+    return this.vanillaSteps.contains("noise");
+  }
+
+  @Override
+  public boolean shouldGenerateSurface() {
+    return this.vanillaSteps.contains("surface");
+  }
+
+  @Override
+  public boolean shouldGenerateCaves() {
+    return this.vanillaSteps.contains("caves");
+  }
+
+  @Override
+  public boolean shouldGenerateDecorations() {
+    return this.vanillaSteps.contains("decorations");
+  }
+
+  @Override
+  public boolean shouldGenerateMobs() {
+    return this.vanillaSteps.contains("mobs");
+  }
+
+  @Override
+  public boolean shouldGenerateStructures() {
+    return this.vanillaSteps.contains("structures");
+  }
+
+  /**
+   * ScriptBlockPopulator class populating the chunks of a world with the
+   * populate function of the world generator script.
+   */
+  private class ScriptBlockPopulator extends BlockPopulator {
+    @Override
+    public void populate(@NotNull WorldInfo worldInfo, @NotNull Random random, int chunkX, int chunkZ,
+        @NotNull LimitedRegion limitedRegion) {
+      int minY = worldInfo.getMinHeight();
+      GeneratorChunk chunk = new GeneratorChunk(worldInfo.getName(), worldInfo.getSeed(), chunkX, chunkZ, minY,
+          worldInfo.getMaxHeight() - minY);
+      GeneratorRuntime runtime = acquire();
+
+      if (runtime == null) {
+        return;
+      }
+
+      try {
+        int[] changes = runtime.populate(chunk);
+
+        if (changes == null) {
+          return;
+        }
+
+        for (int i = 0; i < changes.length; i += BlockMutation.STRIDE) {
+          int x = changes[i];
+          int y = changes[i + 1];
+          int z = changes[i + 2];
+
+          if (limitedRegion.isInRegion(x, y, z)) {
+            limitedRegion.setBlockData(x, y, z, runtime.getBlockData(changes[i + 3]));
+          }
+        }
+      } catch (Exception e) {
+        pool.getErrorReporter().report("Chunk population", e);
+      } finally {
+        pool.release(runtime);
+      }
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package dev.metlhedd.paperts;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Projectile;
+import org.bukkit.event.Event;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.EntityEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryInteractEvent;
+import org.bukkit.event.inventory.InventoryOpenEvent;
+import org.bukkit.event.player.PlayerEvent;
+
+/**
+ * ShardGroup class for a module running in several runtimes, selected with
+ * the `shards` field of its package.json.
+ * Each shard runs the module's script in a runtime of its own, and handles the
+ * players whose unique id hashes to it, so the player-scoped work of the module
+ * is spread over as many cores as there are shards.
+ *
+ * Events about a player, e.g. player events, block events caused by a player,
+ * inventory events, damage dealt by a player and events of an entity that is a
+ * player, are routed to the shard of the player. Other events only reach the
+ * first shard, unless the handler is registered as a broadcast one, which every
+ * shard runs. The routing runs on the thread calling the event; handlers
+ * registered as queued ones then run on the runtime thread of their shard, so
+ * the shards handle them in parallel. Commands run in the shard of the player sending them, or in the
+ * first shard when sent by the console.
+ */
+public class ShardGroup {
+  /**
+   * The most shards a module may request.
+   */
+  public static final int MAX_SHARDS = 64;
+
+  /**
+   * The globals of each shard, set while its script is up and running.
+   */
+  private AtomicReferenceArray<Globals> members;
+  /**
+   * The public getPlayer() method of every event class that has one returning
+   * a player, or null.
+   */
+  private static final ClassValue<Method> PLAYER_GETTERS = new ClassValue<>() {
+    @Override
+    protected Method computeValue(Class<?> type) {
+      try {
+        Method method = type.getMethod("getPlayer");
+
+        if (HumanEntity.class.isAssignableFrom(method.getReturnType()) && Modifier.isPublic(method.getModifiers())
+            && !Modifier.isStatic(method.getModifiers())) {
+          return method;
+        }
+      } catch (NoSuchMethodException e) {
+        // The event is not about a player
+      }
+
+      return null;
+    }
+  };
+
+  /**
+   * Constructor for the ShardGroup class.
+   *
+   * @param size The number of shards.
+   */
+  public ShardGroup(int size) {
+    this.members = new AtomicReferenceArray<>(size);
+  }
+
+  /**
+   * Gets the number of shards.
+   *
+   * @return The number of shards.
+   */
+  public int size() {
+    return this.members.length();
+  }
+
+  /**
+   * Gets the shard of a player. The hash of a unique id is stable, so a player
+   * keeps its shard across restarts of the module.
+   *
+   * @param uniqueId The unique id of the player.
+   * @return The index of the shard.
+   */
+  public int shardOf(UUID uniqueId) {
+    return Math.floorMod(uniqueId.hashCode(), this.members.length());
+  }
+
+  /**
+   * Checks if a shard handles an event.
+   *
+   * @param shard     The index of the shard.
+   * @param event     The event.
+   * @param broadcast Whether the handler of the event runs in every shard.
+   * @return true if the event is about a player of the shard, or is not about
+   *         a player and the shard is the first one, or the handler is a
+   *         broadcast one.
+   */
+  public boolean isRoutedTo(int shard, Event event, boolean broadcast) {
+    if (broadcast) {
+      return true;
+    }
+
+    HumanEntity player = playerOf(event);
+
+    return player == null ? shard == 0 : this.shardOf(player.getUniqueId()) == shard;
+  }
+
+  /**
+   * Gets the command a sender's invocation runs in.
+   *
+   * @param commandName The name of the command.
+   * @param sender      The sender of the command.
+   * @return The command in the sender's shard, or null if that shard is not
+   *         running or did not register it.
+   */
+  CommandExecutor getCommand(String commandName, CommandSender sender) {
+    int shard = sender instanceof Player ? this.shardOf(((Player) sender).getUniqueId()) : 0;
+    Globals globals = this.members.get(shard);
+
+    return globals == null ? null : globals.getCommand(commandName);
+  }
+
+  /**
+   * Gets the globals of a shard.
+   *
+   * @param shard The index of the shard.
+   * @return The globals, or null if the script of the shard is not running.
+   */
+  Globals get(int shard) {
+    return this.members.get(shard);
+  }
+
+  /**
+   * Sets the globals of a shard, once its script is up, or null once it is
+   * closing.
+   *
+   * @param shard   The index of the shard.
+   * @param globals The globals of the shard.
+   */
+  void set(int shard, Globals globals) {
+    this.members.set(shard, globals);
+  }
+
+  /**
+   * Gets the player an event is about.
+   *
+   * @param event The event.
+   * @return The player, or null if the event is not about a player.
+   */
+  static HumanEntity playerOf(Event event) {
+    if (event instanceof PlayerEvent) {
+      return ((PlayerEvent) event).getPlayer();
+    } else if (event instanceof InventoryInteractEvent) {
+      return ((InventoryInteractEvent) event).getWhoClicked();
+    } else if (event instanceof InventoryOpenEvent) {
+      return ((InventoryOpenEvent) event).getPlayer();
+    } else if (event instanceof InventoryCloseEvent) {
+      return ((InventoryCloseEvent) event).getPlayer();
+    }
+
+    // Damage belongs to the player dealing it, directly or with a projectile
+    if (event instanceof EntityDamageByEntityEvent) {
+      HumanEntity damager = playerOf(((EntityDamageByEntityEvent) event).getDamager());
+
+      if (damager != null) {
+        return damager;
+      }
+    }
+
+    if (event instanceof EntityEvent && ((EntityEvent) event).getEntity() instanceof Player) {
+      return (Player) ((EntityEvent) event).getEntity();
+    }
+
+    // Other events caused by a player, e.g. BlockBreakEvent or BlockPlaceEvent
+    Method getter = PLAYER_GETTERS.get(event.getClass());
+
+    if (getter != null) {
+      try {
+        return (HumanEntity) getter.invoke(event);
+      } catch (ReflectiveOperationException e) {
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+  private static HumanEntity playerOf(Entity entity) {
+    if (entity instanceof Projectile && ((Projectile) entity).getShooter() instanceof Entity) {
+      entity = (Entity) ((Projectile) entity).getShooter();
+    }
+
+    return entity instanceof HumanEntity ? (HumanEntity) entity : null;
+  }
+}
@@ -0,0 +1,540 @@
+package dev.metlhedd.paperts;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.bukkit.Difficulty;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.TreeType;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.caoccao.javet.enums.JSRuntimeType;
+import com.caoccao.javet.enums.V8AwaitMode;
+import com.caoccao.javet.exceptions.JavetException;
+import com.caoccao.javet.interception.jvm.JavetJVMInterceptor;
+import com.caoccao.javet.interop.NodeRuntime;
+import com.caoccao.javet.interop.V8Host;
+import com.caoccao.javet.interop.V8Runtime;
+import com.caoccao.javet.values.reference.V8ValueObject;
+
+/**
+ * SharedIsolate class for a Node.js runtime hosting several small modules.
+ * Each module runs in a V8 context of its own, created with Node's vm module,
+ * so it has its own globals, its own PaperTS object and a require function
+ * rooted at its directory. The local files it requires are compiled in its
+ * context too, with a module cache per context. The host objects it sees,
+ * like process and Buffer, are facades keeping its writes to itself. Timers
+ * and process listeners created by a module are tracked per context, so
+ * disposing a context stops them without affecting the other modules.
+ * The runtime lives on a thread of its own, pumping the Node.js event loop
+ * and running the work queued by the modules in between, and is closed once
+ * its last context is disposed.
+ */
+public class SharedIsolate {
+  /**
+   * How often the event loop is pumped, in milliseconds.
+   */
+  private static final long PUMP_INTERVAL_MILLIS = 10;
+
+  /**
+   * Creates and disposes the module contexts, installed once in the runtime as
+   * __paperts.
+   */
+  private static final String CONTEXT_HOST = """
+      globalThis.__paperts = (function () {
+        const vm = require("vm");
+        const path = require("path");
+        const Module = require("module");
+        const fs = require("fs");
+        const host = globalThis;
+        const contexts = new Map();
+
+        function isJavaPackage(id) {
+          return id.startsWith("org.") || id.startsWith("java.") || id.startsWith("net.") || id.startsWith("com.");
+        }
+
+        // Local files are compiled in the context of the module, so they see
+        // its globals and timers, and are cached per context
+        function createRequire(context, indexPath, indexModule) {
+          const cache = new Map([[indexPath, indexModule]]);
+
+          function load(filename) {
+            const cached = cache.get(filename);
+
+            if (cached) {
+              return cached.exports;
+            }
+
+            const module = { exports: {}, filename: filename, loaded: false };
+            const code = fs.readFileSync(filename, "utf8");
+
+            cache.set(filename, module);
+
+            try {
+              if (filename.endsWith(".json")) {
+                module.exports = JSON.parse(code);
+              } else {
+                const wrapper = vm.compileFunction(code, ["exports", "require", "module", "__filename", "__dirname"], {
+                  filename: filename,
+                  parsingContext: context,
+                });
+
+                wrapper.call(module.exports, module.exports, requireFrom(filename), module, filename,
+                    path.dirname(filename));
+              }
+            } catch (err) {
+              cache.delete(filename);
+              throw err;
+            }
+
+            module.loaded = true;
+
+            return module.exports;
+          }
+
+          function requireFrom(parentPath) {
+            const hostRequire = Module.createRequire(parentPath);
+
+            return function (id) {
+              if (typeof id === "string" && isJavaPackage(id)) {
+                return javet.package[id];
+              }
+
+              // Node's own modules have no globals of their own to bind
+              if (Module.isBuiltin(id)) {
+                return hostRequire(id);
+              }
+
+              return load(hostRequire.resolve(id));
+            };
+          }
+
+          return requireFrom(indexPath);
+        }
+
+        // Writes land on the facade, so a module patching a host object, like
+        // process or Buffer, does not change it for the other modules
+        function createFacade(target, overrides, bindFunctions) {
+          const shadow = new Map(Object.entries(overrides));
+          const bound = new Map();
+
+          return new Proxy(target, {
+            get(target, key) {
+              if (shadow.has(key)) {
+                return shadow.get(key);
+              }
+
+              const value = Reflect.get(target, key);
+
+              if (!bindFunctions || typeof value !== "function") {
+                return value;
+              }
+
+              if (!bound.has(key)) {
+                bound.set(key, value.bind(target));
+              }
+
+              return bound.get(key);
+            },
+            has(target, key) {
+              return shadow.has(key) || Reflect.has(target, key);
+            },
+            set(target, key, value) {
+              const descriptor = Reflect.getOwnPropertyDescriptor(target, key);
+
+              if (descriptor && !descriptor.configurable && !descriptor.writable) {
+                return false;
+              }
+
+              shadow.set(key, value);
+              return true;
+            },
+            deleteProperty(target, key) {
+              shadow.delete(key);
+              return true;
+            },
+          });
+        }
+
+        // The listeners a module adds to process are tracked, so they are
+        // removed with its context
+        function createProcess(listeners) {
+          const process = host.process;
+          let facade;
+
+          function track(method) {
+            return function (event, listener) {
+              process[method](event, listener);
+              listeners.push([event, listener]);
+              return facade;
+            };
+          }
+
+          function untrack(event, listener) {
+            const index = listeners.findIndex(([e, l]) => e === event && l === listener);
+
+            if (index >= 0) {
+              listeners.splice(index, 1);
+              process.removeListener(event, listener);
+            }
+
+            return facade;
+          }
+
+          facade = createFacade(process, {
+            env: Object.assign({}, process.env),
+            on: track("on"),
+            addListener: track("addListener"),
+            once: track("once"),
+            prependListener: track("prependListener"),
+            prependOnceListener: track("prependOnceListener"),
+            off: untrack,
+            removeListener: untrack,
+            removeAllListeners(event) {
+              for (const [e, l] of listeners.slice()) {
+                if (event === undefined || e === event) {
+                  untrack(e, l);
+                }
+              }
+
+              return facade;
+            },
+            listeners(event) {
+              return listeners.filter(([e]) => e === event).map(([, l]) => l);
+            },
+            listenerCount(event) {
+              return listeners.filter(([e]) => e === event).length;
+            },
+          }, true);
+
+          return facade;
+        }
+
+        function createTimers(timers) {
+          return {
+            setTimeout(callback, delay, ...args) {
+              const handle = host.setTimeout(() => {
+                timers.delete(handle);
+                callback(...args);
+              }, delay);
+              timers.set(handle, host.clearTimeout);
+              return handle;
+            },
+            clearTimeout(handle) {
+              timers.delete(handle);
+              host.clearTimeout(handle);
+            },
+            setInterval(callback, delay, ...args) {
+              const handle = host.setInterval(callback, delay, ...args);
+              timers.set(handle, host.clearInterval);
+              return handle;
+            },
+            clearInterval(handle) {
+              timers.delete(handle);
+              host.clearInterval(handle);
+            },
+            setImmediate(callback, ...args) {
+              const handle = host.setImmediate(() => {
+                timers.delete(handle);
+                callback(...args);
+              });
+              timers.set(handle, host.clearImmediate);
+              return handle;
+            },
+            clearImmediate(handle) {
+              timers.delete(handle);
+              host.clearImmediate(handle);
+            },
+          };
+        }
+
+        return {
+          create(id, globals, java, indexPath, code) {
+            const timers = new Map();
+            const listeners = [];
+            const module = { exports: {} };
+            const sandbox = Object.assign({
+              PaperTS: globals,
+              Java: java,
+              TreeType: host.TreeType,
+              Material: host.Material,
+              GameMode: host.GameMode,
+              Difficulty: host.Difficulty,
+              javet: createFacade(host.javet, {}, false),
+              org: host.javet.package.org,
+              java: host.javet.package.java,
+              console: Object.assign({}, host.console),
+              process: createProcess(listeners),
+              Buffer: createFacade(host.Buffer, {}, false),
+              URL: host.URL,
+              URLSearchParams: host.URLSearchParams,
+              TextEncoder: host.TextEncoder,
+              TextDecoder: host.TextDecoder,
+              queueMicrotask: host.queueMicrotask,
+              structuredClone: host.structuredClone,
+              module: module,
+              exports: module.exports,
+              __filename: indexPath,
+              __dirname: path.dirname(indexPath),
+            }, createTimers(timers));
+            const context = vm.createContext(sandbox, { name: id });
+
+            sandbox.require = createRequire(context, indexPath, module);
+
+            contexts.set(id, { context, timers, listeners });
+            vm.runInContext(code, context, { filename: indexPath });
+          },
+          dispose(id) {
+            const entry = contexts.get(id);
+
+            if (!entry) {
+              return;
+            }
+
+            contexts.delete(id);
+
+            try {
+              vm.runInContext("if (typeof cleanup === 'function') { cleanup(); }", entry.context);
+            } catch (err) {
+              // Just ignore cleanup errors
+            }
+
+            for (const [handle, clear] of entry.timers) {
+              clear(handle);
+            }
+
+            entry.timers.clear();
+
+            for (const [event, listener] of entry.listeners) {
+              host.process.removeListener(event, listener);
+            }
+
+            entry.listeners.length = 0;
+            entry.context.PaperTS = undefined;
+          },
+        };
+      })();
+      """;
+
+  private JavaPlugin plugin;
+  private JSRuntimeType runtimeType;
+  private RuntimeProfile profile;
+  private IdleGcScheduler idleGcScheduler;
+  /**
+   * The runtime, set while it is up.
+   */
+  private volatile V8Runtime runtime;
+  private PaperTSProxyConverter proxyConverter;
+  private CountDownLatch ready;
+  private Exception startError;
+  private volatile boolean closing;
+  /**
+   * The number of contexts using the runtime, or about to.
+   */
+  private int references;
+  /**
+   * The globals of the contexts, by id, whose queued work the loop runs.
+   */
+  private ConcurrentHashMap<String, Globals> contexts;
+
+  /**
+   * Constructor for the SharedIsolate class.
+   *
+   * @param plugin          The plugin instance, used for logging.
+   * @param runtimeType     The type of the Node.js runtime.
+   * @param profile         The runtime profile of the modules sharing it.
+   * @param idleGcScheduler The scheduler handing idle time to the runtime.
+   */
+  public SharedIsolate(JavaPlugin plugin, JSRuntimeType runtimeType, RuntimeProfile profile,
+      IdleGcScheduler idleGcScheduler) {
+    this.plugin = plugin;
+    this.runtimeType = runtimeType;
+    this.profile = profile;
+    this.idleGcScheduler = idleGcScheduler;
+    this.proxyConverter = new PaperTSProxyConverter();
+    this.ready = new CountDownLatch(1);
+    this.contexts = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts the runtime on a thread of its own, and waits for it to be up.
+   *
+   * @throws RuntimeException     if the runtime cannot be created.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void start() throws RuntimeException, InterruptedException {
+    new Thread(this::run, "PaperTS-shared-isolate-" + this.profile.getName()).start();
+    this.ready.await();
+
+    if (this.startError != null) {
+      throw new RuntimeException("Failed to start the shared runtime: " + this.startError.getMessage());
+    }
+  }
+
+  /**
+   * Takes a reference to the runtime, for a context about to be created.
+   *
+   * @return true if the runtime can be used, false if it is closing.
+   */
+  public synchronized boolean retain() {
+    if (this.closing) {
+      return false;
+    }
+
+    this.references++;
+
+    return true;
+  }
+
+  /**
+   * Drops a reference to the runtime. The runtime is closed when the last one
+   * is dropped.
+   */
+  public synchronized void release() {
+    this.references--;
+
+    if (this.references <= 0) {
+      this.closing = true;
+    }
+  }
+
+  /**
+   * Gets the runtime, while it is up.
+   *
+   * @return The runtime, or null if it is not running.
+   */
+  public V8Runtime getRuntime() {
+    return this.runtime;
+  }
+
+  /**
+   * Creates the context of a module and runs its script in it.
+   *
+   * @param id        The unique id of the context.
+   * @param globals   The globals of the module.
+   * @param indexPath The path of the module's index script.
+   * @param code      The content of the module's index script.
+   * @throws RuntimeException if the runtime is not up.
+   * @throws JavetException   if the script fails.
+   */
+  public void createContext(String id, Globals globals, Path indexPath, String code)
+      throws RuntimeException, JavetException {
+    V8Runtime runtime = this.runtime;
+
+    if (runtime == null) {
+      throw new RuntimeException("The shared runtime is not running.");
+    }
+
+    globals.setProxyIdentityCache(this.proxyConverter.getIdentityCache());
+
+    try (V8ValueObject host = runtime.getGlobalObject().get("__paperts")) {
+      host.invokeVoid("create", id, globals, new JavaBridge(), indexPath.toString(), code);
+    }
+
+    this.contexts.put(id, globals);
+  }
+
+  /**
+   * Disposes the context of a module, calling its cleanup function and stopping
+   * its timers. The other contexts are not affected.
+   *
+   * @param id The unique id of the context.
+   */
+  public void disposeContext(String id) {
+    V8Runtime runtime = this.runtime;
+
+    this.contexts.remove(id);
+
+    if (runtime == null) {
+      return;
+    }
+
+    try (V8ValueObject host = runtime.getGlobalObject().get("__paperts")) {
+      host.invokeVoid("dispose", id);
+    } catch (Exception e) {
+      this.plugin.getLogger().severe("Failed to dispose context " + id + ": " + e.getMessage());
+    }
+  }
+
+  private void run() {
+    try (V8Runtime runtime = V8Host.getInstance(this.runtimeType).createV8Runtime(this.profile.toRuntimeOptions())) {
+      if (runtime == null) {
+        throw new RuntimeException("Failed to create V8 runtime.");
+      }
+
+      JavetJVMInterceptor javetJVMInterceptor = new JavetJVMInterceptor(runtime);
+
+      runtime.allowEval(this.profile.isAllowEval());
+      runtime.setConverter(this.proxyConverter);
+      javetJVMInterceptor.register(runtime.getGlobalObject());
+
+      runtime.getGlobalObject().set("TreeType", TreeType.class);
+      runtime.getGlobalObject().set("Material", Material.class);
+      runtime.getGlobalObject().set("GameMode", GameMode.class);
+      runtime.getGlobalObject().set("Difficulty", Difficulty.class);
+
+      runtime.getExecutor(
+          """
+                process.on("uncaughtException", function (err) {
+                    console.error("Uncaught Exception:", err);
+                });
+              """)
+          .executeVoid();
+      runtime.getGlobalObject().set("__papertsGcStats",
+          this.idleGcScheduler.register("shared-" + this.profile.getName(), runtime));
+      runtime.getExecutor(GcStats.OBSERVER_SCRIPT).executeVoid();
+      runtime.getExecutor(CONTEXT_HOST).executeVoid();
+
+      this.runtime = runtime;
+      this.ready.countDown();
+      this.plugin.getLogger().info("Shared runtime for profile " + this.profile.getName() + " is up and running.");
+
+      while (!this.closing) {
+        runtime.await(V8AwaitMode.RunNoWait);
+
+        // The work queued by the modules runs between two turns of the loop
+        for (Globals globals : this.contexts.values()) {
+          globals.runQueuedWork(0);
+        }
+
+        TimeUnit.MILLISECONDS.sleep(PUMP_INTERVAL_MILLIS);
+      }
+
+      this.plugin.getLogger().info("Closing shared runtime for profile " + this.profile.getName() + ".");
+      this.runtime = null;
+      this.idleGcScheduler.unregister(runtime);
+      runtime.getExecutor(GcStats.DISCONNECT_SCRIPT).executeVoid();
+      this.proxyConverter.getIdentityCache().close();
+      javetJVMInterceptor.unregister(runtime.getGlobalObject());
+
+      ((NodeRuntime) runtime).setStopping(true);
+      runtime.terminateExecution();
+    } catch (Exception e) {
+      if (this.ready.getCount() > 0) {
+        this.startError = e;
+      } else {
+        // Every module of the runtime stopped with it
+        for (Globals globals : this.contexts.values()) {
+          globals.getErrorReporter().report("shared runtime " + this.profile.getName(), e);
+        }
+
+        if (this.contexts.isEmpty()) {
+          this.plugin.getLogger().log(Level.SEVERE, "Shared runtime for profile " + this.profile.getName()
+              + " stopped unexpectedly: " + e.getMessage(), e);
+        }
+      }
+    } finally {
+      this.runtime = null;
+
+      synchronized (this) {
+        this.closing = true;
+      }
+
+      this.ready.countDown();
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package dev.metlhedd.paperts;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import com.destroystokyo.paper.event.server.ServerTickStartEvent;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * TraceRecorder class recording a timeline of the script handlers run by the
+ * modules: event handlers, commands, scheduled tasks and module lifecycle
+ * phases, each as a span with its module, thread and server tick.
+ * The timeline is dumped in the Chrome trace format, which can be opened in
+ * Perfetto or chrome://tracing.
+ *
+ * Spans are kept in a ring buffer of fixed size, so a long recording only keeps
+ * the latest spans. While the recorder is stopped, a dispatch path only reads a
+ * volatile field. While it runs, a span is written into preallocated arrays
+ * after claiming its slot with a single atomic increment, without locking and
+ * without allocating.
+ *
+ * <pre>
+ * long traceStart = TraceRecorder.begin();
+ * try {
+ *   handler.apply(event);
+ * } finally {
+ *   TraceRecorder.end(traceStart, moduleName, TraceRecorder.EVENT, eventName);
+ * }
+ * </pre>
+ *
+ * The recorder is also a listener, recording a span per server tick.
+ */
+public class TraceRecorder implements Listener {
+  public static final String EVENT = "event";
+  public static final String COMMAND = "command";
+  public static final String TASK = "task";
+  public static final String LIFECYCLE = "lifecycle";
+  public static final String SERVER = "server";
+
+  /**
+   * The spans recorded so far, written by any thread.
+   * Each slot is guarded by a sequence: odd while the slot is being written,
+   * even once it holds the span with that index, so a reader can tell torn
+   * slots apart.
+   */
+  private static class Buffer {
+    private final long originNanos;
+    private final int mask;
+    private final AtomicLong cursor;
+    private final AtomicLongArray sequences;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final long[] threadIds;
+    private final int[] ticks;
+    private final String[] modules;
+    private final String[] categories;
+    private final String[] names;
+
+    Buffer(int capacity) {
+      this.originNanos = System.nanoTime();
+      this.mask = capacity - 1;
+      this.cursor = new AtomicLong();
+      this.sequences = new AtomicLongArray(capacity);
+      this.startNanos = new long[capacity];
+      this.durationNanos = new long[capacity];
+      this.threadIds = new long[capacity];
+      this.ticks = new int[capacity];
+      this.modules = new String[capacity];
+      this.categories = new String[capacity];
+      this.names = new String[capacity];
+    }
+
+    void record(long start, long end, String module, String category, String name) {
+      long index = this.cursor.getAndIncrement();
+      int slot = (int) (index & this.mask);
+
+      this.sequences.set(slot, 2 * index + 1);
+      VarHandle.storeStoreFence();
+
+      this.startNanos[slot] = start;
+      this.durationNanos[slot] = end - start;
+      this.threadIds[slot] = Thread.currentThread().threadId();
+      this.ticks[slot] = currentTick;
+      this.modules[slot] = module;
+      this.categories[slot] = category;
+      this.names[slot] = name;
+
+      this.sequences.set(slot, 2 * index + 2);
+    }
+  }
+
+  /**
+   * The buffer of the running recording, or null when the recorder is stopped.
+   */
+  private static volatile Buffer buffer;
+  /**
+   * The number of the tick the server is in.
+   */
+  private static volatile int currentTick;
+  /**
+   * When the current tick started, in nanoseconds.
+   */
+  private static long tickStartNanos;
+
+  /**
+   * Gets whether a recording is running.
+   *
+   * @return true if spans are recorded.
+   */
+  public static boolean isEnabled() {
+    return buffer != null;
+  }
+
+  /**
+   * Starts a recording, discarding the previous one.
+   *
+   * @param capacity The number of spans kept, rounded up to a power of two.
+   * @throws IllegalArgumentException if the capacity is not positive.
+   */
+  public static synchronized void start(int capacity) throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The trace buffer size must be positive.");
+    }
+
+    buffer = new Buffer(Integer.highestOneBit(Math.min(capacity, 1 << 24) * 2 - 1));
+  }
+
+  /**
+   * Gets the start time of a span, to be passed to
+   * {@link #end(long, String, String, String)}.
+   *
+   * @return The current time in nanoseconds, or 0 if the recorder is stopped.
+   */
+  public static long begin() {
+    return buffer == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Records a span ending now. Does nothing if the recorder was stopped when
+   * the span began.
+   *
+   * @param beginNanos The value returned by {@link #begin()}.
+   * @param module     The module the span belongs to.
+   * @param category   The category of the span, e.g. {@link #EVENT}.
+   * @param name       The name of the span, e.g. the event class.
+   */
+  public static void end(long beginNanos, String module, String category, String name) {
+    Buffer current = buffer;
+
+    if (current == null || beginNanos == 0) {
+      return;
+    }
+
+    current.record(beginNanos, System.nanoTime(), module, category, name);
+  }
+
+  /**
+   * Stops the recording and writes its spans as Chrome trace JSON.
+   * Spans that were still being written are skipped.
+   *
+   * @param file The .json file to write.
+   * @return The number of spans written.
+   * @throws RuntimeException if no recording is running.
+   * @throws IOException      if the file cannot be written.
+   */
+  public static int stop(File file) throws RuntimeException, IOException {
+    Buffer current;
+
+    synchronized (TraceRecorder.class) {
+      current = buffer;
+
+      if (current == null) {
+        throw new RuntimeException("No trace is being recorded.");
+      }
+
+      buffer = null;
+    }
+
+    Map<Long, String> threadNames = new HashMap<>();
+    HashSet<Long> seenThreads = new HashSet<>();
+    long end = current.cursor.get();
+    long first = Math.max(0, end - current.mask - 1);
+    int written = 0;
+
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      threadNames.put(thread.threadId(), thread.getName());
+    }
+
+    try (JsonWriter writer = new JsonWriter(new FileWriter(file))) {
+      writer.beginObject();
+      writer.name("displayTimeUnit").value("ms");
+      writer.name("traceEvents").beginArray();
+
+      for (long index = first; index < end; index++) {
+        int slot = (int) (index & current.mask);
+        long sequence = current.sequences.get(slot);
+
+        if (sequence != 2 * index + 2) {
+          continue;
+        }
+
+        long start = current.startNanos[slot];
+        long duration = current.durationNanos[slot];
+        long threadId = current.threadIds[slot];
+        int tick = current.ticks[slot];
+        String module = current.modules[slot];
+        String category = current.categories[slot];
+        String name = current.names[slot];
+
+        VarHandle.loadLoadFence();
+
+        if (current.sequences.get(slot) != sequence) {
+          continue;
+        }
+
+        writer.beginObject();
+        writer.name("name").value(name);
+        writer.name("cat").value(category);
+        writer.name("ph").value("X");
+        writer.name("ts").value((start - current.originNanos) / 1000.0);
+        writer.name("dur").value(duration / 1000.0);
+        writer.name("pid").value(1);
+        writer.name("tid").value(threadId);
+        writer.name("args").beginObject();
+
+        if (module != null) {
+          writer.name("module").value(module);
+        }
+
+        writer.name("tick").value(tick);
+        writer.endObject();
+        writer.endObject();
+
+        seenThreads.add(threadId);
+        written++;
+      }
+
+      writer.beginObject();
+      writer.name("name").value("process_name");
+      writer.name("ph").value("M");
+      writer.name("pid").value(1);
+      writer.name("args").beginObject().name("name").value("PaperTS").endObject();
+      writer.endObject();
+
+      for (Long threadId : seenThreads) {
+        writer.beginObject();
+        writer.name("name").value("thread_name");
+        writer.name("ph").value("M");
+        writer.name("pid").value(1);
+        writer.name("tid").value(threadId);
+        writer.name("args").beginObject()
+            .name("name").value(threadNames.getOrDefault(threadId, "Thread " + threadId)).endObject();
+        writer.endObject();
+      }
+
+      writer.endArray();
+      writer.endObject();
+    }
+
+    return written;
+  }
+
+  /**
+   * Tracks the tick the server is in.
+   *
+   * @param event The tick start event.
+   */
+  @EventHandler(priority = EventPriority.LOWEST)
+  public void onServerTickStart(ServerTickStartEvent event) {
+    currentTick = event.getTickNumber();
+    tickStartNanos = begin();
+  }
+
+  /**
+   * Records the span of the tick that just ended.
+   *
+   * @param event The tick end event.
+   */
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onServerTickEnd(ServerTickEndEvent event) {
+    end(tickStartNanos, null, SERVER, "Tick");
+  }
+}
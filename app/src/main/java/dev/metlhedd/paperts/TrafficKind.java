@@ -0,0 +1,10 @@
+package dev.metlhedd.paperts;
+
+public enum TrafficKind {
+  Join,
+  Quit,
+  Move,
+  Chat,
+  Interact,
+  Command,
+}
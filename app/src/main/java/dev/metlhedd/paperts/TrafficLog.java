@@ -0,0 +1,455 @@
+package dev.metlhedd.paperts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import io.papermc.paper.event.player.AsyncChatEvent;
+import net.kyori.adventure.text.serializer.plain.PlainTextComponentSerializer;
+
+/**
+ * TrafficLog class recording the player traffic of a live server into a
+ * compact binary log, which {@link LoadTest} replays against a module.
+ * Players are anonymized to the order they were first seen in. The log holds
+ * chat messages and command lines as they were typed.
+ *
+ * The log is gzipped. After a header, each record is a varint tick delta, the
+ * kind of the record, a varint player index, and a payload depending on the
+ * kind: the target location of a move, the text of a chat message or command,
+ * or the action and block of an interaction.
+ *
+ * Events are queued by the server threads and written by a thread of its own,
+ * so recording never touches the disk on the main thread.
+ */
+public class TrafficLog implements Listener {
+  private static final int MAGIC = 0x5054534C;
+  private static final int VERSION = 1;
+
+  /**
+   * A recorded player action.
+   */
+  public static class Record {
+    private final int tick;
+    private final TrafficKind kind;
+    private final int player;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float yaw;
+    private final float pitch;
+    private final String text;
+    private final int action;
+
+    Record(int tick, TrafficKind kind, int player, double x, double y, double z, float yaw, float pitch,
+        String text, int action) {
+      this.tick = tick;
+      this.kind = kind;
+      this.player = player;
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.yaw = yaw;
+      this.pitch = pitch;
+      this.text = text;
+      this.action = action;
+    }
+
+    public int getTick() {
+      return tick;
+    }
+
+    public TrafficKind getKind() {
+      return kind;
+    }
+
+    public int getPlayer() {
+      return player;
+    }
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public double getZ() {
+      return z;
+    }
+
+    public float getYaw() {
+      return yaw;
+    }
+
+    public float getPitch() {
+      return pitch;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    public int getAction() {
+      return action;
+    }
+  }
+
+  /**
+   * Reads a log one tick at a time.
+   */
+  public static class Reader implements Closeable {
+    private DataInputStream input;
+    private Record pending;
+    private int tick;
+    private boolean ended;
+
+    /**
+     * Opens a log.
+     *
+     * @param file The log file.
+     * @throws IOException if the file cannot be read, or is not a traffic log.
+     */
+    public Reader(File file) throws IOException {
+      this.input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+      if (this.input.readInt() != MAGIC || this.input.readInt() != VERSION) {
+        this.input.close();
+        throw new IOException("File " + file.getName() + " is not a traffic log.");
+      }
+
+      this.pending = this.read(0);
+
+      if (this.pending != null) {
+        this.tick = this.pending.tick;
+      }
+    }
+
+    /**
+     * Reads the records of the next tick. Ticks without records are returned
+     * as empty lists, so the timing of the log is kept.
+     *
+     * @return The records of the tick, or null at the end of the log.
+     * @throws IOException if the log cannot be read.
+     */
+    public List<Record> nextTick() throws IOException {
+      if (this.pending == null) {
+        return null;
+      }
+
+      ArrayList<Record> records = new ArrayList<>();
+
+      while (this.pending != null && this.pending.tick == this.tick) {
+        records.add(this.pending);
+        this.pending = this.read(this.pending.tick);
+      }
+
+      this.tick++;
+
+      return records;
+    }
+
+    private Record read(int previousTick) throws IOException {
+      if (this.ended) {
+        return null;
+      }
+
+      int delta;
+
+      try {
+        delta = readVarInt(this.input);
+      } catch (EOFException e) {
+        this.ended = true;
+        return null;
+      }
+
+      int tick = previousTick + delta;
+      TrafficKind kind = TrafficKind.values()[this.input.readUnsignedByte()];
+      int player = readVarInt(this.input);
+
+      switch (kind) {
+        case Move:
+          return new Record(tick, kind, player, this.input.readDouble(), this.input.readDouble(),
+              this.input.readDouble(), this.input.readFloat(), this.input.readFloat(), null, 0);
+        case Interact:
+          int action = this.input.readUnsignedByte();
+
+          return new Record(tick, kind, player, this.input.readInt(), this.input.readInt(), this.input.readInt(),
+              0, 0, null, action);
+        case Chat:
+        case Command:
+          return new Record(tick, kind, player, 0, 0, 0, 0, 0, this.input.readUTF(), 0);
+        default:
+          return new Record(tick, kind, player, 0, 0, 0, 0, 0, null, 0);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.input.close();
+    }
+  }
+
+  private JavaPlugin plugin;
+  private LinkedBlockingQueue<Record> queue;
+  private ConcurrentHashMap<UUID, Integer> players;
+  private AtomicInteger nextPlayer;
+  private volatile boolean recording;
+  private Thread writer;
+  private File file;
+  private long records;
+  private IOException writeError;
+
+  /**
+   * Constructor for the TrafficLog class.
+   *
+   * @param plugin The plugin instance, used for logging.
+   */
+  public TrafficLog(JavaPlugin plugin) {
+    this.plugin = plugin;
+    this.queue = new LinkedBlockingQueue<>();
+    this.players = new ConcurrentHashMap<>();
+    this.nextPlayer = new AtomicInteger();
+  }
+
+  /**
+   * Gets whether traffic is being recorded.
+   *
+   * @return true if traffic is being recorded.
+   */
+  public boolean isRecording() {
+    return this.recording;
+  }
+
+  /**
+   * Starts recording the traffic of the server. The players already online
+   * are recorded as joining first.
+   *
+   * @param file The log file to write.
+   * @throws RuntimeException if traffic is already being recorded.
+   * @throws IOException      if the file cannot be created.
+   */
+  public synchronized void start(File file) throws RuntimeException, IOException {
+    if (this.recording) {
+      throw new RuntimeException("Traffic is already being recorded.");
+    }
+
+    DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+
+    this.file = file;
+    this.records = 0;
+    this.writeError = null;
+    this.queue.clear();
+    this.players.clear();
+    this.nextPlayer.set(0);
+    this.recording = true;
+
+    for (Player player : Bukkit.getOnlinePlayers()) {
+      this.record(TrafficKind.Join, player, 0, 0, 0, 0, 0, null, 0);
+    }
+
+    this.writer = new Thread(() -> this.write(output), "PaperTS-traffic-log");
+    this.writer.start();
+  }
+
+  /**
+   * Stops recording, and waits for the queued records to be written.
+   *
+   * @return The log file.
+   * @throws RuntimeException     if no traffic is being recorded.
+   * @throws IOException          if the log could not be written.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public synchronized File stop() throws RuntimeException, IOException, InterruptedException {
+    if (!this.recording) {
+      throw new RuntimeException("No traffic is being recorded.");
+    }
+
+    this.recording = false;
+    this.writer.join();
+
+    if (this.writeError != null) {
+      throw this.writeError;
+    }
+
+    return this.file;
+  }
+
+  /**
+   * Gets the number of records written by the last recording.
+   *
+   * @return The number of records.
+   */
+  public long getRecords() {
+    return this.records;
+  }
+
+  private void write(DataOutputStream output) {
+    int previousTick = -1;
+
+    try (output) {
+      while (this.recording || !this.queue.isEmpty()) {
+        Record record = this.queue.poll(100, TimeUnit.MILLISECONDS);
+
+        if (record == null) {
+          continue;
+        }
+
+        // Chat is recorded off the main thread, and may be queued after a
+        // record of the next tick
+        int tick = previousTick < 0 ? record.tick : Math.max(previousTick, record.tick);
+
+        writeVarInt(output, previousTick < 0 ? 0 : tick - previousTick);
+        output.writeByte(record.kind.ordinal());
+        writeVarInt(output, record.player);
+
+        switch (record.kind) {
+          case Move:
+            output.writeDouble(record.x);
+            output.writeDouble(record.y);
+            output.writeDouble(record.z);
+            output.writeFloat(record.yaw);
+            output.writeFloat(record.pitch);
+            break;
+          case Interact:
+            output.writeByte(record.action);
+            output.writeInt((int) record.x);
+            output.writeInt((int) record.y);
+            output.writeInt((int) record.z);
+            break;
+          case Chat:
+          case Command:
+            output.writeUTF(record.text);
+            break;
+          default:
+            break;
+        }
+
+        previousTick = tick;
+        this.records++;
+      }
+    } catch (IOException e) {
+      this.writeError = e;
+      this.recording = false;
+      this.plugin.getLogger().severe("Failed to write the traffic log: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void record(TrafficKind kind, Player player, double x, double y, double z, float yaw, float pitch,
+      String text, int action) {
+    int index = this.players.computeIfAbsent(player.getUniqueId(), uuid -> this.nextPlayer.getAndIncrement());
+
+    this.queue.add(new Record(Bukkit.getCurrentTick(), kind, index, x, y, z, yaw, pitch, text, action));
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerJoin(PlayerJoinEvent event) {
+    if (this.recording) {
+      this.record(TrafficKind.Join, event.getPlayer(), 0, 0, 0, 0, 0, null, 0);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    if (this.recording) {
+      this.record(TrafficKind.Quit, event.getPlayer(), 0, 0, 0, 0, 0, null, 0);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlayerMove(PlayerMoveEvent event) {
+    if (this.recording) {
+      Location to = event.getTo();
+
+      this.record(TrafficKind.Move, event.getPlayer(), to.getX(), to.getY(), to.getZ(), to.getYaw(), to.getPitch(),
+          null, 0);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlayerChat(AsyncChatEvent event) {
+    if (this.recording) {
+      this.record(TrafficKind.Chat, event.getPlayer(), 0, 0, 0, 0, 0,
+          PlainTextComponentSerializer.plainText().serialize(event.message()), 0);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onPlayerInteract(PlayerInteractEvent event) {
+    if (this.recording) {
+      Block block = event.getClickedBlock();
+      Location location = block != null ? block.getLocation() : event.getPlayer().getLocation();
+
+      this.record(TrafficKind.Interact, event.getPlayer(), location.getBlockX(), location.getBlockY(),
+          location.getBlockZ(), 0, 0, null, event.getAction().ordinal());
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+    if (this.recording) {
+      this.record(TrafficKind.Command, event.getPlayer(), 0, 0, 0, 0, 0, event.getMessage().substring(1), 0);
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      output.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    output.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream input) throws IOException {
+    int value = 0;
+
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = input.readUnsignedByte();
+
+      value |= (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+
+    throw new IOException("Malformed varint in traffic log.");
+  }
+}
@@ -0,0 +1,138 @@
+package dev.metlhedd.paperts;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import net.kyori.adventure.text.Component;
+
+/**
+ * VirtualPlayer class for the players simulated by a {@link LoadTest}.
+ * A virtual player is a Player proxy with a name, a unique id and a location,
+ * which is not connected to the server: messages sent to it are dropped, and
+ * the methods it does not simulate return empty values.
+ */
+public class VirtualPlayer implements InvocationHandler {
+  private String name;
+  private UUID uniqueId;
+  private Location location;
+  private Player player;
+
+  /**
+   * Constructor for the VirtualPlayer class.
+   *
+   * @param index    The index of the player in the load test.
+   * @param location The initial location of the player.
+   */
+  public VirtualPlayer(int index, Location location) {
+    this.name = "LoadTest" + index;
+    this.uniqueId = UUID.nameUUIDFromBytes(("PaperTS-LoadTest:" + index).getBytes());
+    this.location = location.clone();
+    this.player = (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] { Player.class },
+        this);
+  }
+
+  public Player getPlayer() {
+    return player;
+  }
+
+  public Location getLocation() {
+    return location.clone();
+  }
+
+  public void setLocation(Location location) {
+    this.location = location.clone();
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    int arity = args == null ? 0 : args.length;
+
+    switch (method.getName()) {
+      case "equals":
+        return arity == 1 && proxy == args[0];
+      case "hashCode":
+        return this.uniqueId.hashCode();
+      case "toString":
+        return "VirtualPlayer{name=" + this.name + "}";
+      case "getName":
+      case "getDisplayName":
+      case "getPlayerListName":
+        return this.name;
+      case "name":
+      case "displayName":
+      case "playerListName":
+        if (arity == 0 && method.getReturnType() == Component.class) {
+          return Component.text(this.name);
+        }
+        break;
+      case "getUniqueId":
+        return this.uniqueId;
+      case "getLocation":
+        if (arity == 0) {
+          return this.location.clone();
+        }
+
+        if (arity == 1 && args[0] instanceof Location target) {
+          target.setWorld(this.location.getWorld());
+          target.set(this.location.getX(), this.location.getY(), this.location.getZ());
+          target.setYaw(this.location.getYaw());
+          target.setPitch(this.location.getPitch());
+          return target;
+        }
+        break;
+      case "getWorld":
+        return this.location.getWorld();
+      case "teleport":
+        if (arity >= 1 && args[0] instanceof Location target) {
+          this.location = target.clone();
+          return true;
+        }
+        break;
+      case "isOnline":
+      case "isValid":
+      case "hasPlayedBefore":
+        return true;
+      default:
+        break;
+    }
+
+    return emptyValue(method.getReturnType());
+  }
+
+  private static Object emptyValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    } else if (type == float.class) {
+      return 0.0f;
+    } else if (type == short.class) {
+      return (short) 0;
+    } else if (type == byte.class) {
+      return (byte) 0;
+    } else if (type == char.class) {
+      return '\0';
+    } else if (type == List.class || type == Collection.class) {
+      return List.of();
+    } else if (type == Set.class) {
+      return Set.of();
+    } else if (type == Map.class) {
+      return Map.of();
+    }
+
+    return null;
+  }
+}
@@ -26,6 +26,35 @@ public class WorkingDirectory {
    * The run type of the module, defined in package.json.
    */
   private RunType runType;
+  /**
+   * The triggers that start the module lazily, or null if the module is started
+   * with the server.
+   */
+  private ActivationTriggers activationTriggers;
+  /**
+   * Whether the module runs in a context of the shared runtime, instead of a
+   * runtime of its own.
+   */
+  private boolean sharedIsolate;
+  /**
+   * The name of the runtime profile of the module, defined in package.json.
+   */
+  private String runtimeProfile;
+  /**
+   * The number of runtimes the module runs in, partitioned by player, defined
+   * in package.json.
+   */
+  private int shards;
+  /**
+   * The world generator script of the module, defined in package.json, or null
+   * if the module has none.
+   */
+  private String generatorScript;
+  /**
+   * How the module is reloaded, "blue-green" or "restart", defined in
+   * package.json, or null to use the reload mode of the plugin.
+   */
+  private String reloadMode;
 
   /**
    * The name of the package file, typically package.json.
@@ -84,6 +113,70 @@ public class WorkingDirectory {
     } else {
       this.runType = RunType.SynchronousOnNextTick; // Default run type
     }
+
+    if (jsonObject.has("activation")) {
+      if (!jsonObject.get("activation").isJsonObject()) {
+        throw new RuntimeException("Invalid 'activation' value in package.json: expected an object");
+      }
+
+      this.activationTriggers = ActivationTriggers.fromJson(jsonObject.getAsJsonObject("activation"));
+    }
+
+    if (jsonObject.has("runtimeProfile")) {
+      try {
+        this.runtimeProfile = jsonObject.get("runtimeProfile").getAsString();
+      } catch (ClassCastException | IllegalStateException e) {
+        throw new RuntimeException("Invalid 'runtimeProfile' value in package.json: expected a string");
+      }
+    } else {
+      this.runtimeProfile = RuntimeProfile.DEFAULT_NAME;
+    }
+
+    if (jsonObject.has("sharedIsolate")) {
+      try {
+        this.sharedIsolate = jsonObject.get("sharedIsolate").getAsBoolean();
+      } catch (ClassCastException | IllegalStateException e) {
+        throw new RuntimeException("Invalid 'sharedIsolate' value in package.json: expected a boolean");
+      }
+    }
+
+    this.shards = 1;
+
+    if (jsonObject.has("shards")) {
+      try {
+        this.shards = jsonObject.get("shards").getAsInt();
+      } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+        throw new RuntimeException("Invalid 'shards' value in package.json: expected a number");
+      }
+
+      if (this.shards < 1 || this.shards > ShardGroup.MAX_SHARDS) {
+        throw new RuntimeException("Invalid 'shards' value in package.json: expected 1 to " + ShardGroup.MAX_SHARDS);
+      }
+
+      if (this.shards > 1 && this.sharedIsolate) {
+        throw new RuntimeException("A module running in the shared runtime cannot be sharded");
+      }
+    }
+
+    if (jsonObject.has("generator")) {
+      try {
+        this.generatorScript = jsonObject.get("generator").getAsString();
+      } catch (ClassCastException | IllegalStateException e) {
+        throw new RuntimeException("Invalid 'generator' value in package.json: expected a string");
+      }
+    }
+
+    if (jsonObject.has("reloadMode")) {
+      try {
+        this.reloadMode = jsonObject.get("reloadMode").getAsString();
+      } catch (ClassCastException | IllegalStateException e) {
+        throw new RuntimeException("Invalid 'reloadMode' value in package.json: expected a string");
+      }
+
+      if (!"blue-green".equals(this.reloadMode) && !"restart".equals(this.reloadMode)) {
+        throw new RuntimeException("Invalid 'reloadMode' value in package.json: " + this.reloadMode);
+      }
+    }
   }
 
   /**
@@ -125,4 +218,66 @@ public class WorkingDirectory {
   public RunType getRunType() {
     return runType;
   }
+
+  /**
+   * Gets the triggers that start the module lazily.
+   * 
+   * @return The activation triggers, or null if the module is started with the
+   *         server.
+   */
+  public ActivationTriggers getActivationTriggers() {
+    return activationTriggers;
+  }
+
+  /**
+   * Checks if the module runs in a context of the shared runtime.
+   * 
+   * @return true if the module shares its runtime, false otherwise.
+   */
+  public boolean isSharedIsolate() {
+    return sharedIsolate;
+  }
+
+  /**
+   * Gets the name of the runtime profile of the module.
+   * 
+   * @return The name of the runtime profile.
+   */
+  public String getRuntimeProfile() {
+    return runtimeProfile;
+  }
+
+  /**
+   * Gets the number of runtimes the module runs in.
+   * 
+   * @return The number of shards, 1 if the module is not sharded.
+   */
+  public int getShards() {
+    return shards;
+  }
+
+  /**
+   * Gets how the module is reloaded.
+   * 
+   * @return "blue-green" or "restart", or null to use the reload mode of the
+   *         plugin.
+   */
+  public String getReloadMode() {
+    return reloadMode;
+  }
+
+  /**
+   * Gets the world generator script content.
+   *
+   * @return The content of the world generator script.
+   * @throws RuntimeException if the module has no world generator script.
+   * @throws IOException      if there is an error reading the script file.
+   */
+  public String getGeneratorScriptContent() throws RuntimeException, IOException {
+    if (generatorScript == null) {
+      throw new RuntimeException("No 'generator' field found in package.json");
+    }
+
+    return Files.readString(path.resolve(generatorScript));
+  }
 }
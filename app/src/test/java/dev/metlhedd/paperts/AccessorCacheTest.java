@@ -0,0 +1,193 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.caoccao.javet.interop.V8Host;
+import com.caoccao.javet.interop.V8Runtime;
+import com.caoccao.javet.interop.converters.JavetProxyConverter;
+import com.caoccao.javet.values.reference.V8ValueArray;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+class AccessorCacheTest {
+  /**
+   * The number of objects read per run in the benchmark.
+   */
+  private static final int OBJECTS = 1_000;
+  /**
+   * The number of timed runs in the benchmark, after as many warm up runs.
+   */
+  private static final int RUNS = 200;
+
+  public static class Sample {
+    private double health = 20;
+    private int amount;
+
+    public double getHealth() {
+      return this.health;
+    }
+
+    public void setHealth(double health) {
+      this.health = health;
+    }
+
+    public boolean isAlive() {
+      return this.health > 0;
+    }
+
+    public String getName() {
+      return "Steve";
+    }
+
+    public int getAmount() {
+      return this.amount;
+    }
+
+    public void setAmount(int amount) {
+      this.amount = amount;
+    }
+
+    public void setAmount(String amount) {
+      this.amount = Integer.parseInt(amount);
+    }
+  }
+
+  /**
+   * The bulk accessors of the PaperTS global, without the rest of the module.
+   */
+  public static class Bulk {
+    public Object[] read(Object target, List<String> properties) {
+      Object[] values = new Object[properties.size()];
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] = AccessorCache.get(target, properties.get(i));
+      }
+
+      return values;
+    }
+
+    public double[] readNumbers(List<Object> targets, String property) {
+      double[] values = new double[targets.size()];
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] = ((Number) AccessorCache.get(targets.get(i), property)).doubleValue();
+      }
+
+      return values;
+    }
+  }
+
+  @AfterEach
+  void clearHotTypes() {
+    AccessorCache.setHotTypes(List.of(), Logger.getAnonymousLogger());
+  }
+
+  @Test
+  void readsGettersByPropertyAndMethodName() {
+    Sample sample = new Sample();
+
+    assertEquals(20.0, AccessorCache.get(sample, "health"));
+    assertEquals(true, AccessorCache.get(sample, "alive"));
+    assertEquals("Steve", AccessorCache.get(sample, "getName"));
+    assertThrows(IllegalArgumentException.class, () -> AccessorCache.get(sample, "missing"));
+  }
+
+  @Test
+  void readsTheSameThroughCompiledGetters() {
+    AccessorCache.setHotTypes(List.of(Sample.class.getName()), Logger.getAnonymousLogger());
+
+    Sample sample = new Sample();
+
+    assertEquals(20.0, AccessorCache.get(sample, "health"));
+    assertEquals("Steve", AccessorCache.get(sample, "name"));
+  }
+
+  @Test
+  void picksTheSetterOverloadFromTheValue() {
+    Sample sample = new Sample();
+
+    AccessorCache.set(sample, "amount", "7");
+    assertEquals(7, sample.getAmount());
+
+    // A script number arrives as a double
+    AccessorCache.set(sample, "amount", 3.0);
+    assertEquals(3, sample.getAmount());
+
+    AccessorCache.set(sample, "health", 5.5);
+    assertEquals(5.5, sample.getHealth());
+    assertThrows(IllegalArgumentException.class, () -> AccessorCache.set(sample, "health", true));
+  }
+
+  /**
+   * Compares reading the properties of many objects through the stock proxies
+   * of Javet, one call per property, with the bulk accessors of the cache.
+   */
+  @Test
+  @Tag("benchmark")
+  void comparesBulkReadsWithProxyReads() throws Exception {
+    AccessorCache.setHotTypes(List.of(Sample.class.getName()), Logger.getAnonymousLogger());
+
+    try (V8Runtime runtime = V8Host.getNodeInstance().createV8Runtime()) {
+      ArrayList<Sample> samples = new ArrayList<>();
+
+      for (int i = 0; i < OBJECTS; i++) {
+        samples.add(new Sample());
+      }
+
+      runtime.setConverter(new JavetProxyConverter());
+      runtime.getGlobalObject().set("bulk", new Bulk());
+
+      try (V8ValueArray array = runtime.createV8ValueArray()) {
+        for (Sample sample : samples) {
+          array.push(sample);
+        }
+
+        runtime.getGlobalObject().set("samples", array);
+      }
+
+      String proxyNumbers = "samples.map(sample => sample.health)";
+      String bulkNumbers = "bulk.readNumbers(samples, 'health')";
+      String proxyRead = "samples.map(sample => [sample.name, sample.health, sample.alive])";
+      String bulkRead = "samples.map(sample => bulk.read(sample, ['name', 'health', 'alive']))";
+
+      assertArrayEquals(runtime.getExecutor("JSON.stringify(" + proxyNumbers + ")").executeString().getBytes(),
+          runtime.getExecutor("JSON.stringify(Array.from(" + bulkNumbers + "))").executeString().getBytes());
+
+      report("health of every object, proxy", time(runtime, proxyNumbers));
+      report("health of every object, PaperTS.readNumbers", time(runtime, bulkNumbers));
+      report("three properties per object, proxy", time(runtime, proxyRead));
+      report("three properties per object, PaperTS.read", time(runtime, bulkRead));
+    }
+  }
+
+  /**
+   * Times a script over the objects, after as many warm up runs.
+   *
+   * @return The average time of a run, in nanoseconds.
+   */
+  private static double time(V8Runtime runtime, String script) throws Exception {
+    for (int i = 0; i < RUNS; i++) {
+      runtime.getExecutor(script).executeVoid();
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < RUNS; i++) {
+      runtime.getExecutor(script).executeVoid();
+    }
+
+    return (double) (System.nanoTime() - start) / RUNS;
+  }
+
+  private static void report(String name, double nanos) {
+    System.out.printf("%-48s %10.1f us per run, %6.2f us per object%n", name, nanos / 1000,
+        nanos / 1000 / OBJECTS);
+  }
+}
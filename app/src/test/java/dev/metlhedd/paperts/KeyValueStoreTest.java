@@ -0,0 +1,230 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class KeyValueStoreTest {
+  /**
+   * The size of the header of a segment, and of a record before its key.
+   */
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 13;
+
+  @TempDir
+  Path directory;
+
+  @AfterEach
+  void resetCompactionInterval() {
+    KeyValueStore.setCompactionIntervalSeconds(300);
+  }
+
+  @Test
+  void servesWritesBeforeAndAfterTheyAreCommitted() throws Exception {
+    KeyValueStore store = this.open();
+
+    try {
+      PendingResult<Void> put = store.putString("player.1", "Steve");
+
+      store.putBytes("player.2", new byte[] { 1, 2, 3 });
+      store.putString("world", "overworld");
+
+      // Pending writes are visible right away
+      assertEquals("Steve", store.getString("player.1"));
+      await(put);
+      await(store.delete("world"));
+
+      assertEquals("Steve", store.getString("player.1"));
+      assertArrayEquals(new byte[] { 1, 2, 3 }, store.getBytes("player.2"));
+      assertFalse(store.has("world"));
+      assertNull(store.getString("world"));
+
+      List<String> keys = store.keys("player.");
+
+      keys.sort(null);
+      assertEquals(List.of("player.1", "player.2"), keys);
+    } finally {
+      KeyValueStore.release(store);
+    }
+  }
+
+  @Test
+  void sharesTheStoreOfAFolder() throws Exception {
+    KeyValueStore store = this.open();
+    KeyValueStore other = KeyValueStore.open(this.directory, Logger.getAnonymousLogger());
+
+    try {
+      assertSame(store, other);
+      KeyValueStore.release(other);
+
+      // The first reference still holds the store open
+      await(store.putString("key", "value"));
+      assertEquals("value", store.getString("key"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+  }
+
+  @Test
+  void rejectsInvalidKeysAndValues() throws Exception {
+    KeyValueStore store = this.open();
+
+    try {
+      assertThrows(IllegalArgumentException.class, () -> store.putString("", "value"));
+      assertThrows(IllegalArgumentException.class,
+          () -> store.putString("k".repeat(KeyValueStore.MAX_KEY_BYTES + 1), "value"));
+      assertThrows(IllegalArgumentException.class,
+          () -> store.putBytes("key", new byte[KeyValueStore.MAX_VALUE_BYTES + 1]));
+      assertThrows(IllegalArgumentException.class, () -> store.putString("key", null));
+    } finally {
+      KeyValueStore.release(store);
+    }
+
+    assertThrows(IllegalStateException.class, () -> store.putString("key", "value"));
+  }
+
+  @Test
+  void recoversTheLogAfterReopening() throws Exception {
+    KeyValueStore store = this.open();
+
+    await(store.putString("a", "1"));
+    await(store.putString("b", "2"));
+    await(store.putString("a", "3"));
+    await(store.delete("b"));
+    await(store.putString("c", "4"));
+    KeyValueStore.release(store);
+
+    store = this.open();
+
+    try {
+      assertEquals("3", store.getString("a"));
+      assertFalse(store.has("b"));
+      assertEquals("4", store.getString("c"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+  }
+
+  @Test
+  void recoversUpToATornRecord() throws Exception {
+    KeyValueStore store = this.open();
+
+    await(store.putString("a", "1"));
+    await(store.putString("b", "2"));
+    KeyValueStore.release(store);
+
+    // Corrupt the value of the second record, as if the crash tore it
+    int secondRecord = SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 2;
+
+    try (RandomAccessFile file = new RandomAccessFile(this.directory.resolve("00000001.log").toFile(), "rw")) {
+      file.seek(secondRecord + RECORD_HEADER_SIZE + 1);
+      file.write('X');
+    }
+
+    store = this.open();
+
+    try {
+      assertEquals("1", store.getString("a"));
+      assertFalse(store.has("b"));
+      // The new record replaces the torn one, which must not come back
+      await(store.putString("c", "3"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+
+    store = this.open();
+
+    try {
+      assertEquals("1", store.getString("a"));
+      assertFalse(store.has("b"));
+      assertEquals("3", store.getString("c"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+  }
+
+  @Test
+  void compactsOverwrittenValues() throws Exception {
+    KeyValueStore.setCompactionIntervalSeconds(1);
+
+    KeyValueStore store = this.open();
+    byte[] value = new byte[1024 * 1024];
+
+    try {
+      await(store.putString("kept", "value"));
+
+      // More than a segment of overwritten values
+      for (int i = 0; i < 40; i++) {
+        Arrays.fill(value, (byte) i);
+        store.putBytes("overwritten", value);
+      }
+
+      await(store.putString("last", "value"));
+      assertTrue(Files.exists(this.directory.resolve("00000002.log")));
+
+      long deadline = System.currentTimeMillis() + 10_000;
+
+      while (Files.exists(this.directory.resolve("00000001.log"))) {
+        assertTrue(System.currentTimeMillis() < deadline, "The log was not compacted.");
+        TimeUnit.MILLISECONDS.sleep(100);
+      }
+
+      assertEquals("value", store.getString("kept"));
+      assertArrayEquals(value, store.getBytes("overwritten"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+
+    store = this.open();
+
+    try {
+      assertEquals("value", store.getString("kept"));
+      assertEquals("value", store.getString("last"));
+      assertArrayEquals(value, store.getBytes("overwritten"));
+    } finally {
+      KeyValueStore.release(store);
+    }
+  }
+
+  private KeyValueStore open() throws Exception {
+    KeyValueStore store = KeyValueStore.open(this.directory, Logger.getAnonymousLogger());
+
+    await(store.whenLoaded());
+
+    return store;
+  }
+
+  /**
+   * Waits for a result, failing the test if it is rejected.
+   */
+  private static void await(PendingResult<?> result) throws Exception {
+    CompletableFuture<Object> future = new CompletableFuture<>();
+
+    result.then(value -> {
+      future.complete(value);
+      return null;
+    }, error -> {
+      future.completeExceptionally(new AssertionError(String.valueOf(error)));
+      return null;
+    });
+
+    future.get(30, TimeUnit.SECONDS);
+  }
+}
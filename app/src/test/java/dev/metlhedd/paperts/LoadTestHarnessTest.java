@@ -0,0 +1,146 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bukkit.World;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.plugin.PluginMock;
+
+/**
+ * LoadTestHarnessTest class running a {@link LoadTest} offline: the module is
+ * booted by a {@link Pool} on a simulated server, and the traffic of virtual
+ * players is fired at it one simulated tick at a time. Run it with the loadTest
+ * task of the build, which passes the module, the traffic log to replay, or
+ * the number of players and seconds to generate, and prints the report.
+ */
+@Tag("loadtest")
+class LoadTestHarnessTest {
+  /**
+   * How long the module may take to start, in milliseconds.
+   */
+  private static final long START_TIMEOUT_MILLIS = 30_000;
+
+  private ServerMock server;
+  private PluginMock plugin;
+  private World world;
+
+  @BeforeEach
+  void setUp() {
+    this.server = MockBukkit.mock();
+    this.world = this.server.addSimpleWorld("world");
+    this.plugin = MockBukkit.createMockPlugin("PaperTS");
+  }
+
+  @AfterEach
+  void tearDown() {
+    MockBukkit.unmock();
+  }
+
+  @Test
+  void reportsTheCostOfTheHandlers() throws Exception {
+    Path modulePath = getModulePath();
+    String moduleName = modulePath.getFileName().toString();
+    Pool pool = new Pool(this.plugin, false, List.of(), Map.of());
+    Thread runtimeThread = new Thread(() -> {
+      try {
+        pool.initRuntime(modulePath);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, "PaperTS-" + moduleName);
+
+    runtimeThread.start();
+
+    try {
+      Globals globals = this.awaitGlobals(pool, modulePath);
+      LoadTest test = new LoadTest(this.plugin, moduleName, globals, this.createSource(globals), this.world);
+      AtomicReference<Object> report = new AtomicReference<>();
+      AtomicReference<Object> error = new AtomicReference<>();
+
+      test.start().then(value -> {
+        report.set(value);
+        return null;
+      }, reason -> {
+        error.set(reason);
+        return null;
+      });
+
+      // Every simulated tick fires one tick of traffic
+      while (report.get() == null && error.get() == null) {
+        this.server.getScheduler().performOneTick();
+      }
+
+      assertNull(error.get(), "The load test failed");
+      System.out.println(report.get());
+      assertTrue(String.valueOf(report.get()).contains("p99"));
+    } finally {
+      pool.releaseRuntime(modulePath);
+      runtimeThread.join();
+    }
+  }
+
+  /**
+   * Gets the module under test, the sample module of the tests by default.
+   */
+  private static Path getModulePath() throws URISyntaxException {
+    String module = System.getProperty("paperts.loadtest.module");
+
+    if (module != null) {
+      return Path.of(module).toAbsolutePath().normalize();
+    }
+
+    return Path.of(LoadTestHarnessTest.class.getResource("/loadtest-module").toURI());
+  }
+
+  /**
+   * Creates the traffic of the test, replayed from a traffic log if one is
+   * given, generated otherwise.
+   */
+  private LoadTest.Source createSource(Globals globals) throws IOException {
+    String replay = System.getProperty("paperts.loadtest.replay");
+
+    if (replay != null) {
+      return LoadTest.replay(new File(replay));
+    }
+
+    return LoadTest.generate(globals, this.world.getSpawnLocation(), Integer.getInteger("paperts.loadtest.players", 20),
+        Integer.getInteger("paperts.loadtest.seconds", 10));
+  }
+
+  /**
+   * Ticks the server until the script of the module is up, as it starts on
+   * the next tick by default.
+   */
+  private Globals awaitGlobals(Pool pool, Path modulePath) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+    Globals globals = pool.getGlobals(modulePath);
+
+    while (globals == null) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Module " + modulePath.getFileName() + " did not start.");
+      }
+
+      this.server.getScheduler().performOneTick();
+      TimeUnit.MILLISECONDS.sleep(10);
+      globals = pool.getGlobals(modulePath);
+    }
+
+    return globals;
+  }
+}
@@ -0,0 +1,153 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+  /**
+   * The relative error of a percentile, half the width of a bucket.
+   */
+  private static final double MAX_ERROR = 0.03;
+
+  private Metrics metrics;
+
+  @BeforeEach
+  void setUp() {
+    this.metrics = Metrics.open("metrics-test", Logger.getAnonymousLogger());
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.release(this.metrics);
+  }
+
+  @Test
+  void countsSmallValuesExactly() {
+    Metrics.Histogram histogram = this.metrics.histogram("small");
+
+    for (int value = 0; value < 32; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(32, histogram.getCount());
+    assertEquals(15.5, histogram.getMean());
+    assertEquals(31, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(0));
+    assertEquals(15, histogram.getPercentile(0.5));
+    assertEquals(31, histogram.getPercentile(1));
+  }
+
+  @Test
+  void reportsPercentilesWithinTheBucketError() {
+    Metrics.Histogram histogram = this.metrics.histogram("latency");
+    int count = 100_000;
+
+    for (int value = 1; value <= count; value++) {
+      histogram.record(value);
+    }
+
+    for (double fraction : new double[] { 0.1, 0.5, 0.9, 0.99, 0.999, 1 }) {
+      double exact = Math.ceil(fraction * count);
+      long reported = histogram.getPercentile(fraction);
+
+      assertTrue(Math.abs(reported - exact) / exact <= MAX_ERROR, "p" + fraction * 100 + " was " + reported);
+      assertTrue(reported <= count);
+    }
+
+    assertEquals(count, histogram.getMax());
+  }
+
+  @Test
+  void keepsLargeValuesWithinTheBucketError() {
+    for (long value : new long[] { 33, 1_000, 65_537, 1L << 40, (1L << 40) + 12_345_678, Long.MAX_VALUE / 3 }) {
+      Metrics.Histogram histogram = this.metrics.histogram("value " + value);
+
+      histogram.record(value);
+      histogram.record(value);
+
+      long reported = histogram.getPercentile(0.5);
+
+      assertTrue(Math.abs(reported - value) <= value * MAX_ERROR, value + " was reported as " + reported);
+      assertTrue(reported <= value);
+    }
+  }
+
+  @Test
+  void roundsAndClampsRecordedValues() {
+    Metrics.Histogram histogram = this.metrics.histogram("clamped");
+
+    histogram.record(-5);
+    histogram.record(2.6);
+
+    assertEquals(2, histogram.getCount());
+    assertEquals(1.5, histogram.getMean());
+    assertEquals(0, histogram.getPercentile(0.5));
+    assertEquals(3, histogram.getMax());
+    assertEquals(0, this.metrics.histogram("empty").getPercentile(0.99));
+  }
+
+  @Test
+  void countsEveryValueOfConcurrentWriters() throws InterruptedException {
+    Metrics.Histogram histogram = this.metrics.histogram("concurrent");
+    ArrayList<Thread> writers = new ArrayList<>();
+
+    for (int thread = 0; thread < 8; thread++) {
+      Thread writer = new Thread(() -> {
+        for (int value = 0; value < 10_000; value++) {
+          histogram.record(value % 100);
+        }
+      });
+
+      writer.start();
+      writers.add(writer);
+    }
+
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    assertEquals(80_000, histogram.getCount());
+    assertEquals(49.5, histogram.getMean());
+    assertEquals(99, histogram.getMax());
+  }
+
+  @Test
+  void appliesBatchesOfUpdatesById() {
+    Metrics.Counter joins = this.metrics.counter("joins");
+    Metrics.Gauge players = this.metrics.gauge("players");
+    Metrics.Histogram joinTime = this.metrics.histogram("joinTime");
+
+    this.metrics.update(new int[] { joins.getId(), players.getId(), joinTime.getId(), joins.getId() },
+        new double[] { 1, 12, 250, 2 });
+
+    assertEquals(3, joins.getValue());
+    assertEquals(12, players.getValue());
+    assertEquals(1, joinTime.getCount());
+    assertSame(joins, this.metrics.counter("joins"));
+    assertEquals(3, this.metrics.describe().size());
+
+    assertThrows(IllegalArgumentException.class, () -> this.metrics.gauge("joins"));
+    assertThrows(IllegalArgumentException.class, () -> this.metrics.update(new int[] { 99 }, new double[] { 1 }));
+    assertThrows(IllegalArgumentException.class, () -> this.metrics.update(new int[] { 0 }, new double[0]));
+  }
+
+  @Test
+  void sharesTheMetricsOfAModuleUntilReleased() {
+    Metrics other = Metrics.open("metrics-test", Logger.getAnonymousLogger());
+
+    assertSame(this.metrics, other);
+    Metrics.release(other);
+    assertSame(this.metrics, Metrics.get("metrics-test"));
+    assertNull(Metrics.get("metrics-test-unknown"));
+  }
+}
@@ -0,0 +1,148 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+  /**
+   * The period of the limiters that expire during a test, in milliseconds.
+   * The wheel covers at least 50 ms per slot, so keys are removed up to two
+   * slots after they expire.
+   */
+  private static final long SHORT_PERIOD_MILLIS = 100;
+  private static final long LONG_PERIOD_MILLIS = 60_000;
+
+  @Test
+  void allowsOneActionPerCooldown() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter("cooldown", RateLimitPolicy.Cooldown, 0, SHORT_PERIOD_MILLIS);
+
+    assertTrue(limiter.tryAcquire(1));
+    assertFalse(limiter.tryAcquire(1));
+    assertTrue(limiter.getRemainingMillis(1) > 0);
+    assertTrue(limiter.getRemainingMillis(1) <= SHORT_PERIOD_MILLIS);
+    assertTrue(limiter.tryAcquire(2));
+
+    Thread.sleep(SHORT_PERIOD_MILLIS + 10);
+
+    assertEquals(0, limiter.getRemainingMillis(1));
+    assertTrue(limiter.tryAcquire(1));
+  }
+
+  @Test
+  void allowsTheLimitPerFixedWindow() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter("window", RateLimitPolicy.FixedWindow, 3, SHORT_PERIOD_MILLIS);
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire(1));
+    }
+
+    assertFalse(limiter.tryAcquire(1));
+    assertTrue(limiter.getRemainingMillis(1) > 0);
+
+    Thread.sleep(SHORT_PERIOD_MILLIS + 10);
+
+    assertTrue(limiter.tryAcquire(1));
+  }
+
+  @Test
+  void refillsTheTokenBucketOverThePeriod() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter("bucket", RateLimitPolicy.TokenBucket, 2, 2 * SHORT_PERIOD_MILLIS);
+
+    assertTrue(limiter.tryAcquire(1));
+    assertTrue(limiter.tryAcquire(1));
+    assertFalse(limiter.tryAcquire(1));
+
+    // One token is back after half of the period
+    Thread.sleep(SHORT_PERIOD_MILLIS + 10);
+
+    assertTrue(limiter.tryAcquire(1));
+    assertFalse(limiter.tryAcquire(1));
+  }
+
+  @Test
+  void keepsEveryKeyAcrossGrowthAndRemoval() {
+    RateLimiter limiter = new RateLimiter("keys", RateLimitPolicy.Cooldown, 0, LONG_PERIOD_MILLIS);
+    ArrayList<UUID> players = new ArrayList<>();
+
+    // Far more keys than the initial capacity, so the table grows several times
+    for (int i = 0; i < 1_000; i++) {
+      players.add(new UUID(0x1000L | i, i));
+      assertTrue(limiter.tryAcquire(i));
+      assertTrue(limiter.tryAcquire(players.get(i)));
+    }
+
+    assertEquals(2_000, limiter.size());
+
+    // Removing shifts the entries of a probe sequence back into the hole
+    for (int i = 0; i < 1_000; i += 2) {
+      limiter.reset(i);
+      limiter.reset(players.get(i));
+    }
+
+    assertEquals(1_000, limiter.size());
+
+    for (int i = 0; i < 1_000; i++) {
+      assertEquals(i % 2 == 0, limiter.tryAcquire(i), "entity " + i);
+      assertEquals(i % 2 == 0, limiter.tryAcquire(players.get(i)), "player " + i);
+    }
+  }
+
+  @Test
+  void keysPlayersByTheirUniqueId() {
+    RateLimiter limiter = new RateLimiter("ids", RateLimitPolicy.Cooldown, 0, LONG_PERIOD_MILLIS);
+    UUID id = UUID.randomUUID();
+
+    assertTrue(limiter.tryAcquire(id));
+    assertFalse(limiter.tryAcquire(id.toString()));
+    // An entity id never collides with a unique id
+    assertTrue(limiter.tryAcquire(id.getLeastSignificantBits()));
+    assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire(new Object()));
+  }
+
+  @Test
+  void removesExpiredKeysThroughTheWheel() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter("wheel", RateLimitPolicy.Cooldown, 0, SHORT_PERIOD_MILLIS);
+
+    for (int i = 0; i < 100; i++) {
+      limiter.tryAcquire(i);
+    }
+
+    assertEquals(100, limiter.size());
+
+    // The period, plus the slot the keys were scheduled past their expiry
+    Thread.sleep(SHORT_PERIOD_MILLIS + 2 * 50 + 10);
+
+    assertEquals(0, limiter.size());
+  }
+
+  @Test
+  void keepsExtendedKeysUntilTheyExpire() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter("extended", RateLimitPolicy.TokenBucket, 4, 4 * SHORT_PERIOD_MILLIS);
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(limiter.tryAcquire(1));
+    }
+
+    Thread.sleep(3 * SHORT_PERIOD_MILLIS);
+
+    // Emptying the bucket again pushes its expiry past its slot of the wheel
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire(1));
+    }
+
+    Thread.sleep(2 * SHORT_PERIOD_MILLIS + 50);
+
+    assertEquals(1, limiter.size());
+
+    Thread.sleep(3 * SHORT_PERIOD_MILLIS + 50);
+
+    assertEquals(0, limiter.size());
+  }
+}
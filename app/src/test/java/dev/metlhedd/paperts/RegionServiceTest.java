@@ -0,0 +1,137 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.entity.PlayerMock;
+import org.mockbukkit.mockbukkit.plugin.PluginMock;
+
+class RegionServiceTest {
+  private ServerMock server;
+  private World world;
+  private RegionService service;
+  private PlayerMock player;
+  /**
+   * The callbacks received, as "enter:id" and "leave:id".
+   */
+  private ArrayList<String> callbacks;
+
+  @BeforeEach
+  void setUp() {
+    this.server = MockBukkit.mock();
+    this.world = this.server.addSimpleWorld("world");
+
+    PluginMock plugin = MockBukkit.createMockPlugin("PaperTS");
+
+    this.service = new RegionService(plugin);
+    this.callbacks = new ArrayList<>();
+    this.service.setEnterHandler((player, id) -> {
+      this.callbacks.add("enter:" + id);
+      return null;
+    });
+    this.service.setLeaveHandler((player, id) -> {
+      this.callbacks.add("leave:" + id);
+      return null;
+    });
+
+    this.player = this.server.addPlayer();
+    this.player.setLocation(this.at(1_000, 1_000));
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.service.clear();
+    MockBukkit.unmock();
+  }
+
+  @Test
+  void tracksPlayersThroughTheGrid() {
+    // Spans the cells on both sides of the origin
+    this.service.addRegion(this.box("spawn", -8, 8));
+    assertEquals(List.of(), this.callbacks);
+
+    this.player.simulatePlayerMove(this.at(-4, -4));
+    this.player.simulatePlayerMove(this.at(4, 4));
+    assertEquals(List.of("enter:spawn"), this.callbacks);
+    assertEquals(Set.of("spawn"), this.service.getRegions(this.player));
+
+    this.player.simulatePlayerMove(this.at(20, 4));
+    assertEquals(List.of("enter:spawn", "leave:spawn"), this.callbacks);
+    assertEquals(Set.of(), this.service.getRegions(this.player));
+  }
+
+  @Test
+  void tracksPolygonsWithinTheirBounds() {
+    // A triangle, whose bounding box also holds points outside of it
+    this.service.addRegion(new Region("triangle", this.world.getUID(), new double[] { 0, 0, 40, 0, 0, 40 }, 0, 256));
+
+    this.player.simulatePlayerMove(this.at(35, 35));
+    assertEquals(List.of(), this.callbacks);
+
+    this.player.simulatePlayerMove(this.at(5, 5));
+    assertEquals(List.of("enter:triangle"), this.callbacks);
+  }
+
+  @Test
+  void tracksLargeRegionsOutsideOfTheGrid() {
+    // Far more cells than the grid indexes a region in
+    this.service.addRegion(this.box("world-border", -100_000, 100_000));
+    this.service.addRegion(this.box("spawn", -8, 8));
+
+    // The player already stands in the large region
+    assertEquals(List.of("enter:world-border"), this.callbacks);
+
+    this.player.simulatePlayerMove(this.at(0, 0));
+    this.player.simulatePlayerMove(this.at(-50_000, 90_000));
+    assertEquals(List.of("enter:world-border", "enter:spawn", "leave:spawn"), this.callbacks);
+    assertEquals(Set.of("world-border"), this.service.getRegions(this.player));
+
+    this.service.removeRegion("world-border");
+    assertEquals("leave:world-border", this.callbacks.get(3));
+    assertEquals(Set.of(), this.service.getRegions(this.player));
+  }
+
+  @Test
+  void sendsTheMissedCallbacksOnResume() {
+    this.service.addRegion(this.box("spawn", -8, 8));
+    this.service.setPaused(true);
+
+    this.player.simulatePlayerMove(this.at(0, 0));
+    assertEquals(List.of(), this.callbacks);
+
+    this.service.setPaused(false);
+    assertEquals(List.of("enter:spawn"), this.callbacks);
+  }
+
+  @Test
+  void rejectsDuplicateAndUnknownRegions() {
+    this.service.addRegion(this.box("spawn", -8, 8));
+
+    assertThrows(RuntimeException.class, () -> this.service.addRegion(this.box("spawn", 0, 1)));
+    assertThrows(RuntimeException.class, () -> this.service.removeRegion("unknown"));
+
+    this.service.removeRegion("spawn");
+    assertThrows(RuntimeException.class, () -> this.service.removeRegion("spawn"));
+    assertTrue(this.callbacks.isEmpty());
+  }
+
+  private Region box(String id, double min, double max) {
+    return new Region(id, this.world.getUID(), min, 0, min, max, 256, max);
+  }
+
+  private Location at(double x, double z) {
+    return new Location(this.world, x, 64, z);
+  }
+}
@@ -0,0 +1,195 @@
+package dev.metlhedd.paperts;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+class TraceRecorderTest {
+  @TempDir
+  Path directory;
+
+  @AfterEach
+  void stopRecording() throws IOException {
+    if (TraceRecorder.isEnabled()) {
+      TraceRecorder.stop(this.directory.resolve("leftover.json").toFile());
+    }
+  }
+
+  @Test
+  void recordsNothingWhileStopped() {
+    assertFalse(TraceRecorder.isEnabled());
+    assertEquals(0, TraceRecorder.begin());
+    assertThrows(RuntimeException.class, () -> TraceRecorder.stop(this.directory.resolve("none.json").toFile()));
+  }
+
+  @Test
+  void writesSpansAsChromeTrace() throws IOException {
+    File file = this.directory.resolve("trace.json").toFile();
+
+    TraceRecorder.start(16);
+    record("my-module", TraceRecorder.EVENT, "PlayerJoinEvent");
+    record("my-module", TraceRecorder.COMMAND, "hello");
+    record(null, TraceRecorder.SERVER, "Tick");
+
+    assertEquals(3, TraceRecorder.stop(file));
+    assertFalse(TraceRecorder.isEnabled());
+
+    List<JsonObject> spans = readSpans(file);
+
+    assertEquals(3, spans.size());
+    assertEquals("PlayerJoinEvent", spans.get(0).get("name").getAsString());
+    assertEquals(TraceRecorder.EVENT, spans.get(0).get("cat").getAsString());
+    assertEquals("my-module", spans.get(0).getAsJsonObject("args").get("module").getAsString());
+    assertEquals("hello", spans.get(1).get("name").getAsString());
+    assertFalse(spans.get(2).getAsJsonObject("args").has("module"));
+    assertTrue(spans.get(0).get("dur").getAsDouble() >= 0);
+  }
+
+  @Test
+  void keepsTheLatestSpansOfTheRing() throws IOException {
+    File file = this.directory.resolve("trace.json").toFile();
+
+    // Rounded up to 8 spans
+    TraceRecorder.start(5);
+
+    for (int i = 0; i < 20; i++) {
+      record("my-module", TraceRecorder.TASK, "span " + i);
+    }
+
+    assertEquals(8, TraceRecorder.stop(file));
+
+    List<JsonObject> spans = readSpans(file);
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals("span " + (12 + i), spans.get(i).get("name").getAsString());
+    }
+  }
+
+  @Test
+  void keepsEverySpanOfConcurrentWriters() throws Exception {
+    File file = this.directory.resolve("trace.json").toFile();
+    int threads = 8;
+    int spansPerThread = 2_000;
+
+    TraceRecorder.start(threads * spansPerThread);
+    runWriters(threads, spansPerThread);
+
+    assertEquals(threads * spansPerThread, TraceRecorder.stop(file));
+
+    HashSet<String> names = new HashSet<>();
+
+    for (JsonObject span : readSpans(file)) {
+      names.add(span.get("name").getAsString());
+    }
+
+    assertEquals(threads * spansPerThread, names.size());
+  }
+
+  @Test
+  void skipsSpansTornByTheWrap() throws Exception {
+    File file = this.directory.resolve("trace.json").toFile();
+    AtomicBoolean running = new AtomicBoolean(true);
+    ArrayList<Thread> writers = new ArrayList<>();
+    CountDownLatch started = new CountDownLatch(4);
+
+    // A small ring, so the writers keep overwriting the slots being read
+    TraceRecorder.start(64);
+
+    for (int thread = 0; thread < 4; thread++) {
+      String module = "writer-" + thread;
+      Thread writer = new Thread(() -> {
+        started.countDown();
+
+        for (int i = 0; running.get(); i++) {
+          record(module, TraceRecorder.TASK, module + "/" + i);
+        }
+      });
+
+      writer.start();
+      writers.add(writer);
+    }
+
+    started.await();
+    Thread.sleep(50);
+
+    int written = TraceRecorder.stop(file);
+
+    running.set(false);
+
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    assertTrue(written <= 64);
+
+    // A torn slot would mix the fields of two spans
+    for (JsonObject span : readSpans(file)) {
+      String module = span.getAsJsonObject("args").get("module").getAsString();
+
+      assertTrue(span.get("name").getAsString().startsWith(module + "/"), span.toString());
+    }
+  }
+
+  private static void record(String module, String category, String name) {
+    TraceRecorder.end(TraceRecorder.begin(), module, category, name);
+  }
+
+  private static void runWriters(int threads, int spansPerThread) throws InterruptedException {
+    ArrayList<Thread> writers = new ArrayList<>();
+
+    for (int thread = 0; thread < threads; thread++) {
+      String module = "writer-" + thread;
+      Thread writer = new Thread(() -> {
+        for (int i = 0; i < spansPerThread; i++) {
+          record(module, TraceRecorder.TASK, module + "/" + i);
+        }
+      });
+
+      writer.start();
+      writers.add(writer);
+    }
+
+    for (Thread writer : writers) {
+      writer.join();
+    }
+  }
+
+  /**
+   * Reads the spans of a trace, leaving out the metadata events.
+   */
+  private static List<JsonObject> readSpans(File file) throws IOException {
+    ArrayList<JsonObject> spans = new ArrayList<>();
+
+    try (Reader reader = new FileReader(file)) {
+      for (JsonElement element : JsonParser.parseReader(reader).getAsJsonObject().getAsJsonArray("traceEvents")) {
+        JsonObject event = element.getAsJsonObject();
+
+        if (event.get("ph").getAsString().equals("X")) {
+          spans.add(event);
+        }
+      }
+    }
+
+    return spans;
+  }
+}
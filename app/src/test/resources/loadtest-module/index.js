@@ -0,0 +1,36 @@
+// Sample module the load test harness fires traffic at when no module is
+// given: it keeps a little state per player, like most gameplay modules do.
+const AsyncChatEvent = javet.package.io.papermc.paper.event.player.AsyncChatEvent;
+const steps = new Map();
+const chats = new Map();
+
+PaperTS.registerEvent(org.bukkit.event.player.PlayerJoinEvent, (event) => {
+  steps.set(event.player.name, 0);
+});
+
+PaperTS.registerEvent(org.bukkit.event.player.PlayerQuitEvent, (event) => {
+  steps.delete(event.player.name);
+  chats.delete(event.player.name);
+});
+
+PaperTS.registerEvent(org.bukkit.event.player.PlayerMoveEvent, (event) => {
+  const name = event.player.name;
+
+  steps.set(name, (steps.get(name) || 0) + 1);
+});
+
+PaperTS.registerEvent(org.bukkit.event.player.PlayerInteractEvent, (event) => {
+  if (event.clickedBlock != null && event.clickedBlock.type.isInteractable()) {
+    event.setCancelled(true);
+  }
+});
+
+PaperTS.registerEvent(AsyncChatEvent, (event) => {
+  const name = event.player.name;
+
+  chats.set(name, (chats.get(name) || 0) + 1);
+});
+
+PaperTS.registerCommand("stats", "Shows your stats", "/stats", "", [], (sender, args) => {
+  sender.sendMessage(`${steps.get(sender.name) || 0} steps, ${chats.get(sender.name) || 0} messages`);
+});